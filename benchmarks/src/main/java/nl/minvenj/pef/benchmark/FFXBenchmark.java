@@ -0,0 +1,81 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.benchmark;
+
+import java.security.InvalidKeyException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.minvenj.pef.ffx.FFX;
+
+/**
+ * Measures FFX encryption at radix 2, as used for IP addresses, for messages of several lengths.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FFXBenchmark {
+
+    private static final int MESSAGES = 1024;
+    private static final byte[] TWEAK = new byte[0];
+
+    // the changed bits of IPv4 addresses with a /24, /16 and /8 mask, of IPv6 addresses with a /64 mask and of whole IPv6 addresses
+    @Param({ "8", "16", "24", "64", "128" })
+    public int length;
+
+    private FFX _ffx;
+    private String[] _messages;
+    private int _next;
+
+    @Setup
+    public void setUp() throws DecoderException, InvalidKeyException {
+        _ffx = new FFX(Hex.decodeHex(Frames.KEY.toCharArray()), 2);
+        final Random random = new Random(length);
+        _messages = new String[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            final StringBuilder message = new StringBuilder(length);
+            for (int j = 0; j < length; j++) {
+                message.append(random.nextBoolean() ? '1' : '0');
+            }
+            _messages[i] = message.toString();
+        }
+    }
+
+    @Benchmark
+    public String encrypt() {
+        _next = (_next + 1) & (MESSAGES - 1);
+        return _ffx.encrypt(TWEAK, _messages[_next]);
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.benchmark;
+
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.pseudo.cli.FramePseudonymizerBuilder;
+
+/**
+ * Measures pseudonymizing the frames of the test captures end to end, parsing included, the way
+ * the dump file pseudonymizers do: in place, in a reused buffer.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramePseudonymizerBenchmark {
+
+    private FramePseudonymizer _pseudonymizer;
+    private List<byte[]> _frames;
+    private byte[] _buffer;
+    private int _next;
+
+    @Setup
+    public void setUp() throws IOException, InvalidKeyException {
+        _pseudonymizer = new FramePseudonymizerBuilder()
+            .pseudoIPv4(Frames.KEY, 16)
+            .pseudoIPv6(Frames.KEY, 64)
+            .calcIPv4Checksum()
+            .calcUDPChecksum()
+            .calcICMPChecksum()
+            .build();
+        _frames = Frames.load();
+        int capacity = 0;
+        for (final byte[] frame : _frames) {
+            capacity = Math.max(capacity, frame.length);
+        }
+        _buffer = new byte[capacity];
+    }
+
+    @Benchmark
+    public boolean pseudonymize() throws IOException {
+        if (++_next == _frames.size()) {
+            _next = 0;
+        }
+        final byte[] frame = _frames.get(_next);
+        System.arraycopy(frame, 0, _buffer, 0, frame.length);
+        return _pseudonymizer.pseudonymize(_buffer, 0, frame.length);
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loads the frames the benchmarks run on from the PCAP files of the test resources, and reads
+ * the frames of other captures.
+ *
+ * The directory is read from the system property pef.pcaps, which defaults to the test resources
+ * of the parent project, so the benchmarks should be started from the benchmarks directory.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+final class Frames {
+
+    static final String KEY = "30313233343536373839414243444546";
+
+    private static final String DIRECTORY = System.getProperty("pef.pcaps", "../src/test/resources/pcaps");
+    private static final int PCAP_HEADER_LENGTH = 24;
+    private static final int RECORD_HEADER_LENGTH = 16;
+    private static final int PCAPNG_SECTION_HEADER = 0x0A0D0D0A;
+    private static final int PCAPNG_SIMPLE_PACKET = 3;
+    private static final int PCAPNG_ENHANCED_PACKET = 6;
+
+    private Frames() {
+    }
+
+    /**
+     * Returns the frames of all PCAP files in the directory, in the order of the file names.
+     *
+     * @return the frames
+     * @throws IOException when a file could not be read
+     */
+    static List<byte[]> load() throws IOException {
+        final File directory = new File(DIRECTORY);
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("no pcap directory " + directory.getAbsolutePath() + ", set it with -Dpef.pcaps=<dir>");
+        }
+        Arrays.sort(files);
+        final List<byte[]> frames = new ArrayList<>();
+        for (final File file : files) {
+            if (file.getName().endsWith(".pcap")) {
+                frames.addAll(load(file));
+            }
+        }
+        if (frames.isEmpty()) {
+            throw new IOException("no frames found in " + directory.getAbsolutePath());
+        }
+        return frames;
+    }
+
+    /**
+     * Returns the frames of one PCAP or PCAPNG file.
+     *
+     * @param file the capture file
+     * @return the frames
+     * @throws IOException when the file could not be read
+     */
+    static List<byte[]> load(final File file) throws IOException {
+        final List<byte[]> frames = new ArrayList<>();
+        read(file, frames, Integer.MAX_VALUE);
+        return frames;
+    }
+
+    /**
+     * Counts the frames of a PCAP or PCAPNG file, keeping the first of them.
+     *
+     * The file is streamed, so large captures can be counted without loading them.
+     *
+     * @param file the capture file
+     * @param frames the list to add the first frames to
+     * @param limit the maximum number of frames to add
+     * @return the number of frames in the file
+     * @throws IOException when the file could not be read
+     */
+    static long read(final File file, final List<byte[]> frames, final int limit) throws IOException {
+        try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024))) {
+            final byte[] header = new byte[PCAP_HEADER_LENGTH];
+            try {
+                input.readFully(header, 0, 4);
+            }
+            catch (final EOFException e) {
+                return 0;
+            }
+            if (ByteBuffer.wrap(header).getInt() == PCAPNG_SECTION_HEADER) {
+                return readPCAPNG(input, frames, limit);
+            }
+            input.readFully(header, 4, PCAP_HEADER_LENGTH - 4);
+            // the magic number is written in the byte order of the file
+            final ByteOrder order = header[0] == (byte) 0xA1 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_LENGTH).order(order);
+            long count = 0;
+            while (readFully(input, recordHeader.array(), RECORD_HEADER_LENGTH)) {
+                final int length = recordHeader.getInt(8);
+                count++;
+                skipOrKeep(input, length, frames, limit, 0);
+            }
+            return count;
+        }
+    }
+
+    private static long readPCAPNG(final DataInputStream input, final List<byte[]> frames, final int limit) throws IOException {
+        final ByteBuffer blockHeader = ByteBuffer.allocate(12);
+        ByteOrder order = ByteOrder.BIG_ENDIAN;
+        long count = 0;
+        // the type of the first block has been read
+        int type = PCAPNG_SECTION_HEADER;
+        while (true) {
+            if (type == PCAPNG_SECTION_HEADER) {
+                input.readFully(blockHeader.array(), 4, 8);
+                order = blockHeader.get(8) == 0x1A ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+                blockHeader.order(order);
+                skipFully(input, blockHeader.getInt(4) - 12);
+            }
+            else {
+                input.readFully(blockHeader.array(), 4, 4);
+                final int length = blockHeader.order(order).getInt(4);
+                if (type == PCAPNG_ENHANCED_PACKET || type == PCAPNG_SIMPLE_PACKET) {
+                    final int prefix = type == PCAPNG_ENHANCED_PACKET ? 20 : 4;
+                    final byte[] fields = new byte[prefix];
+                    input.readFully(fields);
+                    final int captured = type == PCAPNG_ENHANCED_PACKET ? ByteBuffer.wrap(fields).order(order).getInt(12) : length - 16;
+                    count++;
+                    skipOrKeep(input, captured, frames, limit, length - 8 - prefix - captured);
+                }
+                else {
+                    skipFully(input, length - 8);
+                }
+            }
+            if (!readFully(input, blockHeader.array(), 4)) {
+                return count;
+            }
+            // the type of a section header block reads the same in both byte orders
+            type = blockHeader.order(order).getInt(0);
+        }
+    }
+
+    private static void skipOrKeep(final DataInputStream input, final int length, final List<byte[]> frames, final int limit, final int trailer) throws IOException {
+        if (frames.size() < limit) {
+            final byte[] frame = new byte[length];
+            input.readFully(frame);
+            frames.add(frame);
+        }
+        else {
+            skipFully(input, length);
+        }
+        skipFully(input, trailer);
+    }
+
+    private static void skipFully(final DataInputStream input, final int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            final int skipped = input.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException("capture ends inside a record");
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static boolean readFully(final DataInputStream input, final byte[] buffer, final int length) throws IOException {
+        final int first = input.read(buffer, 0, length);
+        if (first < 0) {
+            return false;
+        }
+        if (first < length) {
+            input.readFully(buffer, first, length - first);
+        }
+        return true;
+    }
+}
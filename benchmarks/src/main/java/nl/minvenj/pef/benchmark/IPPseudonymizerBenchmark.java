@@ -0,0 +1,81 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.benchmark;
+
+import java.security.InvalidKeyException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.minvenj.pef.pseudo.IPPseudonymizer;
+
+/**
+ * Measures the pseudonymization of IPv4 and IPv6 addresses with several masks.
+ *
+ * With one address every lookup hits the cache of the pseudonymizer; with more addresses than
+ * fit in the cache every lookup misses and is encrypted.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IPPseudonymizerBenchmark {
+
+    @Param({ "ipv4/8", "ipv4/16", "ipv4/24", "ipv6/32", "ipv6/64", "ipv6/112" })
+    public String address;
+
+    @Param({ "1", "65536" })
+    public int addresses;
+
+    private IPPseudonymizer _pseudonymizer;
+    private byte[][] _ips;
+    private int _next;
+
+    @Setup
+    public void setUp() throws InvalidKeyException {
+        final boolean ipv4 = address.startsWith("ipv4");
+        final int mask = Integer.parseInt(address.substring(address.indexOf('/') + 1));
+        _pseudonymizer = ipv4 ? IPPseudonymizer.initIPv4Pseudonymizer(Frames.KEY, mask) : IPPseudonymizer.initIPv6Pseudonymizer(Frames.KEY, mask);
+        final Random random = new Random(addresses);
+        _ips = new byte[addresses][ipv4 ? 4 : 16];
+        for (final byte[] ip : _ips) {
+            random.nextBytes(ip);
+        }
+    }
+
+    @Benchmark
+    public byte[] pseudonymize() {
+        if (++_next == _ips.length) {
+            _next = 0;
+        }
+        return _pseudonymizer.pseudonymize(_ips[_next]);
+    }
+}
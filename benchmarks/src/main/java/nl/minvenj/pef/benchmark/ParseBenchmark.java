@@ -0,0 +1,68 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.parsingdata.metal.data.ParseResult;
+import nl.minvenj.pef.metal.packet.link.Ethernet2Frame;
+import nl.minvenj.pef.metal.stream.ArrayByteStream;
+import nl.minvenj.pef.util.Util;
+
+/**
+ * Measures parsing the frames of the test captures with {@link Ethernet2Frame#FORMAT}, one frame
+ * per invocation.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    private List<byte[]> _frames;
+    private int _next;
+
+    @Setup
+    public void setUp() throws IOException {
+        _frames = Frames.load();
+    }
+
+    @Benchmark
+    public ParseResult parseFrame() throws IOException {
+        if (++_next == _frames.size()) {
+            _next = 0;
+        }
+        final byte[] frame = _frames.get(_next);
+        return Util.parse(new ArrayByteStream(frame, 0, frame.length), 0L, Ethernet2Frame.FORMAT);
+    }
+}
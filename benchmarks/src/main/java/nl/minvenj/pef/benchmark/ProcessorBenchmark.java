@@ -0,0 +1,102 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.benchmark;
+
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.parsingdata.metal.data.ParseResult;
+import nl.minvenj.pef.metal.packet.link.Ethernet2Frame;
+import nl.minvenj.pef.serialize.Processor;
+import nl.minvenj.pef.serialize.constraint.Constraints;
+import nl.minvenj.pef.serialize.process.CopyTokenSerializer;
+import nl.minvenj.pef.serialize.transform.checksum.IPv4ChecksumCalculator;
+import nl.minvenj.pef.serialize.transform.checksum.IPv4ICMPChecksumCalculator;
+import nl.minvenj.pef.serialize.transform.checksum.IPv4UDPChecksumCalculator;
+import nl.minvenj.pef.serialize.transform.checksum.IPv6UDPChecksumCalculator;
+import nl.minvenj.pef.serialize.transform.pseudonymize.IPv4AddressPseudonymizer;
+import nl.minvenj.pef.serialize.transform.pseudonymize.IPv6AddressPseudonymizer;
+import nl.minvenj.pef.util.Util;
+
+/**
+ * Measures transforming and serializing parsed frames with the transformers the command line
+ * tool adds for -4, -6 and -c all, without the parsing.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorBenchmark {
+
+    private Processor _processor;
+    private List<ParseResult> _results;
+    private List<Integer> _lengths;
+    private int _next;
+
+    @Setup
+    public void setUp() throws IOException, InvalidKeyException {
+        final IPv4AddressPseudonymizer ipv4Pseudonymizer = new IPv4AddressPseudonymizer(Frames.KEY, 16);
+        final IPv6AddressPseudonymizer ipv6Pseudonymizer = new IPv6AddressPseudonymizer(Frames.KEY, 64);
+        _processor = new Processor()
+            .addTransformer(Constraints.IPV4_UDP_DNS, "ipsource", ipv4Pseudonymizer)
+            .addTransformer(Constraints.IPV4_UDP_DNS, "ipdestination", ipv4Pseudonymizer)
+            .addTransformer(Constraints.IPV6_UDP_DNS, "sourceaddress", ipv6Pseudonymizer)
+            .addTransformer(Constraints.IPV6_UDP_DNS, "destinationaddress", ipv6Pseudonymizer)
+            .addTransformer(Constraints.IPV4_UDP_DNS, "headerchecksum", new IPv4ChecksumCalculator())
+            .addTransformer(Constraints.IPV4_UDP_DNS, "udpchecksum", new IPv4UDPChecksumCalculator())
+            .addTransformer(Constraints.IPV6_UDP_DNS, "udpchecksum", new IPv6UDPChecksumCalculator())
+            .addTransformer(Constraints.ICMP_DNS, "icmpchecksum", new IPv4ICMPChecksumCalculator());
+
+        // the parse results are immutable, so they can be transformed again in every invocation
+        _results = new ArrayList<>();
+        _lengths = new ArrayList<>();
+        for (final byte[] frame : Frames.load()) {
+            final ParseResult result = Util.parse(frame, Ethernet2Frame.FORMAT);
+            if (result.succeeded && result.environment.offset == frame.length) {
+                _results.add(result);
+                _lengths.add(frame.length);
+            }
+        }
+    }
+
+    @Benchmark
+    public byte[] transformAndProcess() {
+        if (++_next == _results.size()) {
+            _next = 0;
+        }
+        final CopyTokenSerializer serializer = new CopyTokenSerializer(_lengths.get(_next));
+        _processor.transformAndProcess(_results.get(_next), serializer);
+        return serializer.outputData();
+    }
+}
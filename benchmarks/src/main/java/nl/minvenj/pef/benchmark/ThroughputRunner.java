@@ -0,0 +1,285 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.internal.HelpScreenException;
+import nl.minvenj.pef.generate.CaptureGenerator;
+import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.pseudo.cli.FramePseudonymizerBuilder;
+import nl.minvenj.pef.pseudo.dump.DumpFilePseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcap.MultiThreadedPCAPPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcap.SingleThreadedPCAPPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcapng.MultiThreadedPCAPNGPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcapng.SingleThreadedPCAPNGPseudonymizer;
+
+/**
+ * Measures the end-to-end throughput of the dump file pseudonymizers on large captures.
+ *
+ * The captures are given, or generated with a {@link CaptureGenerator} as one PCAP and one PCAPNG
+ * file. Each capture is pseudonymized with every thread count: the single-threaded pseudonymizer
+ * for 1 thread, the multi-threaded one for more, configured like the command line tool does with
+ * -4, -6 and -c all. Every run is repeated and the median run is reported with its packets and
+ * megabytes per second, and the peak resident set size of the process during the run (Linux only).
+ *
+ * The latency per record is measured separately, by timing the frame pseudonymizer on each of the
+ * first frames of the capture on one thread, as the pipelines do not expose the time of a single
+ * record. The 50th, 99th and 99.9th percentiles are reported.
+ *
+ * The report is written as JSON. Run with -h for help.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class ThroughputRunner {
+
+    private static final String KEY = Frames.KEY;
+    private static final int LATENCY_SAMPLES = 100000;
+    private static final File PROC_STATUS = new File("/proc/self/status");
+    private static final File PROC_CLEAR_REFS = new File("/proc/self/clear_refs");
+
+    private ThroughputRunner() {
+    }
+
+    public static void main(final String[] args) throws IOException, InvalidKeyException {
+        final ArgumentParser parser = ArgumentParsers.newArgumentParser(ThroughputRunner.class.getSimpleName())
+            .description("Measure the throughput of the PCAP and PCAPNG pseudonymizers.");
+        parser.addArgument("-i", "--infile")
+            .nargs("*")
+            .help("the captures to pseudonymize (default: generate a PCAP and a PCAPNG capture)");
+        parser.addArgument("-n", "--packets")
+            .type(Long.class)
+            .setDefault(1000000L)
+            .help("the number of packets of the generated captures (default: 1000000)");
+        parser.addArgument("-a", "--addresses")
+            .type(Integer.class)
+            .setDefault(65536)
+            .help("the number of client addresses of the generated captures (default: 65536)");
+        parser.addArgument("-t", "--threads")
+            .setDefault("1,2,4," + Runtime.getRuntime().availableProcessors())
+            .help("comma separated thread counts to run with (default: 1,2,4 and the number of processors)");
+        parser.addArgument("-r", "--runs")
+            .type(Integer.class)
+            .setDefault(3)
+            .help("the number of measured runs per capture and thread count, after one warm-up run (default: 3)");
+        parser.addArgument("-o", "--report")
+            .help("the file to write the JSON report to (default: standard output)");
+        parser.addArgument("-k", "--keep")
+            .action(Arguments.storeTrue())
+            .help("keep the generated captures and the outputs");
+
+        final Namespace cmdResult;
+        try {
+            cmdResult = parser.parseArgs(args);
+        }
+        catch (final HelpScreenException hse) {
+            return;
+        }
+        catch (final ArgumentParserException ape) {
+            System.err.println(parser.formatUsage() + ThroughputRunner.class.getSimpleName() + ": error: " + ape.getMessage());
+            return;
+        }
+
+        final File workDirectory = Files.createTempDirectory("pef-throughput").toFile();
+        final List<File> captures = new ArrayList<>();
+        if (cmdResult.getList("infile") != null && !cmdResult.getList("infile").isEmpty()) {
+            for (final Object name : cmdResult.getList("infile")) {
+                captures.add(new File(name.toString()));
+            }
+        }
+        else {
+            for (final CaptureGenerator.Format format : CaptureGenerator.Format.values()) {
+                final File capture = new File(workDirectory, "generated." + format.name().toLowerCase(Locale.ROOT));
+                System.err.println("Generating " + capture + "...");
+                new CaptureGenerator().format(format).packets(cmdResult.getLong("packets")).addresses(cmdResult.getInt("addresses")).generate(capture);
+                captures.add(capture);
+            }
+        }
+
+        final List<String> results = new ArrayList<>();
+        for (final File capture : captures) {
+            final List<byte[]> sample = new ArrayList<>();
+            final long packets = Frames.read(capture, sample, LATENCY_SAMPLES);
+            results.add(latency(capture, sample));
+            for (final String threads : cmdResult.getString("threads").split(",")) {
+                results.add(throughput(capture, packets, Integer.parseInt(threads.trim()), cmdResult.getInt("runs"), workDirectory));
+            }
+        }
+
+        final String report = "{\n  \"java\": \"" + System.getProperty("java.version") + "\",\n  \"processors\": " + Runtime.getRuntime().availableProcessors()
+                               + ",\n  \"results\": [\n    " + join(results, ",\n    ") + "\n  ]\n}\n";
+        if (cmdResult.getString("report") == null) {
+            System.out.print(report);
+        }
+        else {
+            try (final Writer writer = new OutputStreamWriter(new FileOutputStream(cmdResult.getString("report")), StandardCharsets.UTF_8)) {
+                writer.write(report);
+            }
+        }
+        if (!cmdResult.getBoolean("keep")) {
+            for (final File file : workDirectory.listFiles()) {
+                file.delete();
+            }
+            workDirectory.delete();
+        }
+    }
+
+    private static String throughput(final File capture, final long packets, final int threads, final int runs, final File workDirectory) throws IOException, InvalidKeyException {
+        final DumpFilePseudonymizer pseudonymizer = pseudonymizer(capture, threads);
+        final File output = new File(workDirectory, capture.getName() + ".out");
+        final long[] nanos = new long[runs];
+        final long[] peakRss = new long[runs];
+        pseudonymizer.pseudonymize(capture, output);
+        for (int i = 0; i < runs; i++) {
+            System.gc();
+            resetPeakRss();
+            final long start = System.nanoTime();
+            pseudonymizer.pseudonymize(capture, output);
+            nanos[i] = System.nanoTime() - start;
+            peakRss[i] = peakRss();
+            System.err.println(capture.getName() + ", " + threads + " threads, run " + (i + 1) + ": " + nanos[i] / 1000000 + " ms");
+        }
+        final long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        final long median = sorted[runs / 2];
+        long rss = -1;
+        for (int i = 0; i < runs; i++) {
+            if (nanos[i] == median) {
+                rss = peakRss[i];
+            }
+        }
+        final double seconds = median / 1e9;
+        return String.format(Locale.ROOT, "{\"capture\": \"%s\", \"pseudonymizer\": \"%s\", \"threads\": %d, \"packets\": %d, \"bytes\": %d, \"seconds\": %.3f, "
+                                          + "\"packets_per_second\": %.0f, \"mb_per_second\": %.2f, \"peak_rss_mb\": %.1f}",
+                             escape(capture.getPath()), pseudonymizer.getClass().getSimpleName(), threads, packets, capture.length(), seconds,
+                             packets / seconds, capture.length() / seconds / 1e6, rss < 0 ? -1.0 : rss / 1024.0);
+    }
+
+    private static String latency(final File capture, final List<byte[]> sample) throws IOException, InvalidKeyException {
+        final FramePseudonymizer pseudonymizer = framePseudonymizer();
+        int capacity = 0;
+        for (final byte[] frame : sample) {
+            capacity = Math.max(capacity, frame.length);
+        }
+        final byte[] buffer = new byte[capacity];
+        final long[] nanos = new long[sample.size()];
+        // the first pass warms up the code and the address caches, as a long capture would
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < sample.size(); i++) {
+                final byte[] frame = sample.get(i);
+                System.arraycopy(frame, 0, buffer, 0, frame.length);
+                final long start = System.nanoTime();
+                pseudonymizer.pseudonymize(buffer, 0, frame.length);
+                nanos[i] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(nanos);
+        return String.format(Locale.ROOT, "{\"capture\": \"%s\", \"records\": %d, \"latency_p50_us\": %.2f, \"latency_p99_us\": %.2f, \"latency_p999_us\": %.2f}",
+                             escape(capture.getPath()), nanos.length, percentile(nanos, 0.5) / 1e3, percentile(nanos, 0.99) / 1e3, percentile(nanos, 0.999) / 1e3);
+    }
+
+    private static DumpFilePseudonymizer pseudonymizer(final File capture, final int threads) throws IOException, InvalidKeyException {
+        final SingleThreadedPCAPPseudonymizer pcap = new SingleThreadedPCAPPseudonymizer(framePseudonymizer());
+        final boolean isPCAP = pcap.supportsFile(capture);
+        if (threads == 1) {
+            return isPCAP ? pcap : new SingleThreadedPCAPNGPseudonymizer(framePseudonymizer());
+        }
+        final List<FramePseudonymizer> pseudonymizers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            pseudonymizers.add(framePseudonymizer());
+        }
+        return isPCAP ? new MultiThreadedPCAPPseudonymizer(pseudonymizers) : new MultiThreadedPCAPNGPseudonymizer(pseudonymizers);
+    }
+
+    private static FramePseudonymizer framePseudonymizer() throws IOException, InvalidKeyException {
+        return new FramePseudonymizerBuilder()
+            .pseudoIPv4(KEY, 16)
+            .pseudoIPv6(KEY, 64)
+            .calcIPv4Checksum()
+            .calcUDPChecksum()
+            .calcICMPChecksum()
+            .build();
+    }
+
+    private static double percentile(final long[] sorted, final double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    // resets the peak resident set size of the process, which Linux supports since 4.0
+    private static void resetPeakRss() {
+        if (PROC_CLEAR_REFS.exists()) {
+            try (final PrintWriter writer = new PrintWriter(PROC_CLEAR_REFS, "US-ASCII")) {
+                writer.print("5");
+            }
+            catch (final IOException e) {
+                // not allowed, the peak then covers the whole process
+            }
+        }
+    }
+
+    // returns the peak resident set size in KiB, or -1 when it is not known
+    private static long peakRss() {
+        if (!PROC_STATUS.exists()) {
+            return -1;
+        }
+        try {
+            for (final String line : Files.readAllLines(PROC_STATUS.toPath(), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                }
+            }
+        }
+        catch (final IOException | NumberFormatException e) {
+            return -1;
+        }
+        return -1;
+    }
+
+    private static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static String join(final List<String> values, final String separator) {
+        final StringBuilder result = new StringBuilder();
+        for (final String value : values) {
+            if (result.length() > 0) {
+                result.append(separator);
+            }
+            result.append(value);
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Native part of nl.minvenj.pef.capture.AfPacketSocket: creates an AF_PACKET socket with a memory
+ * mapped TPACKET_V3 receive ring and hands the blocks of the ring over between the kernel and Java.
+ * The frames themselves are read from Java.
+ *
+ * Build on Linux with:
+ *
+ *   gcc -O2 -shared -fPIC -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/linux" \
+ *       -o libpefafpacket.so src/main/c/pef_afpacket.c
+ *
+ * and add the directory holding libpefafpacket.so to -Djava.library.path. Capturing requires the
+ * CAP_NET_RAW capability.
+ */
+#include <errno.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <poll.h>
+#include <net/if.h>
+#include <arpa/inet.h>
+#include <sys/mman.h>
+#include <sys/socket.h>
+#include <linux/if_ether.h>
+#include <linux/if_packet.h>
+#include <jni.h>
+
+struct ring {
+    int fd;
+    uint8_t *map;
+    size_t size;
+    unsigned int block_size;
+    unsigned int block_count;
+};
+
+static void throw_io(JNIEnv *env, const char *message, int error) {
+    char buffer[256];
+    jclass exception = (*env)->FindClass(env, "java/io/IOException");
+    snprintf(buffer, sizeof(buffer), "%s: %s", message, strerror(error));
+    if (exception != NULL) {
+        (*env)->ThrowNew(env, exception, buffer);
+    }
+}
+
+static volatile uint32_t *block_status(struct ring *ring, jint block) {
+    struct tpacket_block_desc *desc = (struct tpacket_block_desc *) (ring->map + (size_t) block * ring->block_size);
+    return &desc->hdr.bh1.block_status;
+}
+
+JNIEXPORT jlong JNICALL Java_nl_minvenj_pef_capture_AfPacketSocket_open(JNIEnv *env, jclass cls, jstring device, jint block_size, jint block_count,
+                                                                        jint frame_size, jint block_timeout, jint fanout_group, jint fanout_mode) {
+    struct ring *ring;
+    struct tpacket_req3 req;
+    struct sockaddr_ll address;
+    const char *name;
+    unsigned int index;
+    int version = TPACKET_V3;
+    int error;
+
+    name = (*env)->GetStringUTFChars(env, device, NULL);
+    if (name == NULL) {
+        return 0;
+    }
+    index = if_nametoindex(name);
+    (*env)->ReleaseStringUTFChars(env, device, name);
+    if (index == 0) {
+        throw_io(env, "unknown device", errno);
+        return 0;
+    }
+
+    ring = calloc(1, sizeof(struct ring));
+    if (ring == NULL) {
+        throw_io(env, "allocating the ring failed", ENOMEM);
+        return 0;
+    }
+    ring->fd = socket(AF_PACKET, SOCK_RAW, htons(ETH_P_ALL));
+    if (ring->fd < 0) {
+        error = errno;
+        free(ring);
+        throw_io(env, "creating the AF_PACKET socket failed", error);
+        return 0;
+    }
+    if (setsockopt(ring->fd, SOL_PACKET, PACKET_VERSION, &version, sizeof(version)) < 0) {
+        error = errno;
+        goto fail;
+    }
+
+    memset(&req, 0, sizeof(req));
+    req.tp_block_size = (unsigned int) block_size;
+    req.tp_block_nr = (unsigned int) block_count;
+    req.tp_frame_size = (unsigned int) frame_size;
+    req.tp_frame_nr = (unsigned int) (((size_t) block_size * block_count) / frame_size);
+    req.tp_retire_blk_tov = (unsigned int) block_timeout;
+    req.tp_feature_req_word = TP_FT_REQ_FILL_RXHASH;
+    if (setsockopt(ring->fd, SOL_PACKET, PACKET_RX_RING, &req, sizeof(req)) < 0) {
+        error = errno;
+        goto fail;
+    }
+    ring->block_size = req.tp_block_size;
+    ring->block_count = req.tp_block_nr;
+    ring->size = (size_t) req.tp_block_size * req.tp_block_nr;
+    ring->map = mmap(NULL, ring->size, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_LOCKED, ring->fd, 0);
+    if (ring->map == MAP_FAILED) {
+        error = errno;
+        ring->map = NULL;
+        goto fail;
+    }
+
+    memset(&address, 0, sizeof(address));
+    address.sll_family = AF_PACKET;
+    address.sll_protocol = htons(ETH_P_ALL);
+    address.sll_ifindex = (int) index;
+    if (bind(ring->fd, (struct sockaddr *) &address, sizeof(address)) < 0) {
+        error = errno;
+        goto fail;
+    }
+    if (fanout_group >= 0) {
+        int fanout = (fanout_group & 0xFFFF) | (fanout_mode << 16);
+        if (setsockopt(ring->fd, SOL_PACKET, PACKET_FANOUT, &fanout, sizeof(fanout)) < 0) {
+            error = errno;
+            goto fail;
+        }
+    }
+    return (jlong) (intptr_t) ring;
+
+fail:
+    if (ring->map != NULL) {
+        munmap(ring->map, ring->size);
+    }
+    close(ring->fd);
+    free(ring);
+    throw_io(env, "setting up the TPACKET_V3 ring failed", error);
+    return 0;
+}
+
+JNIEXPORT jobject JNICALL Java_nl_minvenj_pef_capture_AfPacketSocket_map(JNIEnv *env, jclass cls, jlong handle) {
+    struct ring *ring = (struct ring *) (intptr_t) handle;
+    return (*env)->NewDirectByteBuffer(env, ring->map, (jlong) ring->size);
+}
+
+JNIEXPORT jboolean JNICALL Java_nl_minvenj_pef_capture_AfPacketSocket_waitBlock(JNIEnv *env, jclass cls, jlong handle, jint block, jint timeout) {
+    struct ring *ring = (struct ring *) (intptr_t) handle;
+    volatile uint32_t *status = block_status(ring, block);
+    struct pollfd pfd;
+
+    if (__atomic_load_n(status, __ATOMIC_ACQUIRE) & TP_STATUS_USER) {
+        return JNI_TRUE;
+    }
+    pfd.fd = ring->fd;
+    pfd.events = POLLIN | POLLERR;
+    pfd.revents = 0;
+    if (poll(&pfd, 1, timeout) < 0 && errno != EINTR) {
+        throw_io(env, "waiting for a block failed", errno);
+        return JNI_FALSE;
+    }
+    return (__atomic_load_n(status, __ATOMIC_ACQUIRE) & TP_STATUS_USER) ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT void JNICALL Java_nl_minvenj_pef_capture_AfPacketSocket_releaseBlock(JNIEnv *env, jclass cls, jlong handle, jint block) {
+    struct ring *ring = (struct ring *) (intptr_t) handle;
+    __atomic_store_n(block_status(ring, block), TP_STATUS_KERNEL, __ATOMIC_RELEASE);
+}
+
+JNIEXPORT void JNICALL Java_nl_minvenj_pef_capture_AfPacketSocket_statistics(JNIEnv *env, jclass cls, jlong handle, jlongArray statistics) {
+    struct ring *ring = (struct ring *) (intptr_t) handle;
+    struct tpacket_stats_v3 stats;
+    socklen_t length = sizeof(stats);
+    jlong values[2];
+
+    if (getsockopt(ring->fd, SOL_PACKET, PACKET_STATISTICS, &stats, &length) < 0) {
+        throw_io(env, "reading the socket statistics failed", errno);
+        return;
+    }
+    values[0] = stats.tp_packets;
+    values[1] = stats.tp_drops;
+    (*env)->SetLongArrayRegion(env, statistics, 0, 2, values);
+}
+
+JNIEXPORT void JNICALL Java_nl_minvenj_pef_capture_AfPacketSocket_close(JNIEnv *env, jclass cls, jlong handle) {
+    struct ring *ring = (struct ring *) (intptr_t) handle;
+    munmap(ring->map, ring->size);
+    close(ring->fd);
+    free(ring);
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.capture;
+
+import java.io.IOException;
+
+/**
+ * Captures the frames of an {@link AfPacketSocket} until stopped, passing them to a handler block by block.
+ *
+ * Compared to a libpcap callback per packet, the kernel hands over a whole block of frames at once
+ * and the frames are read directly from the ring, so there is only one native call per block.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class AfPacketCapture {
+
+    private static final int POLL_TIMEOUT = 100;
+
+    private final AfPacketSocket _socket;
+    private final BlockWalker _walker;
+    private volatile boolean _stopped;
+
+    /**
+     * Create a new capture.
+     *
+     * @param socket the socket to capture from
+     */
+    public AfPacketCapture(final AfPacketSocket socket) {
+        _socket = socket;
+        _walker = new BlockWalker(socket.getRing());
+    }
+
+    /**
+     * Pass the captured frames to a handler until {@link #stop()} is called.
+     *
+     * @param handler the handler to pass the frames to
+     * @throws IOException when waiting for a block failed, a block is corrupt or the handler failed
+     */
+    public void run(final FrameHandler handler) throws IOException {
+        int block = 0;
+        while (!_stopped) {
+            if (!_socket.waitBlock(block, POLL_TIMEOUT)) {
+                continue;
+            }
+            try {
+                _walker.walk(block * _socket.getBlockSize(), _socket.getBlockSize(), handler);
+            }
+            finally {
+                _socket.releaseBlock(block);
+            }
+            block = (block + 1) % _socket.getBlockCount();
+        }
+    }
+
+    /**
+     * Stop the capture after the current block, which may be called from any thread, including the handler.
+     */
+    public void stop() {
+        _stopped = true;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.capture;
+
+/**
+ * The settings of an {@link AfPacketSocket}.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class AfPacketSettings {
+
+    /**
+     * How the kernel divides the packets over the sockets of a fanout group.
+     */
+    public enum FanoutMode {
+        /** All packets of a flow go to the same socket. */
+        HASH(0),
+        /** The packets are divided round robin. */
+        LOAD_BALANCE(1),
+        /** Each socket gets the packets received on one CPU. */
+        CPU(2);
+
+        private final int _value;
+
+        FanoutMode(final int value) {
+            _value = value;
+        }
+
+        /**
+         * Returns the PACKET_FANOUT_* value of this mode.
+         *
+         * @return the kernel value of the mode
+         */
+        public int getValue() {
+            return _value;
+        }
+    }
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    public static final int DEFAULT_BLOCK_COUNT = 64;
+    public static final int DEFAULT_BLOCK_TIMEOUT = 100;
+
+    // the frame size the kernel validates the ring size against, a TPACKET_V3 ring does not use it
+    static final int FRAME_SIZE = 2048;
+
+    private int _blockSize = DEFAULT_BLOCK_SIZE;
+    private int _blockCount = DEFAULT_BLOCK_COUNT;
+    private int _blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+    private int _fanoutGroup = -1;
+    private FanoutMode _fanoutMode = FanoutMode.HASH;
+
+    /**
+     * Set the size of the blocks of the ring, 1 MiB by default.
+     *
+     * @param blockSize the block size in bytes, a multiple of the page size
+     * @return these settings
+     */
+    public AfPacketSettings blockSize(final int blockSize) {
+        if (blockSize < FRAME_SIZE || blockSize % FRAME_SIZE != 0) {
+            throw new IllegalArgumentException("block size must be a multiple of " + FRAME_SIZE + ": " + blockSize);
+        }
+        _blockSize = blockSize;
+        return this;
+    }
+
+    /**
+     * Set the number of blocks of the ring, 64 by default.
+     *
+     * @param blockCount the number of blocks
+     * @return these settings
+     */
+    public AfPacketSettings blockCount(final int blockCount) {
+        if (blockCount < 2) {
+            throw new IllegalArgumentException("at least two blocks are required: " + blockCount);
+        }
+        _blockCount = blockCount;
+        return this;
+    }
+
+    /**
+     * Set the time after which the kernel hands over a block that is not full, 100 ms by default.
+     *
+     * @param blockTimeout the timeout in milliseconds
+     * @return these settings
+     */
+    public AfPacketSettings blockTimeout(final int blockTimeout) {
+        if (blockTimeout < 1) {
+            throw new IllegalArgumentException("block timeout must be positive: " + blockTimeout);
+        }
+        _blockTimeout = blockTimeout;
+        return this;
+    }
+
+    /**
+     * Join a fanout group, dividing the packets of the device over all sockets in the group.
+     *
+     * @param fanoutGroup the id of the group, from 0 to 65535
+     * @param fanoutMode how the packets are divided
+     * @return these settings
+     */
+    public AfPacketSettings fanout(final int fanoutGroup, final FanoutMode fanoutMode) {
+        if (fanoutGroup < 0 || fanoutGroup > 0xFFFF) {
+            throw new IllegalArgumentException("fanout group must be between 0 and 65535: " + fanoutGroup);
+        }
+        _fanoutGroup = fanoutGroup;
+        _fanoutMode = fanoutMode;
+        return this;
+    }
+
+    public int getBlockSize() {
+        return _blockSize;
+    }
+
+    public int getBlockCount() {
+        return _blockCount;
+    }
+
+    public int getBlockTimeout() {
+        return _blockTimeout;
+    }
+
+    /**
+     * Returns the fanout group to join.
+     *
+     * @return the id of the group, or -1 to not join a group
+     */
+    public int getFanoutGroup() {
+        return _fanoutGroup;
+    }
+
+    public FanoutMode getFanoutMode() {
+        return _fanoutMode;
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.logging.Logger;
+
+/**
+ * A Linux AF_PACKET socket receiving the frames of a device in a memory mapped TPACKET_V3 ring.
+ *
+ * Only creating the socket and the hand over of the blocks between the kernel and the application
+ * are native, in the small pefafpacket library (see src/main/c). The frames in a block are read from
+ * Java with a {@link BlockWalker}, directly from the ring.
+ *
+ * Blocks are used in order: wait for block 0, walk it, release it, wait for block 1 and so on.
+ * This class is not thread safe.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class AfPacketSocket implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(AfPacketSocket.class.getName());
+    private static final String LIBRARY = "pefafpacket";
+    private static final boolean AVAILABLE = loadLibrary();
+
+    private final AfPacketSettings _settings;
+    private final ByteBuffer _ring;
+    private final long[] _statistics = new long[2];
+    private long _handle;
+    private long _packets;
+    private long _drops;
+
+    /**
+     * Open a socket on a device and map its ring.
+     *
+     * @param device the name of the network device
+     * @param settings the size of the ring and the fanout group
+     * @throws IOException when the native library is not available, or the socket could not be created
+     */
+    public AfPacketSocket(final String device, final AfPacketSettings settings) throws IOException {
+        if (!AVAILABLE) {
+            throw new IOException("the native library " + System.mapLibraryName(LIBRARY) + " is not available on the java.library.path");
+        }
+        _settings = settings;
+        _handle = open(device, settings.getBlockSize(), settings.getBlockCount(), AfPacketSettings.FRAME_SIZE, settings.getBlockTimeout(),
+                       settings.getFanoutGroup(), settings.getFanoutMode().getValue());
+        _ring = map(_handle).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Returns whether the native library could be loaded, which is required to open a socket.
+     *
+     * @return true when AF_PACKET capture is available
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Returns the memory mapped ring, holding {@link AfPacketSettings#getBlockCount()} blocks.
+     *
+     * @return the ring
+     */
+    public ByteBuffer getRing() {
+        return _ring;
+    }
+
+    public int getBlockSize() {
+        return _settings.getBlockSize();
+    }
+
+    public int getBlockCount() {
+        return _settings.getBlockCount();
+    }
+
+    /**
+     * Wait until the kernel hands over a block.
+     *
+     * @param block the index of the block
+     * @param timeout the maximum time to wait in milliseconds
+     * @return true when the block is owned by the application, false on a timeout
+     * @throws IOException when waiting on the socket failed
+     */
+    public boolean waitBlock(final int block, final int timeout) throws IOException {
+        return waitBlock(_handle, block, timeout);
+    }
+
+    /**
+     * Hand a block back to the kernel. The frames in it must not be accessed afterwards.
+     *
+     * @param block the index of the block
+     */
+    public void releaseBlock(final int block) {
+        releaseBlock(_handle, block);
+    }
+
+    /**
+     * Read the statistics of the kernel, which are reset on every read, and add them to the totals.
+     *
+     * @throws IOException when the statistics could not be read
+     */
+    public void updateStatistics() throws IOException {
+        statistics(_handle, _statistics);
+        _packets += _statistics[0];
+        _drops += _statistics[1];
+    }
+
+    /**
+     * Returns the number of packets received by the socket, as of the last update.
+     *
+     * @return the number of packets, including the dropped ones
+     */
+    public long getPackets() {
+        return _packets;
+    }
+
+    /**
+     * Returns the number of packets dropped because the ring was full, as of the last update.
+     *
+     * @return the number of dropped packets
+     */
+    public long getDrops() {
+        return _drops;
+    }
+
+    @Override
+    public void close() {
+        if (_handle != 0) {
+            close(_handle);
+            _handle = 0;
+        }
+    }
+
+    private static boolean loadLibrary() {
+        try {
+            System.loadLibrary(LIBRARY);
+            return true;
+        }
+        catch (final UnsatisfiedLinkError | SecurityException e) {
+            LOGGER.fine("AF_PACKET capture is not available: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static native long open(String device, int blockSize, int blockCount, int frameSize, int blockTimeout, int fanoutGroup, int fanoutMode) throws IOException;
+
+    private static native ByteBuffer map(long handle);
+
+    private static native boolean waitBlock(long handle, int block, int timeout) throws IOException;
+
+    private static native void releaseBlock(long handle, int block);
+
+    private static native void statistics(long handle, long[] statistics) throws IOException;
+
+    private static native void close(long handle);
+}
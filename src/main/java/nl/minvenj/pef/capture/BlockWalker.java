@@ -0,0 +1,95 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Walks the frames in the blocks of a Linux TPACKET_V3 capture ring.
+ *
+ * A TPACKET_V3 ring consists of blocks, which the kernel fills with frames and hands over as a
+ * whole. A block starts with a descriptor holding the number of frames and the offset of the first
+ * frame, and every frame starts with a header pointing to the next frame. All fields are in the
+ * native byte order.
+ *
+ * The walker only reads the ring; checking and returning the ownership of a block is left to the
+ * caller. The frames are passed as a reused view on the ring, so walking a block does not copy or
+ * allocate.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class BlockWalker {
+
+    // struct tpacket_block_desc, with struct tpacket_hdr_v1 at offset 8
+    static final int BLOCK_STATUS = 8;
+    static final int BLOCK_PACKET_COUNT = 12;
+    static final int BLOCK_FIRST_PACKET = 16;
+    static final int BLOCK_LENGTH = 20;
+    static final int BLOCK_HEADER_LENGTH = 48;
+
+    // struct tpacket3_hdr
+    static final int FRAME_NEXT_OFFSET = 0;
+    static final int FRAME_SECONDS = 4;
+    static final int FRAME_NANOS = 8;
+    static final int FRAME_SNAP_LENGTH = 12;
+    static final int FRAME_LENGTH = 16;
+    static final int FRAME_MAC = 24;
+    static final int FRAME_HEADER_LENGTH = 48;
+
+    private final ByteBuffer _ring;
+    private final ByteBuffer _frame;
+
+    /**
+     * Create a new walker.
+     *
+     * @param ring the memory mapped ring
+     */
+    public BlockWalker(final ByteBuffer ring) {
+        _ring = ring.duplicate().order(ByteOrder.nativeOrder());
+        _frame = ring.duplicate();
+    }
+
+    /**
+     * Pass all frames of a block to a handler. The block must be owned by the caller.
+     *
+     * @param blockOffset the offset of the block in the ring
+     * @param blockSize the size of the blocks of the ring
+     * @param handler the handler to pass the frames to
+     * @return the number of frames in the block
+     * @throws IOException when the block is corrupt, or the handler failed
+     */
+    public int walk(final int blockOffset, final int blockSize, final FrameHandler handler) throws IOException {
+        final int count = _ring.getInt(blockOffset + BLOCK_PACKET_COUNT);
+        final int end = blockOffset + Math.min(blockSize, _ring.getInt(blockOffset + BLOCK_LENGTH));
+        int frame = blockOffset + _ring.getInt(blockOffset + BLOCK_FIRST_PACKET);
+        for (int i = 0; i < count; i++) {
+            if (frame < blockOffset + BLOCK_HEADER_LENGTH || frame + FRAME_HEADER_LENGTH > end) {
+                throw new IOException("corrupt capture block at offset " + blockOffset + ": frame " + i + " is outside the block");
+            }
+            final int data = frame + (_ring.getShort(frame + FRAME_MAC) & 0xFFFF);
+            final int snapLength = _ring.getInt(frame + FRAME_SNAP_LENGTH);
+            if (snapLength < 0 || data < frame + FRAME_HEADER_LENGTH || data + snapLength > end) {
+                throw new IOException("corrupt capture block at offset " + blockOffset + ": data of frame " + i + " is outside the block");
+            }
+            _frame.limit(data + snapLength).position(data);
+            handler.frame(_frame, _ring.getInt(frame + FRAME_SECONDS) & 0xFFFFFFFFL, _ring.getInt(frame + FRAME_NANOS), _ring.getInt(frame + FRAME_LENGTH));
+            frame += _ring.getInt(frame + FRAME_NEXT_OFFSET);
+        }
+        return count;
+    }
+}
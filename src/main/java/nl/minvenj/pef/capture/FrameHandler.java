@@ -0,0 +1,42 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the frames of a block of a memory mapped capture ring.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public interface FrameHandler {
+
+    /**
+     * Handle a captured frame.
+     *
+     * The frame is a view on the capture ring, from its position to its limit, and is only valid
+     * until this method returns: the block is handed back to the kernel afterwards and the view is
+     * reused for the next frame.
+     *
+     * @param frame the captured frame
+     * @param seconds the capture time in seconds since the epoch
+     * @param nanos the nanoseconds part of the capture time
+     * @param wireLength the length of the frame on the wire, which can be larger than the captured frame
+     * @throws IOException whenever I/O errors occur
+     */
+    void frame(ByteBuffer frame, long seconds, int nanos, int wireLength) throws IOException;
+}
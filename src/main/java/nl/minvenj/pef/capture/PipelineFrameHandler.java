@@ -0,0 +1,93 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import nl.minvenj.pef.pipeline.PacketPipeline;
+import nl.minvenj.pef.pipeline.PacketSlot;
+
+/**
+ * Copies the frames of a capture ring into the slots of a packet pipeline.
+ *
+ * This is the only copy of a frame: from the ring into the slot the workers pseudonymize it in.
+ * The statistics of the socket are read about once a second and stored in the pipeline statistics.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class PipelineFrameHandler implements FrameHandler {
+
+    private static final long STATISTICS_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final PacketPipeline _pipeline;
+    private final AfPacketCapture _capture;
+    private final AfPacketSocket _socket;
+    private final long _maxBytes;
+    private long _bytes;
+    private long _lastStatistics = System.nanoTime();
+
+    /**
+     * Create a new handler.
+     *
+     * @param pipeline the pipeline to publish the frames to
+     * @param capture the capture to stop once the maximum amount of bytes is reached
+     * @param maxBytes the amount of bytes after which the capture is stopped, or a negative value to never stop
+     */
+    public PipelineFrameHandler(final PacketPipeline pipeline, final AfPacketCapture capture, final long maxBytes) {
+        this(pipeline, capture, null, maxBytes);
+    }
+
+    /**
+     * Create a new handler that also keeps the capture statistics of the pipeline up to date.
+     *
+     * @param pipeline the pipeline to publish the frames to
+     * @param capture the capture to stop once the maximum amount of bytes is reached
+     * @param socket the socket of the capture to read the statistics of, or null to not read them
+     * @param maxBytes the amount of bytes after which the capture is stopped, or a negative value to never stop
+     */
+    public PipelineFrameHandler(final PacketPipeline pipeline, final AfPacketCapture capture, final AfPacketSocket socket, final long maxBytes) {
+        _pipeline = pipeline;
+        _capture = capture;
+        _socket = socket;
+        _maxBytes = maxBytes;
+    }
+
+    @Override
+    public void frame(final ByteBuffer frame, final long seconds, final int nanos, final int wireLength) throws IOException {
+        final int length = frame.remaining();
+        final PacketSlot slot = _pipeline.claim();
+        slot.ensureCapacity(length);
+        slot.getBuffer().put(frame);
+        slot.setFrameLength(length);
+        slot.setCaptureInfo(seconds, nanos, wireLength);
+        _pipeline.publish(slot);
+
+        _bytes += length;
+        if (_maxBytes >= 0 && _bytes >= _maxBytes) {
+            _capture.stop();
+        }
+        if (_socket != null) {
+            final long now = System.nanoTime();
+            if (now - _lastStatistics >= STATISTICS_INTERVAL) {
+                _lastStatistics = now;
+                _socket.updateStatistics();
+                _pipeline.getStatistics().setCaptureStatistics(_socket.getPackets(), _socket.getDrops(), 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.compare;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import nl.minvenj.pef.exception.UnsupportedFileFormatException;
+
+/**
+ * Streams the frames of a PCAP or PCAPNG file, so captures of any size can be compared.
+ *
+ * Only the frames are read: the capture metadata and the blocks without packets are skipped.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class CaptureFrames {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int PCAP_HEADER_LENGTH = 24;
+    private static final int PCAP_MAGIC = 0xA1B2C3D4;
+    private static final int PCAP_NANOSECOND_MAGIC = 0xA1B23C4D;
+    private static final int RECORD_HEADER_LENGTH = 16;
+    private static final int PCAPNG_SECTION_HEADER = 0x0A0D0D0A;
+    private static final int PCAPNG_SIMPLE_PACKET = 3;
+    private static final int PCAPNG_ENHANCED_PACKET = 6;
+
+    /**
+     * Receives the frames of a capture.
+     */
+    public interface FrameHandler {
+
+        /**
+         * Handle the next frame.
+         *
+         * @param frame the frame, owned by the handler
+         * @throws IOException when handling the frame fails
+         */
+        void frame(byte[] frame) throws IOException;
+    }
+
+    private CaptureFrames() {
+    }
+
+    /**
+     * Read all frames of a capture file. A truncated header or record at the end is ignored.
+     *
+     * @param file the PCAP or PCAPNG file
+     * @param handler the handler to pass the frames to, in the order of the file
+     * @return the number of frames read
+     * @throws IOException when reading fails or the handler fails
+     * @throws UnsupportedFileFormatException when the file is not PCAP or PCAPNG
+     */
+    public static long read(final File file, final FrameHandler handler) throws IOException {
+        try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+            final ByteBuffer header = ByteBuffer.allocate(PCAP_HEADER_LENGTH);
+            if (!readFully(input, header.array(), 4)) {
+                throw new UnsupportedFileFormatException("unsupported format of " + file + ": empty");
+            }
+            final int magic = header.getInt(0);
+            if (magic == PCAPNG_SECTION_HEADER) {
+                return readPCAPNG(input, handler);
+            }
+            final ByteOrder order;
+            if (magic == PCAP_MAGIC || magic == PCAP_NANOSECOND_MAGIC) {
+                order = ByteOrder.BIG_ENDIAN;
+            }
+            else if (Integer.reverseBytes(magic) == PCAP_MAGIC || Integer.reverseBytes(magic) == PCAP_NANOSECOND_MAGIC) {
+                order = ByteOrder.LITTLE_ENDIAN;
+            }
+            else {
+                throw new UnsupportedFileFormatException("unsupported format of " + file);
+            }
+            final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_LENGTH).order(order);
+            long count = 0;
+            try {
+                input.readFully(header.array(), 4, PCAP_HEADER_LENGTH - 4);
+                while (readFully(input, recordHeader.array(), RECORD_HEADER_LENGTH)) {
+                    final byte[] frame = new byte[recordHeader.getInt(8)];
+                    input.readFully(frame);
+                    handler.frame(frame);
+                    count++;
+                }
+            }
+            catch (final EOFException e) {
+                // a truncated file header or last record
+            }
+            return count;
+        }
+    }
+
+    private static long readPCAPNG(final DataInputStream input, final FrameHandler handler) throws IOException {
+        final ByteBuffer blockHeader = ByteBuffer.allocate(12);
+        ByteOrder order = ByteOrder.BIG_ENDIAN;
+        long count = 0;
+        // the type of the first block has been read
+        int type = PCAPNG_SECTION_HEADER;
+        try {
+            while (true) {
+                if (type == PCAPNG_SECTION_HEADER) {
+                    input.readFully(blockHeader.array(), 4, 8);
+                    order = blockHeader.get(8) == 0x1A ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+                    skipFully(input, blockHeader.order(order).getInt(4) - 12);
+                }
+                else {
+                    input.readFully(blockHeader.array(), 4, 4);
+                    final int length = blockHeader.order(order).getInt(4);
+                    if (type == PCAPNG_ENHANCED_PACKET || type == PCAPNG_SIMPLE_PACKET) {
+                        final int prefix = type == PCAPNG_ENHANCED_PACKET ? 20 : 4;
+                        final byte[] fields = new byte[prefix];
+                        input.readFully(fields);
+                        final int captured = type == PCAPNG_ENHANCED_PACKET ? ByteBuffer.wrap(fields).order(order).getInt(12) : length - 16;
+                        final byte[] frame = new byte[captured];
+                        input.readFully(frame);
+                        skipFully(input, length - 8 - prefix - captured);
+                        handler.frame(frame);
+                        count++;
+                    }
+                    else {
+                        skipFully(input, length - 8);
+                    }
+                }
+                if (!readFully(input, blockHeader.array(), 4)) {
+                    return count;
+                }
+                // the type of a section header block reads the same in both byte orders
+                type = blockHeader.order(order).getInt(0);
+            }
+        }
+        catch (final EOFException e) {
+            // a truncated last block
+            return count;
+        }
+    }
+
+    private static void skipFully(final DataInputStream input, final int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            final int skipped = input.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException("capture ends inside a record");
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static boolean readFully(final DataInputStream input, final byte[] buffer, final int length) throws IOException {
+        final int first = input.read(buffer, 0, length);
+        if (first < 0) {
+            return false;
+        }
+        if (first < length) {
+            input.readFully(buffer, first, length - first);
+        }
+        return true;
+    }
+}
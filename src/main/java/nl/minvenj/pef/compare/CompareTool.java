@@ -0,0 +1,218 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.compare;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.internal.HelpScreenException;
+import nl.minvenj.pef.compare.CaptureFrames.FrameHandler;
+import nl.minvenj.pef.generate.CaptureGenerator;
+import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.pseudo.IPPseudonymizer;
+import nl.minvenj.pef.pseudo.cli.FramePseudonymizerBuilder;
+
+/**
+ * A command line tool comparing the pseudonymization engines on captures, see {@link EngineComparison}.
+ *
+ * All engines pseudonymize IPv4 and IPv6 addresses of DNS packets and recalculate the IPv4, UDP
+ * and ICMP checksums, with the same key. The tool exits with status 1 when an engine diverged from
+ * the reference. Run with -h for help.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class CompareTool {
+
+    private static final String DEFAULT_KEY = "30313233343536373839414243444546";
+
+    private CompareTool() {
+    }
+
+    public static void main(final String[] args) {
+        final ArgumentParser parser = ArgumentParsers.newArgumentParser(CompareTool.class.getSimpleName())
+            .description("Tool to compare the output and throughput of the pseudonymization engines, packet by packet.");
+
+        parser.addArgument("captures")
+            .nargs("*")
+            .help("the PCAP or PCAPNG files to compare on, or directories holding them");
+        parser.addArgument("-g", "--generate")
+            .metavar("packets")
+            .type(Long.class)
+            .help("compare on a generated capture with this number of packets as well");
+        parser.addArgument("-e", "--engines")
+            .setDefault(Engines.METAL + "," + Engines.IN_PLACE + "," + JNetPcapEngine.NAME)
+            .help("the engines to compare, the first one being the reference (default: metal,inplace,jnetpcap); "
+                  + "jnetpcap is skipped when its native library is missing");
+        parser.addArgument("--ignore")
+            .metavar("field,...")
+            .setDefault("")
+            .help("the fields allowed to differ from the reference, e.g. udp.checksum,ipv4.checksum");
+        parser.addArgument("-k", "--key")
+            .setDefault(DEFAULT_KEY)
+            .help("the key to pseudonymize with (default: a fixed test key)");
+        parser.addArgument("-4", "--mask4")
+            .type(Integer.class)
+            .setDefault(16)
+            .help("the number of bits of IPv4 addresses to keep (default: 16)");
+        parser.addArgument("-6", "--mask6")
+            .type(Integer.class)
+            .setDefault(64)
+            .help("the number of bits of IPv6 addresses to keep (default: 64)");
+        parser.addArgument("-w", "--warmup")
+            .metavar("packets")
+            .type(Long.class)
+            .setDefault(10000L)
+            .help("the number of first packets that are compared but not timed (default: 10000)");
+
+        try {
+            final Namespace cmdResult = parser.parseArgs(args);
+            final List<File> captures = captures(cmdResult.<String>getList("captures"));
+            File generated = null;
+            if (cmdResult.getLong("generate") != null) {
+                generated = File.createTempFile("pef-compare", ".pcap");
+                generated.deleteOnExit();
+                new CaptureGenerator().packets(cmdResult.getLong("generate")).generate(generated);
+                captures.add(generated);
+            }
+            if (captures.isEmpty()) {
+                throw new ArgumentParserException("no captures to compare on", parser);
+            }
+            final EngineComparison comparison = new EngineComparison(
+                engines(Arrays.asList(cmdResult.getString("engines").split(",")), cmdResult.getString("key"), cmdResult.getInt("mask4"), cmdResult.getInt("mask6")),
+                fields(cmdResult.getString("ignore")))
+                .warmup(cmdResult.getLong("warmup"));
+            for (final File capture : captures) {
+                compare(capture, comparison);
+            }
+            if (generated != null) {
+                generated.delete();
+            }
+            System.out.print(comparison.report());
+            for (int i = 1; i < comparison.getEngineNames().size(); i++) {
+                if (comparison.getDivergentPackets(i) > 0) {
+                    System.exit(1);
+                }
+            }
+        }
+        catch (final HelpScreenException hse) {
+            // this is the normal behaviour, throwing exception when asking for help
+        }
+        catch (final ArgumentParserException ape) {
+            System.err.println(parser.formatUsage() + CompareTool.class.getSimpleName() + ": error: " + ape.getMessage());
+        }
+        catch (final IllegalArgumentException | InvalidKeyException e) {
+            System.err.println(parser.formatUsage() + CompareTool.class.getSimpleName() + ": error: " + e.getMessage());
+        }
+        catch (final IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    /**
+     * Create the engines with the given names, in the same order.
+     *
+     * @param names the names of the engines: metal, inplace or jnetpcap
+     * @param key the key to pseudonymize with
+     * @param ipv4Mask the number of bits of IPv4 addresses to keep
+     * @param ipv6Mask the number of bits of IPv6 addresses to keep
+     * @return the engines, leaving out jnetpcap when its native library is missing
+     * @throws IOException whenever I/O errors occur
+     * @throws InvalidKeyException when the key is invalid
+     */
+    public static List<Engine> engines(final List<String> names, final String key, final int ipv4Mask, final int ipv6Mask) throws IOException, InvalidKeyException {
+        final List<Engine> engines = new ArrayList<>();
+        for (final String name : names) {
+            switch (name.trim()) {
+                case Engines.METAL:
+                    engines.add(Engines.metal(pseudonymizer(key, ipv4Mask, ipv6Mask)));
+                    break;
+                case Engines.IN_PLACE:
+                    engines.add(Engines.inPlace(pseudonymizer(key, ipv4Mask, ipv6Mask)));
+                    break;
+                case JNetPcapEngine.NAME:
+                    if (JNetPcapEngine.isAvailable()) {
+                        engines.add(new JNetPcapEngine(IPPseudonymizer.initIPv4Pseudonymizer(key, ipv4Mask), IPPseudonymizer.initIPv6Pseudonymizer(key, ipv6Mask)));
+                    }
+                    else {
+                        System.err.println("Skipping " + JNetPcapEngine.NAME + ", its native library could not be loaded.");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown engine: " + name);
+            }
+        }
+        return engines;
+    }
+
+    private static FramePseudonymizer pseudonymizer(final String key, final int ipv4Mask, final int ipv6Mask) throws IOException, InvalidKeyException {
+        return new FramePseudonymizerBuilder()
+            .pseudoIPv4(key, ipv4Mask)
+            .pseudoIPv6(key, ipv6Mask)
+            .calcIPv4Checksum()
+            .calcUDPChecksum()
+            .calcICMPChecksum()
+            .build();
+    }
+
+    private static void compare(final File capture, final EngineComparison comparison) throws IOException {
+        CaptureFrames.read(capture, new FrameHandler() {
+            @Override
+            public void frame(final byte[] frame) throws IOException {
+                comparison.compare(frame);
+            }
+        });
+    }
+
+    private static List<File> captures(final List<String> paths) {
+        final List<File> captures = new ArrayList<>();
+        for (final String path : paths) {
+            final File file = new File(path);
+            final File[] files = file.listFiles();
+            if (files == null) {
+                captures.add(file);
+                continue;
+            }
+            Arrays.sort(files);
+            for (final File child : files) {
+                if (child.getName().endsWith(".pcap") || child.getName().endsWith(".pcapng")) {
+                    captures.add(child);
+                }
+            }
+        }
+        return captures;
+    }
+
+    private static Set<String> fields(final String list) {
+        final Set<String> fields = new HashSet<>();
+        for (final String field : list.split(",")) {
+            if (!field.trim().isEmpty()) {
+                fields.add(field.trim());
+            }
+        }
+        return Collections.unmodifiableSet(fields);
+    }
+}
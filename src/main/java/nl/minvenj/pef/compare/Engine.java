@@ -0,0 +1,42 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.compare;
+
+import java.io.IOException;
+
+/**
+ * A way of pseudonymizing ethernet frames, compared with the others by an {@link EngineComparison}.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public interface Engine {
+
+    /**
+     * Returns the name of the engine, used in the report.
+     *
+     * @return the name
+     */
+    String getName();
+
+    /**
+     * Pseudonymizes a frame.
+     *
+     * @param frame the frame, which the engine may change
+     * @return the pseudonymized frame, which may be the given array
+     * @throws IOException whenever I/O errors occur
+     */
+    byte[] pseudonymize(byte[] frame) throws IOException;
+}
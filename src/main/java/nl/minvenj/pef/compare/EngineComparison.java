@@ -0,0 +1,233 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.compare;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Runs several engines on the same frames and compares their output packet by packet.
+ *
+ * The first engine is the reference: the output of every other engine is compared with its output,
+ * byte by byte. The differing bytes are named with {@link FrameFields}, and a packet diverges when a
+ * field differs that is not ignored, or when the length differs. The time each engine takes is
+ * measured as well, so their throughput can be compared side by side.
+ *
+ * Every engine gets its own copy of each frame. A comparison is not thread safe.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class EngineComparison {
+
+    /** The name of the difference in the length of the output. */
+    public static final String LENGTH = "length";
+    /** The maximum number of divergent packets described per engine. */
+    public static final int MAX_EXAMPLES = 10;
+
+    private final List<Engine> _engines;
+    private final Set<String> _ignored;
+    private final Result[] _results;
+    private long _warmup;
+    private long _packets;
+
+    /**
+     * Create a new comparison.
+     *
+     * @param engines the engines to compare, the first one being the reference
+     * @param ignored the names of the fields that are allowed to differ, e.g. udp.checksum
+     */
+    public EngineComparison(final List<Engine> engines, final Set<String> ignored) {
+        if (engines.isEmpty()) {
+            throw new IllegalArgumentException("at least one engine is required");
+        }
+        _engines = new ArrayList<>(engines);
+        _ignored = new HashSet<>(ignored);
+        _results = new Result[engines.size()];
+        for (int i = 0; i < _results.length; i++) {
+            _results[i] = new Result();
+        }
+    }
+
+    /**
+     * Do not time the given number of first packets, so the engines are compiled before they are timed.
+     *
+     * @param packets the number of packets to compare without timing
+     * @return this
+     */
+    public EngineComparison warmup(final long packets) {
+        _warmup = packets;
+        return this;
+    }
+
+    /**
+     * Run all engines on a frame and compare their output with that of the reference.
+     *
+     * @param frame the frame, which is not changed
+     * @return true when all outputs match
+     * @throws IOException when an engine fails
+     */
+    public boolean compare(final byte[] frame) throws IOException {
+        final boolean timed = _packets >= _warmup;
+        byte[] reference = null;
+        boolean matched = true;
+        for (int i = 0; i < _engines.size(); i++) {
+            final byte[] input = frame.clone();
+            final long start = System.nanoTime();
+            final byte[] output = _engines.get(i).pseudonymize(input);
+            final long nanos = System.nanoTime() - start;
+            final Result result = _results[i];
+            if (timed) {
+                result._nanos += nanos;
+                result._timedPackets++;
+                result._timedBytes += frame.length;
+            }
+            if (i == 0) {
+                reference = output;
+            }
+            else {
+                matched &= compare(result, reference, output);
+            }
+        }
+        _packets++;
+        return matched;
+    }
+
+    private boolean compare(final Result result, final byte[] reference, final byte[] output) {
+        final Set<String> fields = new TreeSet<>();
+        if (reference.length != output.length) {
+            fields.add(LENGTH);
+        }
+        for (int offset = 0; offset < Math.min(reference.length, output.length); offset++) {
+            if (reference[offset] != output[offset]) {
+                fields.add(FrameFields.nameAt(reference, offset));
+            }
+        }
+        fields.removeAll(_ignored);
+        if (fields.isEmpty()) {
+            return true;
+        }
+        result._divergent++;
+        for (final String field : fields) {
+            final Long count = result._fields.get(field);
+            result._fields.put(field, count == null ? 1 : count + 1);
+        }
+        if (result._examples.size() < MAX_EXAMPLES) {
+            result._examples.add("packet " + _packets + ": " + fields);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of packets compared.
+     *
+     * @return the number of packets
+     */
+    public long getPackets() {
+        return _packets;
+    }
+
+    /**
+     * Returns the number of packets for which the output of an engine diverged from the reference.
+     *
+     * @param engine the position of the engine
+     * @return the number of divergent packets, always 0 for the reference
+     */
+    public long getDivergentPackets(final int engine) {
+        return _results[engine]._divergent;
+    }
+
+    /**
+     * Returns the fields in which an engine diverged from the reference.
+     *
+     * @param engine the position of the engine
+     * @return the number of divergent packets per field name
+     */
+    public SortedMap<String, Long> getDivergentFields(final int engine) {
+        return Collections.unmodifiableSortedMap(_results[engine]._fields);
+    }
+
+    /**
+     * Returns the number of timed packets an engine pseudonymizes per second.
+     *
+     * @param engine the position of the engine
+     * @return the throughput in packets per second, or 0 when no packet was timed
+     */
+    public double getPacketsPerSecond(final int engine) {
+        final Result result = _results[engine];
+        return result._nanos == 0 ? 0 : result._timedPackets * 1e9 / result._nanos;
+    }
+
+    /**
+     * Describe the divergences and the throughput of all engines.
+     *
+     * @return the report, one line per engine followed by its divergences
+     */
+    public String report() {
+        final StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%d packets compared, %s is the reference%n", _packets, _engines.get(0).getName()));
+        if (!_ignored.isEmpty()) {
+            report.append("ignored fields: ").append(new TreeSet<>(_ignored)).append(String.format("%n"));
+        }
+        for (int i = 0; i < _engines.size(); i++) {
+            final Result result = _results[i];
+            final double seconds = result._nanos / 1e9;
+            report.append(String.format(Locale.ROOT, "%-10s %12.0f packets/s %9.2f MB/s  %d divergent packets%n",
+                                        _engines.get(i).getName(),
+                                        getPacketsPerSecond(i),
+                                        seconds == 0 ? 0 : result._timedBytes / seconds / 1e6,
+                                        result._divergent));
+            for (final String field : result._fields.keySet()) {
+                report.append(String.format(Locale.ROOT, "    %-22s %d packets%n", field, result._fields.get(field)));
+            }
+            for (final String example : result._examples) {
+                report.append("    ").append(example).append(String.format("%n"));
+            }
+        }
+        return report.toString();
+    }
+
+    /**
+     * Returns the names of the engines, in the order they are compared.
+     *
+     * @return the engine names
+     */
+    public List<String> getEngineNames() {
+        final String[] names = new String[_engines.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = _engines.get(i).getName();
+        }
+        return Arrays.asList(names);
+    }
+
+    private static final class Result {
+
+        private long _nanos;
+        private long _timedPackets;
+        private long _timedBytes;
+        private long _divergent;
+        private final SortedMap<String, Long> _fields = new TreeMap<>();
+        private final List<String> _examples = new ArrayList<>();
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.compare;
+
+import java.io.IOException;
+
+import nl.minvenj.pef.pseudo.FramePseudonymizer;
+
+/**
+ * The engines pseudonymizing frames with Metal.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class Engines {
+
+    /** The name of the engine serializing the transformed values into a new frame. */
+    public static final String METAL = "metal";
+    /** The name of the engine pseudonymizing frames in place, as the live capture and the pipeline do. */
+    public static final String IN_PLACE = "inplace";
+
+    private Engines() {
+    }
+
+    /**
+     * Returns the engine merging the transformed values into a new frame, the reference for the others.
+     *
+     * @param pseudonymizer the pseudonymizer to use, only by this engine
+     * @return the engine
+     * @see FramePseudonymizer#pseudonymizeByMerging(byte[])
+     */
+    public static Engine metal(final FramePseudonymizer pseudonymizer) {
+        return new Engine() {
+            @Override
+            public String getName() {
+                return METAL;
+            }
+
+            @Override
+            public byte[] pseudonymize(final byte[] frame) throws IOException {
+                return pseudonymizer.pseudonymizeByMerging(frame);
+            }
+        };
+    }
+
+    /**
+     * Returns the engine pseudonymizing frames in place.
+     *
+     * @param pseudonymizer the pseudonymizer to use, only by this engine
+     * @return the engine
+     * @see FramePseudonymizer#pseudonymize(byte[], int, int)
+     */
+    public static Engine inPlace(final FramePseudonymizer pseudonymizer) {
+        return new Engine() {
+            @Override
+            public String getName() {
+                return IN_PLACE;
+            }
+
+            @Override
+            public byte[] pseudonymize(final byte[] frame) throws IOException {
+                pseudonymizer.pseudonymize(frame, 0, frame.length);
+                return frame;
+            }
+        };
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.compare;
+
+import nl.minvenj.pef.metal.packet.internet.ExtensionHeaderChain;
+
+/**
+ * Names the header field of an ethernet frame at a byte offset, to report where engines diverge.
+ *
+ * The names are the protocol and the field, such as ipv4.checksum or udp.payload. Bytes that are
+ * not part of a known header are named payload. Like the flow hash, the frame is read directly and
+ * not validated.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class FrameFields {
+
+    private static final int ETHERNET_HEADER_LENGTH = 14;
+
+    private FrameFields() {
+    }
+
+    /**
+     * Returns the name of the field at an offset of an ethernet frame.
+     *
+     * @param frame the frame
+     * @param offset the offset in the frame
+     * @return the name of the field
+     */
+    public static String nameAt(final byte[] frame, final int offset) {
+        final int end = frame.length;
+        if (offset < 6) {
+            return "ethernet.destination";
+        }
+        if (offset < 12) {
+            return "ethernet.source";
+        }
+        int position = 12;
+        if (end < ETHERNET_HEADER_LENGTH) {
+            return "ethernet.type";
+        }
+        int etherType = uint16(frame, position);
+        while ((etherType == 0x8100 || etherType == 0x88A8 || etherType == 0x9100) && position + 6 <= end) {
+            if (offset < position + 4) {
+                return "vlan";
+            }
+            etherType = uint16(frame, position + 4);
+            position += 4;
+        }
+        if (offset < position + 2) {
+            return "ethernet.type";
+        }
+        position += 2;
+        final int protocol;
+        final int header;
+        if (etherType == 0x0800 && position + 20 <= end) {
+            header = position + (frame[position] & 0x0F) * 4;
+            protocol = frame[position + 9] & 0xFF;
+            if (offset < header) {
+                return ipv4Field(offset - position);
+            }
+            if ((uint16(frame, position + 6) & 0x1FFF) != 0) {
+                return "ipv4.payload";
+            }
+        }
+        else if (etherType == 0x86DD && position + 40 <= end) {
+            if (offset < position + 40) {
+                return ipv6Field(offset - position);
+            }
+            final long walk = ExtensionHeaderChain.walk(frame, position, end);
+            header = ExtensionHeaderChain.offset(walk);
+            protocol = ExtensionHeaderChain.protocol(walk);
+            if (offset < header) {
+                return "ipv6.extension";
+            }
+            if (ExtensionHeaderChain.isLaterFragment(walk)) {
+                return "ipv6.payload";
+            }
+        }
+        else {
+            return "payload";
+        }
+        return transportField(protocol, offset - header);
+    }
+
+    private static String ipv4Field(final int offset) {
+        if (offset >= 10 && offset < 12) {
+            return "ipv4.checksum";
+        }
+        if (offset >= 12 && offset < 16) {
+            return "ipv4.source";
+        }
+        if (offset >= 16 && offset < 20) {
+            return "ipv4.destination";
+        }
+        return offset < 20 ? "ipv4.header" : "ipv4.options";
+    }
+
+    private static String ipv6Field(final int offset) {
+        if (offset >= 8 && offset < 24) {
+            return "ipv6.source";
+        }
+        if (offset >= 24) {
+            return "ipv6.destination";
+        }
+        return "ipv6.header";
+    }
+
+    private static String transportField(final int protocol, final int offset) {
+        switch (protocol) {
+            case 6:
+                return offset == 16 || offset == 17 ? "tcp.checksum" : offset < 20 ? "tcp.header" : "tcp.payload";
+            case 17:
+                return offset == 6 || offset == 7 ? "udp.checksum" : offset < 8 ? "udp.header" : "udp.payload";
+            case 1:
+                return offset == 2 || offset == 3 ? "icmp.checksum" : offset < 8 ? "icmp.header" : "icmp.payload";
+            case 58:
+                return offset == 2 || offset == 3 ? "icmpv6.checksum" : offset < 8 ? "icmpv6.header" : "icmpv6.payload";
+            default:
+                return "payload";
+        }
+    }
+
+    private static int uint16(final byte[] data, final int position) {
+        return (data[position] & 0xFF) << 8 | data[position + 1] & 0xFF;
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.compare;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapHeader;
+import org.jnetpcap.packet.PcapPacket;
+import org.jnetpcap.protocol.JProtocol;
+import org.jnetpcap.protocol.lan.Ethernet;
+import org.jnetpcap.protocol.network.Icmp;
+import org.jnetpcap.protocol.network.Ip4;
+import org.jnetpcap.protocol.tcpip.Udp;
+
+import nl.minvenj.pef.pseudo.IPPseudonymizer;
+import nl.minvenj.pef.stream.JNetPcapPacketModifier;
+
+/**
+ * The engine pseudonymizing frames with jNetPcap, using a {@link JNetPcapPacketModifier} on DNS
+ * packets and recalculating the IPv4, UDP and ICMP checksums, like the Metal engines configured
+ * the same way.
+ *
+ * jNetPcap needs its native library, see {@link #isAvailable()}.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class JNetPcapEngine implements Engine {
+
+    /** The name of the engine. */
+    public static final String NAME = "jnetpcap";
+
+    private final JNetPcapPacketModifier _modifier;
+
+    /**
+     * Create a new engine.
+     *
+     * @param ipv4Pseudonymizer the pseudonymizer of IPv4 addresses, only used by this engine
+     * @param ipv6Pseudonymizer the pseudonymizer of IPv6 addresses, only used by this engine
+     */
+    public JNetPcapEngine(final IPPseudonymizer ipv4Pseudonymizer, final IPPseudonymizer ipv6Pseudonymizer) {
+        final Map<JProtocol, IPPseudonymizer> pseudonymizers = new EnumMap<>(JProtocol.class);
+        pseudonymizers.put(JProtocol.IP4, ipv4Pseudonymizer);
+        pseudonymizers.put(JProtocol.IP6, ipv6Pseudonymizer);
+        _modifier = new JNetPcapPacketModifier(pseudonymizers, Arrays.asList(Ip4.ID, Udp.ID, Icmp.ID), true);
+    }
+
+    /**
+     * Returns whether the native jNetPcap library can be loaded.
+     *
+     * @return true when the engine can be used
+     */
+    public static boolean isAvailable() {
+        try {
+            return Pcap.libVersion() != null;
+        }
+        catch (final LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] pseudonymize(final byte[] frame) {
+        final PcapPacket packet = new PcapPacket(new PcapHeader(frame.length, frame.length), ByteBuffer.wrap(frame));
+        packet.scan(Ethernet.ID);
+        if (packet.hasHeader(Ethernet.ID)) {
+            _modifier.modifyPacket(packet);
+        }
+        return packet.getByteArray(0, packet.size());
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.compress;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import nl.minvenj.pef.output.AsyncFileOutputStream;
+
+/**
+ * The compression formats of capture files that are read and written transparently.
+ *
+ * The compression of an input file is detected from its first bytes, the compression of an output
+ * file is chosen by its extension. Input is decompressed on a thread of its own, see
+ * {@link ReadAheadInputStream}, and output is written on a thread of its own, see
+ * {@link AsyncFileOutputStream}. Concatenated gzip members and zstd or LZ4 frames are read as
+ * one stream.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public enum Compression {
+
+    NONE("", new int[0]),
+    GZIP(".gz", new int[] { 0x1F, 0x8B }),
+    ZSTD(".zst", new int[] { 0x28, 0xB5, 0x2F, 0xFD }),
+    LZ4(".lz4", new int[] { 0x04, 0x22, 0x4D, 0x18 });
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int ZSTD_LEVEL = 3;
+
+    private final String _extension;
+    private final int[] _magic;
+
+    Compression(final String extension, final int[] magic) {
+        _extension = extension;
+        _magic = magic;
+    }
+
+    /**
+     * Returns the extension of files compressed in this format, including the dot.
+     *
+     * @return the extension, empty for {@link #NONE}
+     */
+    public String getExtension() {
+        return _extension;
+    }
+
+    /**
+     * Detect the compression of a file from its first bytes.
+     *
+     * @param file the file to check
+     * @return the compression of the file, or {@link #NONE} when it is not compressed in a known format
+     * @throws IOException when reading the file fails
+     */
+    public static Compression detect(final File file) throws IOException {
+        final byte[] header = new byte[4];
+        int length = 0;
+        try (final InputStream input = new FileInputStream(file)) {
+            while (length < header.length) {
+                final int count = input.read(header, length, header.length - length);
+                if (count < 0) {
+                    break;
+                }
+                length += count;
+            }
+        }
+        return detect(header, length);
+    }
+
+    /**
+     * Detect the compression of data from its first bytes.
+     *
+     * @param header the first bytes of the data
+     * @param length the number of bytes available in the header
+     * @return the compression of the data, or {@link #NONE} when it is not compressed in a known format
+     */
+    public static Compression detect(final byte[] header, final int length) {
+        for (final Compression compression : values()) {
+            if (compression != NONE && compression.matches(header, length)) {
+                return compression;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Returns the compression to use for a file, based on the extension of its name.
+     *
+     * @param name the name of the file
+     * @return the compression matching the extension, or {@link #NONE}
+     */
+    public static Compression forFileName(final String name) {
+        final String lowerCase = name.toLowerCase(Locale.ROOT);
+        for (final Compression compression : values()) {
+            if (compression != NONE && lowerCase.endsWith(compression._extension)) {
+                return compression;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Open a file for reading, decompressing it on a separate thread when it is compressed.
+     *
+     * @param file the file to read
+     * @return the stream of the (decompressed) contents, to be closed by the caller
+     * @throws IOException when opening the file fails
+     */
+    public static InputStream openInput(final File file) throws IOException {
+        final Compression compression = detect(file);
+        final InputStream input = new FileInputStream(file);
+        if (compression == NONE) {
+            return new BufferedInputStream(input, BUFFER_SIZE);
+        }
+        try {
+            return new ReadAheadInputStream(compression.decompress(new BufferedInputStream(input, BUFFER_SIZE)), "pef-decompress-" + file.getName());
+        }
+        catch (final IOException | RuntimeException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a file for writing, compressing it as indicated by the extension of its name.
+     *
+     * @param file the file to create or overwrite
+     * @return the stream to write the (uncompressed) contents to, to be closed by the caller
+     * @throws IOException when opening the file fails
+     */
+    public static OutputStream openOutput(final File file) throws IOException {
+        final OutputStream output = new AsyncFileOutputStream(file);
+        try {
+            return forFileName(file.getName()).compress(output);
+        }
+        catch (final IOException | RuntimeException e) {
+            output.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Wrap a stream of data in this format in a decompressing stream.
+     *
+     * @param in the compressed data
+     * @return the stream of decompressed data
+     * @throws IOException when reading the header of the data fails
+     */
+    public InputStream decompress(final InputStream in) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            case ZSTD:
+                return new ZstdInputStream(in);
+            case LZ4:
+                return new Lz4FrameInputStream(in);
+            default:
+                return in;
+        }
+    }
+
+    /**
+     * Wrap a stream in a stream compressing to this format.
+     *
+     * @param out the stream to write the compressed data to
+     * @return the stream to write the uncompressed data to; closing it finishes and closes the output
+     * @throws IOException when writing the header of the data fails
+     */
+    public OutputStream compress(final OutputStream out) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_SIZE);
+            case ZSTD:
+                return new ZstdOutputStream(out, ZSTD_LEVEL);
+            case LZ4:
+                return new Lz4FrameOutputStream(out);
+            default:
+                return out;
+        }
+    }
+
+    private boolean matches(final byte[] header, final int length) {
+        if (length < _magic.length) {
+            return false;
+        }
+        for (int i = 0; i < _magic.length; i++) {
+            if ((header[i] & 0xFF) != _magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,308 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.compress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompresses data in the LZ4 frame format, as written by the lz4 command line tool.
+ *
+ * Both independent and linked blocks are supported, as are block and content checksums, which are
+ * verified. Concatenated frames are read as one stream and skippable frames are skipped. Frames that
+ * need a dictionary are not supported.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class Lz4FrameInputStream extends InputStream {
+
+    private static final int SKIPPABLE_MAGIC = 0x184D2A50;
+    private static final int SKIPPABLE_MASK = 0xFFFFFFF0;
+    private static final int UNCOMPRESSED = 0x80000000;
+    private static final int WINDOW_SIZE = 64 * 1024;
+    private static final int MIN_MATCH = 4;
+
+    private final InputStream _in;
+    private final byte[] _word = new byte[8];
+    private final XXHash32 _checksum = new XXHash32();
+    private byte[] _window = new byte[0];
+    private byte[] _compressed = new byte[0];
+    private int _readPosition;
+    private int _writePosition;
+    private int _maxBlockSize;
+    private boolean _blockChecksum;
+    private boolean _contentChecksum;
+    private boolean _inFrame;
+    private boolean _ended;
+
+    /**
+     * Create a new stream.
+     *
+     * @param in the stream holding one or more LZ4 frames
+     */
+    public Lz4FrameInputStream(final InputStream in) {
+        _in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (_readPosition == _writePosition && !fill()) {
+            return -1;
+        }
+        return _window[_readPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] data, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (_readPosition == _writePosition && !fill()) {
+            return -1;
+        }
+        final int count = Math.min(length, _writePosition - _readPosition);
+        System.arraycopy(_window, _readPosition, data, offset, count);
+        _readPosition += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return _writePosition - _readPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        _ended = true;
+        _in.close();
+    }
+
+    /**
+     * Decompress the next block.
+     *
+     * @return false at the end of the input
+     */
+    private boolean fill() throws IOException {
+        while (!_ended) {
+            if (!_inFrame && !readFrameHeader()) {
+                _ended = true;
+                return false;
+            }
+            final int size = readInt();
+            if (size == 0) {
+                readFrameEnd();
+                continue;
+            }
+            final int length = size & ~UNCOMPRESSED;
+            if (length > _maxBlockSize) {
+                throw new IOException("invalid LZ4 block size: " + length);
+            }
+            // keep the last 64 KiB, which blocks that are not independent can refer to
+            if (_writePosition + _maxBlockSize > _window.length) {
+                final int kept = Math.min(_writePosition, WINDOW_SIZE);
+                System.arraycopy(_window, _writePosition - kept, _window, 0, kept);
+                _writePosition = kept;
+            }
+            _readPosition = _writePosition;
+            if ((size & UNCOMPRESSED) != 0) {
+                readFully(_window, _writePosition, length);
+                checkBlock(_window, _writePosition, length);
+                _writePosition += length;
+            }
+            else {
+                readFully(_compressed, 0, length);
+                checkBlock(_compressed, 0, length);
+                try {
+                    _writePosition = decompress(length);
+                }
+                catch (final ArrayIndexOutOfBoundsException e) {
+                    throw new IOException("corrupt LZ4 block", e);
+                }
+            }
+            if (_contentChecksum) {
+                _checksum.update(_window, _readPosition, _writePosition - _readPosition);
+            }
+            if (_writePosition > _readPosition) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean readFrameHeader() throws IOException {
+        while (true) {
+            final int first = _in.read();
+            if (first < 0) {
+                return false;
+            }
+            _word[0] = (byte) first;
+            readFully(_word, 1, 3);
+            final int magic = XXHash32.getInt(_word, 0);
+            if ((magic & SKIPPABLE_MASK) == SKIPPABLE_MAGIC) {
+                skipFully(readInt() & 0xFFFFFFFFL);
+                continue;
+            }
+            if (magic != Lz4FrameOutputStream.MAGIC) {
+                throw new IOException("invalid LZ4 frame magic: " + Integer.toHexString(magic));
+            }
+            final byte[] descriptor = new byte[11];
+            readFully(descriptor, 0, 2);
+            final int flags = descriptor[0] & 0xFF;
+            if (flags >> 6 != 1) {
+                throw new IOException("unsupported LZ4 frame version: " + (flags >> 6));
+            }
+            if ((flags & 0x01) != 0) {
+                throw new IOException("LZ4 frames with a dictionary are not supported");
+            }
+            int length = 2;
+            if ((flags & 0x08) != 0) {
+                readFully(descriptor, length, 8);
+                length += 8;
+            }
+            final int headerChecksum = readByte();
+            if (headerChecksum != (XXHash32.hash(descriptor, 0, length) >> 8 & 0xFF)) {
+                throw new IOException("invalid LZ4 frame header checksum");
+            }
+            final int blockSizeId = descriptor[1] >> 4 & 0x07;
+            if (blockSizeId < 4) {
+                throw new IOException("invalid LZ4 maximum block size: " + blockSizeId);
+            }
+            _maxBlockSize = 1 << (2 * blockSizeId + 8);
+            _blockChecksum = (flags & 0x10) != 0;
+            _contentChecksum = (flags & 0x04) != 0;
+            if (_window.length < WINDOW_SIZE + _maxBlockSize) {
+                _window = new byte[WINDOW_SIZE + _maxBlockSize];
+                _compressed = new byte[_maxBlockSize];
+            }
+            _readPosition = 0;
+            _writePosition = 0;
+            _checksum.reset();
+            _inFrame = true;
+            return true;
+        }
+    }
+
+    private void readFrameEnd() throws IOException {
+        if (_contentChecksum && readInt() != _checksum.getValue()) {
+            throw new IOException("invalid LZ4 content checksum");
+        }
+        _inFrame = false;
+    }
+
+    private void checkBlock(final byte[] data, final int offset, final int length) throws IOException {
+        if (_blockChecksum && readInt() != XXHash32.hash(data, offset, length)) {
+            throw new IOException("invalid LZ4 block checksum");
+        }
+    }
+
+    /**
+     * Decompress an LZ4 block into the window.
+     *
+     * @return the new write position in the window
+     */
+    private int decompress(final int length) throws IOException {
+        final byte[] source = _compressed;
+        final byte[] target = _window;
+        final int limit = _writePosition + _maxBlockSize;
+        int input = 0;
+        int output = _writePosition;
+        while (true) {
+            final int token = source[input++] & 0xFF;
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int extra;
+                do {
+                    extra = source[input++] & 0xFF;
+                    literalLength += extra;
+                } while (extra == 255);
+            }
+            if (input + literalLength > length || output + literalLength > limit) {
+                throw new IOException("corrupt LZ4 block");
+            }
+            System.arraycopy(source, input, target, output, literalLength);
+            input += literalLength;
+            output += literalLength;
+            if (input == length) {
+                return output;
+            }
+
+            final int offset = source[input] & 0xFF | (source[input + 1] & 0xFF) << 8;
+            input += 2;
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int extra;
+                do {
+                    extra = source[input++] & 0xFF;
+                    matchLength += extra;
+                } while (extra == 255);
+            }
+            matchLength += MIN_MATCH;
+            final int reference = output - offset;
+            if (offset == 0 || reference < 0 || output + matchLength > limit) {
+                throw new IOException("corrupt LZ4 block");
+            }
+            if (offset >= matchLength) {
+                System.arraycopy(target, reference, target, output, matchLength);
+                output += matchLength;
+            }
+            else {
+                // the match overlaps the data it produces
+                for (int i = 0; i < matchLength; i++) {
+                    target[output++] = target[reference + i];
+                }
+            }
+        }
+    }
+
+    private int readInt() throws IOException {
+        readFully(_word, 0, 4);
+        return XXHash32.getInt(_word, 0);
+    }
+
+    private int readByte() throws IOException {
+        final int value = _in.read();
+        if (value < 0) {
+            throw new EOFException("truncated LZ4 frame");
+        }
+        return value;
+    }
+
+    private void readFully(final byte[] data, final int offset, final int length) throws IOException {
+        int position = offset;
+        while (position < offset + length) {
+            final int count = _in.read(data, position, offset + length - position);
+            if (count < 0) {
+                throw new EOFException("truncated LZ4 frame");
+            }
+            position += count;
+        }
+    }
+
+    private void skipFully(final long length) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            final long count = _in.skip(remaining);
+            if (count <= 0) {
+                readByte();
+                remaining--;
+            }
+            else {
+                remaining -= count;
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.compress;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compresses data to the LZ4 frame format, readable by the lz4 command line tool.
+ *
+ * The data is compressed in independent blocks of 64 KiB, using a single hash table to find
+ * matches, which favours speed over ratio like the default level of lz4. A block that does not
+ * get smaller is stored uncompressed. The frame ends with a checksum of the content.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class Lz4FrameOutputStream extends FilterOutputStream {
+
+    static final int MAGIC = 0x184D2204;
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    // version 01, independent blocks, content checksum
+    private static final int FLAGS = 0x64;
+    // maximum block size 64 KiB
+    private static final int BLOCK_DESCRIPTOR = 0x40;
+    private static final int UNCOMPRESSED = 0x80000000;
+    private static final int MIN_MATCH = 4;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+
+    private final byte[] _block = new byte[BLOCK_SIZE];
+    private final byte[] _compressed = new byte[4 + BLOCK_SIZE + BLOCK_SIZE / 255 + 16];
+    private final int[] _hashTable = new int[1 << HASH_LOG];
+    private final XXHash32 _checksum = new XXHash32();
+    private int _blockLength;
+    private boolean _closed;
+
+    /**
+     * Create a new stream and write the frame header.
+     *
+     * @param out the stream to write the compressed data to
+     * @throws IOException when writing the header fails
+     */
+    public Lz4FrameOutputStream(final OutputStream out) throws IOException {
+        super(out);
+        final byte[] header = new byte[7];
+        putInt(header, 0, MAGIC);
+        header[4] = FLAGS;
+        header[5] = BLOCK_DESCRIPTOR;
+        header[6] = (byte) (XXHash32.hash(header, 4, 2) >> 8);
+        out.write(header);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] data, final int offset, final int length) throws IOException {
+        if (_closed) {
+            throw new IOException("stream closed");
+        }
+        _checksum.update(data, offset, length);
+        int position = offset;
+        final int end = offset + length;
+        while (position < end) {
+            final int count = Math.min(end - position, BLOCK_SIZE - _blockLength);
+            System.arraycopy(data, position, _block, _blockLength, count);
+            _blockLength += count;
+            position += count;
+            if (_blockLength == BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+    }
+
+    /**
+     * Compress and write the buffered data as a block, so that everything written so far can be decompressed.
+     *
+     * This makes the output larger, so it should not be called too often.
+     *
+     * @throws IOException when writing fails
+     */
+    @Override
+    public void flush() throws IOException {
+        if (_blockLength > 0) {
+            writeBlock();
+        }
+        out.flush();
+    }
+
+    /**
+     * Write the remaining data and the end of the frame, and close the underlying stream.
+     *
+     * @throws IOException when writing fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (_closed) {
+            return;
+        }
+        try {
+            if (_blockLength > 0) {
+                writeBlock();
+            }
+            final byte[] trailer = new byte[8];
+            putInt(trailer, 4, _checksum.getValue());
+            out.write(trailer);
+            out.flush();
+        }
+        finally {
+            _closed = true;
+            out.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        final int length = compress(_block, _blockLength, _compressed, 4);
+        if (length < _blockLength) {
+            putInt(_compressed, 0, length);
+            out.write(_compressed, 0, 4 + length);
+        }
+        else {
+            putInt(_compressed, 0, _blockLength | UNCOMPRESSED);
+            out.write(_compressed, 0, 4);
+            out.write(_block, 0, _blockLength);
+        }
+        _blockLength = 0;
+    }
+
+    /**
+     * Compress data to an LZ4 block.
+     *
+     * @return the length of the compressed block
+     */
+    private int compress(final byte[] source, final int length, final byte[] target, final int targetOffset) {
+        int output = targetOffset;
+        int anchor = 0;
+        if (length > MATCH_FIND_LIMIT) {
+            Arrays.fill(_hashTable, -1);
+            final int matchFindLimit = length - MATCH_FIND_LIMIT;
+            final int matchLimit = length - LAST_LITERALS;
+            int position = 0;
+            while (position < matchFindLimit) {
+                final int sequence = XXHash32.getInt(source, position);
+                final int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                final int reference = _hashTable[hash];
+                _hashTable[hash] = position;
+                if (reference < 0 || position - reference > MAX_OFFSET || XXHash32.getInt(source, reference) != sequence) {
+                    position++;
+                    continue;
+                }
+                int matchLength = MIN_MATCH;
+                while (position + matchLength < matchLimit && source[reference + matchLength] == source[position + matchLength]) {
+                    matchLength++;
+                }
+                output = writeSequence(source, anchor, position - anchor, position - reference, matchLength, target, output);
+                position += matchLength;
+                anchor = position;
+            }
+        }
+        // the last sequence only holds literals
+        return writeSequence(source, anchor, length - anchor, 0, 0, target, output) - targetOffset;
+    }
+
+    private static int writeSequence(final byte[] source, final int literals, final int literalLength, final int offset, final int matchLength, final byte[] target, final int position) {
+        int output = position;
+        final int token = output++;
+        target[token] = (byte) (Math.min(literalLength, 15) << 4);
+        output = writeLength(literalLength, target, output);
+        System.arraycopy(source, literals, target, output, literalLength);
+        output += literalLength;
+        if (matchLength > 0) {
+            target[output++] = (byte) offset;
+            target[output++] = (byte) (offset >> 8);
+            target[token] |= (byte) Math.min(matchLength - MIN_MATCH, 15);
+            output = writeLength(matchLength - MIN_MATCH, target, output);
+        }
+        return output;
+    }
+
+    private static int writeLength(final int length, final byte[] target, final int position) {
+        int output = position;
+        if (length >= 15) {
+            int remaining = length - 15;
+            for (; remaining >= 255; remaining -= 255) {
+                target[output++] = (byte) 255;
+            }
+            target[output++] = (byte) remaining;
+        }
+        return output;
+    }
+
+    static void putInt(final byte[] data, final int position, final int value) {
+        data[position] = (byte) value;
+        data[position + 1] = (byte) (value >> 8);
+        data[position + 2] = (byte) (value >> 16);
+        data[position + 3] = (byte) (value >> 24);
+    }
+}
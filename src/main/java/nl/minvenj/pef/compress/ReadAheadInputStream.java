@@ -0,0 +1,228 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.compress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads an input stream on a background thread, ahead of the consumer.
+ *
+ * This lets decompression run on its own core, overlapping with the processing of the data
+ * already read. A fixed number of chunks is passed back and forth between the threads, so the
+ * memory used is bounded and nothing is allocated while reading. Errors of the underlying stream
+ * are thrown to the consumer when it reaches the point where they occurred.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class ReadAheadInputStream extends InputStream {
+
+    private static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    private static final int DEFAULT_CHUNKS = 4;
+
+    private final InputStream _in;
+    private final BlockingQueue<Chunk> _free;
+    private final BlockingQueue<Chunk> _filled;
+    private final Thread _reader;
+    private Chunk _current;
+    private int _position;
+    private boolean _ended;
+    private boolean _closed;
+
+    /**
+     * Create a new stream with 4 chunks of 256 KiB, and start reading.
+     *
+     * @param in the stream to read ahead from
+     * @param name the name of the reading thread
+     */
+    public ReadAheadInputStream(final InputStream in, final String name) {
+        this(in, name, DEFAULT_CHUNKS, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Create a new stream and start reading.
+     *
+     * @param in the stream to read ahead from
+     * @param name the name of the reading thread
+     * @param chunks the number of chunks, at least 2
+     * @param chunkSize the size of each chunk in bytes
+     */
+    public ReadAheadInputStream(final InputStream in, final String name, final int chunks, final int chunkSize) {
+        if (chunks < 2) {
+            throw new IllegalArgumentException("at least two chunks are required");
+        }
+        _in = in;
+        _free = new ArrayBlockingQueue<>(chunks);
+        _filled = new ArrayBlockingQueue<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            _free.add(new Chunk(chunkSize));
+        }
+        _reader = new Thread(new Reader(), name);
+        _reader.setDaemon(true);
+        _reader.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!next()) {
+            return -1;
+        }
+        return _current._data[_position++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] data, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!next()) {
+            return -1;
+        }
+        final int count = Math.min(length, _current._length - _position);
+        System.arraycopy(_current._data, _position, data, offset, count);
+        _position += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (_closed || _ended) {
+            return 0;
+        }
+        if (_current != null && _position < _current._length) {
+            return _current._length - _position;
+        }
+        final Chunk next = _filled.peek();
+        return next == null ? 0 : next._length;
+    }
+
+    /**
+     * Stop reading ahead and close the underlying stream.
+     *
+     * @throws IOException when closing the underlying stream fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        _reader.interrupt();
+        try {
+            // the reader may be in a blocking read, which is not interruptible
+            _reader.join();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            _in.close();
+        }
+    }
+
+    /**
+     * Make sure the current chunk has data left, taking the next one when needed.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean next() throws IOException {
+        if (_closed) {
+            throw new IOException("stream closed");
+        }
+        while (!_ended && (_current == null || _position == _current._length)) {
+            if (_current != null) {
+                _free.add(_current);
+                _current = null;
+            }
+            final Chunk chunk;
+            try {
+                chunk = _filled.take();
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for input");
+            }
+            if (chunk._failure != null) {
+                _ended = true;
+                throw new IOException(chunk._failure.getMessage(), chunk._failure);
+            }
+            if (chunk._length < 0) {
+                _ended = true;
+            }
+            else {
+                _current = chunk;
+                _position = 0;
+            }
+        }
+        return !_ended;
+    }
+
+    private class Reader implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Chunk chunk = _free.take();
+                    try {
+                        chunk._length = fill(chunk._data);
+                    }
+                    catch (final IOException e) {
+                        chunk._failure = e;
+                    }
+                    _filled.put(chunk);
+                    if (chunk._length < 0 || chunk._failure != null) {
+                        return;
+                    }
+                }
+            }
+            catch (final InterruptedException e) {
+                // closed by the consumer
+            }
+        }
+
+        /**
+         * Fill a chunk completely, unless the stream ends.
+         *
+         * @return the number of bytes read, or -1 at the end of the stream
+         */
+        private int fill(final byte[] data) throws IOException {
+            int length = 0;
+            while (length < data.length) {
+                final int count = _in.read(data, length, data.length - length);
+                if (count < 0) {
+                    return length == 0 ? -1 : length;
+                }
+                length += count;
+            }
+            return length;
+        }
+    }
+
+    private static final class Chunk {
+
+        final byte[] _data;
+        int _length;
+        IOException _failure;
+
+        Chunk(final int size) {
+            _data = new byte[size];
+        }
+    }
+}
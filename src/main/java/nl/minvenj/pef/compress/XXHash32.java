@@ -0,0 +1,158 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.compress;
+
+/**
+ * The 32 bit xxHash checksum, as used by the LZ4 frame format.
+ *
+ * The checksum is computed incrementally: {@link #update(byte[], int, int)} can be called any
+ * number of times before {@link #getValue()}.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class XXHash32 {
+
+    private static final int PRIME1 = 0x9E3779B1;
+    private static final int PRIME2 = 0x85EBCA77;
+    private static final int PRIME3 = 0xC2B2AE3D;
+    private static final int PRIME4 = 0x27D4EB2F;
+    private static final int PRIME5 = 0x165667B1;
+
+    private final int _seed;
+    private final byte[] _pending = new byte[16];
+    private int _pendingLength;
+    private int _v1;
+    private int _v2;
+    private int _v3;
+    private int _v4;
+    private long _length;
+
+    /**
+     * Create a new checksum with seed 0.
+     */
+    public XXHash32() {
+        this(0);
+    }
+
+    /**
+     * Create a new checksum.
+     *
+     * @param seed the seed of the hash
+     */
+    public XXHash32(final int seed) {
+        _seed = seed;
+        reset();
+    }
+
+    /**
+     * Returns the checksum of a part of an array.
+     *
+     * @param data the array
+     * @param offset the offset of the part
+     * @param length the length of the part
+     * @return the checksum with seed 0
+     */
+    public static int hash(final byte[] data, final int offset, final int length) {
+        final XXHash32 hash = new XXHash32();
+        hash.update(data, offset, length);
+        return hash.getValue();
+    }
+
+    /**
+     * Start a new checksum.
+     */
+    public void reset() {
+        _v1 = _seed + PRIME1 + PRIME2;
+        _v2 = _seed + PRIME2;
+        _v3 = _seed;
+        _v4 = _seed - PRIME1;
+        _pendingLength = 0;
+        _length = 0;
+    }
+
+    /**
+     * Add data to the checksum.
+     *
+     * @param data the array holding the data
+     * @param offset the offset of the data
+     * @param length the length of the data
+     */
+    public void update(final byte[] data, final int offset, final int length) {
+        _length += length;
+        int position = offset;
+        final int end = offset + length;
+        if (_pendingLength > 0) {
+            final int count = Math.min(16 - _pendingLength, length);
+            System.arraycopy(data, position, _pending, _pendingLength, count);
+            _pendingLength += count;
+            position += count;
+            if (_pendingLength < 16) {
+                return;
+            }
+            stripe(_pending, 0);
+            _pendingLength = 0;
+        }
+        for (; position + 16 <= end; position += 16) {
+            stripe(data, position);
+        }
+        _pendingLength = end - position;
+        System.arraycopy(data, position, _pending, 0, _pendingLength);
+    }
+
+    /**
+     * Returns the checksum of the data added since the last reset.
+     *
+     * @return the checksum
+     */
+    public int getValue() {
+        int hash;
+        if (_length >= 16) {
+            hash = Integer.rotateLeft(_v1, 1) + Integer.rotateLeft(_v2, 7) + Integer.rotateLeft(_v3, 12) + Integer.rotateLeft(_v4, 18);
+        }
+        else {
+            hash = _seed + PRIME5;
+        }
+        hash += (int) _length;
+        int position = 0;
+        for (; position + 4 <= _pendingLength; position += 4) {
+            hash = Integer.rotateLeft(hash + getInt(_pending, position) * PRIME3, 17) * PRIME4;
+        }
+        for (; position < _pendingLength; position++) {
+            hash = Integer.rotateLeft(hash + (_pending[position] & 0xFF) * PRIME5, 11) * PRIME1;
+        }
+        hash ^= hash >>> 15;
+        hash *= PRIME2;
+        hash ^= hash >>> 13;
+        hash *= PRIME3;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private void stripe(final byte[] data, final int position) {
+        _v1 = round(_v1, getInt(data, position));
+        _v2 = round(_v2, getInt(data, position + 4));
+        _v3 = round(_v3, getInt(data, position + 8));
+        _v4 = round(_v4, getInt(data, position + 12));
+    }
+
+    private static int round(final int accumulator, final int input) {
+        return Integer.rotateLeft(accumulator + input * PRIME2, 13) * PRIME1;
+    }
+
+    static int getInt(final byte[] data, final int position) {
+        return data[position] & 0xFF | (data[position + 1] & 0xFF) << 8 | (data[position + 2] & 0xFF) << 16 | (data[position + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,517 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.generate;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+import nl.minvenj.pef.util.ChecksumCalc;
+
+/**
+ * Synthesizes PCAP and PCAPNG captures of ethernet frames, to measure and test with large inputs
+ * without using real traffic.
+ *
+ * The traffic is a weighted mix of the types in {@link Traffic}, over IPv4 and IPv6. Clients are
+ * drawn from a configurable number of addresses in 10.0.0.0/8 and 2001:db8::/64 and talk to a few
+ * servers in the documentation ranges. The frame sizes are spread evenly over a range: DNS
+ * responses carry a TXT answer that is padded to the chosen size, other traffic a random payload.
+ * DNS queries, NBNS and the headers determine the smallest frames. All checksums are correct.
+ *
+ * The output only depends on the settings, including the seed, so it can be generated again
+ * instead of being stored.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class CaptureGenerator {
+
+    /** The container format of the capture. */
+    public enum Format {
+        PCAP, PCAPNG
+    }
+
+    /** The kinds of traffic the capture consists of. */
+    public enum Traffic {
+        /** DNS over UDP port 53, queries and responses. */
+        DNS_UDP,
+        /** DNS over TCP port 53, one message per segment. */
+        DNS_TCP,
+        /** Multicast DNS, port 5353. */
+        MDNS,
+        /** Link-Local Multicast Name Resolution, port 5355. */
+        LLMNR,
+        /** NetBIOS Name Service, port 137, IPv4 only. */
+        NBNS,
+        /** UDP traffic that is not DNS, port 443. */
+        OTHER_UDP,
+        /** TCP traffic that is not DNS, port 80. */
+        OTHER_TCP
+    }
+
+    /** The smallest frame size that can be requested, the minimum ethernet frame without frame check sequence. */
+    public static final int MIN_FRAME_SIZE = 60;
+    /** The largest frame size that can be requested, a jumbo frame. */
+    public static final int MAX_FRAME_SIZE = 9014;
+
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final int SNAP_LENGTH = 65535;
+    private static final long START_SECONDS = 1500000000L;
+    private static final int SERVERS = 8;
+    private static final int TCP = 6;
+    private static final int UDP = 17;
+    private static final int IPV4_HEADER_LENGTH = 20;
+    private static final int IPV6_HEADER_LENGTH = 40;
+    private static final int UDP_HEADER_LENGTH = 8;
+    private static final int TCP_HEADER_LENGTH = 20;
+    private static final int ETHERNET_HEADER_LENGTH = 14;
+    private static final String[] DOMAINS = { "example", "test", "invalid", "local" };
+
+    private Format _format = Format.PCAP;
+    private ByteOrder _byteOrder = ByteOrder.LITTLE_ENDIAN;
+    private long _packets = 100000;
+    private long _seed = 1;
+    private final Map<Traffic, Integer> _mix = new EnumMap<>(Traffic.class);
+    private int _addresses = 1024;
+    private int _minSize = 80;
+    private int _maxSize = 512;
+    private int _ipv6Percentage = 25;
+
+    // generation state
+    private Random _random;
+    private ByteBuffer _frame;
+    private int _length;
+    private long _micros;
+
+    /**
+     * Create a generator with the default settings: 100000 packets in a little endian PCAP file,
+     * mostly DNS over UDP, from 1024 client addresses, of 80 to 512 bytes, a quarter of it IPv6.
+     */
+    public CaptureGenerator() {
+        _mix.put(Traffic.DNS_UDP, 60);
+        _mix.put(Traffic.DNS_TCP, 5);
+        _mix.put(Traffic.MDNS, 5);
+        _mix.put(Traffic.LLMNR, 3);
+        _mix.put(Traffic.NBNS, 2);
+        _mix.put(Traffic.OTHER_UDP, 10);
+        _mix.put(Traffic.OTHER_TCP, 15);
+    }
+
+    public CaptureGenerator format(final Format format) {
+        _format = format;
+        return this;
+    }
+
+    public CaptureGenerator byteOrder(final ByteOrder byteOrder) {
+        _byteOrder = byteOrder;
+        return this;
+    }
+
+    public CaptureGenerator packets(final long packets) {
+        if (packets < 0) {
+            throw new IllegalArgumentException("number of packets must not be negative: " + packets);
+        }
+        _packets = packets;
+        return this;
+    }
+
+    public CaptureGenerator seed(final long seed) {
+        _seed = seed;
+        return this;
+    }
+
+    /**
+     * Set the relative weight of a kind of traffic; 0 leaves it out.
+     *
+     * @param traffic the kind of traffic
+     * @param weight the weight, relative to the sum of all weights
+     * @return this
+     */
+    public CaptureGenerator weight(final Traffic traffic, final int weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("weight must not be negative: " + weight);
+        }
+        _mix.put(traffic, weight);
+        return this;
+    }
+
+    /**
+     * Set the number of distinct client addresses, per IP version.
+     *
+     * @param addresses the number of addresses, at least 1
+     * @return this
+     */
+    public CaptureGenerator addresses(final int addresses) {
+        if (addresses < 1 || addresses > 0xFFFFFE) {
+            throw new IllegalArgumentException("number of addresses must be in range [1, " + 0xFFFFFE + "]: " + addresses);
+        }
+        _addresses = addresses;
+        return this;
+    }
+
+    /**
+     * Set the range of frame sizes. Frames that can not be made this small get their smallest size.
+     *
+     * @param minSize the smallest frame size in bytes
+     * @param maxSize the largest frame size in bytes
+     * @return this
+     */
+    public CaptureGenerator sizes(final int minSize, final int maxSize) {
+        if (minSize < MIN_FRAME_SIZE || maxSize > MAX_FRAME_SIZE || minSize > maxSize) {
+            throw new IllegalArgumentException("frame sizes must be in range [" + MIN_FRAME_SIZE + ", " + MAX_FRAME_SIZE + "]: " + minSize + "-" + maxSize);
+        }
+        _minSize = minSize;
+        _maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Set the share of the traffic that uses IPv6; NBNS always uses IPv4.
+     *
+     * @param ipv6Percentage the percentage of IPv6 packets
+     * @return this
+     */
+    public CaptureGenerator ipv6Percentage(final int ipv6Percentage) {
+        if (ipv6Percentage < 0 || ipv6Percentage > 100) {
+            throw new IllegalArgumentException("IPv6 percentage must be in range [0, 100]: " + ipv6Percentage);
+        }
+        _ipv6Percentage = ipv6Percentage;
+        return this;
+    }
+
+    /**
+     * Generate a capture file.
+     *
+     * @param file the file to write
+     * @return the number of packets written
+     * @throws IOException when writing the file failed
+     */
+    public long generate(final File file) throws IOException {
+        try (final OutputStream output = new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024)) {
+            return generate(output);
+        }
+    }
+
+    /**
+     * Generate a capture to a stream.
+     *
+     * @param output the stream to write to, which is not closed
+     * @return the number of packets written
+     * @throws IOException when writing to the stream failed
+     */
+    public long generate(final OutputStream output) throws IOException {
+        int total = 0;
+        for (final int weight : _mix.values()) {
+            total += weight;
+        }
+        if (total == 0 && _packets > 0) {
+            throw new IllegalStateException("at least one kind of traffic must have a weight");
+        }
+        _random = new Random(_seed);
+        _frame = ByteBuffer.allocate(MAX_FRAME_SIZE + 4);
+        _length = _frame.capacity();
+        _micros = START_SECONDS * 1000000L;
+
+        final ByteBuffer header = ByteBuffer.allocate(64).order(_byteOrder);
+        if (_format == Format.PCAP) {
+            header.putInt(0xA1B2C3D4).putShort((short) 2).putShort((short) 4).putInt(0).putInt(0).putInt(SNAP_LENGTH).putInt(LINKTYPE_ETHERNET);
+        }
+        else {
+            // section header block without options, and one interface description block
+            header.putInt(0x0A0D0D0A).putInt(28).putInt(0x1A2B3C4D).putShort((short) 1).putShort((short) 0).putLong(-1L).putInt(28);
+            header.putInt(1).putInt(20).putShort((short) LINKTYPE_ETHERNET).putShort((short) 0).putInt(SNAP_LENGTH).putInt(20);
+        }
+        output.write(header.array(), 0, header.position());
+
+        for (long i = 0; i < _packets; i++) {
+            final int length = frame(select(total));
+            _micros += 1 + _random.nextInt(200);
+            writeRecord(output, header, length);
+        }
+        return _packets;
+    }
+
+    private void writeRecord(final OutputStream output, final ByteBuffer header, final int length) throws IOException {
+        header.clear();
+        if (_format == Format.PCAP) {
+            header.putInt((int) (_micros / 1000000L)).putInt((int) (_micros % 1000000L)).putInt(length).putInt(length);
+            output.write(header.array(), 0, header.position());
+            output.write(_frame.array(), 0, length);
+            return;
+        }
+        final int padding = -length & 3;
+        final int blockLength = 32 + length + padding;
+        header.putInt(6).putInt(blockLength).putInt(0).putInt((int) (_micros >>> 32)).putInt((int) _micros).putInt(length).putInt(length);
+        output.write(header.array(), 0, header.position());
+        // the padding is zeroed, as the frame buffer is cleared before each frame
+        output.write(_frame.array(), 0, length + padding);
+        header.clear();
+        header.putInt(blockLength);
+        output.write(header.array(), 0, header.position());
+    }
+
+    private Traffic select(final int total) {
+        int value = _random.nextInt(total);
+        for (final Map.Entry<Traffic, Integer> entry : _mix.entrySet()) {
+            value -= entry.getValue();
+            if (value < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("no traffic selected");
+    }
+
+    private int frame(final Traffic traffic) {
+        final boolean ipv6 = traffic != Traffic.NBNS && _random.nextInt(100) < _ipv6Percentage;
+        final int client = _random.nextInt(_addresses) + 1;
+        final int server = _random.nextInt(SERVERS) + 1;
+        final int size = _minSize + _random.nextInt(_maxSize - _minSize + 1);
+        final boolean response = _random.nextBoolean();
+        final int ephemeral = 49152 + _random.nextInt(16384);
+
+        // clear what the previous frame used, including the padding of a PCAPNG block
+        Arrays.fill(_frame.array(), 0, Math.min(_length + 4, _frame.capacity()), (byte) 0);
+        _frame.clear();
+        _frame.position(ETHERNET_HEADER_LENGTH + (ipv6 ? IPV6_HEADER_LENGTH : IPV4_HEADER_LENGTH));
+        final int transport = _frame.position();
+        final boolean tcp = traffic == Traffic.DNS_TCP || traffic == Traffic.OTHER_TCP;
+        _frame.position(transport + (tcp ? TCP_HEADER_LENGTH : UDP_HEADER_LENGTH));
+        final int payload = _frame.position();
+        final int available = size - payload;
+
+        byte[] destination;
+        int clientPort = ephemeral;
+        int serverPort;
+        boolean multicast = false;
+        switch (traffic) {
+            case DNS_UDP:
+            case DNS_TCP:
+                serverPort = 53;
+                dns(tcp, response, available, name(client, 2 + _random.nextInt(2)), ipv6 ? 28 : 1);
+                destination = server(ipv6, 53, server);
+                break;
+            case MDNS:
+                serverPort = 5353;
+                clientPort = 5353;
+                multicast = true;
+                dns(false, response, available, name(client, 1) + ".local", 255);
+                destination = ipv6 ? new byte[] { (byte) 0xFF, 0x02, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xFB } : new byte[] { (byte) 224, 0, 0, (byte) 251 };
+                break;
+            case LLMNR:
+                serverPort = 5355;
+                multicast = !response;
+                dns(false, response, available, name(client, 1), ipv6 ? 28 : 1);
+                destination = ipv6 ? new byte[] { (byte) 0xFF, 0x02, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 3 } : new byte[] { (byte) 224, 0, 0, (byte) 252 };
+                if (response) {
+                    destination = client(ipv6, (client % SERVERS) + 1 + 0x100);
+                }
+                break;
+            case NBNS:
+                serverPort = 137;
+                clientPort = 137;
+                nbns(response, client);
+                destination = server(false, 137, server);
+                break;
+            case OTHER_UDP:
+                serverPort = 443;
+                random(Math.max(1, available));
+                destination = server(ipv6, 443, server);
+                break;
+            default:
+                serverPort = 80;
+                random(Math.max(1, available));
+                destination = server(ipv6, 80, server);
+                break;
+        }
+        final int end = _frame.position();
+
+        byte[] source = client(ipv6, client);
+        int sourcePort = clientPort;
+        int destinationPort = serverPort;
+        if (response && !multicast) {
+            final byte[] address = source;
+            source = destination;
+            destination = address;
+            sourcePort = serverPort;
+            destinationPort = clientPort;
+        }
+
+        if (tcp) {
+            tcpHeader(transport, sourcePort, destinationPort);
+        }
+        else {
+            _frame.putShort(transport, (short) sourcePort).putShort(transport + 2, (short) destinationPort).putShort(transport + 4, (short) (end - transport));
+        }
+        final int protocol = tcp ? TCP : UDP;
+        if (ipv6) {
+            ipv6Header(source, destination, protocol, end - transport);
+        }
+        else {
+            ipv4Header(source, destination, protocol, end - ETHERNET_HEADER_LENGTH);
+        }
+        transportChecksum(ipv6, source, destination, protocol, transport, end, tcp ? 16 : 6);
+        ethernetHeader(destination, multicast, ipv6, client, response);
+        _length = end;
+        return end;
+    }
+
+    private void dns(final boolean tcp, final boolean response, final int available, final String name, final int type) {
+        final int start = _frame.position();
+        if (tcp) {
+            _frame.putShort((short) 0);
+        }
+        final int message = _frame.position();
+        _frame.putShort((short) _random.nextInt(0x10000));
+        _frame.putShort((short) (response ? 0x8180 : 0x0100));
+        _frame.putShort((short) 1).putShort((short) (response ? 1 : 0)).putShort((short) 0).putShort((short) 0);
+        putName(name);
+        _frame.putShort((short) type).putShort((short) 1);
+        if (response) {
+            // a TXT answer referring to the question name, padded to the requested size
+            final int rdata = Math.max(1, Math.min(0xFFFF, available - (_frame.position() - start) - 12));
+            _frame.putShort((short) 0xC00C).putShort((short) 16).putShort((short) 1).putInt(300).putShort((short) rdata);
+            _frame.put((byte) (rdata - 1));
+            for (int i = 1; i < rdata; i++) {
+                _frame.put((byte) ('a' + _random.nextInt(26)));
+            }
+        }
+        if (tcp) {
+            _frame.putShort(start, (short) (_frame.position() - message));
+        }
+    }
+
+    private void nbns(final boolean response, final int client) {
+        _frame.putShort((short) _random.nextInt(0x10000));
+        _frame.putShort((short) (response ? 0x8500 : 0x0110));
+        _frame.putShort((short) (response ? 0 : 1)).putShort((short) (response ? 1 : 0)).putShort((short) 0).putShort((short) 0);
+        // a NetBIOS name is encoded as 32 letters A to P, two per byte of the padded name
+        final String name = String.format("HOST%-11d", client).substring(0, 15) + " ";
+        _frame.put((byte) 32);
+        for (final byte b : name.getBytes(StandardCharsets.US_ASCII)) {
+            _frame.put((byte) ('A' + ((b >> 4) & 0x0F))).put((byte) ('A' + (b & 0x0F)));
+        }
+        _frame.put((byte) 0);
+        _frame.putShort((short) 0x20).putShort((short) 1);
+        if (response) {
+            _frame.putInt(300000).putShort((short) 6).putShort((short) 0);
+            _frame.put(client(false, client));
+        }
+    }
+
+    private String name(final int client, final int labels) {
+        final StringBuilder name = new StringBuilder("host").append(client % 4096);
+        for (int i = 1; i < labels; i++) {
+            name.append('.').append(DOMAINS[(client + i) % DOMAINS.length]);
+        }
+        return name.toString();
+    }
+
+    private void putName(final String name) {
+        for (final String label : name.split("\\.")) {
+            _frame.put((byte) label.length()).put(label.getBytes(StandardCharsets.US_ASCII));
+        }
+        _frame.put((byte) 0);
+    }
+
+    private void random(final int length) {
+        final byte[] payload = new byte[Math.min(length, _frame.remaining() - 4)];
+        _random.nextBytes(payload);
+        _frame.put(payload);
+    }
+
+    private byte[] client(final boolean ipv6, final int index) {
+        if (ipv6) {
+            return new byte[] { 0x20, 0x01, 0x0D, (byte) 0xB8, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) (index >>> 16), (byte) (index >>> 8), (byte) index };
+        }
+        return new byte[] { 10, (byte) (index >>> 16), (byte) (index >>> 8), (byte) index };
+    }
+
+    private byte[] server(final boolean ipv6, final int port, final int index) {
+        if (ipv6) {
+            return new byte[] { 0x20, 0x01, 0x0D, (byte) 0xB8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) (port >>> 8), (byte) (port + index) };
+        }
+        return new byte[] { (byte) (port == 53 ? 192 : 198), (byte) (port == 53 ? 0 : 51), (byte) (port == 53 ? 2 : 100), (byte) (port % 200 + index) };
+    }
+
+    private void ethernetHeader(final byte[] destination, final boolean multicast, final boolean ipv6, final int client, final boolean response) {
+        final byte[] clientMac = { 0x02, 0, 0, (byte) (client >>> 16), (byte) (client >>> 8), (byte) client };
+        final byte[] gatewayMac = { 0x02, 0x53, 0, 0, 0, 1 };
+        byte[] destinationMac = response ? clientMac : gatewayMac;
+        final byte[] sourceMac = response && !multicast ? gatewayMac : clientMac;
+        if (multicast) {
+            destinationMac = ipv6
+                ? new byte[] { 0x33, 0x33, destination[12], destination[13], destination[14], destination[15] }
+                : new byte[] { 0x01, 0x00, 0x5E, (byte) (destination[1] & 0x7F), destination[2], destination[3] };
+        }
+        _frame.position(0);
+        _frame.put(destinationMac).put(sourceMac).putShort((short) (ipv6 ? 0x86DD : 0x0800));
+    }
+
+    private void ipv4Header(final byte[] source, final byte[] destination, final int protocol, final int totalLength) {
+        final int start = ETHERNET_HEADER_LENGTH;
+        _frame.position(start);
+        _frame.put((byte) 0x45).put((byte) 0).putShort((short) totalLength).putShort((short) _random.nextInt(0x10000)).putShort((short) 0x4000);
+        _frame.put((byte) 64).put((byte) protocol).putShort((short) 0).put(source).put(destination);
+        final byte[] checksum = checksum(_frame.array(), start, IPV4_HEADER_LENGTH, new byte[0]);
+        _frame.put(start + 10, checksum[0]).put(start + 11, checksum[1]);
+    }
+
+    private void ipv6Header(final byte[] source, final byte[] destination, final int protocol, final int payloadLength) {
+        _frame.position(ETHERNET_HEADER_LENGTH);
+        _frame.putInt(0x60000000).putShort((short) payloadLength).put((byte) protocol).put((byte) 64).put(source).put(destination);
+    }
+
+    private void tcpHeader(final int start, final int sourcePort, final int destinationPort) {
+        _frame.position(start);
+        _frame.putShort((short) sourcePort).putShort((short) destinationPort).putInt(_random.nextInt()).putInt(_random.nextInt());
+        // data offset 5, PSH and ACK
+        _frame.put((byte) 0x50).put((byte) 0x18).putShort((short) 0xFFFF).putShort((short) 0).putShort((short) 0);
+    }
+
+    private void transportChecksum(final boolean ipv6, final byte[] source, final byte[] destination, final int protocol, final int start, final int end, final int checksumOffset) {
+        final int length = end - start;
+        final ByteBuffer pseudoHeader = ByteBuffer.allocate(ipv6 ? 40 : 12);
+        pseudoHeader.put(source).put(destination);
+        if (ipv6) {
+            pseudoHeader.putInt(length).putInt(protocol);
+        }
+        else {
+            pseudoHeader.put((byte) 0).put((byte) protocol).putShort((short) length);
+        }
+        final byte[] checksum = checksum(_frame.array(), start, length, pseudoHeader.array());
+        if (protocol == UDP && checksum[0] == 0 && checksum[1] == 0) {
+            // a computed UDP checksum of 0 is sent as all ones, as 0 means no checksum
+            checksum[0] = (byte) 0xFF;
+            checksum[1] = (byte) 0xFF;
+        }
+        _frame.put(start + checksumOffset, checksum[0]).put(start + checksumOffset + 1, checksum[1]);
+    }
+
+    private static byte[] checksum(final byte[] data, final int offset, final int length, final byte[] prefix) {
+        final byte[] checksumData = new byte[prefix.length + length];
+        System.arraycopy(prefix, 0, checksumData, 0, prefix.length);
+        System.arraycopy(data, offset, checksumData, prefix.length, length);
+        return ChecksumCalc.calculateInternetChecksum(checksumData);
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.generate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.internal.HelpScreenException;
+import nl.minvenj.pef.generate.CaptureGenerator.Format;
+import nl.minvenj.pef.generate.CaptureGenerator.Traffic;
+
+/**
+ * A command line tool to generate synthetic captures with a {@link CaptureGenerator}.
+ *
+ * Run with -h for help.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class GeneratorTool {
+
+    private GeneratorTool() {
+    }
+
+    public static void main(final String[] args) {
+        final ArgumentParser parser = ArgumentParsers.newArgumentParser(GeneratorTool.class.getSimpleName())
+            .description("Tool to generate synthetic PCAP or PCAPNG files for benchmarks and tests.");
+
+        parser.addArgument("-o", "--outfile")
+            .metavar("outfile")
+            .type(String.class)
+            .required(true)
+            .help("the capture file to create");
+        parser.addArgument("-f", "--format")
+            .choices("pcap", "pcapng")
+            .setDefault("pcap")
+            .help("the format of the capture (default: pcap)");
+        parser.addArgument("-b", "--big-endian")
+            .action(Arguments.storeTrue())
+            .help("write the capture in big endian instead of little endian byte order");
+        parser.addArgument("-n", "--packets")
+            .type(Long.class)
+            .setDefault(100000L)
+            .help("the number of packets (default: 100000)");
+        parser.addArgument("--seed")
+            .type(Long.class)
+            .setDefault(1L)
+            .help("the seed of the random generator, the same seed generates the same capture (default: 1)");
+        parser.addArgument("--mix")
+            .metavar("type=weight,...")
+            .help("the relative weights of the kinds of traffic, of dns_udp, dns_tcp, mdns, llmnr, nbns, other_udp and other_tcp "
+                  + "(default: dns_udp=60,dns_tcp=5,mdns=5,llmnr=3,nbns=2,other_udp=10,other_tcp=15); types that are not given keep their default");
+        parser.addArgument("-a", "--addresses")
+            .type(Integer.class)
+            .setDefault(1024)
+            .help("the number of distinct client addresses per IP version (default: 1024)");
+        parser.addArgument("--min-size")
+            .type(Integer.class)
+            .setDefault(80)
+            .help("the smallest frame size in bytes (default: 80)");
+        parser.addArgument("--max-size")
+            .type(Integer.class)
+            .setDefault(512)
+            .help("the largest frame size in bytes (default: 512)");
+        parser.addArgument("-6", "--ipv6")
+            .metavar("percentage")
+            .type(Integer.class)
+            .setDefault(25)
+            .help("the percentage of packets using IPv6 (default: 25)");
+
+        try {
+            final Namespace cmdResult = parser.parseArgs(args);
+            final CaptureGenerator generator = new CaptureGenerator()
+                .format(Format.valueOf(cmdResult.getString("format").toUpperCase(Locale.ROOT)))
+                .byteOrder(cmdResult.getBoolean("big_endian") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN)
+                .packets(cmdResult.getLong("packets"))
+                .seed(cmdResult.getLong("seed"))
+                .addresses(cmdResult.getInt("addresses"))
+                .sizes(cmdResult.getInt("min_size"), cmdResult.getInt("max_size"))
+                .ipv6Percentage(cmdResult.getInt("ipv6"));
+            if (cmdResult.getString("mix") != null) {
+                for (final String entry : cmdResult.getString("mix").split(",")) {
+                    final String[] parts = entry.split("=");
+                    if (parts.length != 2) {
+                        throw new ArgumentParserException("invalid mix entry, expected type=weight: " + entry, parser);
+                    }
+                    generator.weight(Traffic.valueOf(parts[0].trim().toUpperCase(Locale.ROOT)), Integer.parseInt(parts[1].trim()));
+                }
+            }
+            final File outFile = new File(cmdResult.getString("outfile"));
+            final long packets = generator.generate(outFile);
+            System.out.println("wrote " + packets + " packets, " + outFile.length() + " bytes to " + outFile);
+        }
+        catch (final HelpScreenException hse) {
+            // this is the normal behaviour, throwing exception when asking for help
+        }
+        catch (final ArgumentParserException ape) {
+            System.err.println(parser.formatUsage() + GeneratorTool.class.getSimpleName() + ": error: " + ape.getMessage());
+        }
+        catch (final IllegalArgumentException iae) {
+            System.err.println(parser.formatUsage() + GeneratorTool.class.getSimpleName() + ": error: " + iae.getMessage());
+        }
+        catch (final IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+}
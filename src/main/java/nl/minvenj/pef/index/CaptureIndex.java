@@ -0,0 +1,262 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.index;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A memory-mapped index of the records of a PCAP or PCAPNG file.
+ *
+ * The index is a sidecar file next to the capture, written while the capture is pseudonymized
+ * (see {@link CaptureIndexWriter}). It holds a fixed size entry per record, so records can be
+ * found without parsing the capture again: to resume an interrupted run, to process only the
+ * DNS records again, or to split a capture into parts that are processed on different machines.
+ *
+ * The file starts with a header of 64 bytes, followed by the entries of 32 bytes each, all little endian:
+ * <ul>
+ *     <li>the offset of the record in the capture file (8 bytes)</li>
+ *     <li>the timestamp of the record (8 bytes): for PCAP in nanoseconds since the epoch, for PCAPNG the
+ *     timestamp of an enhanced packet block, in the resolution of its interface (microseconds by default),
+ *     and -1 for other blocks</li>
+ *     <li>the length of the record (4 bytes) and of the frame it holds (4 bytes)</li>
+ *     <li>the flow hash of the frame, see {@link nl.minvenj.pef.pipeline.FlowHash} (4 bytes)</li>
+ *     <li>flags (4 bytes): whether the record holds a packet, and whether it is DNS traffic</li>
+ * </ul>
+ * The header records the length and modification time of the capture file, so a stale index is detected.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class CaptureIndex implements Closeable {
+
+    /** The extension of index files, appended to the name of the capture file. */
+    public static final String EXTENSION = ".pefidx";
+
+    public static final int FORMAT_PCAP = 0;
+    public static final int FORMAT_PCAPNG = 1;
+
+    public static final int FLAG_PACKET = 1;
+    public static final int FLAG_DNS = 2;
+
+    // "PEFINDEX" in ASCII, little endian
+    static final long MAGIC = 0x5845444E49464550L;
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 64;
+    static final int ENTRY_LENGTH = 32;
+
+    // each mapping holds 2^25 entries, as a mapping is limited to 2 GiB
+    private static final int ENTRIES_PER_MAP_SHIFT = 25;
+    private static final long ENTRIES_PER_MAP = 1L << ENTRIES_PER_MAP_SHIFT;
+
+    private final FileChannel _channel;
+    private final ByteBuffer[] _maps;
+    private final int _format;
+    private final long _captureLength;
+    private final long _captureModified;
+    private final long _size;
+    private final boolean _complete;
+
+    private CaptureIndex(final FileChannel channel) throws IOException {
+        _channel = channel;
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        int count = 0;
+        while (header.hasRemaining() && count >= 0) {
+            count = channel.read(header, header.position());
+        }
+        if (header.hasRemaining() || header.getLong(0) != MAGIC || header.getInt(8) != VERSION) {
+            throw new IOException("not a capture index of version " + VERSION);
+        }
+        _format = header.getInt(12);
+        _captureLength = header.getLong(16);
+        _captureModified = header.getLong(24);
+        _complete = header.getInt(40) == 1;
+        // an index that was not closed properly still holds the entries that were written
+        _size = _complete ? header.getLong(32) : (channel.size() - HEADER_LENGTH) / ENTRY_LENGTH;
+        if (HEADER_LENGTH + _size * ENTRY_LENGTH > channel.size()) {
+            throw new IOException("capture index is truncated");
+        }
+        _maps = new ByteBuffer[(int) ((_size + ENTRIES_PER_MAP - 1) / ENTRIES_PER_MAP)];
+        for (int i = 0; i < _maps.length; i++) {
+            final long entries = Math.min(ENTRIES_PER_MAP, _size - i * ENTRIES_PER_MAP);
+            _maps[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH + i * ENTRIES_PER_MAP * ENTRY_LENGTH, entries * ENTRY_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * Open an index file.
+     *
+     * @param indexFile the index file
+     * @return the index, to be closed by the caller
+     * @throws IOException when the file can not be read or is not an index
+     */
+    public static CaptureIndex open(final File indexFile) throws IOException {
+        final FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+        try {
+            return new CaptureIndex(channel);
+        }
+        catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the sidecar index file of a capture file.
+     *
+     * @param capture the capture file
+     * @return the index file next to it
+     */
+    public static File sidecar(final File capture) {
+        return new File(capture.getPath() + EXTENSION);
+    }
+
+    /**
+     * Returns whether this index describes the current contents of a capture file, judged by its
+     * length and modification time.
+     *
+     * @param capture the capture file
+     * @return true if the capture file has not changed since it was indexed
+     */
+    public boolean isCurrent(final File capture) {
+        return capture.length() == _captureLength && capture.lastModified() == _captureModified;
+    }
+
+    /**
+     * Returns whether all records of the capture file were indexed.
+     *
+     * @return true if the index is complete, false if indexing was interrupted
+     */
+    public boolean isComplete() {
+        return _complete;
+    }
+
+    /**
+     * Returns the format of the indexed capture file.
+     *
+     * @return {@link #FORMAT_PCAP} or {@link #FORMAT_PCAPNG}
+     */
+    public int getFormat() {
+        return _format;
+    }
+
+    /**
+     * Returns the number of records in the index.
+     *
+     * @return the number of entries
+     */
+    public long size() {
+        return _size;
+    }
+
+    public long getOffset(final long entry) {
+        return map(entry).getLong(position(entry));
+    }
+
+    public long getTimestamp(final long entry) {
+        return map(entry).getLong(position(entry) + 8);
+    }
+
+    public int getLength(final long entry) {
+        return map(entry).getInt(position(entry) + 16);
+    }
+
+    public int getFrameLength(final long entry) {
+        return map(entry).getInt(position(entry) + 20);
+    }
+
+    public int getFlowHash(final long entry) {
+        return map(entry).getInt(position(entry) + 24);
+    }
+
+    public boolean isPacket(final long entry) {
+        return (map(entry).getInt(position(entry) + 28) & FLAG_PACKET) != 0;
+    }
+
+    public boolean isDns(final long entry) {
+        return (map(entry).getInt(position(entry) + 28) & FLAG_DNS) != 0;
+    }
+
+    /**
+     * Returns the offset in the capture file directly after the last indexed record.
+     *
+     * @return the end offset of the indexed records, or -1 when the index is empty
+     */
+    public long getEndOffset() {
+        return _size == 0 ? -1 : getOffset(_size - 1) + getLength(_size - 1);
+    }
+
+    /**
+     * Find the first record that starts at or after an offset in the capture file.
+     *
+     * @param offset the offset in the capture file
+     * @return the entry of the record, or {@link #size()} when no record starts at or after the offset
+     */
+    public long find(final long offset) {
+        long low = 0;
+        long high = _size;
+        while (low < high) {
+            final long middle = (low + high) >>> 1;
+            if (getOffset(middle) < offset) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Split the records into parts of about the same size in bytes, to process them separately.
+     *
+     * @param parts the number of parts
+     * @return the first entry of each part, followed by {@link #size()}; parts can be empty
+     */
+    public long[] split(final int parts) {
+        final long[] bounds = new long[parts + 1];
+        if (_size == 0) {
+            return bounds;
+        }
+        final long start = getOffset(0);
+        final long length = getEndOffset() - start;
+        for (int i = 1; i < parts; i++) {
+            bounds[i] = find(start + length * i / parts);
+        }
+        bounds[parts] = _size;
+        return bounds;
+    }
+
+    @Override
+    public void close() throws IOException {
+        _channel.close();
+    }
+
+    private ByteBuffer map(final long entry) {
+        if (entry < 0 || entry >= _size) {
+            throw new IndexOutOfBoundsException("entry " + entry + " of " + _size);
+        }
+        return _maps[(int) (entry >>> ENTRIES_PER_MAP_SHIFT)];
+    }
+
+    private static int position(final long entry) {
+        return (int) (entry & (ENTRIES_PER_MAP - 1)) * ENTRY_LENGTH;
+    }
+}
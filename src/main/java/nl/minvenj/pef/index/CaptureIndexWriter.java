@@ -0,0 +1,215 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.index;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import nl.minvenj.pef.pipeline.FlowHash;
+import nl.minvenj.pef.serialize.constraint.CaptureFilter;
+
+/**
+ * Writes the index of a capture file while its records are read, see {@link CaptureIndex}.
+ *
+ * The records must be added in the order of the capture file, each with the bytes as they are
+ * in the input, before they are pseudonymized. For PCAPNG every block is added, including the
+ * blocks that do not hold a packet, so the index covers the file without gaps.
+ *
+ * This class is not thread safe.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class CaptureIndexWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int PCAPNG_SECTION_HEADER = 0x0A0D0D0A;
+    private static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final int PCAPNG_ENHANCED_PACKET = 6;
+    private static final int PCAPNG_SIMPLE_PACKET = 3;
+
+    private final FileChannel _channel;
+    private final ByteBuffer _buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer _header = ByteBuffer.allocate(CaptureIndex.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    private final int _format;
+    private final long _captureLength;
+    private final long _captureModified;
+    private ByteOrder _order;
+    private boolean _nanoseconds;
+    private long _entries;
+    private boolean _complete;
+    private boolean _closed;
+
+    private CaptureIndexWriter(final File indexFile, final File capture, final int format, final ByteOrder order) throws IOException {
+        _format = format;
+        _order = order;
+        _captureLength = capture.length();
+        _captureModified = capture.lastModified();
+        _channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        writeHeader();
+        _channel.position(CaptureIndex.HEADER_LENGTH);
+    }
+
+    /**
+     * Create the index of a PCAP file.
+     *
+     * @param indexFile the index file to create or overwrite
+     * @param capture the PCAP file that is indexed
+     * @param pcapHeader the global header of the PCAP file, which determines its byte order and time resolution
+     * @return the new writer
+     * @throws IOException when the index file could not be created
+     */
+    public static CaptureIndexWriter forPCAP(final File indexFile, final File capture, final byte[] pcapHeader) throws IOException {
+        final int magic = getInt(pcapHeader, 0, ByteOrder.BIG_ENDIAN);
+        final ByteOrder order = magic == 0xA1B2C3D4 || magic == 0xA1B23C4D ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        final CaptureIndexWriter writer = new CaptureIndexWriter(indexFile, capture, CaptureIndex.FORMAT_PCAP, order);
+        writer._nanoseconds = magic == 0xA1B23C4D || magic == 0x4D3CB2A1;
+        return writer;
+    }
+
+    /**
+     * Create the index of a PCAPNG file.
+     *
+     * @param indexFile the index file to create or overwrite
+     * @param capture the PCAPNG file that is indexed
+     * @return the new writer
+     * @throws IOException when the index file could not be created
+     */
+    public static CaptureIndexWriter forPCAPNG(final File indexFile, final File capture) throws IOException {
+        return new CaptureIndexWriter(indexFile, capture, CaptureIndex.FORMAT_PCAPNG, null);
+    }
+
+    /**
+     * Add the next record of the capture file to the index.
+     *
+     * @param offset the offset of the record in the capture file
+     * @param data the array holding the record, as it is in the capture file
+     * @param length the length of the record
+     * @param frameOffset the offset of the frame in the array
+     * @param frameLength the length of the frame, 0 for PCAPNG blocks without a packet
+     * @throws IOException when writing to the index failed
+     */
+    public void add(final long offset, final byte[] data, final int length, final int frameOffset, final int frameLength) throws IOException {
+        long timestamp = -1;
+        int flags = 0;
+        if (_format == CaptureIndex.FORMAT_PCAP) {
+            final long seconds = getInt(data, 0, _order) & 0xFFFFFFFFL;
+            final long fraction = getInt(data, 4, _order) & 0xFFFFFFFFL;
+            timestamp = seconds * 1000000000L + (_nanoseconds ? fraction : fraction * 1000);
+            flags |= CaptureIndex.FLAG_PACKET;
+        }
+        else {
+            if (getInt(data, 0, ByteOrder.BIG_ENDIAN) == PCAPNG_SECTION_HEADER) {
+                _order = getInt(data, 8, ByteOrder.BIG_ENDIAN) == PCAPNG_BYTE_ORDER_MAGIC ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            }
+            final int type = _order == null ? -1 : getInt(data, 0, _order);
+            if (type == PCAPNG_ENHANCED_PACKET) {
+                timestamp = (getInt(data, 12, _order) & 0xFFFFFFFFL) << 32 | getInt(data, 16, _order) & 0xFFFFFFFFL;
+            }
+            if (type == PCAPNG_ENHANCED_PACKET || type == PCAPNG_SIMPLE_PACKET) {
+                flags |= CaptureIndex.FLAG_PACKET;
+            }
+        }
+        int flowHash = 0;
+        if ((flags & CaptureIndex.FLAG_PACKET) != 0) {
+            flowHash = FlowHash.hash(data, frameOffset, frameLength);
+            if (isDns(FlowHash.ports(data, frameOffset, frameLength))) {
+                flags |= CaptureIndex.FLAG_DNS;
+            }
+        }
+
+        if (_buffer.remaining() < CaptureIndex.ENTRY_LENGTH) {
+            writeBuffer();
+        }
+        _buffer.putLong(offset).putLong(timestamp).putInt(length).putInt(frameLength).putInt(flowHash).putInt(flags);
+        _entries++;
+    }
+
+    /**
+     * Returns the number of records added so far.
+     *
+     * @return the number of records
+     */
+    public long getEntries() {
+        return _entries;
+    }
+
+    /**
+     * Mark the index as complete: all records of the capture file have been added.
+     *
+     * An index that is closed without being finished can still be used to resume, but not as a
+     * complete description of the capture file.
+     */
+    public void finish() {
+        _complete = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        try {
+            writeBuffer();
+            writeHeader();
+        }
+        finally {
+            _channel.close();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        _header.clear();
+        _header.putLong(CaptureIndex.MAGIC).putInt(CaptureIndex.VERSION).putInt(_format);
+        _header.putLong(_captureLength).putLong(_captureModified).putLong(_entries).putInt(_complete ? 1 : 0);
+        _header.position(CaptureIndex.HEADER_LENGTH);
+        _header.flip();
+        long position = 0;
+        while (_header.hasRemaining()) {
+            position += _channel.write(_header, position);
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        _buffer.flip();
+        while (_buffer.hasRemaining()) {
+            _channel.write(_buffer);
+        }
+        _buffer.clear();
+    }
+
+    private static boolean isDns(final long ports) {
+        if (ports < 0) {
+            return false;
+        }
+        for (final int port : CaptureFilter.DNS_PORTS) {
+            if (ports >>> 16 == port || (ports & 0xFFFF) == port) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getInt(final byte[] data, final int offset, final ByteOrder order) {
+        final int value = (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 | (data[offset + 2] & 0xFF) << 8 | data[offset + 3] & 0xFF;
+        return order == ByteOrder.BIG_ENDIAN ? value : Integer.reverseBytes(value);
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.ip;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import io.parsingdata.metal.data.ParseResult;
+import nl.minvenj.pef.metal.packet.internet.ExtensionHeaderChain;
+import nl.minvenj.pef.metal.packet.internet.IPv4;
+import nl.minvenj.pef.metal.packet.internet.IPv6;
+import nl.minvenj.pef.metal.packet.internet.Protocol;
+import nl.minvenj.pef.metal.stream.ArrayByteStream;
+import nl.minvenj.pef.metrics.Counter;
+import nl.minvenj.pef.metrics.Instrumented;
+import nl.minvenj.pef.metrics.MetricsRegistry;
+import nl.minvenj.pef.serialize.constraint.Constraints;
+import nl.minvenj.pef.tcp.DNSStreamTracker;
+import nl.minvenj.pef.util.Util;
+
+/**
+ * Recognizes the fragments of IP datagrams carrying DNS over UDP, such as large EDNS0 responses.
+ *
+ * Whether a datagram carries DNS is decided on the datagram reassembled by a {@link FragmentReassembler},
+ * by parsing it like any other packet. Until then its fragments are undecided, and are to be held back
+ * by the caller until the {@link DecisionListener} is told the decision. Only a datagram of which the
+ * first fragment shows that it does not carry UDP is decided before it is complete.
+ *
+ * A datagram that is removed from the reassembler before it is complete, after the timeout or to make
+ * room, is decided by its first fragment: it is taken as DNS when the first fragment holds a UDP header
+ * followed by a plausible DNS header. When its first fragment was not seen, it is taken as DNS, so its
+ * addresses are not left unchanged. The fragments decided this way are counted and logged, so they do
+ * not go unnoticed. The caller can decide a datagram the same way earlier, to bound what it holds back.
+ *
+ * A tracker must only be used by one thread at a time, seeing the frames in capture order.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class DNSFragmentTracker implements DatagramListener, Instrumented {
+
+    /** Returned by {@link #track} for a frame that is not a fragment of a datagram carrying DNS. */
+    public static final int OTHER = -1;
+
+    /** Returned by {@link #track} for a fragment of a datagram carrying DNS. */
+    public static final int DNS = -2;
+
+    private static final Logger LOGGER = Logger.getLogger(DNSFragmentTracker.class.getName());
+
+    private static final int UDP_HEADER_LENGTH = 8;
+    private static final int DNS_HEADER_LENGTH = 12;
+
+    private static final byte UNKNOWN = 0;
+    private static final byte DNS_DATAGRAM = 1;
+    private static final byte OTHER_DATAGRAM = 2;
+
+    private final FragmentReassembler _reassembler;
+
+    // per datagram: the decision, what the first fragment suggests and the number of undecided fragments
+    private final byte[] _datagrams;
+    private final byte[] _firstFragments;
+    private final int[] _undecided;
+
+    private DecisionListener _listener;
+    private long _dnsDatagrams;
+    private long _revised;
+    private long _undecidedFragments;
+    private long _undecidedDatagrams;
+    private Counter _undecidedCounter;
+
+    /**
+     * Create a new tracker with the default limits of {@link FragmentReassembler}.
+     */
+    public DNSFragmentTracker() {
+        this(FragmentReassembler.DEFAULT_MAX_DATAGRAMS, FragmentReassembler.DEFAULT_BUFFER_SIZE, FragmentReassembler.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Create a new tracker.
+     *
+     * @param maxDatagrams the maximum number of datagrams tracked
+     * @param bufferSize the amount of direct memory for fragments of incomplete datagrams, in bytes
+     * @param timeout the number of frames after which a datagram that was not seen is removed
+     */
+    public DNSFragmentTracker(final int maxDatagrams, final long bufferSize, final long timeout) {
+        _datagrams = new byte[maxDatagrams];
+        _firstFragments = new byte[maxDatagrams];
+        _undecided = new int[maxDatagrams];
+        _reassembler = new FragmentReassembler(this, maxDatagrams, bufferSize, timeout);
+    }
+
+    /**
+     * Set the listener told about the decisions on undecided datagrams.
+     *
+     * @param listener the listener, or null to not tell anyone
+     */
+    public void setDecisionListener(final DecisionListener listener) {
+        _listener = listener;
+    }
+
+    /**
+     * Track an ethernet frame and return whether it is a fragment of a datagram carrying DNS.
+     *
+     * Decisions on other datagrams, such as those removed after the timeout, are passed to the listener
+     * before this method returns.
+     *
+     * @param data the array holding the frame
+     * @param offset the offset of the frame in the array
+     * @param length the length of the frame
+     * @return {@link #DNS} or {@link #OTHER} when that is known, otherwise the datagram of the fragment,
+     *         which is passed to the listener once it is decided
+     */
+    public int track(final byte[] data, final int offset, final int length) {
+        final int datagram = _reassembler.process(data, offset, length);
+        if (datagram == FragmentReassembler.NONE) {
+            return OTHER;
+        }
+        if (_datagrams[datagram] == UNKNOWN && _firstFragments[datagram] == UNKNOWN && _reassembler.getFragmentOffset() == 0) {
+            final int protocol = _reassembler.getProtocol();
+            if (protocol != Protocol.UDP && !ExtensionHeaderChain.isChained(protocol)) {
+                decide(datagram, OTHER_DATAGRAM);
+            }
+            else {
+                _firstFragments[datagram] = startsWithDNS(data) ? DNS_DATAGRAM : OTHER_DATAGRAM;
+            }
+        }
+        if (_datagrams[datagram] == DNS_DATAGRAM) {
+            return DNS;
+        }
+        if (_datagrams[datagram] == OTHER_DATAGRAM) {
+            return OTHER;
+        }
+        _undecided[datagram]++;
+        return datagram;
+    }
+
+    /**
+     * Decide an undecided datagram before it is complete, like when it is removed from the reassembler.
+     *
+     * @param datagram the datagram, as returned by {@link #track}
+     */
+    public void decide(final int datagram) {
+        if (_datagrams[datagram] == UNKNOWN) {
+            undecided(datagram);
+        }
+    }
+
+    @Override
+    public void opened(final int datagram) {
+        _datagrams[datagram] = UNKNOWN;
+        _firstFragments[datagram] = UNKNOWN;
+        _undecided[datagram] = 0;
+    }
+
+    @Override
+    public void reassembled(final int datagram, final byte[] data, final int offset, final int length) {
+        final byte decision = isDNS(data, offset, length) ? DNS_DATAGRAM : OTHER_DATAGRAM;
+        if (decision == DNS_DATAGRAM) {
+            _dnsDatagrams++;
+        }
+        if (_datagrams[datagram] == UNKNOWN) {
+            decide(datagram, decision);
+        }
+        else if (_datagrams[datagram] != decision) {
+            // decided before it was complete; the fragments seen from now on follow the reassembled datagram
+            _revised++;
+            _datagrams[datagram] = decision;
+        }
+    }
+
+    @Override
+    public void removed(final int datagram) {
+        // the rest of the state is reset when the datagram is used again
+        decide(datagram);
+    }
+
+    /**
+     * Count the fragments decided before their datagram was complete as {@link MetricsRegistry#FRAGMENTS_UNDECIDED},
+     * together with the other trackers using the registry.
+     *
+     * @param metrics the registry to count in
+     */
+    @Override
+    public void setMetrics(final MetricsRegistry metrics) {
+        _undecidedCounter = metrics.counter(MetricsRegistry.FRAGMENTS_UNDECIDED);
+    }
+
+    /**
+     * Returns the reassembler following the datagrams, for its statistics.
+     *
+     * @return the reassembler
+     */
+    public FragmentReassembler getReassembler() {
+        return _reassembler;
+    }
+
+    /**
+     * Returns the number of reassembled datagrams carrying DNS.
+     *
+     * @return the number of DNS datagrams
+     */
+    public long getDNSDatagrams() {
+        return _dnsDatagrams;
+    }
+
+    /**
+     * Returns the number of reassembled datagrams that were decided before they were complete, and
+     * of which the reassembly decided otherwise.
+     *
+     * @return the number of revised decisions
+     */
+    public long getRevisedDecisions() {
+        return _revised;
+    }
+
+    /**
+     * Returns the number of fragments that were undecided when their datagram was decided before it was
+     * complete, by its first fragment or taken as DNS.
+     *
+     * @return the number of undecided fragments
+     */
+    public long getUndecidedFragments() {
+        return _undecidedFragments;
+    }
+
+    private void undecided(final int datagram) {
+        final int fragments = _undecided[datagram];
+        // without the first fragment, the datagram is taken as DNS so its addresses are not left unchanged
+        decide(datagram, _firstFragments[datagram] == OTHER_DATAGRAM ? OTHER_DATAGRAM : DNS_DATAGRAM);
+        if (fragments == 0) {
+            return;
+        }
+        _undecidedFragments += fragments;
+        _undecidedDatagrams++;
+        if (_undecidedCounter != null) {
+            _undecidedCounter.add(fragments);
+        }
+        // logged for the first datagram and then at every power of two, to not flood the log
+        if (Long.bitCount(_undecidedDatagrams) == 1) {
+            LOGGER.warning(_undecidedFragments + " fragments of " + _undecidedDatagrams
+                + " datagrams were released before their datagram was complete, and were decided by the first fragment or taken as DNS.");
+        }
+    }
+
+    private void decide(final int datagram, final byte decision) {
+        _datagrams[datagram] = decision;
+        _undecided[datagram] = 0;
+        if (_listener != null) {
+            _listener.decided(datagram, decision == DNS_DATAGRAM);
+        }
+    }
+
+    // the UDP and DNS header in the data of the first fragment of the last frame processed
+    private boolean startsWithDNS(final byte[] data) {
+        final int payload = _reassembler.getPayloadOffset();
+        if (_reassembler.getProtocol() != Protocol.UDP || _reassembler.getPayloadLength() < UDP_HEADER_LENGTH + DNS_HEADER_LENGTH) {
+            return false;
+        }
+        final int udpLength = (data[payload + 4] & 0xFF) << 8 | data[payload + 5] & 0xFF;
+        return DNSStreamTracker.isMessageHeader(data, payload + UDP_HEADER_LENGTH, udpLength - UDP_HEADER_LENGTH);
+    }
+
+    private static boolean isDNS(final byte[] data, final int offset, final int length) {
+        try {
+            final boolean ipv4 = (data[offset] & 0xF0) == 0x40;
+            final ParseResult result = Util.parse(new ArrayByteStream(data, offset, length), 0L, ipv4 ? IPv4.FORMAT : IPv6.FORMAT);
+            return result.succeeded && result.environment.offset == length
+                && (ipv4 ? Constraints.IPV4_UDP_DNS : Constraints.IPV6_UDP_DNS).isSatisfiedBy(result.environment);
+        }
+        catch (final IOException e) {
+            // reading from an array does not fail
+            return false;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.ip;
+
+/**
+ * Receives the datagrams reassembled by a {@link FragmentReassembler}.
+ *
+ * Datagrams are identified by an index in the table of the reassembler that is reused after the
+ * datagram was removed.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public interface DatagramListener {
+
+    /**
+     * Called when the first fragment of a datagram is seen.
+     *
+     * @param datagram the datagram
+     */
+    void opened(int datagram);
+
+    /**
+     * Called when all fragments of a datagram are seen, with the reassembled packet.
+     *
+     * The packet consists of the IP header of the first fragment, without the fields marking it as
+     * a fragment (for IPv6 without the fragment header), followed by the data of all fragments. It is
+     * only valid during the call.
+     *
+     * @param datagram the datagram
+     * @param data the array holding the packet
+     * @param offset the offset of the packet in the array
+     * @param length the length of the packet
+     */
+    void reassembled(int datagram, byte[] data, int offset, int length);
+
+    /**
+     * Called when a datagram is removed from the table.
+     *
+     * @param datagram the datagram
+     */
+    void removed(int datagram);
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.ip;
+
+/**
+ * Receives the decisions of a {@link DNSFragmentTracker} on whether a datagram carries DNS.
+ *
+ * Datagrams are identified like in {@link DatagramListener}; the decision is made before the
+ * datagram can be used again.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public interface DecisionListener {
+
+    /**
+     * Called once it is decided whether a datagram of which fragments were seen carries DNS.
+     *
+     * @param datagram the datagram
+     * @param dns whether the fragments of the datagram are to be taken as DNS
+     */
+    void decided(int datagram, boolean dns);
+}
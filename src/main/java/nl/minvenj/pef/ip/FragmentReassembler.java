@@ -0,0 +1,613 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.ip;
+
+import java.nio.ByteBuffer;
+
+import nl.minvenj.pef.tcp.SegmentStore;
+
+/**
+ * Reassembles fragmented IPv4 datagrams and IPv6 packets from ethernet frames, with bounded memory.
+ *
+ * Datagrams are tracked by their source, destination, identification and, for IPv4, protocol in a table
+ * of a fixed size, consisting of primitive arrays and direct memory. The data of the fragments waits in a
+ * {@link SegmentStore}, ordered by fragment offset, until the datagram is complete; it is then handed
+ * to a {@link DatagramListener} and released. The datagram stays in the table, so fragments seen again
+ * after that are still recognized as part of it.
+ *
+ * Memory is bounded in three ways:
+ * <ul>
+ *     <li>a datagram that was not seen for the timeout is removed; the timeout is measured in frames,
+ *     as frames are not necessarily processed at the speed they were captured</li>
+ *     <li>when the table is full, the datagram that was not seen for the longest time is removed</li>
+ *     <li>when the segment store is full, the datagrams that were not seen for the longest time are
+ *     removed until the fragment fits</li>
+ * </ul>
+ * An IPv6 packet is reassembled from the headers of the first fragment that are not fragmented, followed
+ * by the data of the fragments, without the fragment header. Its headers that are not fragmented may
+ * take up at most 80 bytes after the fixed header.
+ * Fragments that were not captured completely are not stored, so their datagram is never complete.
+ * Overlapping fragments are accepted; where they overlap, the data of the fragment with the highest
+ * offset is used.
+ *
+ * A reassembler must only be used by one thread at a time.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class FragmentReassembler {
+
+    /** Returned when a frame is not a fragment. */
+    public static final int NONE = -1;
+
+    /** Default maximum number of datagrams tracked. */
+    public static final int DEFAULT_MAX_DATAGRAMS = 4096;
+
+    /** Default amount of direct memory for fragments of incomplete datagrams, in bytes. */
+    public static final long DEFAULT_BUFFER_SIZE = 16L * 1024 * 1024;
+
+    /** Default number of frames after which a datagram that was not seen is removed. */
+    public static final long DEFAULT_TIMEOUT = 1L << 18;
+
+    /** Maximum number of datagrams a reassembler can track. */
+    public static final int MAX_DATAGRAMS = 1 << 24;
+
+    private static final int ETHERNET_HEADER_LENGTH = 14;
+    private static final int MAX_HEADER_LENGTH = 120;
+    private static final int MAX_DATAGRAM_LENGTH = 65535;
+    private static final int IPV6_HEADER_LENGTH = 40;
+    private static final int FRAGMENT_HEADER = 44;
+    private static final int MAX_EXTENSION_HEADERS = 8;
+    // key: address length, protocol, source address, destination address, identification
+    private static final int KEY_SIZE = 40;
+    private static final int KEY_PROTOCOL = 1;
+    private static final int KEY_SOURCE = 4;
+    private static final int KEY_DESTINATION = 20;
+    private static final int KEY_IDENTIFICATION = 36;
+    private static final int EXPIRATIONS_PER_FRAME = 2;
+
+    private final DatagramListener _listener;
+    private final long _timeout;
+    private final SegmentStore _store;
+
+    // open addressing hash table holding datagram + 1, or 0 for an empty slot
+    private final int[] _table;
+    private final int _mask;
+
+    // per datagram
+    private final ByteBuffer _keys;
+    private final int[] _hashes;
+    private final long[] _lastSeen;
+    private final int[] _older;
+    private final int[] _newer;
+    private final int[] _free;
+    private int _freeCount;
+    private int _oldest = NONE;
+    private int _newest = NONE;
+    private final int[] _fragments;
+    private final int[] _lengths;
+    private final byte[] _headers;
+    private final int[] _headerLengths;
+    private final boolean[] _complete;
+
+    private final byte[] _key = new byte[KEY_SIZE];
+    private final ByteBuffer _keyBuffer = ByteBuffer.wrap(_key);
+    private final byte[] _datagram = new byte[MAX_HEADER_LENGTH + MAX_DATAGRAM_LENGTH];
+    private long _clock;
+    private int _protocol;
+    private int _fragmentOffset;
+    private int _payload;
+    private int _payloadLength;
+
+    private long _reassembled;
+    private long _evicted;
+    private long _expired;
+    private long _dropped;
+
+    /**
+     * Create a new reassembler with the default limits.
+     *
+     * @param listener the listener to hand the reassembled datagrams to
+     */
+    public FragmentReassembler(final DatagramListener listener) {
+        this(listener, DEFAULT_MAX_DATAGRAMS, DEFAULT_BUFFER_SIZE, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Create a new reassembler.
+     *
+     * @param listener the listener to hand the reassembled datagrams to
+     * @param maxDatagrams the maximum number of datagrams tracked
+     * @param bufferSize the amount of direct memory for fragments of incomplete datagrams, in bytes
+     * @param timeout the number of frames after which a datagram that was not seen is removed
+     */
+    public FragmentReassembler(final DatagramListener listener, final int maxDatagrams, final long bufferSize, final long timeout) {
+        if (maxDatagrams < 1 || maxDatagrams > MAX_DATAGRAMS) {
+            throw new IllegalArgumentException("maxDatagrams must be in range [1, " + MAX_DATAGRAMS + "]: " + maxDatagrams);
+        }
+        if (timeout < 1) {
+            throw new IllegalArgumentException("timeout must be positive: " + timeout);
+        }
+        _listener = listener;
+        _timeout = timeout;
+        _store = new SegmentStore(bufferSize);
+        // at most half of the slots are in use
+        _table = new int[Integer.highestOneBit(maxDatagrams) << 2];
+        _mask = _table.length - 1;
+        _keys = ByteBuffer.allocateDirect(maxDatagrams * KEY_SIZE);
+        _hashes = new int[maxDatagrams];
+        _lastSeen = new long[maxDatagrams];
+        _older = new int[maxDatagrams];
+        _newer = new int[maxDatagrams];
+        _free = new int[maxDatagrams];
+        for (int i = 0; i < maxDatagrams; i++) {
+            _free[i] = maxDatagrams - 1 - i;
+        }
+        _freeCount = maxDatagrams;
+        _fragments = new int[maxDatagrams];
+        _lengths = new int[maxDatagrams];
+        _headers = new byte[maxDatagrams * MAX_HEADER_LENGTH];
+        _headerLengths = new int[maxDatagrams];
+        _complete = new boolean[maxDatagrams];
+    }
+
+    /**
+     * Process an ethernet frame, storing its data when it is a fragment of an IPv4 datagram or an IPv6 packet.
+     *
+     * When the fragment completes the datagram, the datagram is handed to the listener before this
+     * method returns.
+     *
+     * @param data the array holding the frame
+     * @param offset the offset of the frame in the array
+     * @param length the length of the frame
+     * @return the datagram of the fragment, or {@link #NONE} when the frame is not a fragment
+     */
+    public int process(final byte[] data, final int offset, final int length) {
+        _clock++;
+        expire();
+        final int end = Math.min(data.length, offset + length);
+        if (end - offset < ETHERNET_HEADER_LENGTH) {
+            return NONE;
+        }
+        int position = offset + 12;
+        int etherType = uint16(data, position);
+        position += 2;
+        // 802.1Q and 802.1ad tags
+        while ((etherType == 0x8100 || etherType == 0x88A8 || etherType == 0x9100) && position + 4 <= end) {
+            etherType = uint16(data, position + 2);
+            position += 4;
+        }
+        if (etherType == 0x0800 && position + 20 <= end && (data[position] & 0xF0) == 0x40) {
+            return ipv4(data, position, end);
+        }
+        if (etherType == 0x86DD && position + IPV6_HEADER_LENGTH <= end && (data[position] & 0xF0) == 0x60) {
+            return ipv6(data, position, end);
+        }
+        return NONE;
+    }
+
+    /**
+     * Returns the protocol of the last fragment processed, for IPv6 the next header in its fragment header.
+     *
+     * @return the protocol number
+     */
+    public int getProtocol() {
+        return _protocol;
+    }
+
+    /**
+     * Returns the offset in its datagram of the data of the last fragment processed.
+     *
+     * @return the fragment offset in bytes
+     */
+    public int getFragmentOffset() {
+        return _fragmentOffset;
+    }
+
+    /**
+     * Returns the offset in the frame of the data of the last fragment processed.
+     *
+     * @return the offset of the data in the array holding the frame
+     */
+    public int getPayloadOffset() {
+        return _payload;
+    }
+
+    /**
+     * Returns the number of bytes of data of the last fragment processed that were captured.
+     *
+     * @return the length of the data
+     */
+    public int getPayloadLength() {
+        return _payloadLength;
+    }
+
+    /**
+     * Returns the maximum number of datagrams tracked.
+     *
+     * @return the maximum number of datagrams
+     */
+    public int getMaxDatagrams() {
+        return _hashes.length;
+    }
+
+    /**
+     * Returns the number of datagrams tracked, complete or not.
+     *
+     * @return the number of datagrams
+     */
+    public int getDatagrams() {
+        return _hashes.length - _freeCount;
+    }
+
+    /**
+     * Returns the number of datagrams reassembled.
+     *
+     * @return the number of reassembled datagrams
+     */
+    public long getReassembled() {
+        return _reassembled;
+    }
+
+    /**
+     * Returns the number of datagrams removed because the table or the segment store was full.
+     *
+     * @return the number of evicted datagrams
+     */
+    public long getEvicted() {
+        return _evicted;
+    }
+
+    /**
+     * Returns the number of datagrams removed because they were not seen for the timeout.
+     *
+     * @return the number of expired datagrams
+     */
+    public long getExpired() {
+        return _expired;
+    }
+
+    /**
+     * Returns the number of fragments not stored, because they were not captured completely, were
+     * not valid or did not fit in the segment store.
+     *
+     * @return the number of dropped fragments
+     */
+    public long getDropped() {
+        return _dropped;
+    }
+
+    /**
+     * Returns the direct memory in use by fragments of incomplete datagrams.
+     *
+     * @return the amount of memory in bytes
+     */
+    public long getBufferedBytes() {
+        return _store.getUsed();
+    }
+
+    /**
+     * Returns the amount of direct memory for fragments of incomplete datagrams.
+     *
+     * @return the amount of memory in bytes
+     */
+    public long getBufferSize() {
+        return _store.getCapacity();
+    }
+
+    private int ipv4(final byte[] data, final int position, final int end) {
+        final int flags = uint16(data, position + 6);
+        final int headerLength = (data[position] & 0x0F) * 4;
+        if ((flags & 0x3FFF) == 0 || headerLength < 20 || position + headerLength > end) {
+            return NONE;
+        }
+        _protocol = data[position + 9] & 0xFF;
+        _fragmentOffset = (flags & 0x1FFF) * 8;
+        _payload = position + headerLength;
+        final int payloadEnd = position + uint16(data, position + 2);
+        _payloadLength = Math.max(Math.min(payloadEnd, end) - _payload, 0);
+
+        key(data, position + 12, 4, position + 4, 2, _protocol);
+        final int datagram = datagram();
+        if (!_complete[datagram] && isValid(datagram, payloadEnd, end, headerLength, MAX_DATAGRAM_LENGTH)) {
+            if (_fragmentOffset == 0) {
+                System.arraycopy(data, position, _headers, datagram * MAX_HEADER_LENGTH, headerLength);
+                _headerLengths[datagram] = headerLength;
+            }
+            add(datagram, data, (flags & 0x2000) == 0);
+        }
+        return datagram;
+    }
+
+    private int ipv6(final byte[] data, final int position, final int end) {
+        // the headers that are not fragmented come before the fragment header
+        int nextHeaderField = position + 6;
+        int header = position + IPV6_HEADER_LENGTH;
+        for (int i = 0; i < MAX_EXTENSION_HEADERS && isUnfragmentable(data[nextHeaderField] & 0xFF) && header + 8 <= end; i++) {
+            nextHeaderField = header;
+            header += ((data[header + 1] & 0xFF) + 1) * 8;
+        }
+        if ((data[nextHeaderField] & 0xFF) != FRAGMENT_HEADER || header + 8 > end) {
+            return NONE;
+        }
+        final int flags = uint16(data, header + 2);
+        if ((flags & 0xFFF9) == 0) {
+            // an atomic fragment, which is a complete packet
+            return NONE;
+        }
+        final int headerLength = header - position;
+        _protocol = data[header] & 0xFF;
+        _fragmentOffset = flags & 0xFFF8;
+        _payload = header + 8;
+        final int payloadEnd = position + IPV6_HEADER_LENGTH + uint16(data, position + 4);
+        _payloadLength = Math.max(Math.min(payloadEnd, end) - _payload, 0);
+
+        // the next header of the fragments may differ, only that of the first fragment is used
+        key(data, position + 8, 16, header + 4, 4, 0);
+        final int datagram = datagram();
+        if (!_complete[datagram] && isValid(datagram, payloadEnd, end, headerLength, IPV6_HEADER_LENGTH + MAX_DATAGRAM_LENGTH)) {
+            if (_fragmentOffset == 0) {
+                final int start = datagram * MAX_HEADER_LENGTH;
+                System.arraycopy(data, position, _headers, start, headerLength);
+                // the fragment header is left out, so the header before it points to what the fragment header pointed to
+                _headers[start + nextHeaderField - position] = (byte) _protocol;
+                _headerLengths[datagram] = headerLength;
+            }
+            add(datagram, data, (flags & 0x0001) == 0);
+        }
+        return datagram;
+    }
+
+    private boolean isValid(final int datagram, final int payloadEnd, final int end, final int headerLength, final int maxLength) {
+        if (payloadEnd > end || payloadEnd < _payload || headerLength > MAX_HEADER_LENGTH || headerLength + _fragmentOffset + _payloadLength > maxLength) {
+            // not captured completely, or not a valid fragment
+            _dropped++;
+            return false;
+        }
+        return true;
+    }
+
+    private void add(final int datagram, final byte[] data, final boolean last) {
+        if (last) {
+            _lengths[datagram] = _fragmentOffset + _payloadLength;
+        }
+        if (store(datagram, data) && isComplete(datagram)) {
+            reassemble(datagram);
+        }
+    }
+
+    // keeps the fragments ordered by offset
+    private boolean store(final int datagram, final byte[] data) {
+        int fragment = _store.store(_fragmentOffset, data, _payload, _payloadLength);
+        while (fragment == SegmentStore.NONE && _oldest != datagram) {
+            remove(_oldest);
+            _evicted++;
+            fragment = _store.store(_fragmentOffset, data, _payload, _payloadLength);
+        }
+        if (fragment == SegmentStore.NONE) {
+            _dropped++;
+            return false;
+        }
+        int previous = SegmentStore.NONE;
+        int current = _fragments[datagram];
+        while (current != SegmentStore.NONE && _store.getSequence(current) <= _fragmentOffset) {
+            previous = current;
+            current = _store.getNext(current);
+        }
+        _store.setNext(fragment, current);
+        if (previous == SegmentStore.NONE) {
+            _fragments[datagram] = fragment;
+        }
+        else {
+            _store.setNext(previous, fragment);
+        }
+        return true;
+    }
+
+    private boolean isComplete(final int datagram) {
+        if (_lengths[datagram] < 0 || _headerLengths[datagram] == 0) {
+            return false;
+        }
+        int covered = 0;
+        for (int fragment = _fragments[datagram]; fragment != SegmentStore.NONE && covered < _lengths[datagram]; fragment = _store.getNext(fragment)) {
+            if (_store.getSequence(fragment) > covered) {
+                return false;
+            }
+            covered = Math.max(covered, _store.getSequence(fragment) + _store.getLength(fragment));
+        }
+        return covered >= _lengths[datagram];
+    }
+
+    private void reassemble(final int datagram) {
+        final int headerLength = _headerLengths[datagram];
+        final int length = headerLength + _lengths[datagram];
+        System.arraycopy(_headers, datagram * MAX_HEADER_LENGTH, _datagram, 0, headerLength);
+        if ((_datagram[0] & 0xF0) == 0x40) {
+            _datagram[2] = (byte) (length >> 8);
+            _datagram[3] = (byte) length;
+            _datagram[6] = 0;
+            _datagram[7] = 0;
+        }
+        else {
+            final int payloadLength = length - IPV6_HEADER_LENGTH;
+            _datagram[4] = (byte) (payloadLength >> 8);
+            _datagram[5] = (byte) payloadLength;
+        }
+        int fragment = _fragments[datagram];
+        while (fragment != SegmentStore.NONE) {
+            // the array holds the largest datagram plus a header, so every stored fragment fits
+            if (_store.getSequence(fragment) < _lengths[datagram]) {
+                _store.read(fragment, _datagram, headerLength + _store.getSequence(fragment));
+            }
+            final int next = _store.getNext(fragment);
+            _store.free(fragment);
+            fragment = next;
+        }
+        _fragments[datagram] = SegmentStore.NONE;
+        _complete[datagram] = true;
+        _reassembled++;
+        _listener.reassembled(datagram, _datagram, 0, length);
+    }
+
+    private void expire() {
+        for (int i = 0; i < EXPIRATIONS_PER_FRAME && _oldest != NONE && _clock - _lastSeen[_oldest] > _timeout; i++) {
+            remove(_oldest);
+            _expired++;
+        }
+    }
+
+    private void key(final byte[] data, final int addresses, final int addressLength, final int identification, final int identificationLength, final int protocol) {
+        _keyBuffer.putLong(0, 0).putLong(8, 0).putLong(16, 0).putLong(24, 0).putLong(32, 0);
+        _key[0] = (byte) addressLength;
+        _key[KEY_PROTOCOL] = (byte) protocol;
+        System.arraycopy(data, addresses, _key, KEY_SOURCE, addressLength);
+        System.arraycopy(data, addresses + addressLength, _key, KEY_DESTINATION, addressLength);
+        System.arraycopy(data, identification, _key, KEY_IDENTIFICATION, identificationLength);
+    }
+
+    // looks up the datagram of the key, adding it when it is not in the table
+    private int datagram() {
+        final int hash = hash();
+        int slot = hash & _mask;
+        while (_table[slot] != 0) {
+            final int datagram = _table[slot] - 1;
+            if (_hashes[datagram] == hash && keyEquals(datagram)) {
+                touch(datagram);
+                return datagram;
+            }
+            slot = (slot + 1) & _mask;
+        }
+        if (_freeCount == 0) {
+            remove(_oldest);
+            _evicted++;
+            // removing moves entries, so the free slot has to be found again
+            slot = hash & _mask;
+            while (_table[slot] != 0) {
+                slot = (slot + 1) & _mask;
+            }
+        }
+        final int datagram = _free[--_freeCount];
+        _table[slot] = datagram + 1;
+        _hashes[datagram] = hash;
+        for (int i = 0; i < KEY_SIZE; i += 8) {
+            _keys.putLong(datagram * KEY_SIZE + i, _keyBuffer.getLong(i));
+        }
+        _fragments[datagram] = SegmentStore.NONE;
+        _lengths[datagram] = -1;
+        _headerLengths[datagram] = 0;
+        _complete[datagram] = false;
+        _older[datagram] = _newest;
+        _newer[datagram] = NONE;
+        if (_newest != NONE) {
+            _newer[_newest] = datagram;
+        }
+        else {
+            _oldest = datagram;
+        }
+        _newest = datagram;
+        _lastSeen[datagram] = _clock;
+        _listener.opened(datagram);
+        return datagram;
+    }
+
+    private boolean keyEquals(final int datagram) {
+        for (int i = 0; i < KEY_SIZE; i += 8) {
+            if (_keys.getLong(datagram * KEY_SIZE + i) != _keyBuffer.getLong(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // makes the datagram the most recently seen one
+    private void touch(final int datagram) {
+        _lastSeen[datagram] = _clock;
+        if (datagram == _newest) {
+            return;
+        }
+        unlink(datagram);
+        _older[datagram] = _newest;
+        _newer[datagram] = NONE;
+        _newer[_newest] = datagram;
+        _newest = datagram;
+    }
+
+    private void unlink(final int datagram) {
+        if (_older[datagram] != NONE) {
+            _newer[_older[datagram]] = _newer[datagram];
+        }
+        else {
+            _oldest = _newer[datagram];
+        }
+        if (_newer[datagram] != NONE) {
+            _older[_newer[datagram]] = _older[datagram];
+        }
+        else {
+            _newest = _older[datagram];
+        }
+    }
+
+    private void remove(final int datagram) {
+        int fragment = _fragments[datagram];
+        while (fragment != SegmentStore.NONE) {
+            final int next = _store.getNext(fragment);
+            _store.free(fragment);
+            fragment = next;
+        }
+        _fragments[datagram] = SegmentStore.NONE;
+        unlink(datagram);
+        // backward shift deletion, keeping every entry reachable from its hash slot
+        int slot = _hashes[datagram] & _mask;
+        while (_table[slot] != datagram + 1) {
+            slot = (slot + 1) & _mask;
+        }
+        int next = (slot + 1) & _mask;
+        while (_table[next] != 0) {
+            final int home = _hashes[_table[next] - 1] & _mask;
+            // an entry can only move back when its home slot is not between the free slot and itself
+            if (slot <= next ? slot >= home || home > next : slot >= home && home > next) {
+                _table[slot] = _table[next];
+                slot = next;
+            }
+            next = (next + 1) & _mask;
+        }
+        _table[slot] = 0;
+        _free[_freeCount++] = datagram;
+        _listener.removed(datagram);
+    }
+
+    private int hash() {
+        int hash = 0;
+        for (int i = 0; i < KEY_SIZE; i += 4) {
+            hash = hash * 0x9E3779B1 + _keyBuffer.getInt(i);
+        }
+        // the finalization step of MurmurHash3
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static boolean isUnfragmentable(final int nextHeader) {
+        // hop-by-hop options, routing, destination options
+        return nextHeader == 0 || nextHeader == 43 || nextHeader == 60;
+    }
+
+    private static int uint16(final byte[] data, final int position) {
+        return (data[position] & 0xFF) << 8 | data[position + 1] & 0xFF;
+    }
+}
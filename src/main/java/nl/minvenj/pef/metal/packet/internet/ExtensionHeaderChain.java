@@ -0,0 +1,146 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.metal.packet.internet;
+
+/**
+ * Walks the extension header chain of an IPv6 packet directly on the packet bytes.
+ *
+ * This is the counterpart of {@link IPv6#EXTENSION_HEADERS} for code that looks at frames without parsing them,
+ * and follows the same headers: all {@link ExtensionHeaderTypes} except the Encapsulating Security Payload,
+ * as what follows it is encrypted. The walk ends after a fragment header of any but the first fragment, as the
+ * headers of the data are in the first fragment.
+ *
+ * The result of a walk is packed in a long, to be read with {@link #offset(long)}, {@link #protocol(long)},
+ * {@link #isFragment(long)} and {@link #isLaterFragment(long)}.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class ExtensionHeaderChain {
+
+    private static final int IPV6_HEADER_LENGTH = 40;
+    private static final long FRAGMENT = 1L << 40;
+    private static final long LATER_FRAGMENT = 1L << 41;
+
+    private static final boolean[] CHAINED_HEADERS = chainedHeaders();
+
+    private ExtensionHeaderChain() {
+    }
+
+    /**
+     * Returns whether a next header value is an extension header followed by another header.
+     *
+     * @param nextHeader the next header value
+     * @return true when the header is part of the chain
+     */
+    public static boolean isChained(final int nextHeader) {
+        return CHAINED_HEADERS[nextHeader & 0xFF];
+    }
+
+    /**
+     * Returns the length of an extension header.
+     *
+     * @param data the array holding the header
+     * @param header the offset of the header in the array
+     * @param type the type of the header, as given by the preceding next header field
+     * @return the length of the header in bytes
+     */
+    public static int length(final byte[] data, final int header, final int type) {
+        if (type == ExtensionHeaderTypes.FRAGMENT.value()) {
+            return 8;
+        }
+        if (type == ExtensionHeaderTypes.AUTHENTICATION.value()) {
+            // payload length in 4 bytes, not including the first 8 bytes
+            return ((data[header + 1] & 0xFF) + 2) * 4;
+        }
+        // header length in 8 bytes, not including the first 8 bytes
+        return ((data[header + 1] & 0xFF) + 1) * 8;
+    }
+
+    /**
+     * Walks the extension headers of an IPv6 packet, up to the end of the chain or of the data.
+     *
+     * @param data the array holding the packet
+     * @param position the offset of the IPv6 header in the array, which must hold at least its 40 bytes
+     * @param end the end of the packet in the array
+     * @return the result of the walk
+     */
+    public static long walk(final byte[] data, final int position, final int end) {
+        int nextHeader = data[position + 6] & 0xFF;
+        int header = position + IPV6_HEADER_LENGTH;
+        long flags = 0;
+        // every header is at least 8 bytes, so the walk ends within the data
+        while (CHAINED_HEADERS[nextHeader] && header + 8 <= end) {
+            final int type = nextHeader;
+            nextHeader = data[header] & 0xFF;
+            if (type == ExtensionHeaderTypes.FRAGMENT.value()) {
+                flags |= FRAGMENT;
+                if (((data[header + 2] & 0xFF) << 8 | data[header + 3] & 0xF8) != 0) {
+                    return flags | LATER_FRAGMENT | (long) nextHeader << 32 | header + 8;
+                }
+            }
+            header += length(data, header, type);
+        }
+        return flags | (long) nextHeader << 32 | header;
+    }
+
+    /**
+     * Returns the offset of the header following the chain, which may be beyond the end of the data.
+     *
+     * @param walk the result of a walk
+     * @return the offset in the array
+     */
+    public static int offset(final long walk) {
+        return (int) walk;
+    }
+
+    /**
+     * Returns the protocol of the header following the chain, given by the last next header field.
+     *
+     * @param walk the result of a walk
+     * @return the protocol number
+     */
+    public static int protocol(final long walk) {
+        return (int) (walk >>> 32) & 0xFF;
+    }
+
+    /**
+     * Returns whether the chain holds a fragment header, including one of an atomic fragment.
+     *
+     * @param walk the result of a walk
+     * @return true when the packet is a fragment
+     */
+    public static boolean isFragment(final long walk) {
+        return (walk & FRAGMENT) != 0;
+    }
+
+    /**
+     * Returns whether the chain holds the fragment header of any but the first fragment.
+     *
+     * @param walk the result of a walk
+     * @return true when the data following the chain is not the start of the fragmented part
+     */
+    public static boolean isLaterFragment(final long walk) {
+        return (walk & LATER_FRAGMENT) != 0;
+    }
+
+    private static boolean[] chainedHeaders() {
+        final boolean[] headers = new boolean[256];
+        for (final ExtensionHeaderTypes headerType : ExtensionHeaderTypes.values()) {
+            headers[headerType.value()] = headerType != ExtensionHeaderTypes.ENCAPSULATING_SECURITY;
+        }
+        return headers;
+    }
+}
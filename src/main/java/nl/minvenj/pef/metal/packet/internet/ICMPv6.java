@@ -0,0 +1,49 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.metal.packet.internet;
+
+import static io.parsingdata.metal.Shorthand.cho;
+import static io.parsingdata.metal.Shorthand.def;
+import static io.parsingdata.metal.Shorthand.seq;
+import static io.parsingdata.metal.Shorthand.str;
+
+import io.parsingdata.metal.token.Token;
+
+/**
+ * ICMPv6 format definition.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class ICMPv6 {
+
+    /** ICMPv6 header format definition. **/
+    public static final Token HEADER = seq(
+                                           def("icmptype", 1),
+                                           def("icmpcode", 1),
+                                           def("icmpchecksum", 2),
+                                           def("rest", 4));
+
+    /** ICMPv6 data format definition, holding the invoking packet in case of an error message. **/
+    public static final Token DATA = cho(
+                                         IPv6.FORMAT,
+                                         def("icmpdata", IPv6.PAYLOAD_LEFT));
+
+    /** ICMPv6 format definition. **/
+    public static final Token FORMAT = str("ICMPV6", seq(HEADER, DATA));
+
+    private ICMPv6() {
+    }
+}
@@ -22,6 +22,7 @@ import static io.parsingdata.metal.Shorthand.def;
 import static io.parsingdata.metal.Shorthand.eqNum;
 import static io.parsingdata.metal.Shorthand.gtNum;
 import static io.parsingdata.metal.Shorthand.mul;
+import static io.parsingdata.metal.Shorthand.not;
 import static io.parsingdata.metal.Shorthand.pre;
 import static io.parsingdata.metal.Shorthand.self;
 import static io.parsingdata.metal.Shorthand.seq;
@@ -96,8 +97,12 @@ public final class IPv4 {
         }
     };
 
+    /** Fragment of a datagram, of which the data can only be parsed after reassembly. **/
+    public static final Token FRAGMENT = str("ipv4fragment", def("fragmentdata", sub(TOTAL_SIZE, HEADER_SIZE),
+                                                                not(eqNum(and(lastRef("flfr"), con(0x3FFF)), con(0))))); // more fragments flag or fragment offset set
+
     /** IPv4 data format definition. **/
-    public static final Token DATA = cho(KNOWN_PROTOCOL, def("ipv4data", sub(TOTAL_SIZE, HEADER_SIZE)));
+    public static final Token DATA = cho(FRAGMENT, KNOWN_PROTOCOL, def("ipv4data", sub(TOTAL_SIZE, HEADER_SIZE)));
 
     /** IPv4 format definition. **/
     public static final Token FORMAT = str("IPV4PACKET", seq(HEADER, DATA));
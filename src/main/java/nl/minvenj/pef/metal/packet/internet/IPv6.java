@@ -17,25 +17,29 @@ package nl.minvenj.pef.metal.packet.internet;
 
 import static io.parsingdata.metal.Shorthand.add;
 import static io.parsingdata.metal.Shorthand.and;
+import static io.parsingdata.metal.Shorthand.cho;
 import static io.parsingdata.metal.Shorthand.con;
 import static io.parsingdata.metal.Shorthand.currentOffset;
 import static io.parsingdata.metal.Shorthand.def;
 import static io.parsingdata.metal.Shorthand.eqNum;
-import static io.parsingdata.metal.Shorthand.mul;
+import static io.parsingdata.metal.Shorthand.gtNum;
 import static io.parsingdata.metal.Shorthand.not;
 import static io.parsingdata.metal.Shorthand.offset;
-import static io.parsingdata.metal.Shorthand.or;
-import static io.parsingdata.metal.Shorthand.pre;
 import static io.parsingdata.metal.Shorthand.self;
 import static io.parsingdata.metal.Shorthand.seq;
 import static io.parsingdata.metal.Shorthand.shr;
 import static io.parsingdata.metal.Shorthand.str;
 import static io.parsingdata.metal.Shorthand.sub;
-import static io.parsingdata.metal.Shorthand.whl;
 
-import static nl.minvenj.pef.metal.CustomExpression.expFalse;
 import static nl.minvenj.pef.metal.CustomExpression.lastRef;
 
+import java.io.IOException;
+
+import io.parsingdata.metal.data.Environment;
+import io.parsingdata.metal.data.ParseGraph;
+import io.parsingdata.metal.data.ParseResult;
+import io.parsingdata.metal.data.ParseValue;
+import io.parsingdata.metal.encoding.Encoding;
 import io.parsingdata.metal.expression.Expression;
 import io.parsingdata.metal.expression.value.ValueExpression;
 import io.parsingdata.metal.token.Token;
@@ -59,6 +63,76 @@ public final class IPv6 {
     /** Offset of the start of the IPv6 payload. */
     public static final ValueExpression PAYLOAD_OFFSET = add(offset(lastRef("destinationaddress")), con(16));
 
+    /** Size in octets of the rest of the payload, after the current offset. */
+    public static final ValueExpression PAYLOAD_LEFT = sub(add(PAYLOAD_OFFSET, PAYLOAD_SIZE), currentOffset);
+
+    /**
+     * IPv6 extension headers definition.
+     *
+     * Walks the chain of extension headers following the fixed header, reading the next header and length
+     * fields directly from the input, instead of evaluating an expression on the parse graph for every header.
+     * Each header defines a "nextheader" value, so the last one holds the protocol of the data. The chain ends
+     * before an Encapsulating Security Payload header, as what follows it is encrypted, and after a fragment
+     * header of any but the first fragment, as the headers of the data are in the first fragment.
+     */
+    public static final Token EXTENSION_HEADERS = new Token("", new Encoding()) {
+        // the name is empty, so the values are named in the scope of the header, like the other fields
+
+        @Override
+        protected ParseResult parseImpl(final String scope, final Environment env, final Encoding enc) throws IOException {
+            final ParseValue first = env.order.get("nextheader");
+            if (first == null) {
+                return new ParseResult(false, env);
+            }
+            int nextHeader = first.asNumeric().intValue();
+            ParseGraph graph = env.order;
+            long offset = env.offset;
+            while (ExtensionHeaderChain.isChained(nextHeader)) {
+                final byte[] fields = read(env, offset, 2);
+                if (fields == null) {
+                    return new ParseResult(false, env);
+                }
+                final int type = nextHeader;
+                nextHeader = fields[0] & 0xFF;
+                final int size = ExtensionHeaderChain.length(fields, 0, type);
+                final byte[] header = read(env, offset, size);
+                if (header == null) {
+                    return new ParseResult(false, env);
+                }
+                graph = graph.add(value(scope, "nextheader", offset, header, 0, 1, enc));
+                if (type == ExtensionHeaderTypes.FRAGMENT.value()) {
+                    graph = graph.add(value(scope, "fragmentreserved", offset, header, 1, 1, enc))
+                                 .add(value(scope, "fragmentoffset", offset, header, 2, 2, enc)) // fragment offset in 8 bytes, reserved, more fragments flag
+                                 .add(value(scope, "fragmentidentification", offset, header, 4, 4, enc));
+                }
+                else if (type == ExtensionHeaderTypes.AUTHENTICATION.value()) {
+                    graph = graph.add(value(scope, "ahlen", offset, header, 1, 1, enc))
+                                 .add(value(scope, "ahdata", offset, header, 2, size - 2, enc));
+                }
+                else {
+                    graph = graph.add(value(scope, "hdrextlen", offset, header, 1, 1, enc))
+                                 .add(value(scope, "hdrextdata", offset, header, 2, size - 2, enc));
+                }
+                offset += size;
+                if (type == ExtensionHeaderTypes.FRAGMENT.value() && ((header[2] & 0xFF) << 8 | header[3] & 0xF8) != 0) {
+                    break;
+                }
+            }
+            return new ParseResult(true, new Environment(graph, env.input, offset));
+        }
+
+        private byte[] read(final Environment env, final long offset, final int size) throws IOException {
+            final byte[] data = new byte[size];
+            return env.input.read(offset, data) == size ? data : null;
+        }
+
+        private ParseValue value(final String scope, final String name, final long offset, final byte[] header, final int from, final int size, final Encoding enc) {
+            final byte[] data = new byte[size];
+            System.arraycopy(header, from, data, 0, size);
+            return new ParseValue(scope + "." + name, this, offset + from, data, enc);
+        }
+    };
+
     /** IPv6 header format definition. **/
     public static final Token HEADER = seq(
                                            def("vertraflo", 4, eqNum(shr(self, con(28)), con(6))), // version (= 6), traffic class, flow label
@@ -67,66 +141,52 @@ public final class IPv6 {
                                            def("hoplimit", 1),
                                            def("sourceaddress", 16),
                                            def("destinationaddress", 16),
-                                           whl(seq(
-                                                   pre(
-                                                       def("fragmentheader", 8),
-                                                       eqNum(lastRef("nextheader"), con(ExtensionHeaderTypes.FRAGMENT.value()))),
-                                                   pre(
-                                                       seq(
-                                                           def("nextheader", 1),
-                                                           def("ahlen", 1),
-                                                           def("ahdata", mul(add(lastRef("ahlen"), con(2)), con(4)))),
-                                                       eqNum(lastRef("nextheader"), con(ExtensionHeaderTypes.AUTHENTICATION.value()))),
-                                                   pre(
-                                                       seq(
-                                                           def("nextheader", 1),
-                                                           def("hdrextlen", 1),
-                                                           def("hdrextdata", add(mul(lastRef("hdrextlen"), con(8)), con(6)))), // header length in 8 bytes, not including first 8 (6 + 2) bytes
-                                                       not(isAnyOf(lastRef("nextheader"), con(ExtensionHeaderTypes.FRAGMENT.value()), con(ExtensionHeaderTypes.AUTHENTICATION.value()))))),
-                                               and(isExtensionHeader(lastRef("nextheader")), not(NO_NEXT_HEADER))));
+                                           EXTENSION_HEADERS);
+
+    /** Fragment of a packet, of which the data can only be parsed after reassembly. **/
+    public static final Token FRAGMENT = str("ipv6fragment", def("fragmentdata", PAYLOAD_LEFT,
+                                                                and(
+                                                                    gtNum(offset(lastRef("fragmentoffset")), offset(lastRef("destinationaddress"))), // fragment header of this packet
+                                                                    not(eqNum(and(lastRef("fragmentoffset"), con(0xFFF9)), con(0)))))); // more fragments flag or fragment offset set
+
+    /** Encapsulating Security Payload, of which everything after the sequence number is encrypted. **/
+    public static final Token ESP = str("esp", seq(
+                                                   def("espspi", 4),
+                                                   def("espsequence", 4),
+                                                   def("espdata", PAYLOAD_LEFT)));
+
+    /** Definition of known protocol is stated in the last IPv6 (extension) header. */
+    public static final Token KNOWN_NEXT_HEADER = new Token("knownnextheader", new Encoding()) {
+        // this anonymous token is needed because of the circular references IPv6 -> ICMPv6 -> IPv6,
+        // like IPv4.KNOWN_PROTOCOL
+        @Override
+        protected ParseResult parseImpl(final String scope, final Environment env, final Encoding enc) throws IOException {
+            final int nextHeader = env.order.get("nextheader").asNumeric().intValue();
+            if (nextHeader == Protocol.UDP) {
+                return UDP.FORMAT.parse(scope, env, enc);
+            }
+            else if (nextHeader == Protocol.TCP) {
+                return TCP.FORMAT.parse(scope, env, enc);
+            }
+            else if (nextHeader == Protocol.ICMPV6) {
+                return ICMPv6.FORMAT.parse(scope, env, enc);
+            }
+            else if (nextHeader == Protocol.IP_IN_IP) {
+                return IPv4.FORMAT.parse(scope, env, enc);
+            }
+            else if (nextHeader == ExtensionHeaderTypes.ENCAPSULATING_SECURITY.value()) {
+                return ESP.parse(scope, env, enc);
+            }
+            return new ParseResult(false, env);
+        }
+    };
 
     /** IPv6 data format definition. **/
-    public static final Token DATA = seq(
-                                         pre(IPv4.FORMAT, eqNum(lastRef("nextheader"), con(Protocol.IP_IN_IP))),
-                                         pre(UDP.FORMAT, eqNum(lastRef("nextheader"), con(Protocol.UDP))),
-                                         pre(TCP.FORMAT, eqNum(lastRef("nextheader"), con(Protocol.TCP))),
-                                         pre(
-                                             def("ipv6data", sub(sub(PAYLOAD_SIZE, sub(currentOffset, offset(lastRef("destinationaddress")))), con(16))),
-                                                 not(isAnyOf(lastRef("nextheader"), con(Protocol.IP_IN_IP), con(Protocol.UDP), con(Protocol.TCP)))));
+    public static final Token DATA = cho(FRAGMENT, KNOWN_NEXT_HEADER, def("ipv6data", PAYLOAD_LEFT));
 
     /** IPv6 format definition. **/
     public static final Token FORMAT = str("IPV6PACKET", seq(HEADER, DATA));
 
     private IPv6() {
     }
-
-    /**
-     * Check if given value is equal to any of one or more values.
-     *
-     * @param value the value to check for
-     * @param values the values to compare to
-     * @return an expression which evaluates to true if the value is equal to any of the given values
-     */
-    private static Expression isAnyOf(final ValueExpression value, final ValueExpression... values) {
-        Expression expression = expFalse();
-        for (final ValueExpression val : values) {
-            expression = or(expression, eqNum(value, val));
-        }
-        return expression;
-    }
-
-    /**
-     * Used to check if given value represents an Extension Header field value.
-     *
-     * @param value the value to check
-     * @return an expression which evaluates to true if the value represents an Extension Header field value
-     */
-    private static Expression isExtensionHeader(final ValueExpression value) {
-        final ValueExpression nextHeader = lastRef("nextheader");
-        Expression expression = expFalse();
-        for (final ExtensionHeaderTypes headerType : ExtensionHeaderTypes.values()) {
-            expression = or(expression, eqNum(nextHeader, con(headerType.value())));
-        }
-        return expression;
-    }
 }
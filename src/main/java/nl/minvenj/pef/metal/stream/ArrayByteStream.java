@@ -29,6 +29,8 @@ import io.parsingdata.metal.data.ByteStream;
 public class ArrayByteStream implements ByteStream {
 
     private final byte[] _buffer;
+    private final int _offset;
+    private final int _length;
 
     /**
      * Construct a new ArrayByteStream wrapping an array of bytes.
@@ -36,15 +38,30 @@ public class ArrayByteStream implements ByteStream {
      * @param buffer the bytes to wrap
      */
     public ArrayByteStream(final byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Construct a new ArrayByteStream wrapping a range of an array of bytes, without copying it.
+     *
+     * Offset 0 of the stream is the start of the range.
+     *
+     * @param buffer the array containing the bytes to wrap
+     * @param offset the offset of the range in the array
+     * @param length the length of the range
+     */
+    public ArrayByteStream(final byte[] buffer, final int offset, final int length) {
         _buffer = buffer;
+        _offset = offset;
+        _length = length;
     }
 
     @Override
     public int read(final long offset, final byte[] buffer) throws IOException {
-        if (offset + buffer.length > _buffer.length) {
+        if (offset + buffer.length > _length) {
             return 0;
         }
-        System.arraycopy(_buffer, (int) offset, buffer, 0, buffer.length);
+        System.arraycopy(_buffer, _offset + (int) offset, buffer, 0, buffer.length);
         return buffer.length;
     }
 }
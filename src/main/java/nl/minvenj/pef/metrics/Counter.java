@@ -0,0 +1,74 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that can be incremented by many threads at once.
+ *
+ * The count is spread over a number of cells, each on its own cache line, and a thread always
+ * adds to the same cell. Threads counting at full rate then rarely touch the same cache line.
+ * Reading the count sums the cells, so it is only exact when no thread is counting.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class Counter {
+
+    private static final int CELLS = 16;
+    // 8 longs fill a cache line of 64 bytes
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray _cells = new AtomicLongArray(CELLS * PADDING);
+
+    /**
+     * Add one to the count.
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Add an amount to the count.
+     *
+     * @param amount the amount to add
+     */
+    public void add(final long amount) {
+        _cells.getAndAdd(cell(), amount);
+    }
+
+    /**
+     * Returns the count.
+     *
+     * @return the sum of all amounts added so far
+     */
+    public long get() {
+        long count = 0;
+        for (int i = 0; i < CELLS; i++) {
+            count += _cells.get(i * PADDING);
+        }
+        return count;
+    }
+
+    private static int cell() {
+        return (int) (Thread.currentThread().getId() & (CELLS - 1)) * PADDING;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(get());
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.metrics;
+
+/**
+ * A component that can record its own metrics, such as the hits of a cache.
+ *
+ * Components holding instrumented parts pass the registry on when it is set on them.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public interface Instrumented {
+
+    /**
+     * Record metrics in a registry from now on. Setting the same registry again has no further effect.
+     *
+     * @param metrics the registry to record in
+     */
+    void setMetrics(MetricsRegistry metrics);
+}
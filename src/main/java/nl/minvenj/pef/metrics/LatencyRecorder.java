@@ -0,0 +1,170 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds, for reading percentiles.
+ *
+ * Like HdrHistogram the buckets are log-linear: every power of two is split in 32 buckets
+ * of equal width, so a recorded latency is reported with a relative error of at most 1/32
+ * (about 3%), from 1 nanosecond up to hundreds of years. Recording only increments a few
+ * atomic longs and never allocates.
+ *
+ * Recorders may be used by many threads at once. The percentiles are computed from the
+ * buckets while recording goes on, so they are approximate when read at full rate.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class LatencyRecorder {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _total = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos the latency in nanoseconds, negative values are recorded as 0
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(nanos, 0);
+        _buckets.getAndIncrement(index(value));
+        _count.getAndIncrement();
+        _total.getAndAdd(value);
+        long max = _max.get();
+        while (value > max && !_max.compareAndSet(max, value)) {
+            max = _max.get();
+        }
+    }
+
+    /**
+     * Record the time passed since a start time.
+     *
+     * @param startNanos the start time, as returned by {@link System#nanoTime()}
+     */
+    public void recordSince(final long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /** @return the number of recorded latencies */
+    public long getCount() {
+        return _count.get();
+    }
+
+    /** @return the largest recorded latency in nanoseconds */
+    public long getMax() {
+        return _max.get();
+    }
+
+    /** @return the sum of the recorded latencies in nanoseconds */
+    public long getTotal() {
+        return _total.get();
+    }
+
+    /**
+     * Returns the number of recorded latencies up to a bound. Latencies in the bucket holding the
+     * bound are only counted when the whole bucket lies below it.
+     *
+     * @param nanos the bound in nanoseconds
+     * @return the number of latencies known to be at most the bound
+     */
+    public long getCountAtOrBelow(final long nanos) {
+        if (nanos < 0) {
+            return 0;
+        }
+        long count = 0;
+        final int last = index(nanos);
+        for (int i = 0; i <= last; i++) {
+            if (highestValue(i) <= nanos) {
+                count += _buckets.get(i);
+            }
+        }
+        return count;
+    }
+
+    /** @return the mean of the recorded latencies in nanoseconds, or 0 when nothing was recorded */
+    public double getMean() {
+        final long count = _count.get();
+        return count == 0 ? 0 : (double) _total.get() / count;
+    }
+
+    /**
+     * Returns the latency below which the given percentage of the recorded latencies lies.
+     *
+     * The latency is the highest value of the bucket the percentile falls in, so it is at most
+     * 1/32 larger than the recorded latency.
+     *
+     * @param percentile the percentile, in the range [0, 100]
+     * @return the latency at the percentile in nanoseconds, or 0 when nothing was recorded
+     */
+    public long getValueAtPercentile(final double percentile) {
+        long total = 0;
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = _buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int index(final long value) {
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        if (shift < 0) {
+            return (int) value;
+        }
+        return (shift + 1) << SUB_BUCKET_BITS | (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    }
+
+    static long highestValue(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        final long lowest = (long) (SUB_BUCKETS | index & (SUB_BUCKETS - 1)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "count: " + getCount() + ", mean: " + format(getMean()) + ", p50: " + format(getValueAtPercentile(50))
+               + ", p99: " + format(getValueAtPercentile(99)) + ", p99.9: " + format(getValueAtPercentile(99.9)) + ", max: " + format(getMax());
+    }
+
+    private static String format(final double nanos) {
+        return String.format(Locale.ROOT, "%.1fus", nanos / TimeUnit.MICROSECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes the metrics of a registry as attributes of an MBean, for reading with JMX clients
+ * such as JConsole or VisualVM.
+ *
+ * Every counter and gauge is an attribute with its own name. Every latency recorder is exposed as the
+ * attributes name.count, name.mean, name.p50, name.p99, name.p999 and name.max, with the
+ * latencies in nanoseconds. Metrics created after registration show up when a client reads
+ * the MBean info again.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class MetricsMBean implements DynamicMBean {
+
+    /** The object name the metrics are registered under by default. */
+    public static final String DEFAULT_NAME = "nl.minvenj.pef:type=Metrics";
+
+    private static final String[] STATISTICS = {"count", "mean", "p50", "p99", "p999", "max"};
+
+    private final MetricsRegistry _registry;
+
+    /**
+     * Create an MBean for a registry.
+     *
+     * @param registry the registry to expose
+     */
+    public MetricsMBean(final MetricsRegistry registry) {
+        _registry = registry;
+    }
+
+    /**
+     * Register the metrics of a registry with the platform MBean server.
+     *
+     * @param registry the registry to expose
+     * @param name the object name to register the metrics under
+     * @return the object name, to unregister the metrics with
+     * @throws JMException when the name is invalid or already in use
+     */
+    public static ObjectName register(final MetricsRegistry registry, final String name) throws JMException {
+        final ObjectName objectName = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(registry), objectName);
+        return objectName;
+    }
+
+    /**
+     * Unregister metrics from the platform MBean server.
+     *
+     * @param name the object name the metrics were registered under
+     * @throws JMException when nothing is registered under the name
+     */
+    public static void unregister(final ObjectName name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    }
+
+    @Override
+    public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+        final Counter counter = _registry.getCounters().get(attribute);
+        if (counter != null) {
+            return counter.get();
+        }
+        final Gauge gauge = _registry.getGauges().get(attribute);
+        if (gauge != null) {
+            return gauge.getValue();
+        }
+        final int separator = attribute.lastIndexOf('.');
+        final LatencyRecorder recorder = separator < 0 ? null : _registry.getRecorders().get(attribute.substring(0, separator));
+        if (recorder != null) {
+            switch (attribute.substring(separator + 1)) {
+                case "count":
+                    return recorder.getCount();
+                case "mean":
+                    return (long) recorder.getMean();
+                case "p50":
+                    return recorder.getValueAtPercentile(50);
+                case "p99":
+                    return recorder.getValueAtPercentile(99);
+                case "p999":
+                    return recorder.getValueAtPercentile(99.9);
+                case "max":
+                    return recorder.getMax();
+                default:
+                    break;
+            }
+        }
+        throw new AttributeNotFoundException("no metric named " + attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] attributes) {
+        final AttributeList list = new AttributeList();
+        for (final String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            }
+            catch (final AttributeNotFoundException e) {
+                // unknown attributes are left out, as specified by DynamicMBean
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(final String actionName, final Object[] params, final String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "metrics have no operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (final String name : _registry.getCounters().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", "counter " + name, true, false, false));
+        }
+        for (final String name : _registry.getGauges().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", "gauge " + name, true, false, false));
+        }
+        for (final Map.Entry<String, LatencyRecorder> entry : _registry.getRecorders().entrySet()) {
+            for (final String statistic : STATISTICS) {
+                final String description = statistic.equals("count") ? "number of timed packets" : statistic + " latency in nanoseconds";
+                attributes.add(new MBeanAttributeInfo(entry.getKey() + "." + statistic, "long", description, true, false, false));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "PEF pseudonymization metrics, timing one in " + _registry.getSampleInterval() + " packets",
+                             attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.metrics;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A named set of counters, gauges and latency recorders, describing where the time of pseudonymization goes.
+ *
+ * The components of the pseudonymization record into a registry when they are given one, and
+ * do nothing extra when they are not. To keep the cost low at full packet rate, packets are
+ * always counted, but the stages of only one in {@link #getSampleInterval()} packets are timed.
+ *
+ * Metrics are created on first use and then live as long as the registry. All methods may be
+ * called from any thread.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class MetricsRegistry {
+
+    /** The default number of packets per timed packet. */
+    public static final int DEFAULT_SAMPLE_INTERVAL = 64;
+
+    /** The time taken to parse a frame. */
+    public static final String STAGE_PARSE = "stage.parse";
+    /** The time taken to match the constraints of all transformers on a frame. */
+    public static final String STAGE_CONSTRAINT = "stage.constraint";
+    /** The prefix of the time taken by a single transformer, including its constraint matching. */
+    public static final String STAGE_TRANSFORMER = "stage.transformer.";
+    /** The time taken by the checksum transformers of a frame. */
+    public static final String STAGE_CHECKSUM = "stage.checksum";
+    /** The time taken to serialize a frame. */
+    public static final String STAGE_SERIALIZE = "stage.serialize";
+    /** The time taken to write a packet to the output. */
+    public static final String STAGE_WRITE = "stage.write";
+
+    /** The number of frames that were parsed and pseudonymized. */
+    public static final String PACKETS_PSEUDONYMIZED = "packets.pseudonymized";
+    /** The number of ethernet frames that could not be parsed and were passed through or dropped unchanged. */
+    public static final String PACKETS_UNPARSED = "packets.unparsed";
+    /** The number of frames that are not ethernet II frames. */
+    public static final String PACKETS_NON_ETHERNET = "packets.non_ethernet";
+    /** The number of fragments held back that were released before their datagram was complete, and so were not decided on the whole datagram. */
+    public static final String FRAGMENTS_UNDECIDED = "fragments.undecided";
+    /** The number of addresses found in the cache of the address pseudonymizers. */
+    public static final String FFX_CACHE_HITS = "ffx.cache_hits";
+    /** The number of addresses that had to be encrypted, because they were not in the cache. */
+    public static final String FFX_CACHE_MISSES = "ffx.cache_misses";
+
+    private final ConcurrentSkipListMap<String, Counter> _counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, Gauge> _gauges = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, LatencyRecorder> _recorders = new ConcurrentSkipListMap<>();
+    private final int _sampleInterval;
+
+    /**
+     * Create a new registry timing one in {@link #DEFAULT_SAMPLE_INTERVAL} packets.
+     */
+    public MetricsRegistry() {
+        this(DEFAULT_SAMPLE_INTERVAL);
+    }
+
+    /**
+     * Create a new registry.
+     *
+     * @param sampleInterval the number of packets per timed packet, a power of two; 1 times every packet
+     */
+    public MetricsRegistry(final int sampleInterval) {
+        if (sampleInterval < 1 || Integer.bitCount(sampleInterval) != 1) {
+            throw new IllegalArgumentException("sample interval must be a power of two: " + sampleInterval);
+        }
+        _sampleInterval = sampleInterval;
+    }
+
+    /**
+     * Returns the counter with the given name, creating it when it does not exist yet.
+     *
+     * @param name the name of the counter
+     * @return the counter
+     */
+    public Counter counter(final String name) {
+        final Counter counter = _counters.get(name);
+        if (counter != null) {
+            return counter;
+        }
+        final Counter created = new Counter();
+        final Counter existing = _counters.putIfAbsent(name, created);
+        return existing == null ? created : existing;
+    }
+
+    /**
+     * Register a gauge, replacing the gauge registered with the same name before.
+     *
+     * @param name the name of the gauge
+     * @param gauge the gauge
+     */
+    public void gauge(final String name, final Gauge gauge) {
+        _gauges.put(name, gauge);
+    }
+
+    /**
+     * Returns the latency recorder with the given name, creating it when it does not exist yet.
+     *
+     * @param name the name of the recorder
+     * @return the recorder
+     */
+    public LatencyRecorder recorder(final String name) {
+        final LatencyRecorder recorder = _recorders.get(name);
+        if (recorder != null) {
+            return recorder;
+        }
+        final LatencyRecorder created = new LatencyRecorder();
+        final LatencyRecorder existing = _recorders.putIfAbsent(name, created);
+        return existing == null ? created : existing;
+    }
+
+    /** @return the counters, sorted by name */
+    public SortedMap<String, Counter> getCounters() {
+        return Collections.unmodifiableSortedMap(_counters);
+    }
+
+    /** @return the gauges, sorted by name */
+    public SortedMap<String, Gauge> getGauges() {
+        return Collections.unmodifiableSortedMap(_gauges);
+    }
+
+    /** @return the latency recorders, sorted by name */
+    public SortedMap<String, LatencyRecorder> getRecorders() {
+        return Collections.unmodifiableSortedMap(_recorders);
+    }
+
+    /** @return the number of packets per timed packet */
+    public int getSampleInterval() {
+        return _sampleInterval;
+    }
+
+    /**
+     * Check whether a packet should be timed.
+     *
+     * @param packet the number of the packet, counted by the caller
+     * @return true for one in {@link #getSampleInterval()} packets
+     */
+    public boolean isSampled(final long packet) {
+        return (packet & (_sampleInterval - 1)) == 0;
+    }
+}
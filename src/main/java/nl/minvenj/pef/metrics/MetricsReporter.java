@@ -0,0 +1,177 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.metrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically logs the metrics of a registry and optionally appends them to a CSV file.
+ *
+ * The CSV file has one row per metric per report, with the columns time (milliseconds since the
+ * epoch), metric, count, mean, p50, p99, p999 and max, the latencies in nanoseconds. Counters and
+ * gauges only fill the count column. As the rows are named, metrics created later simply show up in later reports.
+ *
+ * Reports are made on a daemon thread of the reporter. Closing the reporter makes a last report.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class MetricsReporter implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(MetricsReporter.class.getName());
+    private static final String CSV_HEADER = "time,metric,count,mean,p50,p99,p999,max\n";
+
+    private final MetricsRegistry _registry;
+    private final Writer _csv;
+    private final ScheduledExecutorService _executor;
+
+    /**
+     * Create a reporter that only logs the metrics.
+     *
+     * @param registry the registry to report the metrics of
+     */
+    public MetricsReporter(final MetricsRegistry registry) {
+        _registry = registry;
+        _csv = null;
+        _executor = newExecutor();
+    }
+
+    /**
+     * Create a reporter that logs the metrics and appends them to a CSV file.
+     *
+     * @param registry the registry to report the metrics of
+     * @param csvFile the file to append the metrics to, the header is written when the file is new
+     * @throws IOException when the file can not be opened
+     */
+    public MetricsReporter(final MetricsRegistry registry, final File csvFile) throws IOException {
+        _registry = registry;
+        final boolean exists = csvFile.length() > 0;
+        _csv = new OutputStreamWriter(new FileOutputStream(csvFile, true), StandardCharsets.US_ASCII);
+        if (!exists) {
+            _csv.write(CSV_HEADER);
+            _csv.flush();
+        }
+        _executor = newExecutor();
+    }
+
+    /**
+     * Start reporting at a fixed interval.
+     *
+     * @param interval the time between reports
+     * @param unit the unit of the interval
+     */
+    public void start(final long interval, final TimeUnit unit) {
+        _executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, interval, interval, unit);
+    }
+
+    /**
+     * Report the current metrics.
+     */
+    public synchronized void report() {
+        final StringBuilder log = new StringBuilder("Metrics");
+        for (final Map.Entry<String, Counter> entry : _registry.getCounters().entrySet()) {
+            log.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        for (final Map.Entry<String, Gauge> entry : _registry.getGauges().entrySet()) {
+            log.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue().getValue());
+        }
+        for (final Map.Entry<String, LatencyRecorder> entry : _registry.getRecorders().entrySet()) {
+            log.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        LOGGER.info(log.toString());
+
+        if (_csv != null) {
+            try {
+                writeCsv(System.currentTimeMillis());
+            }
+            catch (final IOException e) {
+                LOGGER.log(Level.WARNING, "Writing the metrics to CSV failed.", e);
+            }
+        }
+    }
+
+    private void writeCsv(final long time) throws IOException {
+        final StringBuilder rows = new StringBuilder();
+        for (final Map.Entry<String, Counter> entry : _registry.getCounters().entrySet()) {
+            rows.append(time).append(',').append(entry.getKey()).append(',').append(entry.getValue().get()).append(",,,,,\n");
+        }
+        for (final Map.Entry<String, Gauge> entry : _registry.getGauges().entrySet()) {
+            rows.append(time).append(',').append(entry.getKey()).append(',').append(entry.getValue().getValue()).append(",,,,,\n");
+        }
+        for (final Map.Entry<String, LatencyRecorder> entry : _registry.getRecorders().entrySet()) {
+            final LatencyRecorder recorder = entry.getValue();
+            rows.append(time).append(',').append(entry.getKey())
+                .append(',').append(recorder.getCount())
+                .append(',').append(String.format(Locale.ROOT, "%.1f", recorder.getMean()))
+                .append(',').append(recorder.getValueAtPercentile(50))
+                .append(',').append(recorder.getValueAtPercentile(99))
+                .append(',').append(recorder.getValueAtPercentile(99.9))
+                .append(',').append(recorder.getMax())
+                .append('\n');
+        }
+        _csv.write(rows.toString());
+        _csv.flush();
+    }
+
+    /**
+     * Stop reporting, make a last report and close the CSV file.
+     *
+     * @throws IOException when closing the CSV file failed
+     */
+    @Override
+    public void close() throws IOException {
+        _executor.shutdownNow();
+        try {
+            _executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        report();
+        if (_csv != null) {
+            _csv.close();
+        }
+    }
+
+    private static ScheduledExecutorService newExecutor() {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "pef-metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics of a registry over HTTP in the Prometheus text format, using the HTTP server of the JDK.
+ *
+ * The metrics are served on {@link #PATH}, named after the metric in the registry with pef_ in front and
+ * the dots replaced by underscores:
+ * <ul>
+ *     <li>counters become Prometheus counters, with _total appended</li>
+ *     <li>gauges become Prometheus gauges</li>
+ *     <li>latency recorders become histograms in seconds, with buckets from 1 microsecond to 1 second;
+ *     they only count the timed packets, one in pef_metrics_sample_interval</li>
+ * </ul>
+ * The number of collections and the collection time of each garbage collector of the JVM are served as well.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class PrometheusEndpoint implements Closeable {
+
+    /** The path the metrics are served on. */
+    public static final String PATH = "/metrics";
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String PREFIX = "pef_";
+    private static final long[] BUCKETS = {
+        1000L, 2500L, 5000L, 10000L, 25000L, 50000L, 100000L, 250000L, 500000L,
+        1000000L, 2500000L, 5000000L, 10000000L, 25000000L, 50000000L, 100000000L, 250000000L, 500000000L, 1000000000L
+    };
+
+    private final HttpServer _server;
+
+    /**
+     * Start serving the metrics of a registry.
+     *
+     * @param registry the registry to serve
+     * @param address the address and port to listen on, port 0 picks a free port
+     * @throws IOException when the server can not listen on the address
+     */
+    public PrometheusEndpoint(final MetricsRegistry registry, final InetSocketAddress address) throws IOException {
+        _server = HttpServer.create(address, 0);
+        _server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                try {
+                    if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    final byte[] body = format(registry).getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                    if (exchange.getRequestMethod().equals("HEAD")) {
+                        exchange.sendResponseHeaders(200, -1);
+                        return;
+                    }
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (final OutputStream output = exchange.getResponseBody()) {
+                        output.write(body);
+                    }
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        _server.start();
+    }
+
+    /**
+     * Returns the address the endpoint listens on, with the actual port when port 0 was given.
+     *
+     * @return the address
+     */
+    public InetSocketAddress getAddress() {
+        return _server.getAddress();
+    }
+
+    /**
+     * Returns the metrics of a registry, and of the garbage collectors, in the Prometheus text format.
+     *
+     * @param registry the registry to format
+     * @return the metrics, one sample per line
+     */
+    public static String format(final MetricsRegistry registry) {
+        final StringBuilder text = new StringBuilder();
+        for (final Map.Entry<String, Counter> entry : registry.getCounters().entrySet()) {
+            final String name = name(entry.getKey()) + "_total";
+            header(text, name, "counter", entry.getKey());
+            text.append(name).append(' ').append(entry.getValue().get()).append('\n');
+        }
+        for (final Map.Entry<String, Gauge> entry : registry.getGauges().entrySet()) {
+            final String name = name(entry.getKey());
+            header(text, name, "gauge", entry.getKey());
+            text.append(name).append(' ').append(entry.getValue().getValue()).append('\n');
+        }
+        for (final Map.Entry<String, LatencyRecorder> entry : registry.getRecorders().entrySet()) {
+            final String name = name(entry.getKey()) + "_seconds";
+            final LatencyRecorder recorder = entry.getValue();
+            // read the count first, so no bucket is larger than the count
+            final long count = recorder.getCount();
+            header(text, name, "histogram", entry.getKey() + " of the timed packets");
+            for (final long bucket : BUCKETS) {
+                text.append(name).append("_bucket{le=\"").append(seconds(bucket)).append("\"} ").append(Math.min(count, recorder.getCountAtOrBelow(bucket))).append('\n');
+            }
+            text.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+            text.append(name).append("_sum ").append(seconds(recorder.getTotal())).append('\n');
+            text.append(name).append("_count ").append(count).append('\n');
+        }
+        header(text, PREFIX + "metrics_sample_interval", "gauge", "the number of packets per timed packet");
+        text.append(PREFIX).append("metrics_sample_interval ").append(registry.getSampleInterval()).append('\n');
+
+        header(text, PREFIX + "gc_collections_total", "counter", "garbage collections of the JVM");
+        for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            text.append(PREFIX).append("gc_collections_total{gc=\"").append(escape(collector.getName())).append("\"} ").append(Math.max(0, collector.getCollectionCount())).append('\n');
+        }
+        header(text, PREFIX + "gc_time_seconds_total", "counter", "time spent on garbage collection by the JVM");
+        for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            text.append(PREFIX).append("gc_time_seconds_total{gc=\"").append(escape(collector.getName())).append("\"} ")
+                .append(seconds(TimeUnit.MILLISECONDS.toNanos(Math.max(0, collector.getCollectionTime())))).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Stop serving the metrics.
+     */
+    @Override
+    public void close() {
+        _server.stop(0);
+    }
+
+    private static void header(final StringBuilder text, final String name, final String type, final String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    static String name(final String metric) {
+        final StringBuilder name = new StringBuilder(PREFIX);
+        for (int i = 0; i < metric.length(); i++) {
+            final char c = metric.charAt(i);
+            name.append(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_' ? c : '_');
+        }
+        return name.toString();
+    }
+
+    private static String seconds(final long nanos) {
+        return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+    }
+
+    private static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
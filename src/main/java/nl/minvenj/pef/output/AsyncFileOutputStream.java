@@ -0,0 +1,286 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.output;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An output stream to a file that is written by a thread of its own.
+ *
+ * Data is collected in one of a few large direct buffers. A full buffer is handed to the writer
+ * thread, which drains it to a file channel, while the next buffer is being filled; so processing
+ * and disk I/O overlap, and the producer only waits when all buffers are waiting to be written.
+ * The buffer size is a multiple of 4 KiB, so all writes except the last start and end on page
+ * boundaries. A failure of the writer thread is thrown by the next write, flush or close.
+ *
+ * This class is not thread safe.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class AsyncFileOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = 2 * 1024 * 1024;
+    public static final int DEFAULT_BUFFERS = 3;
+
+    private static final int ALIGNMENT = 4096;
+    // handed to the writer thread to make it stop
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final FileChannel _channel;
+    private final int _buffers;
+    private final BlockingQueue<ByteBuffer> _free;
+    private final BlockingQueue<ByteBuffer> _filled;
+    private final Thread _writer;
+    private ByteBuffer _current;
+    private boolean _closed;
+
+    private volatile IOException _failure;
+
+    /**
+     * Create a new file, or truncate an existing one, using 3 buffers of 2 MiB.
+     *
+     * @param file the file to write
+     * @throws IOException when the file could not be created
+     */
+    public AsyncFileOutputStream(final File file) throws IOException {
+        this(file, DEFAULT_BUFFERS, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create a new file, or truncate an existing one.
+     *
+     * @param file the file to write
+     * @param buffers the number of buffers, at least 2
+     * @param bufferSize the size of each buffer in bytes, rounded up to a multiple of 4 KiB
+     * @throws IOException when the file could not be created
+     */
+    public AsyncFileOutputStream(final File file, final int buffers, final int bufferSize) throws IOException {
+        this(file, 0, buffers, bufferSize);
+    }
+
+    /**
+     * Open a file to continue writing it at a position, using 3 buffers of 2 MiB. The file is
+     * truncated to the position.
+     *
+     * @param file the file to write
+     * @param position the length of the file to keep
+     * @throws IOException when the file could not be opened or truncated
+     */
+    public AsyncFileOutputStream(final File file, final long position) throws IOException {
+        this(file, position, DEFAULT_BUFFERS, DEFAULT_BUFFER_SIZE);
+    }
+
+    private AsyncFileOutputStream(final File file, final long position, final int buffers, final int bufferSize) throws IOException {
+        if (buffers < 2) {
+            throw new IllegalArgumentException("at least two buffers are required");
+        }
+        final int size = (Math.max(bufferSize, 1) + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        if (position == 0) {
+            _channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        }
+        else {
+            _channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            try {
+                if (_channel.size() < position) {
+                    throw new IOException("cannot continue writing " + file + " at " + position + ", it is only " + _channel.size() + " bytes");
+                }
+                _channel.truncate(position);
+                _channel.position(position);
+            }
+            catch (final IOException e) {
+                _channel.close();
+                throw e;
+            }
+        }
+        _buffers = buffers;
+        _free = new ArrayBlockingQueue<>(buffers);
+        // one more for the end marker
+        _filled = new ArrayBlockingQueue<>(buffers + 1);
+        _current = ByteBuffer.allocateDirect(size);
+        for (int i = 1; i < buffers; i++) {
+            _free.add(ByteBuffer.allocateDirect(size));
+        }
+        _writer = new Thread(new Writer(), "pef-output-writer-" + file.getName());
+        _writer.setDaemon(true);
+        _writer.start();
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        checkOpen();
+        if (!_current.hasRemaining()) {
+            handOver();
+        }
+        _current.put((byte) b);
+    }
+
+    @Override
+    public void write(final byte[] data, final int offset, final int length) throws IOException {
+        checkOpen();
+        int position = offset;
+        final int end = offset + length;
+        while (position < end) {
+            if (!_current.hasRemaining()) {
+                handOver();
+            }
+            final int count = Math.min(end - position, _current.remaining());
+            _current.put(data, position, count);
+            position += count;
+        }
+    }
+
+    /**
+     * Write all data written so far to the file, waiting for the writer thread.
+     *
+     * @throws IOException when writing to the file failed
+     */
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        if (_current.position() > 0) {
+            handOver();
+        }
+        // all buffers are free again once the writer has written everything
+        final ByteBuffer[] buffers = new ByteBuffer[_buffers - 1];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = take(_free);
+        }
+        for (final ByteBuffer buffer : buffers) {
+            _free.add(buffer);
+        }
+        checkFailure();
+    }
+
+    /**
+     * Write all data written so far to the file and force it to the disk.
+     *
+     * @throws IOException when writing to the file failed
+     */
+    public void sync() throws IOException {
+        flush();
+        _channel.force(false);
+    }
+
+    /**
+     * Write the remaining data, stop the writer thread and close the file.
+     *
+     * @throws IOException when writing to or closing the file failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        try {
+            if (_current.position() > 0 && _failure == null) {
+                _current.flip();
+                put(_filled, _current);
+            }
+            put(_filled, END);
+            _writer.join();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            _writer.interrupt();
+            throw new InterruptedIOException("interrupted while closing the output");
+        }
+        finally {
+            _channel.close();
+        }
+        checkFailure();
+    }
+
+    private void handOver() throws IOException {
+        _current.flip();
+        put(_filled, _current);
+        _current = take(_free);
+        checkFailure();
+    }
+
+    private void checkOpen() throws IOException {
+        if (_closed) {
+            throw new IOException("stream closed");
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        final IOException failure = _failure;
+        if (failure != null) {
+            throw new IOException("writing the output failed: " + failure.getMessage(), failure);
+        }
+    }
+
+    private static ByteBuffer take(final BlockingQueue<ByteBuffer> queue) throws InterruptedIOException {
+        try {
+            return queue.take();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the output");
+        }
+    }
+
+    private static void put(final BlockingQueue<ByteBuffer> queue, final ByteBuffer buffer) throws InterruptedIOException {
+        try {
+            queue.put(buffer);
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the output");
+        }
+    }
+
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final ByteBuffer buffer = _filled.take();
+                    if (buffer == END) {
+                        return;
+                    }
+                    // after a failure the buffers are only returned, so the producer does not block
+                    if (_failure == null) {
+                        try {
+                            while (buffer.hasRemaining()) {
+                                _channel.write(buffer);
+                            }
+                        }
+                        catch (final IOException e) {
+                            _failure = e;
+                        }
+                    }
+                    buffer.clear();
+                    _free.put(buffer);
+                }
+            }
+            catch (final InterruptedException e) {
+                _failure = new InterruptedIOException("interrupted while writing the output");
+            }
+        }
+    }
+}
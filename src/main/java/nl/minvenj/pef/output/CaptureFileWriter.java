@@ -0,0 +1,182 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.output;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes packets to a PCAP or PCAPNG file, without going through libpcap.
+ *
+ * Records are collected in a large direct buffer that is written to a file channel when it is
+ * full or when the flush interval has passed, so there is one system call per buffer instead of
+ * one native call per packet. A record that does not fit in the buffer at all is written with a
+ * single gathering write.
+ *
+ * This class is not thread safe.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class CaptureFileWriter implements Closeable {
+
+    private final Path _path;
+    private final FileChannel _channel;
+    private final CaptureFormat _format;
+    private final FsyncPolicy _fsyncPolicy;
+    private final long _flushInterval;
+    private final ByteBuffer _buffer;
+    private final ByteBuffer _recordHeader = ByteBuffer.allocateDirect(CaptureFormat.MAX_RECORD_OVERHEAD).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer _recordTrailer = ByteBuffer.allocateDirect(CaptureFormat.MAX_RECORD_OVERHEAD).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer[] _gather = new ByteBuffer[3];
+
+    private long _lastFlush = System.nanoTime();
+    private long _size;
+    private long _records;
+    private boolean _closed;
+
+    /**
+     * Create a new file, or truncate an existing one, and write the file header.
+     *
+     * @param path the file to write
+     * @param linkType the link type of the frames, 1 for ethernet
+     * @param snapLength the maximum length of the frames
+     * @param settings the format, buffer size, flush interval and fsync policy to use
+     * @throws IOException when the file could not be created
+     */
+    public CaptureFileWriter(final Path path, final int linkType, final int snapLength, final CaptureWriterSettings settings) throws IOException {
+        _path = path;
+        _format = settings.getFormat();
+        _fsyncPolicy = settings.getFsyncPolicy();
+        _flushInterval = settings.getFlushInterval() < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(settings.getFlushInterval());
+        _buffer = ByteBuffer.allocateDirect(settings.getBufferSize()).order(ByteOrder.LITTLE_ENDIAN);
+        _channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        _format.writeFileHeader(_buffer, linkType, snapLength);
+        _size = _buffer.position();
+    }
+
+    /**
+     * Write a packet.
+     *
+     * @param seconds the capture time in seconds since the epoch
+     * @param nanos the nanoseconds part of the capture time
+     * @param wireLength the length of the packet on the wire
+     * @param data the array holding the frame
+     * @param offset the offset of the frame in the array
+     * @param length the length of the frame
+     * @throws IOException when writing to the file failed
+     */
+    public void write(final long seconds, final int nanos, final int wireLength, final byte[] data, final int offset, final int length) throws IOException {
+        final int recordLength = _format.getRecordLength(length);
+        if (recordLength > _buffer.remaining()) {
+            writeBuffer();
+        }
+        if (recordLength > _buffer.remaining()) {
+            writeLargeRecord(seconds, nanos, wireLength, data, offset, length);
+        }
+        else {
+            _format.writeRecordHeader(_buffer, seconds, nanos, length, wireLength);
+            _buffer.put(data, offset, length);
+            _format.writeRecordTrailer(_buffer, length);
+        }
+        _size += recordLength;
+        _records++;
+        if (_flushInterval >= 0 && System.nanoTime() - _lastFlush >= _flushInterval) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the buffered records to the file, and force them to disk when the fsync policy says so.
+     *
+     * @throws IOException when writing to the file failed
+     */
+    public void flush() throws IOException {
+        writeBuffer();
+        if (_fsyncPolicy == FsyncPolicy.ON_FLUSH) {
+            _channel.force(false);
+        }
+        _lastFlush = System.nanoTime();
+    }
+
+    /**
+     * Returns the size of the file, including the buffered records.
+     *
+     * @return the size in bytes
+     */
+    public long getSize() {
+        return _size;
+    }
+
+    public long getRecords() {
+        return _records;
+    }
+
+    public Path getPath() {
+        return _path;
+    }
+
+    public CaptureFormat getFormat() {
+        return _format;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        try {
+            writeBuffer();
+            if (_fsyncPolicy != FsyncPolicy.NEVER) {
+                _channel.force(true);
+            }
+        }
+        finally {
+            _channel.close();
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        _buffer.flip();
+        while (_buffer.hasRemaining()) {
+            _channel.write(_buffer);
+        }
+        _buffer.clear();
+    }
+
+    private void writeLargeRecord(final long seconds, final int nanos, final int wireLength, final byte[] data, final int offset, final int length) throws IOException {
+        _recordHeader.clear();
+        _format.writeRecordHeader(_recordHeader, seconds, nanos, length, wireLength);
+        _recordHeader.flip();
+        _recordTrailer.clear();
+        _format.writeRecordTrailer(_recordTrailer, length);
+        _recordTrailer.flip();
+        final ByteBuffer frame = ByteBuffer.wrap(data, offset, length);
+        _gather[0] = _recordHeader;
+        _gather[1] = frame;
+        _gather[2] = _recordTrailer;
+        while (_recordHeader.hasRemaining() || frame.hasRemaining() || _recordTrailer.hasRemaining()) {
+            _channel.write(_gather);
+        }
+        _gather[1] = null;
+    }
+}
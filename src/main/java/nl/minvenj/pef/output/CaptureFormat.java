@@ -0,0 +1,150 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.output;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The capture file formats that can be written, and how their headers and records are laid out.
+ *
+ * Both formats are written in the byte order of the buffers passed in, with microsecond timestamps.
+ * Readers determine the byte order from the magic number.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public enum CaptureFormat {
+
+    /** Classic libpcap format. */
+    PCAP {
+        @Override
+        public void writeFileHeader(final ByteBuffer buffer, final int linkType, final int snapLength) {
+            buffer.putInt(0xA1B2C3D4)
+                  .putShort((short) 2)
+                  .putShort((short) 4)
+                  .putInt(0)
+                  .putInt(0)
+                  .putInt(snapLength)
+                  .putInt(linkType);
+        }
+
+        @Override
+        public int getRecordLength(final int frameLength) {
+            return 16 + frameLength;
+        }
+
+        @Override
+        public void writeRecordHeader(final ByteBuffer buffer, final long seconds, final int nanos, final int frameLength, final int wireLength) {
+            buffer.putInt((int) seconds)
+                  .putInt(nanos / 1000)
+                  .putInt(frameLength)
+                  .putInt(Math.max(wireLength, frameLength));
+        }
+
+        @Override
+        public void writeRecordTrailer(final ByteBuffer buffer, final int frameLength) {
+        }
+    },
+
+    /** PCAP next generation, with a single section and interface, and a packet per enhanced packet block. */
+    PCAPNG {
+        @Override
+        public void writeFileHeader(final ByteBuffer buffer, final int linkType, final int snapLength) {
+            // section header block
+            buffer.putInt(0x0A0D0D0A)
+                  .putInt(28)
+                  .putInt(0x1A2B3C4D)
+                  .putShort((short) 1)
+                  .putShort((short) 0)
+                  .putLong(-1)
+                  .putInt(28);
+            // interface description block
+            buffer.putInt(0x00000001)
+                  .putInt(20)
+                  .putShort((short) linkType)
+                  .putShort((short) 0)
+                  .putInt(snapLength)
+                  .putInt(20);
+        }
+
+        @Override
+        public int getRecordLength(final int frameLength) {
+            return 32 + padding(frameLength) + frameLength;
+        }
+
+        @Override
+        public void writeRecordHeader(final ByteBuffer buffer, final long seconds, final int nanos, final int frameLength, final int wireLength) {
+            final long micros = seconds * 1000000 + nanos / 1000;
+            buffer.putInt(0x00000006)
+                  .putInt(getRecordLength(frameLength))
+                  .putInt(0)
+                  .putInt((int) (micros >>> 32))
+                  .putInt((int) micros)
+                  .putInt(frameLength)
+                  .putInt(Math.max(wireLength, frameLength));
+        }
+
+        @Override
+        public void writeRecordTrailer(final ByteBuffer buffer, final int frameLength) {
+            for (int i = padding(frameLength); i > 0; i--) {
+                buffer.put((byte) 0);
+            }
+            buffer.putInt(getRecordLength(frameLength));
+        }
+
+        private int padding(final int frameLength) {
+            return -frameLength & 3;
+        }
+    };
+
+    /** The largest number of bytes {@link #writeRecordHeader} and {@link #writeRecordTrailer} write. */
+    public static final int MAX_RECORD_OVERHEAD = 32;
+
+    /**
+     * Write the header of a file, which precedes all records.
+     *
+     * @param buffer the buffer to write to
+     * @param linkType the link type of the frames, 1 for ethernet
+     * @param snapLength the maximum length of the frames
+     */
+    public abstract void writeFileHeader(ByteBuffer buffer, int linkType, int snapLength);
+
+    /**
+     * Returns the number of bytes a record takes in the file, including the frame.
+     *
+     * @param frameLength the length of the frame
+     * @return the length of the record
+     */
+    public abstract int getRecordLength(int frameLength);
+
+    /**
+     * Write the part of a record that precedes the frame.
+     *
+     * @param buffer the buffer to write to
+     * @param seconds the capture time in seconds since the epoch
+     * @param nanos the nanoseconds part of the capture time
+     * @param frameLength the length of the frame
+     * @param wireLength the length of the packet on the wire
+     */
+    public abstract void writeRecordHeader(ByteBuffer buffer, long seconds, int nanos, int frameLength, int wireLength);
+
+    /**
+     * Write the part of a record that follows the frame.
+     *
+     * @param buffer the buffer to write to
+     * @param frameLength the length of the frame
+     */
+    public abstract void writeRecordTrailer(ByteBuffer buffer, int frameLength);
+}
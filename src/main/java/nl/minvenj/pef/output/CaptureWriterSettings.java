@@ -0,0 +1,156 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.output;
+
+/**
+ * The settings of a {@link CaptureFileWriter} or {@link RotatingCaptureWriter}.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class CaptureWriterSettings {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    private CaptureFormat _format = CaptureFormat.PCAP;
+    private int _bufferSize = DEFAULT_BUFFER_SIZE;
+    private long _flushInterval = DEFAULT_FLUSH_INTERVAL;
+    private FsyncPolicy _fsyncPolicy = FsyncPolicy.ON_CLOSE;
+    private long _rotateSize;
+    private long _rotateTime;
+    private int _keepFiles;
+
+    /**
+     * Set the format of the files, PCAP by default.
+     *
+     * @param format the format
+     * @return these settings
+     */
+    public CaptureWriterSettings format(final CaptureFormat format) {
+        _format = format;
+        return this;
+    }
+
+    /**
+     * Set the size of the buffer records are collected in before they are written, 1 MiB by default.
+     *
+     * @param bufferSize the buffer size in bytes
+     * @return these settings
+     */
+    public CaptureWriterSettings bufferSize(final int bufferSize) {
+        if (bufferSize < CaptureFormat.MAX_RECORD_OVERHEAD * 2) {
+            throw new IllegalArgumentException("buffer size too small: " + bufferSize);
+        }
+        _bufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * Set the maximum time records stay in the buffer, 1 second by default. The interval is checked
+     * when a record is written.
+     *
+     * @param flushInterval the interval in milliseconds, or a negative value to only write when the buffer is full
+     * @return these settings
+     */
+    public CaptureWriterSettings flushInterval(final long flushInterval) {
+        _flushInterval = flushInterval;
+        return this;
+    }
+
+    /**
+     * Set when the data is written through to the disk, {@link FsyncPolicy#ON_CLOSE} by default.
+     *
+     * @param fsyncPolicy the policy
+     * @return these settings
+     */
+    public CaptureWriterSettings fsync(final FsyncPolicy fsyncPolicy) {
+        _fsyncPolicy = fsyncPolicy;
+        return this;
+    }
+
+    /**
+     * Start a new file when the current one would grow beyond a size.
+     *
+     * @param rotateSize the maximum file size in bytes, or 0 to not rotate by size
+     * @return these settings
+     */
+    public CaptureWriterSettings rotateSize(final long rotateSize) {
+        _rotateSize = rotateSize;
+        return this;
+    }
+
+    /**
+     * Start a new file when the packets span more than a period of capture time.
+     *
+     * @param rotateTime the maximum period in milliseconds, or 0 to not rotate by time
+     * @return these settings
+     */
+    public CaptureWriterSettings rotateTime(final long rotateTime) {
+        _rotateTime = rotateTime;
+        return this;
+    }
+
+    /**
+     * Keep only the newest rotated files, deleting the oldest one when a new file is started.
+     *
+     * @param keepFiles the number of files to keep, including the one being written, or 0 to keep all
+     * @return these settings
+     */
+    public CaptureWriterSettings keepFiles(final int keepFiles) {
+        if (keepFiles < 0) {
+            throw new IllegalArgumentException("number of files to keep must not be negative: " + keepFiles);
+        }
+        _keepFiles = keepFiles;
+        return this;
+    }
+
+    public CaptureFormat getFormat() {
+        return _format;
+    }
+
+    public int getBufferSize() {
+        return _bufferSize;
+    }
+
+    public long getFlushInterval() {
+        return _flushInterval;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return _fsyncPolicy;
+    }
+
+    public long getRotateSize() {
+        return _rotateSize;
+    }
+
+    public long getRotateTime() {
+        return _rotateTime;
+    }
+
+    public int getKeepFiles() {
+        return _keepFiles;
+    }
+
+    /**
+     * Returns whether these settings rotate the output over multiple files.
+     *
+     * @return true when rotating by size or time
+     */
+    public boolean isRotating() {
+        return _rotateSize > 0 || _rotateTime > 0;
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.output;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * The state of a pseudonymization run at a moment all output up to then was on disk.
+ *
+ * A checkpoint holds the offset in the input up to which all records were written, the length of
+ * the output at that moment and a checksum of the end of that output, and the fingerprint of the
+ * configuration that was used. Resuming continues reading the input at the offset and writing the
+ * output at the length, after checking the configuration and the output are the same.
+ *
+ * A checkpoint is stored as a properties file next to the output, see {@link #fileFor(File)}. It is
+ * replaced atomically, so after a crash there is either the previous or the new checkpoint.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class Checkpoint {
+
+    /** The extension of checkpoint files, appended to the name of the output file. */
+    public static final String EXTENSION = ".checkpoint";
+
+    private final long _inputOffset;
+    private final long _sectionOffset;
+    private final long _inputLength;
+    private final long _outputLength;
+    private final long _outputChecksum;
+    private final String _fingerprint;
+
+    /**
+     * Create a new checkpoint.
+     *
+     * @param inputOffset the offset in the input up to which all records have been written
+     * @param sectionOffset the offset in the input of the section the next record belongs to, such as a PCAPNG section header block
+     * @param inputLength the length of the input file
+     * @param outputLength the length of the output up to the checkpoint
+     * @param outputChecksum the checksum of the end of the output up to the checkpoint
+     * @param fingerprint the fingerprint of the configuration
+     */
+    public Checkpoint(final long inputOffset, final long sectionOffset, final long inputLength, final long outputLength, final long outputChecksum, final String fingerprint) {
+        _inputOffset = inputOffset;
+        _sectionOffset = sectionOffset;
+        _inputLength = inputLength;
+        _outputLength = outputLength;
+        _outputChecksum = outputChecksum;
+        _fingerprint = fingerprint;
+    }
+
+    /**
+     * Returns the checkpoint file of an output file.
+     *
+     * @param output the output file
+     * @return the checkpoint file next to it
+     */
+    public static File fileFor(final File output) {
+        return new File(output.getPath() + EXTENSION);
+    }
+
+    /**
+     * Read a checkpoint file.
+     *
+     * @param file the checkpoint file
+     * @return the checkpoint
+     * @throws IOException when the file can not be read or is not a valid checkpoint
+     */
+    public static Checkpoint read(final File file) throws IOException {
+        final Properties properties = new Properties();
+        try (final InputStream input = new FileInputStream(file)) {
+            properties.load(input);
+        }
+        try {
+            return new Checkpoint(Long.parseLong(properties.getProperty("input_offset")),
+                                  Long.parseLong(properties.getProperty("section_offset")),
+                                  Long.parseLong(properties.getProperty("input_length")),
+                                  Long.parseLong(properties.getProperty("output_length")),
+                                  Long.parseLong(properties.getProperty("output_checksum")),
+                                  properties.getProperty("fingerprint", ""));
+        }
+        catch (final NumberFormatException e) {
+            throw new IOException("invalid checkpoint " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Write the checkpoint, replacing the file atomically.
+     *
+     * @param file the checkpoint file
+     * @throws IOException when the checkpoint could not be written
+     */
+    public void write(final File file) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty("input_offset", Long.toString(_inputOffset));
+        properties.setProperty("section_offset", Long.toString(_sectionOffset));
+        properties.setProperty("input_length", Long.toString(_inputLength));
+        properties.setProperty("output_length", Long.toString(_outputLength));
+        properties.setProperty("output_checksum", Long.toString(_outputChecksum));
+        properties.setProperty("fingerprint", _fingerprint);
+
+        final File temporary = new File(file.getPath() + ".tmp");
+        try (final FileOutputStream output = new FileOutputStream(temporary)) {
+            properties.store(output, "pseudonymization checkpoint");
+            output.getFD().sync();
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public long getInputOffset() {
+        return _inputOffset;
+    }
+
+    public long getSectionOffset() {
+        return _sectionOffset;
+    }
+
+    public long getInputLength() {
+        return _inputLength;
+    }
+
+    public long getOutputLength() {
+        return _outputLength;
+    }
+
+    public long getOutputChecksum() {
+        return _outputChecksum;
+    }
+
+    public String getFingerprint() {
+        return _fingerprint;
+    }
+}
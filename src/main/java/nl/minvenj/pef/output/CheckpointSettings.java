@@ -0,0 +1,77 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.output;
+
+/**
+ * The settings of the checkpoints written by a {@link CheckpointingOutputStream}.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class CheckpointSettings {
+
+    public static final long DEFAULT_INTERVAL = 1024L * 1024 * 1024;
+
+    private final String _fingerprint;
+    private long _interval = DEFAULT_INTERVAL;
+    private boolean _resume;
+
+    /**
+     * Create new settings.
+     *
+     * @param fingerprint the fingerprint of the configuration, which must be the same to resume (it is written to the
+     *                    checkpoint as is, so it must not reveal secrets such as keys)
+     */
+    public CheckpointSettings(final String fingerprint) {
+        _fingerprint = fingerprint;
+    }
+
+    /**
+     * Set the amount of input after which a checkpoint is written, 1 GiB by default.
+     *
+     * @param interval the interval in bytes of input
+     * @return these settings
+     */
+    public CheckpointSettings interval(final long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("checkpoint interval must be positive: " + interval);
+        }
+        _interval = interval;
+        return this;
+    }
+
+    /**
+     * Set whether to continue from an existing checkpoint, false by default.
+     *
+     * @param resume true to resume
+     * @return these settings
+     */
+    public CheckpointSettings resume(final boolean resume) {
+        _resume = resume;
+        return this;
+    }
+
+    public String getFingerprint() {
+        return _fingerprint;
+    }
+
+    public long getInterval() {
+        return _interval;
+    }
+
+    public boolean isResume() {
+        return _resume;
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.output;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An output stream to a file that writes {@link Checkpoint}s while the output is produced, and
+ * can continue the output of an interrupted run from its last checkpoint.
+ *
+ * The producer calls {@link #commit(long, long)} after writing everything that belongs to the
+ * input up to an offset. Once the configured amount of input has been committed since the last
+ * checkpoint, the output is forced to the disk and a new checkpoint is written next to it. When
+ * resuming, the output is truncated to the length in the checkpoint, after checking that the
+ * configuration, the length of the input and the end of the output are the same as when the
+ * checkpoint was written.
+ *
+ * Without settings, or when resuming without a checkpoint, the output is written from the start.
+ * After {@link #finish()} the checkpoint is removed, as the output is complete.
+ *
+ * This class is not thread safe.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class CheckpointingOutputStream extends OutputStream {
+
+    private static final Logger LOGGER = Logger.getLogger(CheckpointingOutputStream.class.getName());
+    // the amount of output at the end covered by the checksum of a checkpoint
+    private static final int CHECKSUM_LENGTH = 64 * 1024;
+
+    private final AsyncFileOutputStream _output;
+    private final File _file;
+    private final File _checkpointFile;
+    private final CheckpointSettings _settings;
+    private final long _inputLength;
+    private final Checkpoint _resumed;
+    private long _written;
+    private long _lastCheckpoint;
+
+    /**
+     * Open the output of an input file.
+     *
+     * @param file the output file
+     * @param input the input file the output is produced from
+     * @param settings the checkpoint settings, or null to not write checkpoints
+     * @throws IOException when the output could not be opened, or the checkpoint does not match the files
+     */
+    public CheckpointingOutputStream(final File file, final File input, final CheckpointSettings settings) throws IOException {
+        _file = file;
+        _checkpointFile = Checkpoint.fileFor(file);
+        _settings = settings;
+        _inputLength = input.length();
+
+        if (settings != null && settings.isResume() && _checkpointFile.isFile()) {
+            _resumed = Checkpoint.read(_checkpointFile);
+            validate(_resumed);
+            _output = new AsyncFileOutputStream(file, _resumed.getOutputLength());
+            _written = _resumed.getOutputLength();
+            _lastCheckpoint = _resumed.getInputOffset();
+            LOGGER.info("Resuming " + file + " at offset " + _resumed.getInputOffset() + " of " + input + ".");
+        }
+        else {
+            _resumed = null;
+            _output = new AsyncFileOutputStream(file);
+            if (_checkpointFile.exists() && !_checkpointFile.delete()) {
+                throw new IOException("could not remove the stale checkpoint " + _checkpointFile);
+            }
+        }
+    }
+
+    /**
+     * Returns the checkpoint the output continues from.
+     *
+     * @return the checkpoint, or null when the output was written from the start
+     */
+    public Checkpoint getResumed() {
+        return _resumed;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        _output.write(b);
+        _written++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        _output.write(b, off, len);
+        _written += len;
+    }
+
+    /**
+     * Mark everything written so far as the output of the input up to an offset, writing a
+     * checkpoint when the interval has passed since the last one.
+     *
+     * @param inputOffset the offset in the input up to which all output has been written
+     * @param sectionOffset the offset in the input of the section the next input belongs to
+     * @throws IOException when writing the output or the checkpoint failed
+     */
+    public void commit(final long inputOffset, final long sectionOffset) throws IOException {
+        if (_settings == null || inputOffset - _lastCheckpoint < _settings.getInterval()) {
+            return;
+        }
+        _output.sync();
+        new Checkpoint(inputOffset, sectionOffset, _inputLength, _written, tailChecksum(_file, _written), _settings.getFingerprint()).write(_checkpointFile);
+        _lastCheckpoint = inputOffset;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        _output.flush();
+    }
+
+    /**
+     * Close the output, keeping the last checkpoint so the output can be resumed.
+     *
+     * @throws IOException when writing the output failed
+     */
+    @Override
+    public void close() throws IOException {
+        _output.close();
+    }
+
+    /**
+     * Close the complete output and remove its checkpoint.
+     *
+     * @throws IOException when writing the output or removing the checkpoint failed
+     */
+    public void finish() throws IOException {
+        _output.close();
+        if (_checkpointFile.exists() && !_checkpointFile.delete()) {
+            throw new IOException("could not remove the checkpoint " + _checkpointFile);
+        }
+    }
+
+    private void validate(final Checkpoint checkpoint) throws IOException {
+        if (!checkpoint.getFingerprint().equals(_settings.getFingerprint())) {
+            throw new IOException("cannot resume " + _file + ": the checkpoint was written with another configuration");
+        }
+        if (checkpoint.getInputLength() != _inputLength) {
+            throw new IOException("cannot resume " + _file + ": the input is " + _inputLength + " bytes, but was " + checkpoint.getInputLength() + " bytes");
+        }
+        if (_file.length() < checkpoint.getOutputLength()) {
+            throw new IOException("cannot resume " + _file + ": the output is shorter than at the checkpoint");
+        }
+        if (tailChecksum(_file, checkpoint.getOutputLength()) != checkpoint.getOutputChecksum()) {
+            throw new IOException("cannot resume " + _file + ": the output differs from the output at the checkpoint");
+        }
+    }
+
+    private static long tailChecksum(final File file, final long length) throws IOException {
+        final byte[] tail = new byte[(int) Math.min(CHECKSUM_LENGTH, length)];
+        try (final RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            input.seek(length - tail.length);
+            input.readFully(tail);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(tail, 0, tail.length);
+        return crc.getValue();
+    }
+}
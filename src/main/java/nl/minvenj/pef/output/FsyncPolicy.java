@@ -0,0 +1,33 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.output;
+
+/**
+ * When a capture writer asks the operating system to write its data through to the disk.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public enum FsyncPolicy {
+
+    /** Leave it to the operating system. */
+    NEVER,
+
+    /** After every flush, so at most a flush interval of data is lost when the machine fails. */
+    ON_FLUSH,
+
+    /** When a file is closed, so every finished file is complete on disk. */
+    ON_CLOSE
+}
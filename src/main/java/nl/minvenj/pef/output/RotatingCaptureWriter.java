@@ -0,0 +1,236 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.output;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes packets to a series of capture files, starting a new file when the current one reaches
+ * the size or time limit of the settings.
+ *
+ * Without limits all packets are written to the destination. With limits the files are named after
+ * the destination with a sequence number added, e.g. capture_00000.pcap, capture_00001.pcap and so
+ * on. The time limit applies to the capture timestamps of the packets, so reading an existing file
+ * rotates the same as capturing it did.
+ *
+ * A rotated file is finished (its buffer written, forced to disk and closed) on a background thread,
+ * so the thread writing the packets only has to create the next file. When the settings limit the
+ * number of files to keep, the oldest file is deleted after the next one has been finished. A failure
+ * on the background thread is reported by the next call to write, rotate or close.
+ *
+ * This class is not thread safe.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class RotatingCaptureWriter implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(RotatingCaptureWriter.class.getName());
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    private final Path _destination;
+    private final int _linkType;
+    private final int _snapLength;
+    private final CaptureWriterSettings _settings;
+    private final List<Path> _files = new ArrayList<>();
+
+    private CaptureFileWriter _current;
+    private int _index;
+    private long _fileStart = -1;
+    private ExecutorService _finisher;
+    private volatile IOException _failure;
+
+    /**
+     * Create a new writer, creating the first file.
+     *
+     * @param destination the file to write to, or to derive the names of the rotated files from
+     * @param linkType the link type of the frames, 1 for ethernet
+     * @param snapLength the maximum length of the frames
+     * @param settings the settings of the files and the rotation limits
+     * @throws IOException when the first file could not be created
+     */
+    public RotatingCaptureWriter(final Path destination, final int linkType, final int snapLength, final CaptureWriterSettings settings) throws IOException {
+        _destination = destination;
+        _linkType = linkType;
+        _snapLength = snapLength;
+        _settings = settings;
+        _current = open();
+    }
+
+    /**
+     * Write a packet, first starting a new file when the packet would exceed a limit of the current one.
+     *
+     * @param seconds the capture time in seconds since the epoch
+     * @param nanos the nanoseconds part of the capture time
+     * @param wireLength the length of the packet on the wire
+     * @param data the array holding the frame
+     * @param offset the offset of the frame in the array
+     * @param length the length of the frame
+     * @throws IOException when writing to the file or rotating failed
+     */
+    public void write(final long seconds, final int nanos, final int wireLength, final byte[] data, final int offset, final int length) throws IOException {
+        checkFailure();
+        final long time = seconds * MILLIS_PER_SECOND + nanos / 1000000;
+        if (mustRotate(time, length)) {
+            rotate();
+        }
+        if (_fileStart < 0) {
+            _fileStart = time;
+        }
+        _current.write(seconds, nanos, wireLength, data, offset, length);
+    }
+
+    /**
+     * Write the buffered records of the current file to disk.
+     *
+     * @throws IOException when writing to the file failed
+     */
+    public void flush() throws IOException {
+        _current.flush();
+    }
+
+    /**
+     * Start the next file and finish the current one on the background thread.
+     *
+     * @throws IOException when creating the file failed, or finishing an earlier file failed
+     */
+    public void rotate() throws IOException {
+        checkFailure();
+        final CaptureFileWriter finished = _current;
+        _current = open();
+        _fileStart = -1;
+        final Path expired = _settings.getKeepFiles() > 0 && _files.size() > _settings.getKeepFiles() ? _files.remove(0) : null;
+        if (_finisher == null) {
+            _finisher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "pef-output-finisher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        // the files are finished in order, so an expired file has always been closed before it is deleted
+        _finisher.execute(new Runnable() {
+            @Override
+            public void run() {
+                finish(finished, expired);
+            }
+        });
+    }
+
+    /**
+     * Returns the files written so far and not deleted because of the limit on the number of files,
+     * including the current one.
+     *
+     * @return the paths of the files, in the order they were created
+     */
+    public List<Path> getFiles() {
+        return Collections.unmodifiableList(_files);
+    }
+
+    /**
+     * Close the current file and wait until the rotated files have been finished.
+     *
+     * @throws IOException when closing or finishing a file failed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            _current.close();
+        }
+        finally {
+            if (_finisher != null) {
+                _finisher.shutdown();
+                try {
+                    while (!_finisher.awaitTermination(1, TimeUnit.MINUTES)) {
+                        LOGGER.warning("Still waiting for the rotated output files to be finished.");
+                    }
+                }
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while finishing the output files", e);
+                }
+            }
+        }
+        checkFailure();
+    }
+
+    private void finish(final CaptureFileWriter writer, final Path expired) {
+        try {
+            writer.close();
+            if (expired != null) {
+                Files.deleteIfExists(expired);
+            }
+        }
+        catch (final IOException e) {
+            LOGGER.log(Level.SEVERE, "Finishing output file " + writer.getPath() + " failed.", e);
+            _failure = e;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        final IOException failure = _failure;
+        if (failure != null) {
+            throw new IOException("finishing an output file failed: " + failure.getMessage(), failure);
+        }
+    }
+
+    private boolean mustRotate(final long time, final int length) {
+        if (_current.getRecords() == 0) {
+            return false;
+        }
+        if (_settings.getRotateSize() > 0 && _current.getSize() + _settings.getFormat().getRecordLength(length) > _settings.getRotateSize()) {
+            return true;
+        }
+        return _settings.getRotateTime() > 0 && time - _fileStart >= _settings.getRotateTime();
+    }
+
+    private CaptureFileWriter open() throws IOException {
+        final Path path = _settings.isRotating() ? rotatedPath(_destination, _index) : _destination;
+        final CaptureFileWriter writer = new CaptureFileWriter(path, _linkType, _snapLength, _settings);
+        _files.add(path);
+        _index++;
+        return writer;
+    }
+
+    /**
+     * Returns the name of a rotated file, the destination with the index inserted before the extension.
+     *
+     * @param destination the destination the files are named after
+     * @param index the index of the file
+     * @return the path of the file
+     */
+    static Path rotatedPath(final Path destination, final int index) {
+        final String name = destination.getFileName().toString();
+        final int dot = name.lastIndexOf('.');
+        final String base = dot > 0 ? name.substring(0, dot) : name;
+        final String extension = dot > 0 ? name.substring(dot) : "";
+        return destination.resolveSibling(String.format(Locale.ROOT, "%s_%05d%s", base, index, extension));
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pipeline;
+
+import java.io.IOException;
+
+import nl.minvenj.pef.output.RotatingCaptureWriter;
+
+/**
+ * Writes the frames leaving a pipeline with a capture writer, which can rotate over multiple files.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class CaptureWriterSink implements PacketSink {
+
+    private final RotatingCaptureWriter _writer;
+
+    /**
+     * Create a new sink.
+     *
+     * @param writer the writer to write the frames with, closed when the sink is closed
+     */
+    public CaptureWriterSink(final RotatingCaptureWriter writer) {
+        _writer = writer;
+    }
+
+    @Override
+    public void write(final PacketSlot slot) throws IOException {
+        _writer.write(slot.getSeconds(), slot.getNanos(), slot.getWireLength(), slot.getData(), slot.getFrameOffset(), slot.getFrameLength());
+    }
+
+    @Override
+    public void close() throws IOException {
+        _writer.close();
+    }
+}
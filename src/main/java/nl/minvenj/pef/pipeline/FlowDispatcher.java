@@ -0,0 +1,35 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pipeline;
+
+/**
+ * Hands all packets of a flow, in both directions, to the same worker.
+ *
+ * Keeping a flow on one worker keeps its addresses in the pseudonym cache of that worker, and
+ * allows a worker to keep state per flow. A few very large flows can make the load uneven.
+ *
+ * See {@link FlowHash}.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class FlowDispatcher implements PacketDispatcher {
+
+    @Override
+    public int select(final PacketSlot slot, final int workers) {
+        final int hash = FlowHash.hash(slot.getData(), slot.getFrameOffset(), slot.getFrameLength());
+        return (hash & Integer.MAX_VALUE) % workers;
+    }
+}
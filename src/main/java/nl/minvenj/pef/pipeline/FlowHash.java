@@ -0,0 +1,189 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pipeline;
+
+import nl.minvenj.pef.metal.packet.internet.ExtensionHeaderChain;
+
+/**
+ * Computes a symmetric hash of the flow an ethernet frame belongs to, directly from the frame bytes.
+ *
+ * The hash covers the 5-tuple (addresses, protocol and ports) of IPv4 and IPv6 packets, after
+ * skipping VLAN tags and IPv6 extension headers. Both directions of a flow get the same hash.
+ * Fragments only hash the addresses and protocol, as only the first fragment carries the ports;
+ * this keeps all fragments of a datagram together. Frames that are not IP hash their MAC addresses.
+ *
+ * This is much cheaper than a Metal parse and does not validate the frame: truncated or malformed
+ * frames still get a hash, based on what could be read.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class FlowHash {
+
+    private static final int ETHERNET_HEADER_LENGTH = 14;
+
+    private FlowHash() {
+    }
+
+    /**
+     * Returns the symmetric flow hash of an ethernet frame.
+     *
+     * @param data the array holding the frame
+     * @param offset the offset of the frame in the array
+     * @param length the length of the frame
+     * @return the flow hash
+     */
+    public static int hash(final byte[] data, final int offset, final int length) {
+        final int end = Math.min(data.length, offset + length);
+        if (end - offset < ETHERNET_HEADER_LENGTH) {
+            return 0;
+        }
+        int position = offset + 12;
+        int etherType = uint16(data, position);
+        position += 2;
+        // 802.1Q and 802.1ad tags
+        while ((etherType == 0x8100 || etherType == 0x88A8 || etherType == 0x9100) && position + 4 <= end) {
+            etherType = uint16(data, position + 2);
+            position += 4;
+        }
+        if (etherType == 0x0800 && position + 20 <= end) {
+            return ipv4(data, position, end);
+        }
+        if (etherType == 0x86DD && position + 40 <= end) {
+            return ipv6(data, position, end);
+        }
+        return finish(endpoint(mac(data, offset), 0) + endpoint(mac(data, offset + 6), 0), etherType);
+    }
+
+    /**
+     * Returns the source and destination port of the TCP, UDP or SCTP segment in an ethernet frame.
+     *
+     * Unlike the hash, the ports of the first fragment of a datagram are returned.
+     *
+     * @param data the array holding the frame
+     * @param offset the offset of the frame in the array
+     * @param length the length of the frame
+     * @return the source port in bits 16 to 31 and the destination port in the low 16 bits, or -1 when the frame has no ports
+     */
+    public static long ports(final byte[] data, final int offset, final int length) {
+        final int end = Math.min(data.length, offset + length);
+        if (end - offset < ETHERNET_HEADER_LENGTH) {
+            return -1;
+        }
+        int position = offset + 12;
+        int etherType = uint16(data, position);
+        position += 2;
+        while ((etherType == 0x8100 || etherType == 0x88A8 || etherType == 0x9100) && position + 4 <= end) {
+            etherType = uint16(data, position + 2);
+            position += 4;
+        }
+        int protocol;
+        int header;
+        if (etherType == 0x0800 && position + 20 <= end) {
+            if ((uint16(data, position + 6) & 0x1FFF) != 0) {
+                return -1;
+            }
+            protocol = data[position + 9] & 0xFF;
+            header = position + (data[position] & 0x0F) * 4;
+        }
+        else if (etherType == 0x86DD && position + 40 <= end) {
+            final long walk = ExtensionHeaderChain.walk(data, position, end);
+            if (ExtensionHeaderChain.isLaterFragment(walk)) {
+                return -1;
+            }
+            protocol = ExtensionHeaderChain.protocol(walk);
+            header = ExtensionHeaderChain.offset(walk);
+        }
+        else {
+            return -1;
+        }
+        if (!hasPorts(protocol) || header + 4 > end) {
+            return -1;
+        }
+        return (long) uint16(data, header) << 16 | uint16(data, header + 2);
+    }
+
+    private static int ipv4(final byte[] data, final int position, final int end) {
+        final int headerLength = (data[position] & 0x0F) * 4;
+        final int protocol = data[position + 9] & 0xFF;
+        final boolean fragment = (uint16(data, position + 6) & 0x3FFF) != 0;
+        final int source = int32(data, position + 12);
+        final int destination = int32(data, position + 16);
+        final int ports = position + headerLength;
+
+        if (!fragment && hasPorts(protocol) && ports + 4 <= end) {
+            return finish(endpoint(source, uint16(data, ports)) + endpoint(destination, uint16(data, ports + 2)), protocol);
+        }
+        return finish(endpoint(source, 0) + endpoint(destination, 0), protocol);
+    }
+
+    private static int ipv6(final byte[] data, final int position, final int end) {
+        final int source = bytes(data, position + 8, 16);
+        final int destination = bytes(data, position + 24, 16);
+        final long walk = ExtensionHeaderChain.walk(data, position, end);
+        final int nextHeader = ExtensionHeaderChain.protocol(walk);
+        final int header = ExtensionHeaderChain.offset(walk);
+
+        if (!ExtensionHeaderChain.isFragment(walk) && hasPorts(nextHeader) && header + 4 <= end) {
+            return finish(endpoint(source, uint16(data, header)) + endpoint(destination, uint16(data, header + 2)), nextHeader);
+        }
+        return finish(endpoint(source, 0) + endpoint(destination, 0), nextHeader);
+    }
+
+    private static boolean hasPorts(final int protocol) {
+        // TCP, UDP, SCTP
+        return protocol == 6 || protocol == 17 || protocol == 132;
+    }
+
+    private static int endpoint(final int address, final int port) {
+        return mix(address * 0x9E3779B1 ^ port);
+    }
+
+    // adding the endpoints makes the hash independent of the direction
+    private static int finish(final int endpoints, final int protocol) {
+        return mix(endpoints ^ protocol * 0x85EBCA6B);
+    }
+
+    private static int mac(final byte[] data, final int position) {
+        return int32(data, position) * 31 + uint16(data, position + 4);
+    }
+
+    private static int bytes(final byte[] data, final int position, final int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i += 4) {
+            hash = hash * 31 + int32(data, position + i);
+        }
+        return hash;
+    }
+
+    // the finalization step of MurmurHash3
+    private static int mix(final int value) {
+        int hash = value;
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static int uint16(final byte[] data, final int position) {
+        return (data[position] & 0xFF) << 8 | data[position + 1] & 0xFF;
+    }
+
+    private static int int32(final byte[] data, final int position) {
+        return (data[position] & 0xFF) << 24 | (data[position + 1] & 0xFF) << 16 | (data[position + 2] & 0xFF) << 8 | data[position + 3] & 0xFF;
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pipeline;
+
+/**
+ * A {@link PacketProcessor} that can hold packets back, finishing them while processing later packets.
+ *
+ * A processor holds a packet back with {@link PacketSlot#hold()} and hands it to the writer later
+ * with {@link PacketSlot#release(boolean)}, from the same worker. The writer waits for it, so the
+ * packets after it are held back as well; the ring of slots bounds how many there are.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public interface HoldingPacketProcessor extends PacketProcessor {
+
+    /**
+     * Finish and release all packets held back, such as when all slots are in use behind a held packet,
+     * or when the pipeline is closed.
+     */
+    void releaseHeld();
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pipeline;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import nl.minvenj.pef.output.CaptureFormat;
+
+/**
+ * Writes the frames leaving a pipeline as records of a PCAP file, using the capture metadata of the slots.
+ *
+ * The file is written in little endian byte order with microsecond timestamps.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class PCAPSink implements PacketSink {
+
+    private static final int BUFFER_SIZE = 128 * 1024;
+
+    private final OutputStream _output;
+    private final ByteBuffer _recordHeader = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Create a new sink, writing the PCAP global header to the output stream.
+     *
+     * @param output the stream to write to
+     * @param linkType the link type of the frames, 1 for ethernet
+     * @param snapLength the maximum length of the captured frames
+     * @throws IOException when the header could not be written
+     */
+    public PCAPSink(final OutputStream output, final int linkType, final int snapLength) throws IOException {
+        _output = new BufferedOutputStream(output, BUFFER_SIZE);
+        final ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+        CaptureFormat.PCAP.writeFileHeader(header, linkType, snapLength);
+        _output.write(header.array());
+    }
+
+    @Override
+    public void write(final PacketSlot slot) throws IOException {
+        _recordHeader.clear();
+        CaptureFormat.PCAP.writeRecordHeader(_recordHeader, slot.getSeconds(), slot.getNanos(), slot.getFrameLength(), slot.getWireLength());
+        _output.write(_recordHeader.array());
+        _output.write(slot.getData(), slot.getFrameOffset(), slot.getFrameLength());
+    }
+
+    @Override
+    public void close() throws IOException {
+        _output.close();
+    }
+}
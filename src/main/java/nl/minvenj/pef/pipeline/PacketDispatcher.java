@@ -0,0 +1,35 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pipeline;
+
+/**
+ * Decides which worker of a {@link PacketPipeline} processes a packet.
+ *
+ * The dispatcher is called from the producer thread, before the packet is handed to the workers.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public interface PacketDispatcher {
+
+    /**
+     * Select the worker to process the packet in the slot.
+     *
+     * @param slot the slot holding the packet
+     * @param workers the number of workers
+     * @return the index of the worker, in the range [0, workers)
+     */
+    int select(PacketSlot slot, int workers);
+}
@@ -0,0 +1,340 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pipeline;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.minvenj.pef.ring.EntryFactory;
+import nl.minvenj.pef.ring.ParkingWaitStrategy;
+import nl.minvenj.pef.ring.RingBuffer;
+import nl.minvenj.pef.ring.SpscRingBuffer;
+import nl.minvenj.pef.ring.WaitStrategy;
+
+/**
+ * A pipeline that pseudonymizes packets on multiple cores while keeping their order.
+ *
+ * The pipeline consists of a ring of preallocated slots and three stages:
+ * <ol>
+ *     <li>the producer (e.g. a capture callback) claims a slot, copies a packet into it and publishes it</li>
+ *     <li>N workers process the packets; a dispatcher decides which worker gets which packet, and hands
+ *     it over through a queue per worker</li>
+ *     <li>a writer hands the processed packets to the sink, restoring the order in which they were published
+ *     by following the sequence numbers of the slots</li>
+ * </ol>
+ * The slots and the queues to the workers are lock-free ring buffers of preallocated entries, see
+ * {@link RingBuffer}. The producer only blocks when all slots are in use, which means the workers or
+ * the writer can not keep up. No objects are allocated per packet by the pipeline itself.
+ *
+ * A packet that fails to process is dropped instead of being written unchanged, so a failure never
+ * results in data that was meant to be pseudonymized being written as is.
+ *
+ * A {@link HoldingPacketProcessor} can hold a packet back until it processes a later packet, such as
+ * a fragment of a datagram that is not complete yet. The packets after it then wait in their slots.
+ * When all slots are in use behind a held packet, the processors are asked to release what they hold,
+ * so the pipeline keeps moving, and they release it when the pipeline is closed.
+ *
+ * The claim and publish methods must be called from a single producer thread.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class PacketPipeline implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(PacketPipeline.class.getName());
+
+    private final RingBuffer<PacketSlot> _slots;
+    private final List<? extends PacketProcessor> _processors;
+    private final PacketDispatcher _dispatcher;
+    private final WaitStrategy _waitStrategy;
+    private final RingBuffer<Handoff>[] _queues;
+    private final PacketSink _sink;
+    private final Thread[] _workers;
+    private final Thread _writer;
+    private final PipelineStatistics _statistics = new PipelineStatistics();
+
+    // only accessed by the producer
+    private long _next;
+    private long _claimed = RingBuffer.NONE;
+    private boolean _closed;
+
+    private volatile long _end = Long.MAX_VALUE;
+    private volatile IOException _failure;
+    private volatile boolean _releaseHeld;
+
+    /**
+     * Create a new pipeline, dispatching the packets round robin, and start its worker and writer threads.
+     *
+     * @param capacity the number of slots, rounded up to a power of two
+     * @param slotSize the initial size of the slots in bytes, typically the snap length
+     * @param processors the processors, one per worker thread
+     * @param sink the sink to write the processed packets to
+     */
+    public PacketPipeline(final int capacity, final int slotSize, final List<? extends PacketProcessor> processors, final PacketSink sink) {
+        this(capacity, slotSize, processors, new RoundRobinDispatcher(), new ParkingWaitStrategy(), sink);
+    }
+
+    /**
+     * Create a new pipeline, with threads parking when they have to wait, and start its worker and writer threads.
+     *
+     * @param capacity the number of slots, rounded up to a power of two
+     * @param slotSize the initial size of the slots in bytes, typically the snap length
+     * @param processors the processors, one per worker thread
+     * @param dispatcher the dispatcher selecting the worker for each packet
+     * @param sink the sink to write the processed packets to
+     */
+    public PacketPipeline(final int capacity, final int slotSize, final List<? extends PacketProcessor> processors, final PacketDispatcher dispatcher, final PacketSink sink) {
+        this(capacity, slotSize, processors, dispatcher, new ParkingWaitStrategy(), sink);
+    }
+
+    /**
+     * Create a new pipeline and start its worker and writer threads.
+     *
+     * @param capacity the number of slots, rounded up to a power of two
+     * @param slotSize the initial size of the slots in bytes, typically the snap length
+     * @param processors the processors, one per worker thread
+     * @param dispatcher the dispatcher selecting the worker for each packet
+     * @param waitStrategy the strategy of the threads for waiting on each other
+     * @param sink the sink to write the processed packets to
+     */
+    public PacketPipeline(final int capacity, final int slotSize, final List<? extends PacketProcessor> processors, final PacketDispatcher dispatcher, final WaitStrategy waitStrategy, final PacketSink sink) {
+        if (processors.isEmpty()) {
+            throw new IllegalArgumentException("at least one processor is required");
+        }
+        _slots = new SpscRingBuffer<>(Math.max(capacity, processors.size()), new EntryFactory<PacketSlot>() {
+            @Override
+            public PacketSlot newEntry() {
+                return new PacketSlot(slotSize);
+            }
+        }, waitStrategy);
+        _processors = processors;
+        _dispatcher = dispatcher;
+        _waitStrategy = waitStrategy;
+        _sink = sink;
+        // a queue can hold all slots, so handing a packet to a worker never waits
+        _queues = newQueues(processors.size());
+        for (int i = 0; i < _queues.length; i++) {
+            _queues[i] = new SpscRingBuffer<>(_slots.getCapacity(), Handoff.FACTORY, waitStrategy);
+        }
+
+        _workers = new Thread[processors.size()];
+        for (int i = 0; i < _workers.length; i++) {
+            _workers[i] = new Thread(new Worker(i), "pef-pipeline-worker-" + i);
+            _workers[i].setDaemon(true);
+            _workers[i].start();
+        }
+        _writer = new Thread(new Writer(), "pef-pipeline-writer");
+        _writer.setDaemon(true);
+        _writer.start();
+    }
+
+    /**
+     * Claim the next free slot to copy a packet into, waiting until one is available.
+     *
+     * @return the slot to fill
+     * @throws IOException when writing the output failed, after which the pipeline should be closed
+     */
+    public PacketSlot claim() throws IOException {
+        checkFailure();
+        if (_claimed == RingBuffer.NONE) {
+            long sequence = _slots.tryClaim();
+            if (sequence == RingBuffer.NONE) {
+                _statistics.stalled();
+                int counter = 0;
+                while (sequence == RingBuffer.NONE) {
+                    checkFailure();
+                    // the writer waits for the oldest slot, which can only be released by processing later packets
+                    if (_slots.get(_next - _slots.getCapacity())._held) {
+                        _releaseHeld = true;
+                    }
+                    counter = _waitStrategy.idle(counter);
+                    sequence = _slots.tryClaim();
+                }
+                _releaseHeld = false;
+            }
+            _claimed = sequence;
+            _slots.get(sequence).setSequence(sequence);
+        }
+        return _slots.get(_claimed);
+    }
+
+    /**
+     * Hand a filled slot, obtained from the last call to {@link #claim()}, over to the workers.
+     *
+     * Claiming again without publishing returns the same slot.
+     *
+     * @param slot the filled slot
+     */
+    public void publish(final PacketSlot slot) {
+        final long sequence = slot.getSequence();
+        _statistics.published(slot.getLength());
+        _slots.publish(sequence);
+        final RingBuffer<Handoff> queue = _queues[_dispatcher.select(slot, _queues.length)];
+        final long handoff = queue.claim();
+        queue.get(handoff)._sequence = sequence;
+        queue.publish(handoff);
+        _next = sequence + 1;
+        _claimed = RingBuffer.NONE;
+    }
+
+    /**
+     * Returns the statistics of this pipeline.
+     *
+     * @return the statistics
+     */
+    public PipelineStatistics getStatistics() {
+        return _statistics;
+    }
+
+    /**
+     * Process and write the packets published so far, stop the threads and close the sink.
+     *
+     * @throws IOException when writing the output failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        _end = _next;
+        try {
+            for (final Thread worker : _workers) {
+                worker.join();
+            }
+            _writer.join();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while closing the pipeline", e);
+        }
+        finally {
+            _sink.close();
+        }
+        checkFailure();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static RingBuffer<Handoff>[] newQueues(final int count) {
+        return (RingBuffer<Handoff>[]) new RingBuffer<?>[count];
+    }
+
+    private void checkFailure() throws IOException {
+        final IOException failure = _failure;
+        if (failure != null) {
+            throw new IOException("writing the output failed: " + failure.getMessage(), failure);
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private final int _index;
+
+        Worker(final int index) {
+            _index = index;
+        }
+
+        @Override
+        public void run() {
+            final PacketProcessor processor = _processors.get(_index);
+            final HoldingPacketProcessor holding = processor instanceof HoldingPacketProcessor ? (HoldingPacketProcessor) processor : null;
+            final RingBuffer<Handoff> queue = _queues[_index];
+            while (true) {
+                long handoff = queue.poll();
+                int counter = 0;
+                while (handoff == RingBuffer.NONE) {
+                    // read the end before polling again, as everything is published before the end is set
+                    final boolean ended = _end != Long.MAX_VALUE;
+                    handoff = queue.poll();
+                    if (handoff == RingBuffer.NONE && (ended || _failure != null)) {
+                        if (holding != null) {
+                            holding.releaseHeld();
+                        }
+                        return;
+                    }
+                    if (holding != null && _releaseHeld) {
+                        holding.releaseHeld();
+                    }
+                    counter = _waitStrategy.idle(counter);
+                }
+                final long sequence = queue.get(handoff)._sequence;
+                queue.release(handoff);
+                final PacketSlot slot = _slots.get(sequence);
+                slot._dropped = false;
+                slot._held = false;
+                try {
+                    processor.process(slot);
+                }
+                catch (final Throwable e) {
+                    // errors such as a stack overflow in a deeply nested parse drop the packet as well, so the
+                    // slot is always handed to the writer and the worker stays alive
+                    LOGGER.log(Level.WARNING, "Dropping packet " + sequence + ", it could not be processed.", e);
+                    slot._dropped = true;
+                    slot._held = false;
+                }
+                if (!slot._held) {
+                    slot._processed = sequence;
+                }
+            }
+        }
+    }
+
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            for (long sequence = 0; ; sequence++) {
+                final PacketSlot slot = _slots.get(sequence);
+                int counter = 0;
+                while (slot._processed != sequence) {
+                    if (_end <= sequence) {
+                        return;
+                    }
+                    counter = _waitStrategy.idle(counter);
+                }
+                try {
+                    if (slot._dropped) {
+                        _statistics.failed();
+                    }
+                    else {
+                        _sink.write(slot);
+                        _statistics.written(slot.getLength());
+                    }
+                }
+                catch (final IOException e) {
+                    LOGGER.log(Level.SEVERE, "Writing the output failed.", e);
+                    _failure = e;
+                    return;
+                }
+                _slots.release(sequence);
+            }
+        }
+    }
+
+    private static final class Handoff {
+
+        static final EntryFactory<Handoff> FACTORY = new EntryFactory<Handoff>() {
+            @Override
+            public Handoff newEntry() {
+                return new Handoff();
+            }
+        };
+
+        long _sequence;
+    }
+}
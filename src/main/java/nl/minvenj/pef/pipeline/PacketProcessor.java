@@ -0,0 +1,36 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pipeline;
+
+import java.io.IOException;
+
+/**
+ * The work done on a packet by a worker of a {@link PacketPipeline}.
+ *
+ * Every worker has its own processor, so implementations do not need to be thread safe.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public interface PacketProcessor {
+
+    /**
+     * Process the packet in the slot, changing its data in place.
+     *
+     * @param slot the slot holding the packet
+     * @throws IOException whenever I/O errors occur
+     */
+    void process(PacketSlot slot) throws IOException;
+}
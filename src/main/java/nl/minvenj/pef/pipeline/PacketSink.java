@@ -0,0 +1,37 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pipeline;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The destination of the packets leaving a {@link PacketPipeline}.
+ *
+ * Packets are written by a single thread, in the order in which they entered the pipeline.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public interface PacketSink extends Closeable {
+
+    /**
+     * Write the packet in the slot. The slot is reused after this method returns.
+     *
+     * @param slot the slot holding the packet
+     * @throws IOException whenever I/O errors occur
+     */
+    void write(PacketSlot slot) throws IOException;
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pipeline;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A preallocated entry of a {@link PacketPipeline}, holding one packet and its capture metadata.
+ *
+ * The data holds either just the frame (live capture) or a complete structure containing the
+ * frame, such as a PCAP record (dump files). The frame offset and length point to the frame
+ * inside the data. Slots are reused, so nothing may keep a reference to the data after the
+ * slot has been handed to the next stage.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class PacketSlot {
+
+    private byte[] _data;
+    private ByteBuffer _buffer;
+    private int _length;
+    private int _frameOffset;
+    private int _frameLength;
+    private long _seconds;
+    private int _nanos;
+    private int _wireLength;
+    private long _sequence;
+    private long _inputEnd;
+    private long _sectionOffset;
+
+    // pipeline state, written by the stage that finished with the slot
+    volatile long _processed = -1;
+    volatile boolean _held;
+    boolean _dropped;
+
+    /**
+     * Create a new slot.
+     *
+     * @param capacity the initial capacity of the slot in bytes
+     */
+    public PacketSlot(final int capacity) {
+        _data = new byte[capacity];
+        _buffer = ByteBuffer.wrap(_data);
+    }
+
+    /**
+     * Make sure the slot can hold the given amount of bytes, replacing the data array if it can not.
+     *
+     * The contents are not preserved when the array is replaced.
+     *
+     * @param capacity the required capacity in bytes
+     * @return the data array of the slot
+     */
+    public byte[] ensureCapacity(final int capacity) {
+        if (_data.length < capacity) {
+            _data = new byte[capacity];
+            _buffer = ByteBuffer.wrap(_data);
+        }
+        return _data;
+    }
+
+    /**
+     * Returns the data array of the slot, which may be larger than the packet it holds.
+     *
+     * @return the data array
+     */
+    public byte[] getData() {
+        return _data;
+    }
+
+    /**
+     * Returns a cleared byte buffer wrapping the data array, to copy data into the slot.
+     *
+     * @return the byte buffer view of the data array
+     */
+    public ByteBuffer getBuffer() {
+        _buffer.clear();
+        return _buffer;
+    }
+
+    /**
+     * Set the length of the data and of the frame it contains.
+     *
+     * @param length the number of bytes in use in the data array
+     * @param frameOffset the offset of the frame in the data array
+     * @param frameLength the length of the frame
+     */
+    public void setLength(final int length, final int frameOffset, final int frameLength) {
+        _length = length;
+        _frameOffset = frameOffset;
+        _frameLength = frameLength;
+    }
+
+    /**
+     * Set the length of the data, which holds only a frame.
+     *
+     * @param length the length of the frame
+     */
+    public void setFrameLength(final int length) {
+        setLength(length, 0, length);
+    }
+
+    /**
+     * Set the capture metadata of the packet.
+     *
+     * @param seconds the capture time in seconds since the epoch
+     * @param nanos the nanoseconds part of the capture time
+     * @param wireLength the length of the packet on the wire, which can be larger than the captured frame
+     */
+    public void setCaptureInfo(final long seconds, final int nanos, final int wireLength) {
+        _seconds = seconds;
+        _nanos = nanos;
+        _wireLength = wireLength;
+    }
+
+    /**
+     * Set the position of the structure in the input file, for writing checkpoints.
+     *
+     * @param inputEnd the offset in the input directly after the structure
+     * @param sectionOffset the offset in the input of the section the structure belongs to
+     */
+    public void setInputPosition(final long inputEnd, final long sectionOffset) {
+        _inputEnd = inputEnd;
+        _sectionOffset = sectionOffset;
+    }
+
+    public int getLength() {
+        return _length;
+    }
+
+    public int getFrameOffset() {
+        return _frameOffset;
+    }
+
+    public int getFrameLength() {
+        return _frameLength;
+    }
+
+    public long getSeconds() {
+        return _seconds;
+    }
+
+    public int getNanos() {
+        return _nanos;
+    }
+
+    public int getWireLength() {
+        return _wireLength;
+    }
+
+    public long getInputEnd() {
+        return _inputEnd;
+    }
+
+    public long getSectionOffset() {
+        return _sectionOffset;
+    }
+
+    /**
+     * Returns the position of the packet in the input, starting at 0.
+     *
+     * @return the sequence number of the packet
+     */
+    public long getSequence() {
+        return _sequence;
+    }
+
+    /**
+     * Hold the packet back after processing, as a {@link HoldingPacketProcessor} finishes it later.
+     */
+    public void hold() {
+        _held = true;
+    }
+
+    /**
+     * Hand a packet that was held back to the writer, once its processing is finished.
+     *
+     * @param dropped true when processing the packet failed, so it is dropped
+     */
+    public void release(final boolean dropped) {
+        _dropped = dropped;
+        _held = false;
+        _processed = _sequence;
+    }
+
+    void setSequence(final long sequence) {
+        _sequence = sequence;
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pipeline;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.minvenj.pef.metrics.Gauge;
+import nl.minvenj.pef.metrics.MetricsRegistry;
+
+/**
+ * Counters of a {@link PacketPipeline} and of the capture source feeding it.
+ *
+ * Each counter is updated by a single thread and can be read from any thread.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class PipelineStatistics {
+
+    private final AtomicLong _published = new AtomicLong();
+    private final AtomicLong _publishedBytes = new AtomicLong();
+    private final AtomicLong _written = new AtomicLong();
+    private final AtomicLong _writtenBytes = new AtomicLong();
+    private final AtomicLong _stalls = new AtomicLong();
+    private final AtomicLong _failures = new AtomicLong();
+
+    private volatile long _captureReceived;
+    private volatile long _captureDropped;
+    private volatile long _captureInterfaceDropped;
+
+    void published(final int bytes) {
+        _published.lazySet(_published.get() + 1);
+        _publishedBytes.lazySet(_publishedBytes.get() + bytes);
+    }
+
+    void written(final int bytes) {
+        _written.lazySet(_written.get() + 1);
+        _writtenBytes.lazySet(_writtenBytes.get() + bytes);
+    }
+
+    void stalled() {
+        _stalls.lazySet(_stalls.get() + 1);
+    }
+
+    void failed() {
+        _failures.incrementAndGet();
+    }
+
+    /**
+     * Set the counters reported by the capture source, for example by libpcap.
+     *
+     * @param received the number of packets received by the capture source
+     * @param dropped the number of packets dropped because the capture buffer was full
+     * @param interfaceDropped the number of packets dropped by the network interface
+     */
+    public void setCaptureStatistics(final long received, final long dropped, final long interfaceDropped) {
+        _captureReceived = received;
+        _captureDropped = dropped;
+        _captureInterfaceDropped = interfaceDropped;
+    }
+
+    /** @return the number of packets put into the pipeline */
+    public long getPublished() {
+        return _published.get();
+    }
+
+    /** @return the number of bytes put into the pipeline */
+    public long getPublishedBytes() {
+        return _publishedBytes.get();
+    }
+
+    /** @return the number of packets written to the sink */
+    public long getWritten() {
+        return _written.get();
+    }
+
+    /** @return the number of bytes written to the sink */
+    public long getWrittenBytes() {
+        return _writtenBytes.get();
+    }
+
+    /** @return the number of packets in the pipeline, waiting to be processed or written */
+    public long getInFlight() {
+        // read the outputs first, so the result is never negative
+        final long out = getWritten() + getFailures();
+        return getPublished() - out;
+    }
+
+    /** @return the number of times the producer had to wait for a free slot */
+    public long getStalls() {
+        return _stalls.get();
+    }
+
+    /** @return the number of packets that could not be processed and were dropped, not written */
+    public long getFailures() {
+        return _failures.get();
+    }
+
+    /** @return the number of packets received by the capture source */
+    public long getCaptureReceived() {
+        return _captureReceived;
+    }
+
+    /** @return the number of packets dropped by the capture source because its buffer was full */
+    public long getCaptureDropped() {
+        return _captureDropped;
+    }
+
+    /** @return the number of packets dropped by the network interface */
+    public long getCaptureInterfaceDropped() {
+        return _captureInterfaceDropped;
+    }
+
+    /**
+     * Register the statistics of pipelines as gauges, each summing the value of all pipelines.
+     *
+     * @param metrics the registry to register the gauges in
+     * @param statistics the statistics of the pipelines
+     */
+    public static void register(final MetricsRegistry metrics, final List<PipelineStatistics> statistics) {
+        for (final Field field : Field.values()) {
+            metrics.gauge(field._name, new Gauge() {
+                @Override
+                public long getValue() {
+                    long value = 0;
+                    for (final PipelineStatistics pipeline : statistics) {
+                        value += field.get(pipeline);
+                    }
+                    return value;
+                }
+            });
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "published: " + getPublished() + " (" + getPublishedBytes() + " bytes), written: " + getWritten()
+               + ", stalls: " + getStalls() + ", failures: " + getFailures()
+               + ", capture received: " + getCaptureReceived() + ", dropped: " + getCaptureDropped()
+               + ", interface dropped: " + getCaptureInterfaceDropped();
+    }
+
+    private enum Field {
+        PACKETS_IN("pipeline.packets_in") {
+            @Override
+            long get(final PipelineStatistics statistics) {
+                return statistics.getPublished();
+            }
+        },
+        BYTES_IN("pipeline.bytes_in") {
+            @Override
+            long get(final PipelineStatistics statistics) {
+                return statistics.getPublishedBytes();
+            }
+        },
+        PACKETS_OUT("pipeline.packets_out") {
+            @Override
+            long get(final PipelineStatistics statistics) {
+                return statistics.getWritten();
+            }
+        },
+        BYTES_OUT("pipeline.bytes_out") {
+            @Override
+            long get(final PipelineStatistics statistics) {
+                return statistics.getWrittenBytes();
+            }
+        },
+        IN_FLIGHT("pipeline.in_flight") {
+            @Override
+            long get(final PipelineStatistics statistics) {
+                return statistics.getInFlight();
+            }
+        },
+        STALLS("pipeline.stalls") {
+            @Override
+            long get(final PipelineStatistics statistics) {
+                return statistics.getStalls();
+            }
+        },
+        FAILURES("pipeline.failures") {
+            @Override
+            long get(final PipelineStatistics statistics) {
+                return statistics.getFailures();
+            }
+        },
+        CAPTURE_RECEIVED("capture.received") {
+            @Override
+            long get(final PipelineStatistics statistics) {
+                return statistics.getCaptureReceived();
+            }
+        },
+        CAPTURE_DROPPED("capture.dropped") {
+            @Override
+            long get(final PipelineStatistics statistics) {
+                return statistics.getCaptureDropped();
+            }
+        },
+        CAPTURE_INTERFACE_DROPPED("capture.interface_dropped") {
+            @Override
+            long get(final PipelineStatistics statistics) {
+                return statistics.getCaptureInterfaceDropped();
+            }
+        };
+
+        private final String _name;
+
+        Field(final String name) {
+            _name = name;
+        }
+
+        abstract long get(PipelineStatistics statistics);
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pipeline;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.pseudo.HeldFrame;
+
+/**
+ * Pseudonymizes the frame in a slot using a frame pseudonymizer.
+ *
+ * Slots with an empty frame, such as dump file blocks without packet data, are left as they are.
+ *
+ * The frames the frame pseudonymizer holds back, as they are fragments of datagrams that are not
+ * complete yet, are held back in their slots. Once released, they are copied back into their slots.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class PseudonymizingProcessor implements HoldingPacketProcessor {
+
+    private static final Logger LOGGER = Logger.getLogger(PseudonymizingProcessor.class.getName());
+
+    private final FramePseudonymizer _pseudonymizer;
+    private final List<HeldSlot> _held = new ArrayList<>();
+
+    /**
+     * Create a new processor using a frame pseudonymizer, which must not be shared with other processors.
+     *
+     * @param pseudonymizer the pseudonymizer to use
+     */
+    public PseudonymizingProcessor(final FramePseudonymizer pseudonymizer) {
+        _pseudonymizer = pseudonymizer;
+    }
+
+    @Override
+    public void process(final PacketSlot slot) throws IOException {
+        if (slot.getFrameLength() == 0) {
+            return;
+        }
+        final HeldFrame held = _pseudonymizer.pseudonymizeOrHold(slot.getData(), slot.getFrameOffset(), slot.getFrameLength());
+        if (held != null) {
+            slot.hold();
+            _held.add(new HeldSlot(slot, held));
+        }
+        releaseSlots();
+    }
+
+    @Override
+    public void releaseHeld() {
+        _pseudonymizer.releaseHeld();
+        releaseSlots();
+    }
+
+    private void releaseSlots() {
+        for (final Iterator<HeldSlot> i = _held.iterator(); i.hasNext();) {
+            final HeldSlot held = i.next();
+            if (held._frame.isReleased()) {
+                final boolean dropped = held._frame.getFailure() != null;
+                if (dropped) {
+                    LOGGER.log(Level.WARNING, "Dropping packet " + held._slot.getSequence() + ", it could not be processed.", held._frame.getFailure());
+                }
+                else {
+                    System.arraycopy(held._frame.getData(), 0, held._slot.getData(), held._slot.getFrameOffset(), held._slot.getFrameLength());
+                }
+                held._slot.release(dropped);
+                i.remove();
+            }
+        }
+    }
+
+    private static final class HeldSlot {
+
+        private final PacketSlot _slot;
+        private final HeldFrame _frame;
+
+        HeldSlot(final PacketSlot slot, final HeldFrame frame) {
+            _slot = slot;
+            _frame = frame;
+        }
+    }
+}
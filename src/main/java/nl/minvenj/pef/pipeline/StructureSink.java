@@ -0,0 +1,69 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pipeline;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import nl.minvenj.pef.output.CheckpointingOutputStream;
+
+/**
+ * Writes the complete data of the slots leaving a pipeline to an output stream.
+ *
+ * Used when the slots hold complete structures, such as the records of a dump file, instead of
+ * just the frames. When writing to a {@link CheckpointingOutputStream}, the input position of
+ * each slot is committed after it has been written, see {@link PacketSlot#setInputPosition(long, long)}.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class StructureSink implements PacketSink {
+
+    private final OutputStream _output;
+    private final CheckpointingOutputStream _checkpoints;
+
+    /**
+     * Create a new sink writing to an output stream.
+     *
+     * @param output the stream to write to, closed when the sink is closed
+     */
+    public StructureSink(final OutputStream output) {
+        _output = output;
+        _checkpoints = null;
+    }
+
+    /**
+     * Create a new sink writing to an output stream that writes checkpoints.
+     *
+     * @param output the stream to write to, closed when the sink is closed
+     */
+    public StructureSink(final CheckpointingOutputStream output) {
+        _output = output;
+        _checkpoints = output;
+    }
+
+    @Override
+    public void write(final PacketSlot slot) throws IOException {
+        _output.write(slot.getData(), 0, slot.getLength());
+        if (_checkpoints != null) {
+            _checkpoints.commit(slot.getInputEnd(), slot.getSectionOffset());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        _output.close();
+    }
+}
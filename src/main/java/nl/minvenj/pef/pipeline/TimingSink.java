@@ -0,0 +1,61 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pipeline;
+
+import java.io.IOException;
+
+import nl.minvenj.pef.metrics.LatencyRecorder;
+import nl.minvenj.pef.metrics.MetricsRegistry;
+
+/**
+ * A sink recording the time taken to write a sample of the packets to another sink.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class TimingSink implements PacketSink {
+
+    private final PacketSink _sink;
+    private final MetricsRegistry _metrics;
+    private final LatencyRecorder _writeTime;
+
+    /**
+     * Create a new timing sink.
+     *
+     * @param sink the sink to write the packets to
+     * @param metrics the registry to record the write time in, as {@link MetricsRegistry#STAGE_WRITE}
+     */
+    public TimingSink(final PacketSink sink, final MetricsRegistry metrics) {
+        _sink = sink;
+        _metrics = metrics;
+        _writeTime = metrics.recorder(MetricsRegistry.STAGE_WRITE);
+    }
+
+    @Override
+    public void write(final PacketSlot slot) throws IOException {
+        if (!_metrics.isSampled(slot.getSequence())) {
+            _sink.write(slot);
+            return;
+        }
+        final long start = System.nanoTime();
+        _sink.write(slot);
+        _writeTime.recordSince(start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        _sink.close();
+    }
+}
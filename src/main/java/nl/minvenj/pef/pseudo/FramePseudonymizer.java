@@ -16,23 +16,139 @@
 package nl.minvenj.pef.pseudo;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import io.parsingdata.metal.data.ParseResult;
+import nl.minvenj.pef.ip.DNSFragmentTracker;
+import nl.minvenj.pef.ip.DecisionListener;
+import nl.minvenj.pef.metal.packet.application.DNS;
 import nl.minvenj.pef.metal.packet.link.Ethernet2Frame;
+import nl.minvenj.pef.metal.stream.ArrayByteStream;
+import nl.minvenj.pef.metrics.Counter;
+import nl.minvenj.pef.metrics.LatencyRecorder;
+import nl.minvenj.pef.metrics.MetricsRegistry;
 import nl.minvenj.pef.serialize.Processor;
 import nl.minvenj.pef.serialize.process.CopyTokenSerializer;
+import nl.minvenj.pef.serialize.process.OrderedMergeTokenSerializer;
+import nl.minvenj.pef.tcp.DNSStreamTracker;
+import nl.minvenj.pef.trace.ProtocolPath;
+import nl.minvenj.pef.trace.TraceEventType.TraceEvent;
+import nl.minvenj.pef.trace.TraceEvents;
 import nl.minvenj.pef.util.Util;
 
 /**
  *  for ethernet frames.
  *
+ * When created with a metrics registry, the outcome of every frame is counted and the stages of
+ * a sample of the frames are timed. A pseudonymizer must then only be used by one thread at a time.
+ *
+ * When a flight recorder recording enables {@link TraceEvents#FRAME}, a sample of the frames is
+ * traced with their size, protocols, the transformers applied and the outcome.
+ *
+ * When created with a {@link DNSStreamTracker}, every frame is tracked, and the segments of TCP
+ * connections carrying DNS are transformed as if they contained DNS, also when they hold only part
+ * of a message. Likewise, when created with a {@link DNSFragmentTracker}, the fragments of IP datagrams
+ * carrying DNS are transformed as if they contained DNS. The frames must then be pseudonymized in
+ * capture order, by one thread.
+ *
+ * As it is only known whether a fragmented datagram carries DNS once it is complete, its fragments are
+ * held back until then by {@link #pseudonymizeOrHold(byte[], int, int)}, and released in a later call.
+ * The callers writing the frames keep them in capture order, and bound what they hold back with
+ * {@link #getHoldLimit()} and {@link #releaseOldest()}. The fragments of an undecided datagram passed
+ * to {@link #pseudonymize(byte[], int, int)} can not be held back, and are taken as DNS.
+ *
  * @author Netherlands Forensic Institute.
  */
 public final class FramePseudonymizer {
+    private static final int ETHERNET_HEADER_LENGTH = 14;
+    // ethertype values below this are the length of an IEEE 802.3 frame
+    private static final int MIN_ETHERTYPE = 0x0600;
+
     private final Processor _pseudonymizer;
+    private final MetricsRegistry _metrics;
+    private final LatencyRecorder _parseTime;
+    private final Counter _pseudonymized;
+    private final Counter _unparsed;
+    private final Counter _nonEthernet;
+    private final DNSStreamTracker _dnsStreams;
+    private final DNSFragmentTracker _dnsFragments;
+    // the held frames by datagram, the datagram of the frame held back first first
+    private final Map<Integer, List<HeldFrame>> _held = new LinkedHashMap<>();
+    private final List<HeldFrame> _dnsReleases = new ArrayList<>();
+    private final List<HeldFrame> _otherReleases = new ArrayList<>();
+    private int _heldFrames;
+    private long _frames;
 
     public FramePseudonymizer(final Processor pseudonymizer) {
+        this(pseudonymizer, null);
+    }
+
+    /**
+     * Create a pseudonymizer recording its metrics.
+     *
+     * @param pseudonymizer the processor transforming the parsed frames
+     * @param metrics the registry to record in, or null to not record metrics
+     */
+    public FramePseudonymizer(final Processor pseudonymizer, final MetricsRegistry metrics) {
+        this(pseudonymizer, metrics, null);
+    }
+
+    /**
+     * Create a pseudonymizer recording its metrics and tracking the DNS connections over TCP.
+     *
+     * @param pseudonymizer the processor transforming the parsed frames
+     * @param metrics the registry to record in, or null to not record metrics
+     * @param dnsStreams the tracker recognizing the segments of DNS connections, or null to only recognize DNS in the segments themselves
+     */
+    public FramePseudonymizer(final Processor pseudonymizer, final MetricsRegistry metrics, final DNSStreamTracker dnsStreams) {
+        this(pseudonymizer, metrics, dnsStreams, null);
+    }
+
+    /**
+     * Create a pseudonymizer recording its metrics and tracking the DNS connections over TCP and the
+     * fragmented datagrams carrying DNS.
+     *
+     * @param pseudonymizer the processor transforming the parsed frames
+     * @param metrics the registry to record in, or null to not record metrics
+     * @param dnsStreams the tracker recognizing the segments of DNS connections, or null to only recognize DNS in the segments themselves
+     * @param dnsFragments the tracker recognizing the fragments of DNS datagrams, or null to leave fragments unchanged
+     */
+    public FramePseudonymizer(final Processor pseudonymizer, final MetricsRegistry metrics, final DNSStreamTracker dnsStreams, final DNSFragmentTracker dnsFragments) {
         _pseudonymizer = pseudonymizer;
+        _dnsStreams = dnsStreams;
+        _dnsFragments = dnsFragments;
+        if (dnsFragments != null) {
+            dnsFragments.setDecisionListener(new DecisionListener() {
+                @Override
+                public void decided(final int datagram, final boolean dns) {
+                    final List<HeldFrame> frames = _held.remove(datagram);
+                    if (frames != null) {
+                        (dns ? _dnsReleases : _otherReleases).addAll(frames);
+                    }
+                }
+            });
+        }
+        _metrics = metrics;
+        if (metrics != null) {
+            pseudonymizer.setMetrics(metrics);
+            if (dnsFragments != null) {
+                dnsFragments.setMetrics(metrics);
+            }
+            _parseTime = metrics.recorder(MetricsRegistry.STAGE_PARSE);
+            _pseudonymized = metrics.counter(MetricsRegistry.PACKETS_PSEUDONYMIZED);
+            _unparsed = metrics.counter(MetricsRegistry.PACKETS_UNPARSED);
+            _nonEthernet = metrics.counter(MetricsRegistry.PACKETS_NON_ETHERNET);
+        }
+        else {
+            _parseTime = null;
+            _pseudonymized = null;
+            _unparsed = null;
+            _nonEthernet = null;
+        }
     }
 
     /**
@@ -45,13 +161,206 @@ public final class FramePseudonymizer {
      * @throws IOException whenever I/O errors occur
      */
     public byte[] pseudonymize(final byte[] frameBytes) throws IOException {
-        final ParseResult result = Util.parse(frameBytes, Ethernet2Frame.FORMAT);
-        if (result.succeeded && result.environment.offset == frameBytes.length) {
-            final CopyTokenSerializer copySerializer = new CopyTokenSerializer(frameBytes.length);
-            _pseudonymizer.transformAndProcess(result, copySerializer);
-            return copySerializer.outputData();
+        final byte[] pseudonymized = frameBytes.clone();
+        if (pseudonymize(pseudonymized, 0, pseudonymized.length)) {
+            return pseudonymized;
         }
         // TODO PEF-61 add logging
         return frameBytes;
     }
+
+    /**
+     * Pseudonymizes an ethernet frame into a new array, by merging the transformed values in the
+     * order of their offsets.
+     *
+     * The transformed values are collected and concatenated sorted by offset, instead of being copied to
+     * their offsets in the frame, and the frame is not tracked for DNS streams or fragments. It is slower
+     * and is not counted in the metrics, but as it shares no serialization code with
+     * {@link #pseudonymize(byte[], int, int)}, the compare harness uses it as the reference to check the
+     * other ways of pseudonymizing against.
+     *
+     * @param frameBytes the bytes of the frame
+     * @return the bytes of the frame pseudonymized based on the serializer settings, or frameBytes if parsing failed
+     * @throws IOException whenever I/O errors occur
+     */
+    public byte[] pseudonymizeByMerging(final byte[] frameBytes) throws IOException {
+        final ParseResult result = Util.parse(new ArrayByteStream(frameBytes, 0, frameBytes.length), 0L, Ethernet2Frame.FORMAT);
+        if (!result.succeeded || result.environment.offset != frameBytes.length) {
+            return frameBytes;
+        }
+        final OrderedMergeTokenSerializer serializer = new OrderedMergeTokenSerializer();
+        _pseudonymizer.transformAndProcess(result, serializer);
+        return serializer.outputData();
+    }
+
+    /**
+     * Pseudonymizes an ethernet frame in place, based on the serializer settings.
+     *
+     * When parsing the bytes fails, the frame is left unchanged.
+     *
+     * @param data the array holding the frame
+     * @param offset the offset of the frame in the array
+     * @param length the length of the frame
+     * @return true when the frame was pseudonymized, false if parsing failed
+     * @throws IOException whenever I/O errors occur
+     */
+    public boolean pseudonymize(final byte[] data, final int offset, final int length) throws IOException {
+        final long frame = _frames++;
+        final TraceEvent event = TraceEvents.FRAME.isSampled(frame) ? TraceEvents.FRAME.begin() : null;
+        // tracked before parsing, so the streams and datagrams are complete even when a frame does not parse
+        final boolean dnsSegment = _dnsStreams != null && _dnsStreams.isDNSSegment(data, offset, length);
+        final boolean dnsFragment = _dnsFragments != null && _dnsFragments.track(data, offset, length) != DNSFragmentTracker.OTHER;
+        final boolean pseudonymized = transform(data, offset, length, frame, event, dnsSegment || dnsFragment);
+        releaseDecided();
+        return pseudonymized;
+    }
+
+    /**
+     * Pseudonymizes an ethernet frame in place, like {@link #pseudonymize(byte[], int, int)}, unless it is
+     * a fragment of a datagram of which it is not yet known whether it carries DNS.
+     *
+     * Such a frame is held back: it is copied and left unchanged in the array. It is pseudonymized and
+     * released while pseudonymizing a later frame, or by {@link #releaseOldest()} or {@link #releaseHeld()}.
+     * The caller writes it in its place once it is released.
+     *
+     * @param data the array holding the frame
+     * @param offset the offset of the frame in the array
+     * @param length the length of the frame
+     * @return the held frame, or null when the frame was pseudonymized or parsing it failed
+     * @throws IOException whenever I/O errors occur
+     */
+    public HeldFrame pseudonymizeOrHold(final byte[] data, final int offset, final int length) throws IOException {
+        final long frame = _frames++;
+        final boolean dnsSegment = _dnsStreams != null && _dnsStreams.isDNSSegment(data, offset, length);
+        final int fragment = _dnsFragments == null ? DNSFragmentTracker.OTHER : _dnsFragments.track(data, offset, length);
+        if (fragment != DNSFragmentTracker.OTHER && fragment != DNSFragmentTracker.DNS) {
+            final HeldFrame held = new HeldFrame(Arrays.copyOfRange(data, offset, offset + length), frame, dnsSegment);
+            List<HeldFrame> frames = _held.get(fragment);
+            if (frames == null) {
+                frames = new ArrayList<>();
+                _held.put(fragment, frames);
+            }
+            frames.add(held);
+            _heldFrames++;
+            releaseDecided();
+            return held;
+        }
+        final TraceEvent event = TraceEvents.FRAME.isSampled(frame) ? TraceEvents.FRAME.begin() : null;
+        transform(data, offset, length, frame, event, dnsSegment || fragment == DNSFragmentTracker.DNS);
+        releaseDecided();
+        return null;
+    }
+
+    /**
+     * Releases the frames of the datagram of the frame that was held back first, deciding the datagram
+     * by what is known of it, to bound the memory used for holding frames back.
+     */
+    public void releaseOldest() {
+        if (!_held.isEmpty()) {
+            _dnsFragments.decide(_held.keySet().iterator().next());
+            releaseDecided();
+        }
+    }
+
+    /**
+     * Releases all frames held back, deciding their datagrams by what is known of them, such as at the end
+     * of the input.
+     */
+    public void releaseHeld() {
+        for (final Integer datagram : new ArrayList<>(_held.keySet())) {
+            _dnsFragments.decide(datagram);
+        }
+        releaseDecided();
+    }
+
+    /**
+     * Returns the number of frames held back.
+     *
+     * @return the number of held frames
+     */
+    public int getHeldFrames() {
+        return _heldFrames;
+    }
+
+    /**
+     * Returns the number of bytes a caller should hold back at most, including the frames written after
+     * a held frame: the memory the fragment tracker has for fragments of incomplete datagrams.
+     *
+     * @return the amount of memory in bytes, or 0 when no frames are held back
+     */
+    public long getHoldLimit() {
+        return _dnsFragments == null ? 0 : _dnsFragments.getReassembler().getBufferSize();
+    }
+
+    private void releaseDecided() {
+        release(_dnsReleases, true);
+        release(_otherReleases, false);
+    }
+
+    private void release(final List<HeldFrame> frames, final boolean dns) {
+        // pseudonymizing a released frame does not track it, so no frames are added meanwhile
+        for (int i = 0; i < frames.size(); i++) {
+            final HeldFrame held = frames.get(i);
+            final TraceEvent event = TraceEvents.FRAME.isSampled(held.getFrame()) ? TraceEvents.FRAME.begin() : null;
+            Throwable failure = null;
+            try {
+                transform(held.getData(), 0, held.getData().length, held.getFrame(), event, held.isDNSSegment() || dns);
+            }
+            catch (final Throwable t) {
+                // reported to the caller, who drops the frame like any other frame that fails
+                failure = t;
+            }
+            held.release(failure);
+            _heldFrames--;
+        }
+        frames.clear();
+    }
+
+    private boolean transform(final byte[] data, final int offset, final int length, final long frame, final TraceEvent event, final boolean dns) throws IOException {
+        final boolean timed = _metrics != null && _metrics.isSampled(frame);
+        final long start = timed ? System.nanoTime() : 0;
+        final ParseResult result = Util.parse(new ArrayByteStream(data, offset, length), 0L, Ethernet2Frame.FORMAT);
+        if (timed) {
+            _parseTime.recordSince(start);
+        }
+        if (result.succeeded && result.environment.offset == length) {
+            final String protocols = event != null ? ProtocolPath.of(data, offset, length) : null;
+            // the parsed values hold copies of the bytes, so the frame can be overwritten; bytes not
+            // covered by a value are zeroed, like in a freshly serialized frame
+            Arrays.fill(data, offset, offset + length, (byte) 0);
+            _pseudonymizer.transformAndProcess(result, new CopyTokenSerializer(data, offset), timed, event != null, dns ? DNS.FORMAT : null);
+            if (_metrics != null) {
+                _pseudonymized.increment();
+            }
+            if (event != null) {
+                trace(event, length, protocols, _pseudonymizer.getAppliedTransformers(), "pseudonymized");
+            }
+            return true;
+        }
+        final boolean ethernet = isEthernet2(data, offset, length);
+        if (_metrics != null) {
+            if (ethernet) {
+                _unparsed.increment();
+            }
+            else {
+                _nonEthernet.increment();
+            }
+        }
+        if (event != null) {
+            trace(event, length, ProtocolPath.of(data, offset, length), "", ethernet ? "unparsed" : "non_ethernet");
+        }
+        return false;
+    }
+
+    private static void trace(final TraceEvent event, final int length, final String protocols, final String transformers, final String outcome) {
+        event.set(TraceEvents.FRAME_SIZE, length)
+             .set(TraceEvents.FRAME_PROTOCOLS, protocols)
+             .set(TraceEvents.FRAME_TRANSFORMERS, transformers)
+             .set(TraceEvents.FRAME_OUTCOME, outcome)
+             .commit();
+    }
+
+    private static boolean isEthernet2(final byte[] data, final int offset, final int length) {
+        return length >= ETHERNET_HEADER_LENGTH && ((data[offset + 12] & 0xFF) << 8 | data[offset + 13] & 0xFF) >= MIN_ETHERTYPE;
+    }
 }
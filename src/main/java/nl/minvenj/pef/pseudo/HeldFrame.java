@@ -0,0 +1,80 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pseudo;
+
+/**
+ * A frame held back by a {@link FramePseudonymizer}, as it is a fragment of a datagram of which it is
+ * not yet known whether it carries DNS.
+ *
+ * The frame is a copy, so the caller may reuse the array it was in. Once the datagram is decided the
+ * copy is pseudonymized and the frame is released, after which it can be written.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class HeldFrame {
+
+    private final byte[] _data;
+    private final long _frame;
+    private final boolean _dnsSegment;
+    private boolean _released;
+    private Throwable _failure;
+
+    HeldFrame(final byte[] data, final long frame, final boolean dnsSegment) {
+        _data = data;
+        _frame = frame;
+        _dnsSegment = dnsSegment;
+    }
+
+    /**
+     * Returns the frame, which is pseudonymized once it is released.
+     *
+     * @return the bytes of the frame
+     */
+    public byte[] getData() {
+        return _data;
+    }
+
+    /**
+     * Returns whether the datagram of the frame was decided and the frame was pseudonymized.
+     *
+     * @return true when the frame is released
+     */
+    public boolean isReleased() {
+        return _released;
+    }
+
+    /**
+     * Returns why pseudonymizing the frame failed, in which case it must not be written.
+     *
+     * @return the failure, or null when the frame is not released or was pseudonymized
+     */
+    public Throwable getFailure() {
+        return _failure;
+    }
+
+    long getFrame() {
+        return _frame;
+    }
+
+    boolean isDNSSegment() {
+        return _dnsSegment;
+    }
+
+    void release(final Throwable failure) {
+        _released = true;
+        _failure = failure;
+    }
+}
@@ -16,12 +16,20 @@
 package nl.minvenj.pef.pseudo;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
 import nl.minvenj.pef.ffx.FFX;
+import nl.minvenj.pef.metrics.Counter;
+import nl.minvenj.pef.metrics.Instrumented;
+import nl.minvenj.pef.metrics.MetricsRegistry;
+import nl.minvenj.pef.trace.TraceEventType.TraceEvent;
+import nl.minvenj.pef.trace.TraceEvents;
 import nl.minvenj.pef.util.Util;
 
 /**
@@ -34,20 +42,37 @@ import nl.minvenj.pef.util.Util;
  * where x is the encrypted value. The mask number determines the amount of most significant bits
  * to be left untouched.
  *
+ * Recently pseudonymized addresses are cached, as the same addresses tend to occur in many packets.
+ * Like the encrypter, the cache is not thread safe: use one instance per thread. The hits and
+ * misses of the cache can be counted in a metrics registry, and a sample of the calls is traced
+ * with {@link TraceEvents#ADDRESS} flight recorder events when a recording enables them.
+ *
  * @author Netherlands Forensic Institute.
  */
-public final class IPPseudonymizer {
+public final class IPPseudonymizer implements Instrumented {
 
     private static final int IPV4_BIT_COUNT = 32;
     private static final int IPV6_BIT_COUNT = 128;
 
     private static final int RADIX = 2;
     private static final byte[] TWEAK = new byte[0];
+    private static final int CACHE_SIZE = 4096;
 
     private final FFX _encrypter;
     private final int _bitCount;
     private final int _mask;
     private final int _changeBitCount;
+    private final Map<ByteBuffer, byte[]> _cache = new LinkedHashMap<ByteBuffer, byte[]>(CACHE_SIZE * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<ByteBuffer, byte[]> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private long _cacheHits;
+    private long _cacheMisses;
+    private Counter _hitCounter;
+    private Counter _missCounter;
+    private long _calls;
 
     private IPPseudonymizer(final String key, final int mask, final int bitCount) throws InvalidKeyException {
         try {
@@ -92,7 +117,63 @@ public final class IPPseudonymizer {
      * @return a byte array containing the pseudonymized ip address
      */
     public byte[] pseudonymize(final byte[] ip) {
-        return pseudonymize(ip, _bitCount, _mask, _changeBitCount);
+        final TraceEvent event = TraceEvents.ADDRESS.isSampled(_calls++) ? TraceEvents.ADDRESS.begin() : null;
+        final byte[] cached = _cache.get(ByteBuffer.wrap(ip));
+        if (cached != null) {
+            _cacheHits++;
+            if (_hitCounter != null) {
+                _hitCounter.increment();
+            }
+            trace(event, true);
+            return cached.clone();
+        }
+        _cacheMisses++;
+        if (_missCounter != null) {
+            _missCounter.increment();
+        }
+        final byte[] pseudonymized = pseudonymize(ip, _bitCount, _mask, _changeBitCount);
+        _cache.put(ByteBuffer.wrap(ip.clone()), pseudonymized.clone());
+        trace(event, false);
+        return pseudonymized;
+    }
+
+    private void trace(final TraceEvent event, final boolean cached) {
+        if (event != null) {
+            event.set(TraceEvents.ADDRESS_BITS, _bitCount)
+                 .set(TraceEvents.ADDRESS_MASK, _mask)
+                 .set(TraceEvents.ADDRESS_CACHED, cached)
+                 .commit();
+        }
+    }
+
+    /**
+     * Count the hits and misses of the cache as {@link MetricsRegistry#FFX_CACHE_HITS} and
+     * {@link MetricsRegistry#FFX_CACHE_MISSES}, together with the other pseudonymizers using the registry.
+     *
+     * @param metrics the registry to count in
+     */
+    @Override
+    public void setMetrics(final MetricsRegistry metrics) {
+        _hitCounter = metrics.counter(MetricsRegistry.FFX_CACHE_HITS);
+        _missCounter = metrics.counter(MetricsRegistry.FFX_CACHE_MISSES);
+    }
+
+    /**
+     * Returns the number of addresses that were found in the cache.
+     *
+     * @return the number of cache hits
+     */
+    public long getCacheHits() {
+        return _cacheHits;
+    }
+
+    /**
+     * Returns the number of addresses that had to be encrypted, because they were not in the cache.
+     *
+     * @return the number of cache misses
+     */
+    public long getCacheMisses() {
+        return _cacheMisses;
     }
 
     private byte[] pseudonymize(final byte[] ipAddress, final int bitCount, final int mask, final int changeBitCount) {
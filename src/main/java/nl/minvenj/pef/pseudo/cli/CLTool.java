@@ -16,10 +16,19 @@
 package nl.minvenj.pef.pseudo.cli;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.codec.digest.HmacUtils;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.impl.Arguments;
@@ -28,16 +37,27 @@ import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 import net.sourceforge.argparse4j.internal.HelpScreenException;
+import nl.minvenj.pef.compress.Compression;
 import nl.minvenj.pef.exception.UnsupportedFileFormatException;
+import nl.minvenj.pef.index.CaptureIndex;
+import nl.minvenj.pef.output.Checkpoint;
+import nl.minvenj.pef.output.CheckpointSettings;
 import nl.minvenj.pef.pseudo.FramePseudonymizer;
 import nl.minvenj.pef.pseudo.cli.action.ChecksumCheckAction;
+import nl.minvenj.pef.pseudo.cli.action.DirectoryCheckAction;
 import nl.minvenj.pef.pseudo.cli.action.FileCheckAction;
 import nl.minvenj.pef.pseudo.cli.action.Pseudo4CheckAction;
 import nl.minvenj.pef.pseudo.cli.action.Pseudo6CheckAction;
+import nl.minvenj.pef.pseudo.dump.BatchFileResult;
+import nl.minvenj.pef.pseudo.dump.BatchPseudonymizer;
 import nl.minvenj.pef.pseudo.dump.DumpFilePseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.CompressedCapturePseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.StreamingCapturePseudonymizer;
 import nl.minvenj.pef.pseudo.dump.cap.pcap.MultiThreadedPCAPPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcap.PCAPPseudonymizer;
 import nl.minvenj.pef.pseudo.dump.cap.pcap.SingleThreadedPCAPPseudonymizer;
 import nl.minvenj.pef.pseudo.dump.cap.pcapng.MultiThreadedPCAPNGPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcapng.PCAPNGPseudonymizer;
 import nl.minvenj.pef.pseudo.dump.cap.pcapng.SingleThreadedPCAPNGPseudonymizer;
 
 /**
@@ -48,12 +68,22 @@ import nl.minvenj.pef.pseudo.dump.cap.pcapng.SingleThreadedPCAPNGPseudonymizer;
  * on these packets based on the settings passed to the tool. Afterwards the data
  * is written back to a new file.
  *
+ * Instead of a single file, all files in a directory can be processed in one run using
+ * --indir and --outdir. The files are then pseudonymized concurrently by one pool of workers.
+ *
+ * With - as infile or outfile the tool reads from standard input or writes to standard output,
+ * so it can be used in a pipe, e.g. tcpdump -w - | pef -i - -o - | zstd. The stream is processed
+ * record by record, so no unpseudonymized data is stored.
+ *
  * Run with -h for help.
  *
  * @author Netherlands Forensic Institute.
  */
 public final class CLTool {
 
+    /** The file argument standing for standard input or output. */
+    public static final String STANDARD_STREAM = "-";
+
     private CLTool() {
     }
 
@@ -62,19 +92,39 @@ public final class CLTool {
             .description("Tool to pseudonymize certain DNS packets packets in PCAP or PCAPNG files.")
             .version("0.0.1");
 
-        final ArgumentGroup requiredGroup = parser.addArgumentGroup("required arguments");
+        final ArgumentGroup requiredGroup = parser.addArgumentGroup("required arguments (unless running in batch mode)");
 
         requiredGroup.addArgument("-i", "--infile")
-            .required(true)
             .metavar("infile")
             .type(String.class)
             .action(new FileCheckAction())
-            .help("the input file to process (either PCAP or PCAPNG)");
+            .help("the input file to process (either PCAP or PCAPNG), or - to read a stream from standard input");
         requiredGroup.addArgument("-o", "--outfile")
-            .required(true)
             .metavar("outfile")
             .type(String.class)
-            .help("the output file to create and write to");
+            .help("the output file to create and write to, or - to write to standard output");
+
+        final ArgumentGroup batchGroup = parser.addArgumentGroup("batch mode arguments");
+
+        batchGroup.addArgument("-I", "--indir")
+            .metavar("indir")
+            .type(String.class)
+            .action(new DirectoryCheckAction())
+            .help("process all files in this directory instead of a single infile");
+        batchGroup.addArgument("-O", "--outdir")
+            .metavar("outdir")
+            .type(String.class)
+            .action(new DirectoryCheckAction())
+            .help("the directory to write the output files to, using the names of the input files");
+        batchGroup.addArgument("-g", "--glob")
+            .metavar("pattern")
+            .type(String.class)
+            .setDefault("*")
+            .help("only process files in indir matching this glob pattern (default: *)");
+        batchGroup.addArgument("-s", "--summary")
+            .metavar("summaryfile")
+            .type(String.class)
+            .help("write the result of each file as CSV to this file");
         parser.addArgument("-v", "--version")
             .action(Arguments.version())
             .help("show the program version");
@@ -90,17 +140,42 @@ public final class CLTool {
             .help("pseudonymize the masked part of IPv6 addresses using FPE, with given key");
         parser.addArgument("-c", "--checksum")
             .nargs(1)
-            .metavar("[ipv4,udp,icmp] or all")
+            .metavar("[ipv4,udp,icmp,tcp] or all")
             .action(new ChecksumCheckAction())
-            .help("recalculate checksums of given protocols (given as comma separated list or 'all')");
+            .help("recalculate checksums of given protocols (given as comma separated list or 'all'; tcp only applies with --tcp)");
+        parser.addArgument("--tcp")
+            .action(Arguments.storeTrue())
+            .help("follow TCP connections to pseudonymize all segments of DNS over TCP, also when a DNS message is split "
+                  + "over segments (not with -m/--multithread outside batch mode, as all frames must be seen in order)");
+        parser.addArgument("--fragments")
+            .action(Arguments.storeTrue())
+            .help("reassemble fragmented IPv4 datagrams and IPv6 packets to pseudonymize all fragments of DNS datagrams, such as large "
+                  + "EDNS0 responses (not with -m/--multithread outside batch mode, as all frames must be seen in order)");
         parser.addArgument("-m", "--multithread")
             .metavar("numthreads")
             .type(Integer.class)
             .choices(Arguments.range(1, 127)) // TODO: range as [1, maxDetectedCores]?
-            .help("use multithreading with specified number of threads, in range of [1, 127]");
+            .help("use multithreading with specified number of threads, in range of [1, 127] "
+                  + "(in batch mode: the number of files processed concurrently, default: number of processors; "
+                  + "not allowed when streaming from standard input, to standard output or with compressed files)");
+        parser.addArgument("-x", "--index")
+            .action(Arguments.storeTrue())
+            .help("write an index of the records of each input file next to it, named after it with "
+                  + CaptureIndex.EXTENSION + " appended (not allowed with compressed files or standard input)");
+        parser.addArgument("--checkpoint")
+            .metavar("megabytes")
+            .type(Integer.class)
+            .choices(Arguments.range(1, Integer.MAX_VALUE))
+            .help("write a checkpoint next to each output file after every given amount of input, named after it with "
+                  + Checkpoint.EXTENSION + " appended (not allowed with compressed files or standard input)");
+        parser.addArgument("--resume")
+            .action(Arguments.storeTrue())
+            .help("continue the output files of an interrupted run from their checkpoints, "
+                  + "using the same arguments (writes checkpoints every 1024 megabytes unless --checkpoint is given)");
 
         try {
             final Namespace cmdResult = parser.parseArgs(args);
+            checkModeArguments(parser, cmdResult);
             runTool(cmdResult);
         }
         catch (final HelpScreenException hse) {
@@ -112,8 +187,100 @@ public final class CLTool {
         }
     }
 
+    private static void checkModeArguments(final ArgumentParser parser, final Namespace cmdResult) throws ArgumentParserException {
+        if (cmdResult.getString("indir") == null) {
+            if (cmdResult.getString("outdir") != null) {
+                throw new ArgumentParserException("argument -O/--outdir requires argument -I/--indir", parser);
+            }
+            if (cmdResult.getString("outfile") == null) {
+                throw new ArgumentParserException("argument -o/--outfile is required", parser);
+            }
+            if (cmdResult.getString("infile") == null) {
+                throw new ArgumentParserException("argument -i/--infile is required", parser);
+            }
+            if (cmdResult.getBoolean("tcp") && cmdResult.getInt("multithread") != null) {
+                throw new ArgumentParserException("argument --tcp not allowed with argument -m/--multithread", parser);
+            }
+            if (cmdResult.getBoolean("fragments") && cmdResult.getInt("multithread") != null) {
+                throw new ArgumentParserException("argument --fragments not allowed with argument -m/--multithread", parser);
+            }
+            // standard streams and compressed files are streamed through a single pseudonymizer, without index or checkpoints
+            final String infile = cmdResult.getString("infile");
+            final String outfile = cmdResult.getString("outfile");
+            if (infile.equals(STANDARD_STREAM) || outfile.equals(STANDARD_STREAM)) {
+                checkStreamedArguments(parser, cmdResult, "standard input or output");
+            }
+            else if (isCompressed(parser, new File(infile)) || Compression.forFileName(outfile) != Compression.NONE) {
+                checkStreamedArguments(parser, cmdResult, "compressed files");
+            }
+        }
+        else {
+            if (cmdResult.getString("infile") != null || cmdResult.getString("outfile") != null) {
+                throw new ArgumentParserException("arguments -i/--infile and -o/--outfile not allowed with argument -I/--indir", parser);
+            }
+            if (cmdResult.getString("outdir") == null) {
+                throw new ArgumentParserException("argument -O/--outdir is required with argument -I/--indir", parser);
+            }
+            // in batch mode, -m/--multithread is the number of files processed concurrently, which applies to compressed files as well
+            if (cmdResult.getBoolean("index") || cmdResult.getInt("checkpoint") != null || cmdResult.getBoolean("resume")) {
+                checkNoCompressedFiles(parser, cmdResult);
+            }
+        }
+    }
+
+    private static void checkStreamedArguments(final ArgumentParser parser, final Namespace cmdResult, final String input) throws ArgumentParserException {
+        if (cmdResult.getInt("multithread") != null) {
+            throw new ArgumentParserException("argument -m/--multithread not allowed with " + input, parser);
+        }
+        checkIndexAndCheckpointArguments(parser, cmdResult, input);
+    }
+
+    private static void checkIndexAndCheckpointArguments(final ArgumentParser parser, final Namespace cmdResult, final String input) throws ArgumentParserException {
+        if (cmdResult.getBoolean("index")) {
+            throw new ArgumentParserException("argument -x/--index not allowed with " + input, parser);
+        }
+        if (cmdResult.getInt("checkpoint") != null) {
+            throw new ArgumentParserException("argument --checkpoint not allowed with " + input, parser);
+        }
+        if (cmdResult.getBoolean("resume")) {
+            throw new ArgumentParserException("argument --resume not allowed with " + input, parser);
+        }
+    }
+
+    private static void checkNoCompressedFiles(final ArgumentParser parser, final Namespace cmdResult) throws ArgumentParserException {
+        final List<File> inFiles;
+        try {
+            inFiles = BatchPseudonymizer.listFiles(new File(cmdResult.getString("indir")), cmdResult.getString("glob"));
+        }
+        catch (final IOException ioe) {
+            throw new ArgumentParserException("cannot list files in -I/--indir: " + ioe.getMessage(), ioe, parser);
+        }
+        for (final File inFile : inFiles) {
+            if (isCompressed(parser, inFile)) {
+                checkIndexAndCheckpointArguments(parser, cmdResult, "compressed files in -I/--indir (" + inFile.getName() + ")");
+            }
+        }
+    }
+
+    private static boolean isCompressed(final ArgumentParser parser, final File file) throws ArgumentParserException {
+        try {
+            return Compression.forFileName(file.getName()) != Compression.NONE || Compression.detect(file) != Compression.NONE;
+        }
+        catch (final IOException ioe) {
+            throw new ArgumentParserException("cannot read file " + file + ": " + ioe.getMessage(), ioe, parser);
+        }
+    }
+
     private static void runTool(final Namespace cmdResult) {
         try {
+            if (cmdResult.getString("indir") != null) {
+                runToolOnDirectory(cmdResult);
+                return;
+            }
+            if (cmdResult.getString("infile").equals(STANDARD_STREAM) || cmdResult.getString("outfile").equals(STANDARD_STREAM)) {
+                runToolOnStreams(cmdResult);
+                return;
+            }
             final File inFile = new File(cmdResult.getString("infile"));
             final File outFile = new File(cmdResult.getString("outfile"));
 
@@ -132,8 +299,14 @@ public final class CLTool {
     }
 
     private static void runToolOnfiles(final Namespace cmdResult, final File inFile, final File outFile) throws InvalidKeyException, IOException {
+        // compressed input or output is streamed through a single pseudonymizer
+        if (Compression.forFileName(outFile.getName()) != Compression.NONE) {
+            new CompressedCapturePseudonymizer(initPseudonymizerWith(cmdResult)).pseudonymize(inFile, outFile);
+            return;
+        }
         final List<DumpFilePseudonymizer> pseudonymizers = new ArrayList<>();
 
+        pseudonymizers.add(new CompressedCapturePseudonymizer(initPseudonymizerWith(cmdResult)));
         pseudonymizers.add(initPCAPPseudonymizer(cmdResult));
         pseudonymizers.add(initPCAPPNGseudonymizer(cmdResult));
 
@@ -146,26 +319,108 @@ public final class CLTool {
         throw new UnsupportedFileFormatException("unsupported file format for infile");
     }
 
+    private static void runToolOnStreams(final Namespace cmdResult) throws InvalidKeyException, IOException {
+        final String inFile = cmdResult.getString("infile");
+        final String outFile = cmdResult.getString("outfile");
+        // the standard streams are not wrapped in a PrintStream, so write errors such as a closed pipe are reported
+        try (final InputStream input = inFile.equals(STANDARD_STREAM) ? new FileInputStream(FileDescriptor.in) : new FileInputStream(inFile);
+             final OutputStream output = outFile.equals(STANDARD_STREAM) ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(outFile)) {
+            new StreamingCapturePseudonymizer(initPseudonymizerWith(cmdResult)).pseudonymize(input, output);
+        }
+    }
+
+    private static void runToolOnDirectory(final Namespace cmdResult) throws InvalidKeyException, IOException {
+        final File inDirectory = new File(cmdResult.getString("indir"));
+        final File outDirectory = new File(cmdResult.getString("outdir"));
+        final List<File> inFiles = BatchPseudonymizer.listFiles(inDirectory, cmdResult.getString("glob"));
+
+        final Integer mt = cmdResult.getInt("multithread");
+        final int workers = mt == null ? Math.min(Runtime.getRuntime().availableProcessors(), 127) : mt;
+
+        // each worker processes whole files on its own, so it gets its own single-threaded pseudonymizers
+        final List<List<DumpFilePseudonymizer>> pseudonymizerSets = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            final List<DumpFilePseudonymizer> pseudonymizers = new ArrayList<>();
+            pseudonymizers.add(new CompressedCapturePseudonymizer(initPseudonymizerWith(cmdResult)));
+            final SingleThreadedPCAPPseudonymizer pcapPseudonymizer = new SingleThreadedPCAPPseudonymizer(initPseudonymizerWith(cmdResult));
+            pcapPseudonymizer.setWriteIndex(cmdResult.getBoolean("index"));
+            pcapPseudonymizer.setCheckpointSettings(initCheckpointSettings(cmdResult));
+            pseudonymizers.add(pcapPseudonymizer);
+            final SingleThreadedPCAPNGPseudonymizer pcapngPseudonymizer = new SingleThreadedPCAPNGPseudonymizer(initPseudonymizerWith(cmdResult));
+            pcapngPseudonymizer.setWriteIndex(cmdResult.getBoolean("index"));
+            pcapngPseudonymizer.setCheckpointSettings(initCheckpointSettings(cmdResult));
+            pseudonymizers.add(pcapngPseudonymizer);
+            pseudonymizerSets.add(pseudonymizers);
+        }
+
+        final List<BatchFileResult> results = new BatchPseudonymizer(pseudonymizerSets).pseudonymize(inFiles, outDirectory);
+        for (final BatchFileResult result : results) {
+            if (result.getStatus() != BatchFileResult.Status.OK) {
+                System.err.println(result);
+            }
+        }
+        if (cmdResult.getString("summary") != null) {
+            BatchPseudonymizer.writeSummary(results, new File(cmdResult.getString("summary")));
+        }
+    }
+
     private static DumpFilePseudonymizer initPCAPPseudonymizer(final Namespace cmdResult) throws InvalidKeyException, IOException {
         final Integer mt = cmdResult.getInt("multithread");
+        final PCAPPseudonymizer pseudonymizer;
         if (mt == null) {
-            return new SingleThreadedPCAPPseudonymizer(initPseudonymizerWith(cmdResult));
+            pseudonymizer = new SingleThreadedPCAPPseudonymizer(initPseudonymizerWith(cmdResult));
         }
         else {
             final List<FramePseudonymizer> pseudonymizers = initMultiplePseudonymizers(cmdResult, mt);
-            return new MultiThreadedPCAPPseudonymizer(pseudonymizers);
+            pseudonymizer = new MultiThreadedPCAPPseudonymizer(pseudonymizers);
         }
+        pseudonymizer.setWriteIndex(cmdResult.getBoolean("index"));
+        pseudonymizer.setCheckpointSettings(initCheckpointSettings(cmdResult));
+        return pseudonymizer;
     }
 
     private static DumpFilePseudonymizer initPCAPPNGseudonymizer(final Namespace cmdResult) throws IOException, InvalidKeyException {
         final Integer mt = cmdResult.getInt("multithread");
+        final PCAPNGPseudonymizer pseudonymizer;
         if (mt == null) {
-            return new SingleThreadedPCAPNGPseudonymizer(initPseudonymizerWith(cmdResult));
+            pseudonymizer = new SingleThreadedPCAPNGPseudonymizer(initPseudonymizerWith(cmdResult));
         }
         else {
             final List<FramePseudonymizer> pseudonymizers = initMultiplePseudonymizers(cmdResult, mt);
-            return new MultiThreadedPCAPNGPseudonymizer(pseudonymizers);
+            pseudonymizer = new MultiThreadedPCAPNGPseudonymizer(pseudonymizers);
         }
+        pseudonymizer.setWriteIndex(cmdResult.getBoolean("index"));
+        pseudonymizer.setCheckpointSettings(initCheckpointSettings(cmdResult));
+        return pseudonymizer;
+    }
+
+    private static CheckpointSettings initCheckpointSettings(final Namespace cmdResult) {
+        final Integer megabytes = cmdResult.getInt("checkpoint");
+        final boolean resume = cmdResult.getBoolean("resume");
+        if (megabytes == null && !resume) {
+            return null;
+        }
+        // a checkpoint can only be resumed with the same pseudonymization arguments; the keys are not digested themselves
+        // but used as the key of a MAC over the other arguments, so the checkpoint does not hold a plain hash of them
+        final String keys = keyOf(cmdResult, "pseudo4") + "|" + keyOf(cmdResult, "pseudo6");
+        final String arguments = maskOf(cmdResult, "pseudo4") + "|" + maskOf(cmdResult, "pseudo6") + "|" + cmdResult.get("checksum");
+        final String tracking = (cmdResult.getBoolean("tcp") ? "|tcp" : "") + (cmdResult.getBoolean("fragments") ? "|fragments" : "");
+        final String fingerprint = HmacUtils.hmacSha256Hex(keys.getBytes(StandardCharsets.UTF_8), (arguments + tracking).getBytes(StandardCharsets.UTF_8));
+        final CheckpointSettings settings = new CheckpointSettings(fingerprint).resume(resume);
+        if (megabytes != null) {
+            settings.interval(megabytes * 1024L * 1024L);
+        }
+        return settings;
+    }
+
+    private static String keyOf(final Namespace cmdResult, final String argument) {
+        final List<Object> params = cmdResult.getList(argument);
+        return params == null ? "" : params.get(0).toString().toUpperCase(Locale.ROOT);
+    }
+
+    private static String maskOf(final Namespace cmdResult, final String argument) {
+        final List<Object> params = cmdResult.getList(argument);
+        return params == null ? "none" : params.get(1).toString().replaceAll("/", "");
     }
 
     private static List<FramePseudonymizer> initMultiplePseudonymizers(final Namespace cmdResult, final int amount) throws IOException, InvalidKeyException {
@@ -192,6 +447,7 @@ public final class CLTool {
                 builder.calcUDPChecksum();
                 builder.calcIPv4Checksum();
                 builder.calcICMPChecksum();
+                builder.calcTCPChecksum();
             }
             else {
                 if (params.contains("udp")) {
@@ -203,8 +459,17 @@ public final class CLTool {
                 if (params.contains("icmp")) {
                     builder.calcICMPChecksum();
                 }
+                if (params.contains("tcp")) {
+                    builder.calcTCPChecksum();
+                }
             }
         }
+        if (cmdResult.getBoolean("tcp")) {
+            builder.dnsOverTCP();
+        }
+        if (cmdResult.getBoolean("fragments")) {
+            builder.dnsInFragments();
+        }
         return builder.build();
     }
 }
@@ -18,15 +18,23 @@ package nl.minvenj.pef.pseudo.cli;
 import java.io.IOException;
 import java.security.InvalidKeyException;
 
+import nl.minvenj.pef.ip.DNSFragmentTracker;
+import nl.minvenj.pef.metrics.MetricsRegistry;
 import nl.minvenj.pef.pseudo.FramePseudonymizer;
 import nl.minvenj.pef.serialize.Processor;
 import nl.minvenj.pef.serialize.constraint.Constraints;
 import nl.minvenj.pef.serialize.transform.checksum.IPv4ChecksumCalculator;
+import nl.minvenj.pef.serialize.transform.checksum.IPv4FragmentUDPChecksumCalculator;
 import nl.minvenj.pef.serialize.transform.checksum.IPv4ICMPChecksumCalculator;
+import nl.minvenj.pef.serialize.transform.checksum.IPv4TCPChecksumCalculator;
 import nl.minvenj.pef.serialize.transform.checksum.IPv4UDPChecksumCalculator;
+import nl.minvenj.pef.serialize.transform.checksum.IPv6FragmentUDPChecksumCalculator;
+import nl.minvenj.pef.serialize.transform.checksum.IPv6ICMPChecksumCalculator;
+import nl.minvenj.pef.serialize.transform.checksum.IPv6TCPChecksumCalculator;
 import nl.minvenj.pef.serialize.transform.checksum.IPv6UDPChecksumCalculator;
 import nl.minvenj.pef.serialize.transform.pseudonymize.IPv4AddressPseudonymizer;
 import nl.minvenj.pef.serialize.transform.pseudonymize.IPv6AddressPseudonymizer;
+import nl.minvenj.pef.tcp.DNSStreamTracker;
 
 /**
  * A builder for a FramePseudonymizer.
@@ -40,6 +48,18 @@ import nl.minvenj.pef.serialize.transform.pseudonymize.IPv6AddressPseudonymizer;
 public class FramePseudonymizerBuilder {
 
     private final Processor _pseudonymizer;
+    private MetricsRegistry _metrics;
+    // the settings for the segments of DNS connections over TCP and the fragments of DNS datagrams,
+    // whose transformers are added when building
+    private IPv4AddressPseudonymizer _ipv4Pseudonymizer;
+    private IPv6AddressPseudonymizer _ipv6Pseudonymizer;
+    private boolean _ipv4Checksum;
+    private boolean _udpChecksum;
+    private boolean _tcpChecksum;
+    private DNSStreamTracker _dnsStreams;
+    private DNSFragmentTracker _dnsFragments;
+    private boolean _tcpTransformersAdded;
+    private boolean _fragmentTransformersAdded;
 
     /**
      * Create a new FramePseudonymizer builder.
@@ -67,6 +87,7 @@ public class FramePseudonymizerBuilder {
         _pseudonymizer
             .addTransformer(Constraints.IPV4_UDP_DNS, "ipsource", ipv4Pseudonymizer)
             .addTransformer(Constraints.IPV4_UDP_DNS, "ipdestination", ipv4Pseudonymizer);
+        _ipv4Pseudonymizer = ipv4Pseudonymizer;
         return this;
     }
 
@@ -89,6 +110,7 @@ public class FramePseudonymizerBuilder {
         _pseudonymizer
             .addTransformer(Constraints.IPV6_UDP_DNS, "sourceaddress", ipv6Pseudonymizer)
             .addTransformer(Constraints.IPV6_UDP_DNS, "destinationaddress", ipv6Pseudonymizer);
+        _ipv6Pseudonymizer = ipv6Pseudonymizer;
         return this;
     }
 
@@ -100,6 +122,7 @@ public class FramePseudonymizerBuilder {
     public FramePseudonymizerBuilder calcIPv4Checksum() {
         final IPv4ChecksumCalculator ipv4ChecksumCalc = new IPv4ChecksumCalculator();
         _pseudonymizer.addTransformer(Constraints.IPV4_UDP_DNS, "headerchecksum", ipv4ChecksumCalc);
+        _ipv4Checksum = true;
         return this;
     }
 
@@ -114,17 +137,94 @@ public class FramePseudonymizerBuilder {
         _pseudonymizer
             .addTransformer(Constraints.IPV4_UDP_DNS, "udpchecksum", ipv4UdpChecksumCalc)
             .addTransformer(Constraints.IPV6_UDP_DNS, "udpchecksum", ipv6UdpChecksumCalc);
+        _udpChecksum = true;
         return this;
     }
 
     /**
-     * Recalculate the ICMP checksum.
+     * Recalculate the ICMP and ICMPv6 checksums.
      *
      * @return this
      */
     public FramePseudonymizerBuilder calcICMPChecksum() {
         final IPv4ICMPChecksumCalculator ipv4IcmpChecksumCalc = new IPv4ICMPChecksumCalculator();
-        _pseudonymizer.addTransformer(Constraints.ICMP_DNS, "icmpchecksum", ipv4IcmpChecksumCalc);
+        final IPv6ICMPChecksumCalculator ipv6IcmpChecksumCalc = new IPv6ICMPChecksumCalculator();
+        _pseudonymizer
+            .addTransformer(Constraints.ICMP_DNS, "icmpchecksum", ipv4IcmpChecksumCalc)
+            .addTransformer(Constraints.ICMPV6_DNS, "icmpchecksum", ipv6IcmpChecksumCalc);
+        return this;
+    }
+
+    /**
+     * Recalculate the TCP checksum of the segments of DNS connections, when they are pseudonymized.
+     *
+     * @return this
+     * @see #dnsOverTCP(DNSStreamTracker)
+     */
+    public FramePseudonymizerBuilder calcTCPChecksum() {
+        _tcpChecksum = true;
+        return this;
+    }
+
+    /**
+     * Same as {@link #dnsOverTCP(DNSStreamTracker)}, with a tracker with the default limits.
+     *
+     * @return this
+     */
+    public FramePseudonymizerBuilder dnsOverTCP() {
+        return dnsOverTCP(new DNSStreamTracker());
+    }
+
+    /**
+     * Pseudonymize all segments of the TCP connections carrying DNS, as recognized by a tracker
+     * following the connections, also when a segment holds only part of a DNS message.
+     *
+     * The IP addresses are pseudonymized and the IPv4 header and TCP checksums recalculated with
+     * the settings of this builder, by transformers added after all others when building. The built
+     * pseudonymizer must see all frames of a capture, in order.
+     *
+     * @param dnsStreams the tracker, which must not be shared with another pseudonymizer
+     * @return this
+     */
+    public FramePseudonymizerBuilder dnsOverTCP(final DNSStreamTracker dnsStreams) {
+        _dnsStreams = dnsStreams;
+        return this;
+    }
+
+    /**
+     * Same as {@link #dnsInFragments(DNSFragmentTracker)}, with a tracker with the default limits.
+     *
+     * @return this
+     */
+    public FramePseudonymizerBuilder dnsInFragments() {
+        return dnsInFragments(new DNSFragmentTracker());
+    }
+
+    /**
+     * Pseudonymize all fragments of the IPv4 datagrams and IPv6 packets carrying DNS, as recognized by
+     * a tracker reassembling them.
+     *
+     * The IP addresses are pseudonymized and the IPv4 header checksums recalculated with the settings of
+     * this builder, by transformers added after all others when building. With {@link #calcUDPChecksum()}
+     * the UDP checksum in the first fragment is updated as well. The built pseudonymizer must see all
+     * frames of a capture, in order.
+     *
+     * @param dnsFragments the tracker, which must not be shared with another pseudonymizer
+     * @return this
+     */
+    public FramePseudonymizerBuilder dnsInFragments(final DNSFragmentTracker dnsFragments) {
+        _dnsFragments = dnsFragments;
+        return this;
+    }
+
+    /**
+     * Record metrics of the pseudonymization in a registry.
+     *
+     * @param metrics the registry to record in
+     * @return this
+     */
+    public FramePseudonymizerBuilder metrics(final MetricsRegistry metrics) {
+        _metrics = metrics;
         return this;
     }
 
@@ -134,6 +234,62 @@ public class FramePseudonymizerBuilder {
      * @return a new frame pseudonymizer
      */
     public FramePseudonymizer build() {
-        return new FramePseudonymizer(_pseudonymizer);
+        if (_dnsStreams == null && _dnsFragments == null) {
+            return _metrics == null ? new FramePseudonymizer(_pseudonymizer) : new FramePseudonymizer(_pseudonymizer, _metrics);
+        }
+        if (_dnsStreams != null && !_tcpTransformersAdded) {
+            addTCPTransformers();
+            _tcpTransformersAdded = true;
+        }
+        if (_dnsFragments != null && !_fragmentTransformersAdded) {
+            addFragmentTransformers();
+            _fragmentTransformersAdded = true;
+        }
+        return new FramePseudonymizer(_pseudonymizer, _metrics, _dnsStreams, _dnsFragments);
+    }
+
+    // the checksums are calculated over the pseudonymized addresses, so they come last
+    private void addTCPTransformers() {
+        if (_ipv4Pseudonymizer != null) {
+            _pseudonymizer
+                .addTransformer(Constraints.IPV4_TCP_DNS, "ipsource", _ipv4Pseudonymizer)
+                .addTransformer(Constraints.IPV4_TCP_DNS, "ipdestination", _ipv4Pseudonymizer);
+        }
+        if (_ipv6Pseudonymizer != null) {
+            _pseudonymizer
+                .addTransformer(Constraints.IPV6_TCP_DNS, "sourceaddress", _ipv6Pseudonymizer)
+                .addTransformer(Constraints.IPV6_TCP_DNS, "destinationaddress", _ipv6Pseudonymizer);
+        }
+        if (_ipv4Checksum) {
+            _pseudonymizer.addTransformer(Constraints.IPV4_TCP_DNS, "headerchecksum", new IPv4ChecksumCalculator());
+        }
+        if (_tcpChecksum) {
+            _pseudonymizer
+                .addTransformer(Constraints.IPV4_TCP_DNS, "tcpchecksum", new IPv4TCPChecksumCalculator())
+                .addTransformer(Constraints.IPV6_TCP_DNS, "tcpchecksum", new IPv6TCPChecksumCalculator());
+        }
+    }
+
+    // the UDP checksum is updated from the original addresses, so it comes first
+    private void addFragmentTransformers() {
+        if (_ipv4Pseudonymizer != null) {
+            if (_udpChecksum) {
+                _pseudonymizer.addTransformer(Constraints.IPV4_FRAGMENT_DNS, "fragmentdata", new IPv4FragmentUDPChecksumCalculator(_ipv4Pseudonymizer));
+            }
+            _pseudonymizer
+                .addTransformer(Constraints.IPV4_FRAGMENT_DNS, "ipsource", _ipv4Pseudonymizer)
+                .addTransformer(Constraints.IPV4_FRAGMENT_DNS, "ipdestination", _ipv4Pseudonymizer);
+            if (_ipv4Checksum) {
+                _pseudonymizer.addTransformer(Constraints.IPV4_FRAGMENT_DNS, "headerchecksum", new IPv4ChecksumCalculator());
+            }
+        }
+        if (_ipv6Pseudonymizer != null) {
+            if (_udpChecksum) {
+                _pseudonymizer.addTransformer(Constraints.IPV6_FRAGMENT_DNS, "fragmentdata", new IPv6FragmentUDPChecksumCalculator(_ipv6Pseudonymizer));
+            }
+            _pseudonymizer
+                .addTransformer(Constraints.IPV6_FRAGMENT_DNS, "sourceaddress", _ipv6Pseudonymizer)
+                .addTransformer(Constraints.IPV6_FRAGMENT_DNS, "destinationaddress", _ipv6Pseudonymizer);
+        }
     }
 }
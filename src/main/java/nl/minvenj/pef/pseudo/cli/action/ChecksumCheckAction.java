@@ -46,7 +46,7 @@ public class ChecksumCheckAction extends DefaultConsumeAction {
 
         if (!(protocols.length == 1 && protocols[0].equals("all"))) {
             for (final String protocol : protocols) {
-                if (!(protocol.equals("ipv4") || protocol.equals("udp") || protocol.equals("icmp"))) {
+                if (!(protocol.equals("ipv4") || protocol.equals("udp") || protocol.equals("icmp") || protocol.equals("tcp"))) {
                     throw new ArgumentParserException("invalid protocol: " + protocol, parser, arg);
                 }
             }
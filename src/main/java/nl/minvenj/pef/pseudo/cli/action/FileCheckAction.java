@@ -21,10 +21,11 @@ import java.util.Map;
 import net.sourceforge.argparse4j.inf.Argument;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import nl.minvenj.pef.pseudo.cli.CLTool;
 
 /**
  * Custom Argparse4j action which checks if a given file, created from a file path argument,
- * exists and is a file.
+ * exists and is a file. The argument - stands for standard input and is always accepted.
  *
  * @author Netherlands Forensic Institute.
  */
@@ -33,7 +34,7 @@ public class FileCheckAction extends DefaultConsumeAction {
     @Override
     public void run(final ArgumentParser parser, final Argument arg, final Map<String, Object> attrs, final String flag, final Object value) throws ArgumentParserException {
         final File file = new File(value.toString());
-        if (!file.isFile()) {
+        if (!value.toString().equals(CLTool.STANDARD_STREAM) && !file.isFile()) {
             throw new ArgumentParserException("cannot find file " + file, parser, arg);
         }
 
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pseudo.dump;
+
+import java.io.File;
+
+/**
+ * The outcome of pseudonymizing a single file as part of a batch.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class BatchFileResult {
+
+    /**
+     * Status of a processed file.
+     */
+    public enum Status {
+        /** The file was pseudonymized and the output file was written. */
+        OK,
+        /** None of the pseudonymizers recognised the file format. */
+        UNSUPPORTED,
+        /** An error occurred while processing the file. */
+        FAILED
+    }
+
+    private final File _inFile;
+    private final File _outFile;
+    private final Status _status;
+    private final long _inSize;
+    private final long _outSize;
+    private final long _millis;
+    private final String _message;
+
+    /**
+     * Create a new result for a processed file.
+     *
+     * @param inFile the input file
+     * @param outFile the output file, which may not exist when the status is not OK
+     * @param status the status of the processing
+     * @param inSize the size of the input file in bytes
+     * @param outSize the size of the output file in bytes
+     * @param millis the processing time in milliseconds
+     * @param message a description of the failure, or an empty string
+     */
+    public BatchFileResult(final File inFile, final File outFile, final Status status, final long inSize, final long outSize, final long millis, final String message) {
+        _inFile = inFile;
+        _outFile = outFile;
+        _status = status;
+        _inSize = inSize;
+        _outSize = outSize;
+        _millis = millis;
+        _message = message == null ? "" : message;
+    }
+
+    public File getInFile() {
+        return _inFile;
+    }
+
+    public File getOutFile() {
+        return _outFile;
+    }
+
+    public Status getStatus() {
+        return _status;
+    }
+
+    public long getInSize() {
+        return _inSize;
+    }
+
+    public long getOutSize() {
+        return _outSize;
+    }
+
+    public long getMillis() {
+        return _millis;
+    }
+
+    public String getMessage() {
+        return _message;
+    }
+
+    @Override
+    public String toString() {
+        return _inFile + ": " + _status + (_message.isEmpty() ? "" : " (" + _message + ")");
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pseudo.dump;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import nl.minvenj.pef.output.Checkpoint;
+import nl.minvenj.pef.pseudo.dump.BatchFileResult.Status;
+
+/**
+ * Pseudonymizes many dump files using one shared pool of workers.
+ *
+ * Every worker owns its own set of dump file pseudonymizers (frame pseudonymizers are not
+ * thread safe), which are set up once and reused for all files the worker processes. Files are
+ * handed out largest first, so a single big file does not end up being processed last while
+ * the other workers are idle.
+ *
+ * A file that fails does not stop the batch; its failure is reported in its result instead. Its
+ * output is removed, unless a checkpoint was written for it, so the file can be resumed.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class BatchPseudonymizer {
+
+    private static final String SUMMARY_HEADER = "infile,outfile,status,insize,outsize,millis,message";
+
+    private final Queue<List<DumpFilePseudonymizer>> _pseudonymizerSets;
+    private final int _workers;
+
+    /**
+     * Create a new batch pseudonymizer using one worker per given set of pseudonymizers.
+     *
+     * Each set contains the candidate pseudonymizers for a worker, for example a PCAP and a PCAPNG pseudonymizer.
+     *
+     * @param pseudonymizerSets the pseudonymizer sets, one per worker
+     */
+    public BatchPseudonymizer(final List<List<DumpFilePseudonymizer>> pseudonymizerSets) {
+        if (pseudonymizerSets.isEmpty()) {
+            throw new IllegalArgumentException("at least one set of pseudonymizers is required");
+        }
+        _pseudonymizerSets = new ConcurrentLinkedQueue<>(pseudonymizerSets);
+        _workers = pseudonymizerSets.size();
+    }
+
+    /**
+     * List the regular files in a directory that match a glob pattern, sorted by name.
+     *
+     * @param directory the directory to list
+     * @param glob the glob pattern file names must match, e.g. "*.pcap"
+     *
+     * @return the matching files
+     * @throws IOException when the directory can not be read
+     */
+    public static List<File> listFiles(final File directory, final String glob) throws IOException {
+        final List<File> files = new ArrayList<>();
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath(), glob)) {
+            for (final Path path : stream) {
+                if (Files.isRegularFile(path)) {
+                    files.add(path.toFile());
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Pseudonymize the given files, writing each output file with the same name in the output directory.
+     *
+     * @param inFiles the files to pseudonymize
+     * @param outDirectory the directory to write the output files to
+     *
+     * @return the results, in the same order as the given files
+     */
+    public List<BatchFileResult> pseudonymize(final List<File> inFiles, final File outDirectory) {
+        final List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < inFiles.size(); i++) {
+            order.add(i);
+        }
+        // longest processing time first, file size being the best estimate we have
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer left, final Integer right) {
+                return Long.compare(inFiles.get(right).length(), inFiles.get(left).length());
+            }
+        });
+
+        final ExecutorService pool = Executors.newFixedThreadPool(_workers);
+        final List<Future<BatchFileResult>> futures = new ArrayList<>(Collections.<Future<BatchFileResult>>nCopies(inFiles.size(), null));
+        for (final Integer index : order) {
+            final File inFile = inFiles.get(index);
+            futures.set(index, pool.submit(new FileTask(inFile, new File(outDirectory, inFile.getName()))));
+        }
+        pool.shutdown();
+
+        final List<BatchFileResult> results = new ArrayList<>();
+        try {
+            for (final Future<BatchFileResult> future : futures) {
+                results.add(future.get());
+            }
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        catch (final InterruptedException | ExecutionException e) {
+            pool.shutdownNow();
+            throw new IllegalStateException(e);
+        }
+        return results;
+    }
+
+    /**
+     * Write the results of a batch as CSV to a file.
+     *
+     * @param results the results to write
+     * @param summaryFile the file to create/overwrite
+     *
+     * @throws IOException when the file could not be written
+     */
+    public static void writeSummary(final List<BatchFileResult> results, final File summaryFile) throws IOException {
+        try (final PrintWriter writer = new PrintWriter(new OutputStreamWriter(Files.newOutputStream(summaryFile.toPath()), StandardCharsets.UTF_8))) {
+            writer.println(SUMMARY_HEADER);
+            for (final BatchFileResult result : results) {
+                writer.println(csv(result.getInFile().getPath()) + ','
+                               + csv(result.getOutFile().getPath()) + ','
+                               + result.getStatus() + ','
+                               + result.getInSize() + ','
+                               + result.getOutSize() + ','
+                               + result.getMillis() + ','
+                               + csv(result.getMessage()));
+            }
+            if (writer.checkError()) {
+                throw new IOException("could not write summary to " + summaryFile);
+            }
+        }
+    }
+
+    private static String csv(final String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Pseudonymize a single file with the first of the given pseudonymizers that supports it.
+     *
+     * @param pseudonymizers the candidate pseudonymizers
+     * @param inFile the file to pseudonymize
+     * @param outFile the file to write to, which is removed again when processing fails, unless it has a checkpoint to
+     *                resume it from
+     *
+     * @return the result of processing the file
+     */
+    static BatchFileResult pseudonymizeFile(final List<DumpFilePseudonymizer> pseudonymizers, final File inFile, final File outFile) {
+        final long inSize = inFile.length();
+        final long start = System.nanoTime();
+        try {
+            if (inFile.getCanonicalFile().equals(outFile.getCanonicalFile())) {
+                return result(inFile, outFile, Status.FAILED, inSize, start, "output file would overwrite input file");
+            }
+            for (final DumpFilePseudonymizer pseudonymizer : pseudonymizers) {
+                if (pseudonymizer.supportsFile(inFile)) {
+                    pseudonymizer.pseudonymize(inFile, outFile);
+                    return result(inFile, outFile, Status.OK, inSize, start, "");
+                }
+            }
+            return result(inFile, outFile, Status.UNSUPPORTED, inSize, start, "unsupported file format");
+        }
+        // one broken file should not abort the whole batch
+        catch (final IOException | RuntimeException e) {
+            // the checkpoint refers to the partial output, so both are kept to resume the file in a next run
+            if (!Checkpoint.fileFor(outFile).isFile() && outFile.exists() && !outFile.delete()) {
+                outFile.deleteOnExit();
+            }
+            return result(inFile, outFile, Status.FAILED, inSize, start, String.valueOf(e.getMessage()));
+        }
+    }
+
+    private static BatchFileResult result(final File inFile, final File outFile, final Status status, final long inSize, final long start, final String message) {
+        final long outSize = status == Status.OK ? outFile.length() : 0;
+        final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return new BatchFileResult(inFile, outFile, status, inSize, outSize, millis, message);
+    }
+
+    private class FileTask implements Callable<BatchFileResult> {
+
+        private final File _inFile;
+        private final File _outFile;
+
+        FileTask(final File inFile, final File outFile) {
+            _inFile = inFile;
+            _outFile = outFile;
+        }
+
+        @Override
+        public BatchFileResult call() {
+            final List<DumpFilePseudonymizer> pseudonymizers = _pseudonymizerSets.poll();
+            try {
+                return pseudonymizeFile(pseudonymizers, _inFile, _outFile);
+            }
+            finally {
+                _pseudonymizerSets.add(pseudonymizers);
+            }
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pseudo.dump;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.minvenj.pef.output.Checkpoint;
+
+/**
+ * Long-running service that pseudonymizes dump files as they appear in a directory.
+ *
+ * The input directory is watched for new and changed files matching a glob pattern. A file is
+ * considered complete when a marker file with the same name plus {@value #DONE_SUFFIX} exists, or
+ * when its size and modification time have not changed for a configured amount of time. Complete
+ * files are pseudonymized on a bounded pool of workers, each with its own set of pseudonymizers,
+ * which stay initialized for the lifetime of the service.
+ *
+ * Output is written to a hidden temporary file in the output directory and atomically moved to its
+ * final name when done, so consumers of the output directory never see partial files. Finished
+ * files are recorded in a journal, so after a restart only unfinished files are processed. A file
+ * that fails is tried again, up to {@value #MAX_ATTEMPTS} times in total, also across restarts.
+ * Temporary files left behind by a crash are removed, with their checkpoints, when the service starts.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class WatchFolderPseudonymizer {
+
+    /** Suffix of the marker file that signals that a file is complete. */
+    public static final String DONE_SUFFIX = ".done";
+    /** Number of times a file is tried before it is given up on. */
+    public static final int MAX_ATTEMPTS = 3;
+
+    private static final String TEMP_PREFIX = ".";
+    private static final String TEMP_SUFFIX = ".pef.tmp";
+    private static final Logger LOGGER = Logger.getLogger(WatchFolderPseudonymizer.class.getName());
+
+    private final Path _inDirectory;
+    private final File _outDirectory;
+    private final File _journalFile;
+    private final PathMatcher _matcher;
+    private final long _stableMillis;
+    private final Queue<List<DumpFilePseudonymizer>> _pseudonymizerSets;
+    private final int _workers;
+
+    private final Map<String, Candidate> _candidates = new HashMap<>();
+    private final Set<String> _inProgress = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Queue<String> _retries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger _finished = new AtomicInteger();
+    private volatile boolean _running = true;
+
+    /**
+     * Create a new watch folder pseudonymizer using one worker per given set of pseudonymizers.
+     *
+     * @param inDirectory the directory to watch
+     * @param outDirectory the directory to write the pseudonymized files to, must differ from the input directory
+     * @param pseudonymizerSets the pseudonymizer sets, one per worker
+     * @param journalFile the journal recording the finished files
+     * @param glob the glob pattern the names of the files to process must match, e.g. "*.{pcap,pcapng}"
+     * @param stableMillis the time in milliseconds a file must be unchanged to be considered complete
+     * @throws IOException when the directories can not be resolved
+     */
+    public WatchFolderPseudonymizer(final File inDirectory, final File outDirectory, final List<List<DumpFilePseudonymizer>> pseudonymizerSets,
+                                    final File journalFile, final String glob, final long stableMillis) throws IOException {
+        if (inDirectory.getCanonicalFile().equals(outDirectory.getCanonicalFile())) {
+            throw new IllegalArgumentException("input and output directory must differ");
+        }
+        if (pseudonymizerSets.isEmpty()) {
+            throw new IllegalArgumentException("at least one set of pseudonymizers is required");
+        }
+        _inDirectory = inDirectory.toPath();
+        _outDirectory = outDirectory;
+        _journalFile = journalFile;
+        _matcher = _inDirectory.getFileSystem().getPathMatcher("glob:" + glob);
+        _stableMillis = stableMillis;
+        _pseudonymizerSets = new ConcurrentLinkedQueue<>(pseudonymizerSets);
+        _workers = pseudonymizerSets.size();
+    }
+
+    /**
+     * Watch the input directory and process files until {@link #stop()} is called.
+     *
+     * Files already present in the input directory, but not in the journal, are processed as well.
+     * Files being processed when the service is stopped are finished before this method returns.
+     *
+     * @throws IOException when the directory can not be watched or the journal can not be written
+     */
+    public void run() throws IOException {
+        removeTemporaryFiles();
+        // allow a few files to wait in the queue, so a worker never idles while the next file is picked up
+        final Semaphore slots = new Semaphore(_workers * 2);
+        final ExecutorService pool = Executors.newFixedThreadPool(_workers);
+        final long pollMillis = Math.max(10, Math.min(_stableMillis / 2, 1000));
+
+        try (final WatchService watcher = _inDirectory.getFileSystem().newWatchService();
+             final WatchJournal journal = new WatchJournal(_journalFile, MAX_ATTEMPTS)) {
+            try {
+                _inDirectory.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+                scanDirectory();
+                LOGGER.info("Watching " + _inDirectory + " for files to pseudonymize.");
+
+                while (_running) {
+                    final WatchKey key = watcher.poll(pollMillis, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        for (final WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == OVERFLOW) {
+                                scanDirectory();
+                            }
+                            else {
+                                addCandidate(((Path) event.context()).getFileName().toString());
+                            }
+                        }
+                        if (!key.reset()) {
+                            throw new IOException("input directory " + _inDirectory + " can no longer be watched");
+                        }
+                    }
+                    for (String name = _retries.poll(); name != null; name = _retries.poll()) {
+                        addCandidate(name);
+                    }
+                    submitCompleteFiles(pool, slots, journal);
+                }
+            }
+            finally {
+                // the journal must stay open until the files in progress are finished
+                pool.shutdown();
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            }
+        }
+        catch (final InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop watching. Files in progress are finished, files not yet started are picked up by the next run.
+     */
+    public void stop() {
+        _running = false;
+    }
+
+    /**
+     * Returns the number of files finished since this service was started: successfully, unsupported, or failed as
+     * many times as allowed.
+     *
+     * @return the number of finished files
+     */
+    public int getFinishedCount() {
+        return _finished.get();
+    }
+
+    private void removeTemporaryFiles() throws IOException {
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(_outDirectory.toPath(), TEMP_PREFIX + "*" + TEMP_SUFFIX)) {
+            for (final Path path : stream) {
+                LOGGER.info("Removing incomplete output file " + path);
+                removeOutput(path.toFile());
+            }
+        }
+        // a checkpoint may be left without its output when the crash happened while removing them
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(_outDirectory.toPath(), TEMP_PREFIX + "*" + TEMP_SUFFIX + Checkpoint.EXTENSION)) {
+            for (final Path path : stream) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // the checkpoint of an output is named after it, so it is removed and moved along with the output
+    private static void removeOutput(final File output) throws IOException {
+        Files.deleteIfExists(output.toPath());
+        Files.deleteIfExists(Checkpoint.fileFor(output).toPath());
+    }
+
+    private static void moveOutput(final File from, final File to) throws IOException {
+        final File checkpoint = Checkpoint.fileFor(from);
+        if (checkpoint.exists()) {
+            Files.move(checkpoint.toPath(), Checkpoint.fileFor(to).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void scanDirectory() throws IOException {
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(_inDirectory)) {
+            for (final Path path : stream) {
+                addCandidate(path.getFileName().toString());
+            }
+        }
+    }
+
+    private void addCandidate(final String fileName) {
+        final String name = fileName.endsWith(DONE_SUFFIX) ? fileName.substring(0, fileName.length() - DONE_SUFFIX.length()) : fileName;
+        if (_matcher.matches(_inDirectory.getFileSystem().getPath(name)) && !_candidates.containsKey(name)) {
+            _candidates.put(name, new Candidate());
+        }
+    }
+
+    private void submitCompleteFiles(final ExecutorService pool, final Semaphore slots, final WatchJournal journal) {
+        final long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        final Iterator<Map.Entry<String, Candidate>> iterator = _candidates.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Candidate> entry = iterator.next();
+            final String name = entry.getKey();
+            final Candidate candidate = entry.getValue();
+            final File inFile = _inDirectory.resolve(name).toFile();
+            final long size = inFile.length();
+            final long modified = inFile.lastModified();
+
+            if (!inFile.isFile() || journal.isDone(name, size, modified)) {
+                iterator.remove();
+                continue;
+            }
+            if (_inProgress.contains(name)) {
+                // changed again while being processed, look at it once more afterwards
+                continue;
+            }
+            final boolean marked = new File(inFile.getPath() + DONE_SUFFIX).exists();
+            if (!marked && (size != candidate._size || modified != candidate._modified)) {
+                candidate._size = size;
+                candidate._modified = modified;
+                candidate._since = now;
+                continue;
+            }
+            if ((marked || now - candidate._since >= _stableMillis) && slots.tryAcquire()) {
+                iterator.remove();
+                _inProgress.add(name);
+                pool.execute(new FileTask(inFile, size, modified, journal, slots));
+            }
+        }
+    }
+
+    private static final class Candidate {
+        private long _size = -1;
+        private long _modified = -1;
+        private long _since;
+    }
+
+    private class FileTask implements Runnable {
+
+        private final File _inFile;
+        private final long _size;
+        private final long _modified;
+        private final WatchJournal _journal;
+        private final Semaphore _slots;
+
+        FileTask(final File inFile, final long size, final long modified, final WatchJournal journal, final Semaphore slots) {
+            _inFile = inFile;
+            _size = size;
+            _modified = modified;
+            _journal = journal;
+            _slots = slots;
+        }
+
+        @Override
+        public void run() {
+            final String name = _inFile.getName();
+            final File tempFile = new File(_outDirectory, TEMP_PREFIX + name + TEMP_SUFFIX);
+            final List<DumpFilePseudonymizer> pseudonymizers = _pseudonymizerSets.poll();
+            try {
+                final BatchFileResult result = BatchPseudonymizer.pseudonymizeFile(pseudonymizers, _inFile, tempFile);
+                if (result.getStatus() == BatchFileResult.Status.OK) {
+                    moveOutput(tempFile, new File(_outDirectory, name));
+                    LOGGER.info("Pseudonymized " + name + " in " + result.getMillis() + " ms.");
+                }
+                else {
+                    // a failed file is tried again from the start, so a partial output kept for its checkpoint is of no use
+                    removeOutput(tempFile);
+                    LOGGER.warning("Could not pseudonymize " + name + ": " + result.getStatus() + " " + result.getMessage());
+                }
+                _journal.add(name, _size, _modified, result.getStatus());
+                if (_journal.isDone(name, _size, _modified)) {
+                    _finished.incrementAndGet();
+                }
+                else {
+                    LOGGER.info("Will try " + name + " again.");
+                    _retries.add(name);
+                }
+            }
+            catch (final IOException e) {
+                // not recorded in the journal, so the file is processed again after a restart
+                LOGGER.log(Level.SEVERE, "Could not store the result for " + name, e);
+                tempFile.delete();
+                Checkpoint.fileFor(tempFile).delete();
+            }
+            finally {
+                _pseudonymizerSets.add(pseudonymizers);
+                _inProgress.remove(name);
+                _slots.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pseudo.dump;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only journal of the files a {@link WatchFolderPseudonymizer} has finished.
+ *
+ * Each line holds the status, size, modification time and name of a finished file, separated
+ * by tabs. Every entry is forced to disk before the next file is reported as done, so after a
+ * crash at most the files that were in progress are processed again. An incomplete last line,
+ * written during a crash, is ignored.
+ *
+ * A file that failed is only done once it failed a given number of times, so a file that failed
+ * because of a temporary problem, such as a full disk, is tried again, also after a restart.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+final class WatchJournal implements Closeable {
+
+    private final Set<String> _done = new HashSet<>();
+    private final Map<String, Integer> _failures = new HashMap<>();
+    private final int _maxAttempts;
+    private final FileChannel _channel;
+
+    /**
+     * Open the journal, reading the entries already present.
+     *
+     * @param journalFile the journal file, created if it does not exist
+     * @param maxAttempts the number of times a file may fail before it is done
+     * @throws IOException when the journal can not be read or opened for appending
+     */
+    WatchJournal(final File journalFile, final int maxAttempts) throws IOException {
+        _maxAttempts = maxAttempts;
+        boolean complete = true;
+        if (journalFile.exists() && journalFile.length() > 0) {
+            final List<String> lines = Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8);
+            complete = endsWithNewline(journalFile);
+            for (int i = 0; i < lines.size(); i++) {
+                if (i == lines.size() - 1 && !complete) {
+                    break;
+                }
+                final String[] fields = lines.get(i).split("\t", 4);
+                if (fields.length == 4 && fields[1].matches("\\d+") && fields[2].matches("-?\\d+")) {
+                    record(key(fields[3], Long.parseLong(fields[1]), Long.parseLong(fields[2])), fields[0].equals(BatchFileResult.Status.FAILED.name()));
+                }
+            }
+        }
+        _channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (!complete) {
+            // terminate the incomplete line, so the next entry starts on a line of its own
+            write("\n".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static boolean endsWithNewline(final File file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            return last.get(0) == '\n';
+        }
+    }
+
+    private static String key(final String name, final long size, final long modified) {
+        return name + '\t' + size + '\t' + modified;
+    }
+
+    private void record(final String key, final boolean failed) {
+        if (failed) {
+            final Integer failures = _failures.get(key);
+            _failures.put(key, failures == null ? 1 : failures + 1);
+        }
+        else {
+            _done.add(key);
+        }
+    }
+
+    /**
+     * Returns whether this exact version of a file, identified by name, size and modification time, is done: it was
+     * finished before, or it failed as many times as allowed.
+     *
+     * @param name the name of the file
+     * @param size the size of the file in bytes
+     * @param modified the modification time of the file
+     *
+     * @return true if the file does not have to be processed (again)
+     */
+    synchronized boolean isDone(final String name, final long size, final long modified) {
+        final String key = key(name, size, modified);
+        final Integer failures = _failures.get(key);
+        return _done.contains(key) || (failures != null && failures >= _maxAttempts);
+    }
+
+    /**
+     * Add the result of processing a file to the journal and force it to disk.
+     *
+     * @param name the name of the file
+     * @param size the size of the file in bytes
+     * @param modified the modification time of the file
+     * @param status the status the file was finished with
+     * @throws IOException when the entry could not be written
+     */
+    synchronized void add(final String name, final long size, final long modified, final BatchFileResult.Status status) throws IOException {
+        write((status + "\t" + size + '\t' + modified + '\t' + name + '\n').getBytes(StandardCharsets.UTF_8));
+        record(key(name, size, modified), status == BatchFileResult.Status.FAILED);
+    }
+
+    private void write(final byte[] bytes) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            _channel.write(buffer);
+        }
+        _channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        _channel.close();
+    }
+}
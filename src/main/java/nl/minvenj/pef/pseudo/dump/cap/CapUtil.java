@@ -18,6 +18,8 @@ package nl.minvenj.pef.pseudo.dump.cap;
 import java.io.IOException;
 
 import io.parsingdata.metal.data.ParseResult;
+import nl.minvenj.pef.index.CaptureIndexWriter;
+import nl.minvenj.pef.pipeline.PacketSlot;
 import nl.minvenj.pef.pseudo.FramePseudonymizer;
 import nl.minvenj.pef.serialize.Processor;
 
@@ -41,12 +43,68 @@ public final class CapUtil {
      * @throws IOException when an I/O error occurs during parsing
      */
     public static byte[] getPseudonymizedStructureBytes(final FramePseudonymizer pseudonymizer, final ParseResult result) throws IOException {
+        return getPseudonymizedStructureBytes(pseudonymizer, result, null, 0);
+    }
+
+    /**
+     * Pseudonymizes parsed packet data contained in a structure containing packet data, and adds
+     * the structure as it was in the input to an index.
+     *
+     * @param pseudonymizer the frame pseudonymizer with its transformers set to use for pseudonymization
+     * @param result the record Metal parse result to extract packet data from
+     * @param index the index to add the structure to, or null to not index it
+     * @param offset the offset of the structure in the input
+     * @return the rebuilt parsed bytes, with new pseudonymized packet data
+     * @throws IOException when an I/O error occurs during parsing or writing the index
+     */
+    public static byte[] getPseudonymizedStructureBytes(final FramePseudonymizer pseudonymizer, final ParseResult result, final CaptureIndexWriter index, final long offset) throws IOException {
         final PacketDataStructureSerializer structureSerializer = new PacketDataStructureSerializer();
         new Processor().process(result, structureSerializer);
         final byte[] packetData = structureSerializer.getPacketDataBytes();
-        final byte[] pseudoPacketData = pseudonymizer.pseudonymize(packetData);
         final byte[] structureBytes = structureSerializer.outputData();
+        if (index != null) {
+            index.add(offset, structureBytes, structureBytes.length, (int) structureSerializer.getPacketDataOffset(), packetData.length);
+        }
+        final byte[] pseudoPacketData = pseudonymizer.pseudonymize(packetData);
         System.arraycopy(pseudoPacketData, 0, structureBytes, (int) structureSerializer.getPacketDataOffset(), pseudoPacketData.length);
         return structureBytes;
     }
+
+    /**
+     * Pseudonymizes parsed packet data contained in a structure containing packet data and writes the
+     * structure, or queues it while frames before it are held back. The structure as it was in the input
+     * is added to an index.
+     *
+     * @param writer the writer pseudonymizing the packet data and writing the structure
+     * @param result the record Metal parse result to extract packet data from
+     * @param index the index to add the structure to, or null to not index it
+     * @param offset the offset of the structure in the input
+     * @throws IOException when an I/O error occurs during parsing, writing or writing the index
+     */
+    public static void writePseudonymizedStructure(final OrderedRecordWriter writer, final ParseResult result, final CaptureIndexWriter index, final long offset) throws IOException {
+        final PacketDataStructureSerializer structureSerializer = new PacketDataStructureSerializer();
+        new Processor().process(result, structureSerializer);
+        final int packetDataLength = structureSerializer.getPacketDataBytes().length;
+        final byte[] structureBytes = structureSerializer.outputData();
+        if (index != null) {
+            index.add(offset, structureBytes, structureBytes.length, (int) structureSerializer.getPacketDataOffset(), packetDataLength);
+        }
+        writer.write(structureBytes, 0, structureBytes.length, (int) structureSerializer.getPacketDataOffset(), packetDataLength);
+    }
+
+    /**
+     * Copies the bytes of a parsed structure containing packet data into a pipeline slot, marking
+     * the packet data as the frame to process.
+     *
+     * @param result the record Metal parse result to copy
+     * @param slot the slot to copy the structure into
+     * @throws IOException when an I/O error occurs during parsing
+     */
+    public static void copyStructure(final ParseResult result, final PacketSlot slot) throws IOException {
+        final PacketDataStructureSerializer structureSerializer = new PacketDataStructureSerializer();
+        new Processor().process(result, structureSerializer);
+        final byte[] structureBytes = structureSerializer.outputData();
+        System.arraycopy(structureBytes, 0, slot.ensureCapacity(structureBytes.length), 0, structureBytes.length);
+        slot.setLength(structureBytes.length, (int) structureSerializer.getPacketDataOffset(), structureSerializer.getPacketDataBytes().length);
+    }
 }
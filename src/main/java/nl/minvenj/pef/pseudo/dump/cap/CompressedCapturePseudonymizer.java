@@ -0,0 +1,71 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pseudo.dump.cap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import nl.minvenj.pef.compress.Compression;
+import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.pseudo.dump.DumpFilePseudonymizer;
+
+/**
+ * Pseudonymizes compressed PCAP and PCAPNG files, such as .pcap.gz and .pcapng.zst archives.
+ *
+ * The input is decompressed on its own thread while the packets are pseudonymized, by a
+ * {@link StreamingCapturePseudonymizer}, so no uncompressed copy is written to disk. The output is
+ * compressed according to the extension of its name, see {@link Compression#forFileName(String)};
+ * an output name without a compression extension gives an uncompressed file.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class CompressedCapturePseudonymizer implements DumpFilePseudonymizer {
+
+    private final StreamingCapturePseudonymizer _pseudonymizer;
+
+    /**
+     * Create a new pseudonymizer.
+     *
+     * @param framePseudonymizer the pseudonymizer to use to transform frame data
+     */
+    public CompressedCapturePseudonymizer(final FramePseudonymizer framePseudonymizer) {
+        _pseudonymizer = new StreamingCapturePseudonymizer(framePseudonymizer);
+    }
+
+    /**
+     * Returns true if the file is compressed in a supported format. Whether it contains a PCAP
+     * or PCAPNG capture is only checked when pseudonymizing it.
+     *
+     * @param file the file to check
+     * @return true if the file is compressed
+     * @throws IOException when reading the file fails
+     */
+    @Override
+    public boolean supportsFile(final File file) throws IOException {
+        return Compression.detect(file) != Compression.NONE;
+    }
+
+    @Override
+    public File pseudonymize(final File inFile, final File outFile) throws IOException {
+        try (final InputStream input = Compression.openInput(inFile);
+             final OutputStream output = Compression.openOutput(outFile)) {
+            _pseudonymizer.pseudonymize(input, output);
+        }
+        return outFile;
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pseudo.dump.cap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.pseudo.HeldFrame;
+
+/**
+ * Pseudonymizes the frames in the records of a capture and writes the records in the order of the
+ * input, holding back the records of which the {@link FramePseudonymizer} held back the frame.
+ *
+ * While a frame is held back, the records after it are copied and queued behind it, until it is
+ * released. The queued records take at most {@link FramePseudonymizer#getHoldLimit()} bytes; when they
+ * take more, the oldest held frames are released early. When nothing is held back, records are written
+ * directly, without copying them.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class OrderedRecordWriter {
+
+    private final FramePseudonymizer _pseudonymizer;
+    private final OutputStream _output;
+    private final ArrayDeque<Record> _records = new ArrayDeque<>();
+    private long _queuedBytes;
+
+    /**
+     * Create a new writer.
+     *
+     * @param pseudonymizer the pseudonymizer to use to transform frame data
+     * @param output the output to write the records to
+     */
+    public OrderedRecordWriter(final FramePseudonymizer pseudonymizer, final OutputStream output) {
+        _pseudonymizer = pseudonymizer;
+        _output = output;
+    }
+
+    /**
+     * Pseudonymize the frame in a record and write the record, or queue it until it can be written.
+     *
+     * @param data the array holding the record, which may be reused when the method returns
+     * @param offset the offset of the record in the array
+     * @param length the length of the record
+     * @param frameOffset the offset of the frame in the array
+     * @param frameLength the length of the frame
+     * @throws IOException whenever writing fails, or pseudonymizing a frame that was held back failed
+     */
+    public void write(final byte[] data, final int offset, final int length, final int frameOffset, final int frameLength) throws IOException {
+        final HeldFrame held = _pseudonymizer.pseudonymizeOrHold(data, frameOffset, frameLength);
+        if (held == null && _records.isEmpty()) {
+            _output.write(data, offset, length);
+            return;
+        }
+        queue(data, offset, length, frameOffset - offset, held);
+        drain();
+    }
+
+    /**
+     * Write a record without a frame, or queue it until the records before it are written.
+     *
+     * @param data the array holding the record, which may be reused when the method returns
+     * @param offset the offset of the record in the array
+     * @param length the length of the record
+     * @throws IOException whenever writing fails
+     */
+    public void write(final byte[] data, final int offset, final int length) throws IOException {
+        if (_records.isEmpty()) {
+            _output.write(data, offset, length);
+            return;
+        }
+        queue(data, offset, length, 0, null);
+        drain();
+    }
+
+    /**
+     * Returns whether records are queued, so not everything that was passed has been written.
+     *
+     * @return true when records are queued
+     */
+    public boolean isHolding() {
+        return !_records.isEmpty();
+    }
+
+    /**
+     * Release the frames that are held back and write all queued records, at the end of the input.
+     *
+     * @throws IOException whenever writing fails, or pseudonymizing a frame that was held back failed
+     */
+    public void finish() throws IOException {
+        _pseudonymizer.releaseHeld();
+        drain();
+    }
+
+    private void queue(final byte[] data, final int offset, final int length, final int frameOffset, final HeldFrame held) {
+        _records.add(new Record(Arrays.copyOfRange(data, offset, offset + length), frameOffset, held));
+        _queuedBytes += length;
+    }
+
+    private void drain() throws IOException {
+        while (true) {
+            while (!_records.isEmpty() && _records.peek().isWritable()) {
+                final Record record = _records.remove();
+                record.write(_output);
+                _queuedBytes -= record._data.length;
+            }
+            // the first record is held back, and so holds the frame that was held back first
+            if (_records.isEmpty() || _queuedBytes <= _pseudonymizer.getHoldLimit()) {
+                return;
+            }
+            _pseudonymizer.releaseOldest();
+        }
+    }
+
+    private static final class Record {
+
+        private final byte[] _data;
+        private final int _frameOffset;
+        private final HeldFrame _held;
+
+        Record(final byte[] data, final int frameOffset, final HeldFrame held) {
+            _data = data;
+            _frameOffset = frameOffset;
+            _held = held;
+        }
+
+        boolean isWritable() {
+            return _held == null || _held.isReleased();
+        }
+
+        void write(final OutputStream output) throws IOException {
+            if (_held != null) {
+                if (_held.getFailure() != null) {
+                    throw new IOException("could not pseudonymize a frame that was held back", _held.getFailure());
+                }
+                System.arraycopy(_held.getData(), 0, _data, _frameOffset, _held.getData().length);
+            }
+            output.write(_data);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pseudo.dump.cap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import nl.minvenj.pef.exception.UnsupportedFileFormatException;
+import nl.minvenj.pef.metal.dump.PCAP;
+import nl.minvenj.pef.metal.stream.ArrayByteStream;
+import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.trace.RecordTracer;
+import nl.minvenj.pef.util.Util;
+
+/**
+ * Pseudonymizes a PCAP or PCAPNG stream, such as standard input, without random access.
+ *
+ * The format is detected from the first bytes. Every record or block is read completely into a
+ * reused buffer, its packet data is pseudonymized in place and it is written out, so the memory used
+ * is bounded by the largest record. The output is flushed whenever no more input is available
+ * without blocking, so the pseudonymized packets of a live capture are passed on immediately.
+ * Only when the frame pseudonymizer holds back a fragment until its datagram is complete, the records
+ * from that fragment on are queued, within {@link FramePseudonymizer#getHoldLimit()}, until it is released.
+ *
+ * Like the file pseudonymizers, a truncated record at the end of the input is dropped. PCAPNG
+ * packet blocks are pseudonymized; the other blocks are written as they are.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class StreamingCapturePseudonymizer {
+
+    /** The size of the largest record or block that is accepted, which bounds the memory used. */
+    public static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 128 * 1024;
+    private static final int PCAP_HEADER_LENGTH = 24;
+    private static final int PCAP_RECORD_HEADER_LENGTH = 16;
+    private static final int PCAPNG_SECTION_HEADER = 0x0A0D0D0A;
+    private static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final int PCAPNG_SIMPLE_PACKET = 3;
+    private static final int PCAPNG_ENHANCED_PACKET = 6;
+
+    private final FramePseudonymizer _framePseudonymizer;
+    private byte[] _buffer = new byte[64 * 1024];
+    private long _packets;
+    // the offset of the current record or block in the input
+    private long _offset;
+
+    /**
+     * Create a new streaming pseudonymizer.
+     *
+     * @param framePseudonymizer the pseudonymizer to use to transform frame data
+     */
+    public StreamingCapturePseudonymizer(final FramePseudonymizer framePseudonymizer) {
+        _framePseudonymizer = framePseudonymizer;
+    }
+
+    /**
+     * Pseudonymize a stream until its end. The streams are not closed.
+     *
+     * @param in the PCAP or PCAPNG input
+     * @param out the output, in the same format as the input
+     * @return the number of packets pseudonymized or passed on
+     * @throws IOException whenever reading or writing fails, or a record is larger than {@link #MAX_RECORD_SIZE}
+     * @throws UnsupportedFileFormatException when the input is not PCAP or PCAPNG
+     */
+    public long pseudonymize(final InputStream in, final OutputStream out) throws IOException {
+        final InputStream input = new BufferedInputStream(in, BUFFER_SIZE);
+        final OutputStream output = new BufferedOutputStream(out, BUFFER_SIZE);
+        _packets = 0;
+        _offset = 0;
+        if (!read(input, 0, 4)) {
+            throw new UnsupportedFileFormatException("unsupported format of the input stream: too short");
+        }
+        final int magic = getInt(0, ByteOrder.BIG_ENDIAN);
+        final OrderedRecordWriter writer = new OrderedRecordWriter(_framePseudonymizer, output);
+        if (magic == PCAPNG_SECTION_HEADER) {
+            pseudonymizePCAPNG(input, output, writer);
+        }
+        else {
+            pseudonymizePCAP(input, output, writer);
+        }
+        writer.finish();
+        output.flush();
+        return _packets;
+    }
+
+    private void pseudonymizePCAP(final InputStream input, final OutputStream output, final OrderedRecordWriter writer) throws IOException {
+        if (!read(input, 4, PCAP_HEADER_LENGTH - 4) || !Util.parse(new ArrayByteStream(_buffer, 0, PCAP_HEADER_LENGTH), 0, PCAP.GLOBAL_HEADER).succeeded) {
+            throw new UnsupportedFileFormatException("unsupported format of the input stream");
+        }
+        final ByteOrder order = _buffer[1] == (byte) 0xB2 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        output.write(_buffer, 0, PCAP_HEADER_LENGTH);
+        _offset = PCAP_HEADER_LENGTH;
+
+        final RecordTracer tracer = new RecordTracer("pcap");
+        while (true) {
+            flushWhenIdle(input, output);
+            tracer.begin();
+            if (!read(input, 0, PCAP_RECORD_HEADER_LENGTH)) {
+                return;
+            }
+            final int length = getInt(8, order);
+            checkRecordSize(PCAP_RECORD_HEADER_LENGTH + (long) length, length < 0);
+            if (!read(input, PCAP_RECORD_HEADER_LENGTH, length)) {
+                return;
+            }
+            writer.write(_buffer, 0, PCAP_RECORD_HEADER_LENGTH + length, PCAP_RECORD_HEADER_LENGTH, length);
+            _packets++;
+            tracer.end(_offset, PCAP_RECORD_HEADER_LENGTH + length);
+            _offset += PCAP_RECORD_HEADER_LENGTH + length;
+        }
+    }
+
+    private void pseudonymizePCAPNG(final InputStream input, final OutputStream output, final OrderedRecordWriter writer) throws IOException {
+        ByteOrder order = null;
+        final RecordTracer tracer = new RecordTracer("pcapng");
+        tracer.begin();
+        // the block type has been read, every block is at least 12 bytes long
+        while (read(input, 4, 8)) {
+            final int type = getInt(0, ByteOrder.BIG_ENDIAN);
+            if (type == PCAPNG_SECTION_HEADER) {
+                order = getInt(8, ByteOrder.BIG_ENDIAN) == PCAPNG_BYTE_ORDER_MAGIC ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+                if (getInt(8, order) != PCAPNG_BYTE_ORDER_MAGIC) {
+                    throw new UnsupportedFileFormatException("unsupported format of the input stream: invalid section header");
+                }
+            }
+            if (order == null) {
+                throw new UnsupportedFileFormatException("unsupported format of the input stream");
+            }
+            final int length = getInt(4, order);
+            checkRecordSize(length, length < 12 || length % 4 != 0);
+            if (!read(input, 12, length - 12)) {
+                return;
+            }
+            final int blockType = getInt(0, order);
+            if (blockType == PCAPNG_ENHANCED_PACKET && length >= 32) {
+                final int capturedLength = getInt(20, order);
+                if (capturedLength >= 0 && capturedLength <= length - 32) {
+                    writer.write(_buffer, 0, length, 28, capturedLength);
+                }
+                else {
+                    writer.write(_buffer, 0, length);
+                }
+                _packets++;
+            }
+            else if (blockType == PCAPNG_SIMPLE_PACKET && length >= 16) {
+                writer.write(_buffer, 0, length, 12, length - 16);
+                _packets++;
+            }
+            else {
+                writer.write(_buffer, 0, length);
+            }
+            tracer.end(_offset, length);
+            _offset += length;
+
+            flushWhenIdle(input, output);
+            tracer.begin();
+            if (!read(input, 0, 4)) {
+                return;
+            }
+        }
+    }
+
+    private void checkRecordSize(final long size, final boolean invalid) throws IOException {
+        if (invalid || size > MAX_RECORD_SIZE) {
+            throw new IOException("invalid record length in the input stream: " + size);
+        }
+        if (size > _buffer.length) {
+            _buffer = Arrays.copyOf(_buffer, (int) Math.min(MAX_RECORD_SIZE, Math.max(size, _buffer.length * 2L)));
+        }
+    }
+
+    /**
+     * Fill a part of the buffer from the input.
+     *
+     * @return true when all bytes were read, false when the input ended first
+     */
+    private boolean read(final InputStream input, final int offset, final int length) throws IOException {
+        int position = offset;
+        final int end = offset + length;
+        while (position < end) {
+            final int count = input.read(_buffer, position, end - position);
+            if (count < 0) {
+                return false;
+            }
+            position += count;
+        }
+        return true;
+    }
+
+    private static void flushWhenIdle(final InputStream input, final OutputStream output) throws IOException {
+        if (input.available() == 0) {
+            output.flush();
+        }
+    }
+
+    private int getInt(final int offset, final ByteOrder order) {
+        final int value = (_buffer[offset] & 0xFF) << 24 | (_buffer[offset + 1] & 0xFF) << 16 | (_buffer[offset + 2] & 0xFF) << 8 | _buffer[offset + 3] & 0xFF;
+        return order == ByteOrder.BIG_ENDIAN ? value : Integer.reverseBytes(value);
+    }
+}
@@ -15,37 +15,43 @@
  */
 package nl.minvenj.pef.pseudo.dump.cap.pcap;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 
 import io.parsingdata.metal.data.ParseResult;
 import io.parsingdata.metal.encoding.Encoding;
+import nl.minvenj.pef.index.CaptureIndexWriter;
 import nl.minvenj.pef.metal.dump.PCAP;
 import nl.minvenj.pef.metal.stream.FileByteStream;
+import nl.minvenj.pef.output.Checkpoint;
+import nl.minvenj.pef.output.CheckpointingOutputStream;
+import nl.minvenj.pef.pipeline.FlowDispatcher;
+import nl.minvenj.pef.pipeline.PacketPipeline;
+import nl.minvenj.pef.pipeline.PacketSlot;
+import nl.minvenj.pef.pipeline.PseudonymizingProcessor;
+import nl.minvenj.pef.pipeline.StructureSink;
 import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.CapUtil;
+import nl.minvenj.pef.trace.RecordTracer;
 import nl.minvenj.pef.util.Util;
 
 /**
  * Multi-threaded version of a PCAP pseudonymizer.
  *
+ * The records are parsed on the calling thread and pseudonymized by a {@link PacketPipeline},
+ * with one worker per frame pseudonymizer. Packets of the same flow are always handled by the
+ * same worker, so the caches of its pseudonymizer stay effective.
+ *
  * @author Netherlands Forensic Institute.
  */
 public final class MultiThreadedPCAPPseudonymizer extends PCAPPseudonymizer {
 
-    private final Queue<FramePseudonymizer> _framePseudonimyzers;
+    private static final int RING_SIZE = 1024;
+    private static final int SLOT_SIZE = 2048;
+
+    private final List<PseudonymizingProcessor> _processors = new ArrayList<>();
 
     /**
      * Create a new PCAPPseudonymizer using given framepseudonymizers to pseudonymize the frame data.
@@ -53,65 +59,67 @@ public final class MultiThreadedPCAPPseudonymizer extends PCAPPseudonymizer {
      * @param framePseudonymizers the pseudonymizers to use to transform frame data
      */
     public MultiThreadedPCAPPseudonymizer(final List<FramePseudonymizer> framePseudonymizers) {
-        _framePseudonimyzers = new ConcurrentLinkedQueue<>(framePseudonymizers);
+        for (final FramePseudonymizer framePseudonymizer : framePseudonymizers) {
+            _processors.add(new PseudonymizingProcessor(framePseudonymizer));
+        }
     }
 
     @Override
     public File pseudonymize(final File inFile, final File outFile) throws IOException {
-        try (final FileByteStream input = new FileByteStream(inFile);
-             final OutputStream output = new BufferedOutputStream(new FileOutputStream(outFile), BUFFER_SIZE)) {
-
+        try (final FileByteStream input = new FileByteStream(inFile)) {
+            final CheckpointingOutputStream output = openOutput(inFile, outFile);
             final byte[] pcapHeader = readPCAPHeader(input);
-            output.write(pcapHeader);
-
-            final Encoding encoding = getEncoding(pcapHeader);
+            final Checkpoint checkpoint = output.getResumed();
             long offset = pcapHeader.length;
-
-            final ExecutorService pool = Executors.newFixedThreadPool(_framePseudonimyzers.size());
-            final List<Future<byte[]>> futures = new ArrayList<>();
-
-            while (true) {
-                final ParseResult result = Util.parse(input, offset, PCAP.PCAP_RECORD, encoding);
-
-                if (!result.succeeded) {
-                    break;
+            try {
+                if (checkpoint == null) {
+                    output.write(pcapHeader);
+                }
+                else {
+                    offset = checkpoint.getInputOffset();
                 }
-
-                futures.add(pool.submit(new RecordHandlerTask(result, _framePseudonimyzers)));
-
-                offset = result.environment.offset;
             }
-
-            pool.shutdown();
-            for (final Future<byte[]> future : futures) {
-                output.write(future.get());
+            catch (final IOException e) {
+                output.close();
+                throw e;
             }
-            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
-        }
-        catch (final InterruptedException | ExecutionException e) {
-            // TODO PEF-61 add logging
-            throw new IllegalStateException(e);
-        }
-
-        return outFile;
-    }
 
-    private class RecordHandlerTask implements Callable<byte[]> {
-
-        private final ParseResult _result;
-        private final Queue<FramePseudonymizer> _pseudonymizers;
-
-        RecordHandlerTask(final ParseResult result, final Queue<FramePseudonymizer> framePseudonimyzers) {
-            _result = result;
-            _pseudonymizers = framePseudonimyzers;
-        }
+            final Encoding encoding = getEncoding(pcapHeader);
 
-        @Override
-        public byte[] call() throws Exception {
-            final FramePseudonymizer pseudonymizer = _pseudonymizers.poll();
-            final byte[] recordBytes = getPseudonymizedRecordBytes(pseudonymizer, _result);
-            _pseudonymizers.add(pseudonymizer);
-            return recordBytes;
+            try (final CaptureIndexWriter index = checkpoint == null ? openIndex(inFile, pcapHeader) : null) {
+                final PacketPipeline pipeline = new PacketPipeline(RING_SIZE, SLOT_SIZE, _processors, new FlowDispatcher(), new StructureSink(output));
+                try {
+                    final RecordTracer tracer = new RecordTracer("pcap");
+                    while (true) {
+                        tracer.begin();
+                        final ParseResult result = Util.parse(input, offset, PCAP.PCAP_RECORD, encoding);
+                        if (!result.succeeded) {
+                            break;
+                        }
+                        final PacketSlot slot = pipeline.claim();
+                        CapUtil.copyStructure(result, slot);
+                        slot.setInputPosition(result.environment.offset, 0);
+                        if (index != null) {
+                            index.add(offset, slot.getData(), slot.getLength(), slot.getFrameOffset(), slot.getFrameLength());
+                        }
+                        pipeline.publish(slot);
+                        tracer.end(offset, result.environment.offset - offset);
+                        offset = result.environment.offset;
+                    }
+                    if (index != null) {
+                        index.finish();
+                    }
+                }
+                finally {
+                    // drains the pipeline, so all packets are written before checking for failures
+                    pipeline.close();
+                }
+                if (pipeline.getStatistics().getFailures() > 0) {
+                    throw new IOException(pipeline.getStatistics().getFailures() + " packets could not be pseudonymized");
+                }
+                output.finish();
+            }
         }
+        return outFile;
     }
 }
@@ -22,8 +22,12 @@ import io.parsingdata.metal.data.ByteStream;
 import io.parsingdata.metal.data.ParseResult;
 import io.parsingdata.metal.encoding.ByteOrder;
 import io.parsingdata.metal.encoding.Encoding;
+import nl.minvenj.pef.index.CaptureIndex;
+import nl.minvenj.pef.index.CaptureIndexWriter;
 import nl.minvenj.pef.metal.dump.PCAP;
 import nl.minvenj.pef.metal.stream.FileByteStream;
+import nl.minvenj.pef.output.CheckpointSettings;
+import nl.minvenj.pef.output.CheckpointingOutputStream;
 import nl.minvenj.pef.pseudo.FramePseudonymizer;
 import nl.minvenj.pef.pseudo.dump.DumpFilePseudonymizer;
 import nl.minvenj.pef.pseudo.dump.cap.CapUtil;
@@ -38,7 +42,26 @@ import nl.minvenj.pef.util.Util;
  */
 public abstract class PCAPPseudonymizer implements DumpFilePseudonymizer {
 
-    protected static final int BUFFER_SIZE = 128 * 1024;
+    private boolean _writeIndex;
+    private CheckpointSettings _checkpointSettings;
+
+    /**
+     * Write an index of each input file next to it while pseudonymizing it, see {@link CaptureIndex}.
+     *
+     * @param writeIndex true to write an index
+     */
+    public void setWriteIndex(final boolean writeIndex) {
+        _writeIndex = writeIndex;
+    }
+
+    /**
+     * Write checkpoints while pseudonymizing, and resume from them, see {@link CheckpointingOutputStream}.
+     *
+     * @param checkpointSettings the checkpoint settings, or null to not write checkpoints
+     */
+    public void setCheckpointSettings(final CheckpointSettings checkpointSettings) {
+        _checkpointSettings = checkpointSettings;
+    }
 
     @Override
     public boolean supportsFile(final File file) throws IOException {
@@ -74,6 +97,30 @@ public abstract class PCAPPseudonymizer implements DumpFilePseudonymizer {
         return headerBytes;
     }
 
+    /**
+     * Opens the output file, continuing it from its checkpoint when resuming.
+     *
+     * @param inFile the input file
+     * @param outFile the output file
+     * @return the output stream
+     * @throws IOException when the output could not be opened, or can not be resumed
+     */
+    protected CheckpointingOutputStream openOutput(final File inFile, final File outFile) throws IOException {
+        return new CheckpointingOutputStream(outFile, inFile, _checkpointSettings);
+    }
+
+    /**
+     * Opens the index of the input file, when indexing is enabled.
+     *
+     * @param inFile the input file
+     * @param pcapHeader the bytes of the pcap header
+     * @return the index writer, or null when no index is written
+     * @throws IOException when the index file could not be created
+     */
+    protected CaptureIndexWriter openIndex(final File inFile, final byte[] pcapHeader) throws IOException {
+        return _writeIndex ? CaptureIndexWriter.forPCAP(CaptureIndex.sidecar(inFile), inFile, pcapHeader) : null;
+    }
+
     /**
      * Pseudonymizes parsed packet data contained in a parsed record. Returns the reconstructed
      * record with the new pseudonymized bytes.
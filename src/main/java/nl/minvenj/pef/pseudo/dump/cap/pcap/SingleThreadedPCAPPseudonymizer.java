@@ -15,18 +15,20 @@
  */
 package nl.minvenj.pef.pseudo.dump.cap.pcap;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 
 import io.parsingdata.metal.data.ParseResult;
 import io.parsingdata.metal.encoding.Encoding;
+import nl.minvenj.pef.index.CaptureIndexWriter;
 import nl.minvenj.pef.metal.dump.PCAP;
 import nl.minvenj.pef.metal.stream.FileByteStream;
+import nl.minvenj.pef.output.Checkpoint;
+import nl.minvenj.pef.output.CheckpointingOutputStream;
 import nl.minvenj.pef.pseudo.FramePseudonymizer;
 import nl.minvenj.pef.pseudo.dump.cap.CapUtil;
+import nl.minvenj.pef.pseudo.dump.cap.OrderedRecordWriter;
+import nl.minvenj.pef.trace.RecordTracer;
 import nl.minvenj.pef.util.Util;
 
 /**
@@ -50,22 +52,42 @@ public final class SingleThreadedPCAPPseudonymizer extends PCAPPseudonymizer {
     @Override
     public File pseudonymize(final File inFile, final File outFile) throws IOException {
         try (final FileByteStream input = new FileByteStream(inFile);
-            final OutputStream output = new BufferedOutputStream(new FileOutputStream(outFile), BUFFER_SIZE)) {
+            final CheckpointingOutputStream output = openOutput(inFile, outFile)) {
             final byte[] pcapHeader = readPCAPHeader(input);
-            output.write(pcapHeader);
+            final Checkpoint checkpoint = output.getResumed();
+            long offset = pcapHeader.length;
+            if (checkpoint == null) {
+                output.write(pcapHeader);
+            }
+            else {
+                offset = checkpoint.getInputOffset();
+            }
 
             final Encoding encoding = getEncoding(pcapHeader);
-            long offset = pcapHeader.length;
 
-            while (true) {
-                final ParseResult result = Util.parse(input, offset, PCAP.PCAP_RECORD, encoding);
-                if (!result.succeeded) {
-                    break;
+            try (final CaptureIndexWriter index = checkpoint == null ? openIndex(inFile, pcapHeader) : null) {
+                final OrderedRecordWriter writer = new OrderedRecordWriter(_framePseudonymizer, output);
+                final RecordTracer tracer = new RecordTracer("pcap");
+                while (true) {
+                    tracer.begin();
+                    final ParseResult result = Util.parse(input, offset, PCAP.PCAP_RECORD, encoding);
+                    if (!result.succeeded) {
+                        break;
+                    }
+                    CapUtil.writePseudonymizedStructure(writer, result, index, offset);
+                    tracer.end(offset, result.environment.offset - offset);
+                    offset = result.environment.offset;
+                    // records that are held back are not in the output yet, so they must be read again when resuming
+                    if (!writer.isHolding()) {
+                        output.commit(offset, 0);
+                    }
+                }
+                writer.finish();
+                if (index != null) {
+                    index.finish();
                 }
-                final byte[] recordBytes = CapUtil.getPseudonymizedStructureBytes( _framePseudonymizer, result);
-                output.write(recordBytes);
-                offset = result.environment.offset;
             }
+            output.finish();
         }
         return outFile;
     }
@@ -15,40 +15,42 @@
  */
 package nl.minvenj.pef.pseudo.dump.cap.pcapng;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-
-import com.sun.org.apache.xpath.internal.compiler.PsuedoNames;
 
 import io.parsingdata.metal.data.ParseResult;
 import io.parsingdata.metal.encoding.Encoding;
+import nl.minvenj.pef.index.CaptureIndexWriter;
 import nl.minvenj.pef.metal.dump.PCAPNG;
 import nl.minvenj.pef.metal.stream.InputStreamByteStream;
+import nl.minvenj.pef.output.Checkpoint;
+import nl.minvenj.pef.output.CheckpointingOutputStream;
+import nl.minvenj.pef.pipeline.FlowDispatcher;
+import nl.minvenj.pef.pipeline.PacketPipeline;
+import nl.minvenj.pef.pipeline.PacketSlot;
+import nl.minvenj.pef.pipeline.PseudonymizingProcessor;
+import nl.minvenj.pef.pipeline.StructureSink;
 import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.trace.RecordTracer;
 import nl.minvenj.pef.util.Util;
 
 /**
  * Multi-threaded version of a PCAPNG pseudonymizer.
  *
+ * The blocks are parsed on the calling thread and pseudonymized by a {@link PacketPipeline},
+ * with one worker per frame pseudonymizer. Blocks without packet data pass through the
+ * pipeline unchanged, so all blocks keep their order.
+ *
  * @author Netherlands Forensic Institute.
  */
 public class MultiThreadedPCAPNGPseudonymizer extends PCAPNGPseudonymizer {
 
-    private final Queue<FramePseudonymizer> _framePseudonimyzers;
+    private static final int RING_SIZE = 1024;
+    private static final int SLOT_SIZE = 2048;
+
+    private final List<PseudonymizingProcessor> _processors = new ArrayList<>();
 
     /**
      * Create a new PCAPNGPseudonymizer using given framepseudonymizers to pseudonymize the frame data.
@@ -56,69 +58,80 @@ public class MultiThreadedPCAPNGPseudonymizer extends PCAPNGPseudonymizer {
      * @param framePseudonymizers the pseudonymizers to use to transform frame data
      */
     public MultiThreadedPCAPNGPseudonymizer(final List<FramePseudonymizer> framePseudonymizers) {
-        _framePseudonimyzers = new ConcurrentLinkedQueue<>(framePseudonymizers);
+        for (final FramePseudonymizer framePseudonymizer : framePseudonymizers) {
+            _processors.add(new PseudonymizingProcessor(framePseudonymizer));
+        }
     }
 
     @Override
     public File pseudonymize(final File inFile, final File outFile) throws IOException {
-        try (final InputStreamByteStream input = new InputStreamByteStream(new FileInputStream(inFile));
-             final OutputStream output = new BufferedOutputStream(new FileOutputStream(outFile), BUFFER_SIZE)) {
-
-            long offset = 0;
-            Encoding encoding = null;
-
-            final ExecutorService pool = Executors.newFixedThreadPool(_framePseudonimyzers.size());
-            final List<Future<byte[]>> futures = new ArrayList<>();
-
-            while (true) {
-                ParseResult result = Util.parse(input, offset, PCAPNG.SECTION_HEADER_CHO);
+        final CheckpointingOutputStream output = openOutput(inFile, outFile);
+        // when resuming, offsets in the input stream are relative to the checkpoint
+        final Checkpoint checkpoint = output.getResumed();
+        final long base = checkpoint == null ? 0 : checkpoint.getInputOffset();
+        long section = checkpoint == null ? 0 : checkpoint.getSectionOffset();
+        Encoding encoding = null;
+        try {
+            if (checkpoint != null) {
+                encoding = readSectionEncoding(inFile, section);
+            }
+        }
+        catch (final IOException e) {
+            output.close();
+            throw e;
+        }
 
-                if (result.succeeded) {
-                    encoding = getSectionEncoding(result);
-                }
-                else {
-                    result = Util.parse(input, offset, PCAPNG.BLOCK, encoding);
+        try (final InputStreamByteStream input = openInput(inFile, base);
+             final CaptureIndexWriter index = checkpoint == null ? openIndex(inFile) : null) {
+            final PacketPipeline pipeline = new PacketPipeline(RING_SIZE, SLOT_SIZE, _processors, new FlowDispatcher(), new StructureSink(output));
+            try {
+                long offset = 0;
+                final RecordTracer tracer = new RecordTracer("pcapng");
+
+                while (true) {
+                    tracer.begin();
+                    ParseResult result = Util.parse(input, offset, PCAPNG.SECTION_HEADER_CHO);
+
+                    if (result.succeeded) {
+                        encoding = getSectionEncoding(result);
+                        section = base + offset;
+                    }
+                    else {
+                        result = Util.parse(input, offset, PCAPNG.BLOCK, encoding);
+                    }
+
+                    if (!result.succeeded) {
+                        break;
+                    }
+
+                    final PacketSlot slot = pipeline.claim();
+                    copyBlock(result, slot);
+                    slot.setInputPosition(base + result.environment.offset, section);
+                    if (index != null) {
+                        index.add(offset, slot.getData(), slot.getLength(), slot.getFrameOffset(), slot.getFrameLength());
+                    }
+                    pipeline.publish(slot);
+                    tracer.end(base + offset, result.environment.offset - offset);
+
+                    offset = result.environment.offset;
                 }
-
-                if (!result.succeeded) {
-                    break;
+                if (index != null) {
+                    index.finish();
                 }
-
-                futures.add(pool.submit(new BlockHandlerTask(result, _framePseudonimyzers)));
-
-                offset = result.environment.offset;
             }
-
-            pool.shutdown();
-            for (final Future<byte[]> future : futures) {
-                output.write(future.get());
+            finally {
+                // drains the pipeline, so all packets are written before checking for failures
+                pipeline.close();
             }
-            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            if (pipeline.getStatistics().getFailures() > 0) {
+                throw new IOException(pipeline.getStatistics().getFailures() + " packets could not be pseudonymized");
+            }
+            output.finish();
         }
-        catch (final InterruptedException | ExecutionException e) {
-            // TODO PEF-61 add logging
-            throw new IllegalStateException(e);
+        finally {
+            output.close();
         }
 
         return outFile;
     }
-
-    private class BlockHandlerTask implements Callable<byte[]> {
-
-        private final ParseResult _result;
-        private final Queue<FramePseudonymizer> _pseudonymizers;
-
-        BlockHandlerTask(final ParseResult result, final Queue<FramePseudonymizer> framePseudonimyzers) {
-            _result = result;
-            _pseudonymizers = framePseudonimyzers;
-        }
-
-        @Override
-        public byte[] call() throws Exception {
-            final FramePseudonymizer pseudonymizer = _pseudonymizers.poll();
-            final byte[] blockBytes = getPseudonymizedBlockBytes(pseudonymizer, _result);
-            _pseudonymizers.add(pseudonymizer);
-            return blockBytes;
-        }
-    }
 }
@@ -16,16 +16,24 @@
 package nl.minvenj.pef.pseudo.dump.cap.pcapng;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 
 import io.parsingdata.metal.data.ParseGraph;
 import io.parsingdata.metal.data.ParseResult;
 import io.parsingdata.metal.encoding.Encoding;
+import nl.minvenj.pef.index.CaptureIndex;
+import nl.minvenj.pef.index.CaptureIndexWriter;
 import nl.minvenj.pef.metal.dump.PCAPNG;
 import nl.minvenj.pef.metal.stream.FileByteStream;
+import nl.minvenj.pef.metal.stream.InputStreamByteStream;
+import nl.minvenj.pef.output.CheckpointSettings;
+import nl.minvenj.pef.output.CheckpointingOutputStream;
+import nl.minvenj.pef.pipeline.PacketSlot;
 import nl.minvenj.pef.pseudo.FramePseudonymizer;
 import nl.minvenj.pef.pseudo.dump.DumpFilePseudonymizer;
 import nl.minvenj.pef.pseudo.dump.cap.CapUtil;
+import nl.minvenj.pef.pseudo.dump.cap.OrderedRecordWriter;
 import nl.minvenj.pef.metal.GraphSerializer;
 import nl.minvenj.pef.util.Util;
 
@@ -39,7 +47,26 @@ import nl.minvenj.pef.util.Util;
  */
 public abstract class PCAPNGPseudonymizer implements DumpFilePseudonymizer {
 
-    protected static final int BUFFER_SIZE = 128 * 1024;
+    private boolean _writeIndex;
+    private CheckpointSettings _checkpointSettings;
+
+    /**
+     * Write an index of each input file next to it while pseudonymizing it, see {@link CaptureIndex}.
+     *
+     * @param writeIndex true to write an index
+     */
+    public void setWriteIndex(final boolean writeIndex) {
+        _writeIndex = writeIndex;
+    }
+
+    /**
+     * Write checkpoints while pseudonymizing, and resume from them, see {@link CheckpointingOutputStream}.
+     *
+     * @param checkpointSettings the checkpoint settings, or null to not write checkpoints
+     */
+    public void setCheckpointSettings(final CheckpointSettings checkpointSettings) {
+        _checkpointSettings = checkpointSettings;
+    }
 
     @Override
     public boolean supportsFile(final File file) throws IOException {
@@ -64,6 +91,46 @@ public abstract class PCAPNGPseudonymizer implements DumpFilePseudonymizer {
         return magic[0] == (byte) 0x1A ? PCAPNG.BIG_ENDIAN : PCAPNG.LITTLE_ENDIAN;
     }
 
+    /**
+     * Opens the input file for reading the blocks from an offset on. Offsets in the returned
+     * stream are relative to that offset.
+     *
+     * @param inFile the input file
+     * @param offset the offset of the first block to read
+     * @return the byte stream of the input from the offset on
+     * @throws IOException when the file could not be opened
+     */
+    protected InputStreamByteStream openInput(final File inFile, final long offset) throws IOException {
+        final FileInputStream input = new FileInputStream(inFile);
+        try {
+            input.getChannel().position(offset);
+        }
+        catch (final IOException e) {
+            input.close();
+            throw e;
+        }
+        return new InputStreamByteStream(input);
+    }
+
+    /**
+     * Returns the encoding of the section starting at an offset in the input file, to continue
+     * reading the blocks of that section.
+     *
+     * @param inFile the input file
+     * @param sectionOffset the offset of the Section Header Block
+     * @return the encoding of the section
+     * @throws IOException when there is no Section Header Block at the offset
+     */
+    protected Encoding readSectionEncoding(final File inFile, final long sectionOffset) throws IOException {
+        try (final FileByteStream input = new FileByteStream(inFile)) {
+            final ParseResult result = Util.parse(input, sectionOffset, PCAPNG.SECTION_HEADER_CHO);
+            if (!result.succeeded) {
+                throw new IOException("no section header block at offset " + sectionOffset + " of " + inFile);
+            }
+            return getSectionEncoding(result);
+        }
+    }
+
     /**
      * Pseudonymizes parsed packet data contained in a parsed packet block. Returns the reconstructed
      * packet block with the new pseudonymized bytes.
@@ -77,13 +144,82 @@ public abstract class PCAPNGPseudonymizer implements DumpFilePseudonymizer {
      */
     protected byte[] getPseudonymizedBlockBytes(final FramePseudonymizer pseudonymizer, final ParseResult result) throws IOException {
         if (!isPacketBlock(result)) {
-            GraphSerializer serializer = new GraphSerializer();
-            serializer.serialize(result.environment.order);
-            return serializer.data();
+            return getBlockBytes(result);
         }
         return CapUtil.getPseudonymizedStructureBytes(pseudonymizer, result);
     }
 
+    /**
+     * Pseudonymizes parsed packet data contained in a parsed packet block and writes the block, or queues
+     * it while frames before it are held back. The block as it was in the input is added to an index.
+     *
+     * @param writer the writer pseudonymizing the packet data and writing the block
+     * @param result the block Metal parse result to extract packet data from
+     * @param index the index to add the block to, or null to not index it
+     * @param offset the offset of the block in the input
+     * @throws IOException when an I/O error occurs during parsing, writing or writing the index
+     */
+    protected void writePseudonymizedBlock(final OrderedRecordWriter writer, final ParseResult result, final CaptureIndexWriter index, final long offset) throws IOException {
+        if (!isPacketBlock(result)) {
+            final byte[] blockBytes = getBlockBytes(result);
+            if (index != null) {
+                index.add(offset, blockBytes, blockBytes.length, 0, 0);
+            }
+            writer.write(blockBytes, 0, blockBytes.length);
+            return;
+        }
+        CapUtil.writePseudonymizedStructure(writer, result, index, offset);
+    }
+
+    private static byte[] getBlockBytes(final ParseResult result) throws IOException {
+        GraphSerializer serializer = new GraphSerializer();
+        serializer.serialize(result.environment.order);
+        return serializer.data();
+    }
+
+    /**
+     * Opens the output file, continuing it from its checkpoint when resuming.
+     *
+     * @param inFile the input file
+     * @param outFile the output file
+     * @return the output stream
+     * @throws IOException when the output could not be opened, or can not be resumed
+     */
+    protected CheckpointingOutputStream openOutput(final File inFile, final File outFile) throws IOException {
+        return new CheckpointingOutputStream(outFile, inFile, _checkpointSettings);
+    }
+
+    /**
+     * Opens the index of the input file, when indexing is enabled.
+     *
+     * @param inFile the input file
+     * @return the index writer, or null when no index is written
+     * @throws IOException when the index file could not be created
+     */
+    protected CaptureIndexWriter openIndex(final File inFile) throws IOException {
+        return _writeIndex ? CaptureIndexWriter.forPCAPNG(CaptureIndex.sidecar(inFile), inFile) : null;
+    }
+
+    /**
+     * Copies a parsed block into a pipeline slot. The packet data of a packet block is marked as
+     * the frame to process; other blocks get an empty frame, so they are written as they are.
+     *
+     * @param result the block Metal parse result to copy
+     * @param slot the slot to copy the block into
+     * @throws IOException when an I/O error occurs during parsing
+     */
+    protected void copyBlock(final ParseResult result, final PacketSlot slot) throws IOException {
+        if (!isPacketBlock(result)) {
+            final GraphSerializer serializer = new GraphSerializer();
+            serializer.serialize(result.environment.order);
+            final byte[] blockBytes = serializer.data();
+            System.arraycopy(blockBytes, 0, slot.ensureCapacity(blockBytes.length), 0, blockBytes.length);
+            slot.setLength(blockBytes.length, 0, 0);
+            return;
+        }
+        CapUtil.copyStructure(result, slot);
+    }
+
     private boolean isPacketBlock(final ParseResult result) {
         final int blockType = result.environment.order.get("type").asNumeric().intValue();
         return blockType == 0x00000006 || blockType == 0x00000003;
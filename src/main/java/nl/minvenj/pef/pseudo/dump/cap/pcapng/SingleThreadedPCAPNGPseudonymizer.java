@@ -15,18 +15,19 @@
  */
 package nl.minvenj.pef.pseudo.dump.cap.pcapng;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 
 import io.parsingdata.metal.data.ParseResult;
 import io.parsingdata.metal.encoding.Encoding;
+import nl.minvenj.pef.index.CaptureIndexWriter;
 import nl.minvenj.pef.metal.dump.PCAPNG;
 import nl.minvenj.pef.metal.stream.InputStreamByteStream;
+import nl.minvenj.pef.output.Checkpoint;
+import nl.minvenj.pef.output.CheckpointingOutputStream;
 import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.OrderedRecordWriter;
+import nl.minvenj.pef.trace.RecordTracer;
 import nl.minvenj.pef.util.Util;
 
 /**
@@ -50,33 +51,53 @@ public class SingleThreadedPCAPNGPseudonymizer extends PCAPNGPseudonymizer {
     @Override
     public File pseudonymize(final File inFile, final File outFile) throws IOException {
 
-        try (final InputStreamByteStream input = new InputStreamByteStream(new FileInputStream(inFile));
-             final OutputStream output = new BufferedOutputStream(new FileOutputStream(outFile), BUFFER_SIZE)) {
+        try (final CheckpointingOutputStream output = openOutput(inFile, outFile)) {
+            // when resuming, offsets in the input stream are relative to the checkpoint
+            final Checkpoint checkpoint = output.getResumed();
+            final long base = checkpoint == null ? 0 : checkpoint.getInputOffset();
+            long section = checkpoint == null ? 0 : checkpoint.getSectionOffset();
+            Encoding encoding = checkpoint == null ? null : readSectionEncoding(inFile, section);
 
-            long offset = 0;
-            Encoding encoding = null;
+            try (final InputStreamByteStream input = openInput(inFile, base);
+                 final CaptureIndexWriter index = checkpoint == null ? openIndex(inFile) : null) {
 
-            while (true) {
-                ParseResult result = Util.parse(input, offset, PCAPNG.SECTION_HEADER_CHO);
+                final OrderedRecordWriter writer = new OrderedRecordWriter(_framePseudonimyzer, output);
+                long offset = 0;
+                final RecordTracer tracer = new RecordTracer("pcapng");
 
-                // if result succeeded, we found a section header block
-                if (result.succeeded) {
-                    // new encoding from now on (current section)
-                    encoding = getSectionEncoding(result);
-                }
-                else {
-                    result = Util.parse(input, offset, PCAPNG.BLOCK, encoding);
-                }
+                while (true) {
+                    tracer.begin();
+                    ParseResult result = Util.parse(input, offset, PCAPNG.SECTION_HEADER_CHO);
 
-                if (!result.succeeded) {
-                    break;
-                }
+                    // if result succeeded, we found a section header block
+                    if (result.succeeded) {
+                        // new encoding from now on (current section)
+                        encoding = getSectionEncoding(result);
+                        section = base + offset;
+                    }
+                    else {
+                        result = Util.parse(input, offset, PCAPNG.BLOCK, encoding);
+                    }
 
-                final byte[] blockBytes = getPseudonymizedBlockBytes(_framePseudonimyzer, result);
-                output.write(blockBytes);
+                    if (!result.succeeded) {
+                        break;
+                    }
 
-                offset = result.environment.offset;
+                    writePseudonymizedBlock(writer, result, index, base + offset);
+                    tracer.end(base + offset, result.environment.offset - offset);
+
+                    offset = result.environment.offset;
+                    // blocks that are held back are not in the output yet, so they must be read again when resuming
+                    if (!writer.isHolding()) {
+                        output.commit(base + offset, section);
+                    }
+                }
+                writer.finish();
+                if (index != null) {
+                    index.finish();
+                }
             }
+            output.finish();
         }
 
         return outFile;
@@ -0,0 +1,32 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.ring;
+
+/**
+ * Keeps polling without ever giving up the core.
+ *
+ * Gives the lowest latency, but each waiting thread keeps a core fully busy, so only use it with
+ * at least as many cores as busy threads.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class BusySpinWaitStrategy implements WaitStrategy {
+
+    @Override
+    public int idle(final int counter) {
+        return counter;
+    }
+}
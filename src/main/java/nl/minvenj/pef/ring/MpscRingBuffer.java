@@ -0,0 +1,72 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.ring;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ring buffer for multiple producers and a single consumer.
+ *
+ * Producers claim sequences with a compare-and-set on a shared counter, and publish by storing
+ * the sequence in a per-entry availability array, so producers never wait for each other to
+ * publish. The consumer still sees the entries in sequence order.
+ *
+ * @param <E> the type of the entries
+ * @author Netherlands Forensic Institute.
+ */
+public final class MpscRingBuffer<E> extends RingBuffer<E> {
+
+    private final Sequence _claimed = new Sequence(0);
+    private final AtomicLongArray _available;
+
+    /**
+     * Create a new ring buffer.
+     *
+     * @param capacity the number of entries, rounded up to a power of two
+     * @param factory the factory creating the entries
+     * @param waitStrategy the strategy for waiting on a full or empty ring
+     */
+    public MpscRingBuffer(final int capacity, final EntryFactory<E> factory, final WaitStrategy waitStrategy) {
+        super(capacity, factory, waitStrategy);
+        _available = new AtomicLongArray(getCapacity());
+        for (int i = 0; i < getCapacity(); i++) {
+            _available.set(i, NONE);
+        }
+    }
+
+    @Override
+    public long tryClaim() {
+        while (true) {
+            final long sequence = _claimed.get();
+            if (sequence - getReleased() >= getCapacity()) {
+                return NONE;
+            }
+            if (_claimed.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    @Override
+    public void publish(final long sequence) {
+        _available.lazySet(index(sequence), sequence);
+    }
+
+    @Override
+    public boolean isPublished(final long sequence) {
+        return _available.get(index(sequence)) == sequence;
+    }
+}
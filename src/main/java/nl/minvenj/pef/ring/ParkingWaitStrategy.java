@@ -0,0 +1,64 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.ring;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Polls for a while, then yields, and finally parks the thread for a short time between polls.
+ *
+ * Uses hardly any CPU when idle, at the cost of the park time as extra latency after an idle
+ * period. This is the default.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class ParkingWaitStrategy implements WaitStrategy {
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 200;
+    private static final long DEFAULT_PARK_NANOS = 50000;
+
+    private final long _parkNanos;
+
+    /**
+     * Create a new strategy parking for 50 microseconds at a time.
+     */
+    public ParkingWaitStrategy() {
+        this(DEFAULT_PARK_NANOS);
+    }
+
+    /**
+     * Create a new strategy.
+     *
+     * @param parkNanos the time to park at a time, in nanoseconds
+     */
+    public ParkingWaitStrategy(final long parkNanos) {
+        _parkNanos = parkNanos;
+    }
+
+    @Override
+    public int idle(final int counter) {
+        if (counter < SPIN_TRIES) {
+            return counter + 1;
+        }
+        if (counter < YIELD_TRIES) {
+            Thread.yield();
+            return counter + 1;
+        }
+        LockSupport.parkNanos(_parkNanos);
+        return counter;
+    }
+}
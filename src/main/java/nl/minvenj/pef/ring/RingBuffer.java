@@ -0,0 +1,172 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.ring;
+
+/**
+ * A bounded ring of preallocated entries, handing them from producers to a single consumer
+ * without locks and without allocating.
+ *
+ * A producer claims a sequence number, fills the entry at that sequence and publishes it. The
+ * consumer polls the published sequences in order, reads the entries and releases them, after
+ * which the producers can reuse them. Instead of polling, a consumer can also follow the sequence
+ * numbers itself, for example when entries are processed by several threads and released by the
+ * last one, using {@link #isPublished(long)} and {@link #release(long)}.
+ *
+ * The entries are created once, so filling an entry means overwriting its contents.
+ *
+ * @param <E> the type of the entries
+ * @author Netherlands Forensic Institute.
+ */
+public abstract class RingBuffer<E> {
+
+    /** Returned by {@link #tryClaim()} and {@link #poll()} when there is no sequence. */
+    public static final long NONE = -1;
+
+    private final Object[] _entries;
+    private final int _mask;
+    private final WaitStrategy _waitStrategy;
+    private final Sequence _released = new Sequence(0);
+
+    // only accessed by the consumer
+    private long _next;
+
+    /**
+     * Create a new ring buffer.
+     *
+     * @param capacity the number of entries, rounded up to a power of two
+     * @param factory the factory creating the entries
+     * @param waitStrategy the strategy for waiting on a full or empty ring
+     */
+    protected RingBuffer(final int capacity, final EntryFactory<E> factory, final WaitStrategy waitStrategy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        final int size = Integer.highestOneBit(capacity * 2 - 1);
+        _entries = new Object[size];
+        for (int i = 0; i < size; i++) {
+            _entries[i] = factory.newEntry();
+        }
+        _mask = size - 1;
+        _waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Claim the next sequence to fill, when an entry is free.
+     *
+     * @return the claimed sequence, or {@link #NONE} when the ring is full
+     */
+    public abstract long tryClaim();
+
+    /**
+     * Make a claimed and filled entry available to the consumer.
+     *
+     * @param sequence the claimed sequence
+     */
+    public abstract void publish(long sequence);
+
+    /**
+     * Returns whether the entry at a sequence has been published.
+     *
+     * @param sequence the sequence to check, which must not have been released yet
+     * @return true when the entry is published
+     */
+    public abstract boolean isPublished(long sequence);
+
+    /**
+     * Claim the next sequence to fill, waiting until an entry is free.
+     *
+     * @return the claimed sequence
+     */
+    public final long claim() {
+        long sequence = tryClaim();
+        int counter = 0;
+        while (sequence == NONE) {
+            counter = _waitStrategy.idle(counter);
+            sequence = tryClaim();
+        }
+        return sequence;
+    }
+
+    /**
+     * Returns the entry at a sequence.
+     *
+     * @param sequence the sequence of the entry
+     * @return the entry
+     */
+    @SuppressWarnings("unchecked")
+    public final E get(final long sequence) {
+        return (E) _entries[(int) sequence & _mask];
+    }
+
+    /**
+     * Returns the next published sequence to consume, without releasing it.
+     *
+     * @return the sequence, or {@link #NONE} when nothing new was published
+     */
+    public final long poll() {
+        final long sequence = _next;
+        if (!isPublished(sequence)) {
+            return NONE;
+        }
+        _next = sequence + 1;
+        return sequence;
+    }
+
+    /**
+     * Returns the next published sequence to consume, waiting until there is one.
+     *
+     * @return the sequence
+     */
+    public final long take() {
+        long sequence = poll();
+        int counter = 0;
+        while (sequence == NONE) {
+            counter = _waitStrategy.idle(counter);
+            sequence = poll();
+        }
+        return sequence;
+    }
+
+    /**
+     * Release all entries up to and including a sequence, so the producers can reuse them.
+     *
+     * @param sequence the last sequence the consumer is done with
+     */
+    public final void release(final long sequence) {
+        _released.set(sequence + 1);
+    }
+
+    /**
+     * Returns the number of sequences released by the consumer, which is the first sequence still in use.
+     *
+     * @return the number of released sequences
+     */
+    public final long getReleased() {
+        return _released.get();
+    }
+
+    public final int getCapacity() {
+        return _entries.length;
+    }
+
+    public final WaitStrategy getWaitStrategy() {
+        return _waitStrategy;
+    }
+
+    final int index(final long sequence) {
+        return (int) sequence & _mask;
+    }
+}
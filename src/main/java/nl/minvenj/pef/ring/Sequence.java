@@ -0,0 +1,95 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.ring;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A counter shared between threads, padded so that it has a cache line to itself.
+ *
+ * Without the padding, counters of different threads that happen to share a cache line make
+ * the cores invalidate each other's caches on every update (false sharing).
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class Sequence extends SequenceRightPadding {
+
+    private static final AtomicLongFieldUpdater<SequenceValue> UPDATER = AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "_value");
+
+    /**
+     * Create a new sequence.
+     *
+     * @param initialValue the initial value of the sequence
+     */
+    public Sequence(final long initialValue) {
+        _value = initialValue;
+    }
+
+    public long get() {
+        return _value;
+    }
+
+    /**
+     * Set the value, with a full memory barrier.
+     *
+     * @param value the new value
+     */
+    public void setVolatile(final long value) {
+        _value = value;
+    }
+
+    /**
+     * Set the value without waiting for the store to become visible to other threads.
+     *
+     * All writes done before this call are visible to a thread that sees the new value, which
+     * is all a producer publishing entries needs, and much cheaper than a volatile write.
+     *
+     * @param value the new value
+     */
+    public void set(final long value) {
+        UPDATER.lazySet(this, value);
+    }
+
+    /**
+     * Atomically set the value when it equals the expected value.
+     *
+     * @param expected the expected value
+     * @param value the new value
+     * @return true when the value was set
+     */
+    public boolean compareAndSet(final long expected, final long value) {
+        return UPDATER.compareAndSet(this, expected, value);
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(_value);
+    }
+}
+
+// the padding classes keep the JVM from reordering the padding fields around the value
+
+class SequenceLeftPadding {
+    protected long _p1, _p2, _p3, _p4, _p5, _p6, _p7;
+}
+
+class SequenceValue extends SequenceLeftPadding {
+    protected volatile long _value;
+}
+
+class SequenceRightPadding extends SequenceValue {
+    protected long _p9, _p10, _p11, _p12, _p13, _p14, _p15;
+}
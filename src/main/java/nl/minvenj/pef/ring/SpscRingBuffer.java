@@ -0,0 +1,69 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.ring;
+
+/**
+ * Ring buffer for a single producer and a single consumer.
+ *
+ * Publishing is a single ordered store of the cursor, so the producer never waits on anything
+ * but a full ring.
+ *
+ * @param <E> the type of the entries
+ * @author Netherlands Forensic Institute.
+ */
+public final class SpscRingBuffer<E> extends RingBuffer<E> {
+
+    private final Sequence _cursor = new Sequence(-1);
+
+    // only accessed by the producer
+    private long _next;
+    private long _cachedReleased;
+
+    /**
+     * Create a new ring buffer.
+     *
+     * @param capacity the number of entries, rounded up to a power of two
+     * @param factory the factory creating the entries
+     * @param waitStrategy the strategy for waiting on a full or empty ring
+     */
+    public SpscRingBuffer(final int capacity, final EntryFactory<E> factory, final WaitStrategy waitStrategy) {
+        super(capacity, factory, waitStrategy);
+    }
+
+    @Override
+    public long tryClaim() {
+        final long sequence = _next;
+        if (sequence - _cachedReleased >= getCapacity()) {
+            // only read the consumer's counter when the cached value says the ring is full
+            _cachedReleased = getReleased();
+            if (sequence - _cachedReleased >= getCapacity()) {
+                return NONE;
+            }
+        }
+        _next = sequence + 1;
+        return sequence;
+    }
+
+    @Override
+    public void publish(final long sequence) {
+        _cursor.set(sequence);
+    }
+
+    @Override
+    public boolean isPublished(final long sequence) {
+        return sequence <= _cursor.get();
+    }
+}
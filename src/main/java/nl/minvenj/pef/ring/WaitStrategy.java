@@ -0,0 +1,35 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.ring;
+
+/**
+ * Decides how a thread waits for a condition it polls, such as an entry becoming available.
+ *
+ * The caller starts with a counter of 0 and passes the returned value to the next call, so
+ * a strategy can back off the longer the wait takes.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public interface WaitStrategy {
+
+    /**
+     * Wait once, after the polled condition was found not to be met.
+     *
+     * @param counter the value returned by the previous call, or 0 on the first call
+     * @return the counter to pass to the next call
+     */
+    int idle(int counter);
+}
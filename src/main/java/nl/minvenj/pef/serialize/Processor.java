@@ -25,10 +25,15 @@ import io.parsingdata.metal.data.ParseGraph;
 import io.parsingdata.metal.data.ParseItem;
 import io.parsingdata.metal.data.ParseResult;
 import io.parsingdata.metal.data.ParseValue;
+import io.parsingdata.metal.token.Token;
+import nl.minvenj.pef.metrics.LatencyRecorder;
+import nl.minvenj.pef.metrics.MetricsRegistry;
 import nl.minvenj.pef.serialize.constraint.TransformConstraint;
 import nl.minvenj.pef.serialize.process.ParseValueProcessor;
 import nl.minvenj.pef.serialize.transform.ConditionalTransformer;
 import nl.minvenj.pef.serialize.transform.ParseValueTransformer;
+import nl.minvenj.pef.trace.TraceEventType.TraceEvent;
+import nl.minvenj.pef.trace.TraceEvents;
 import nl.minvenj.pef.util.Util;
 import nl.minvenj.pef.metal.ValueUpdater;
 
@@ -38,16 +43,64 @@ import nl.minvenj.pef.metal.ValueUpdater;
  *
  * Can apply various token transformers to change the parsegraph before processing.
  *
+ * When given a metrics registry, the processor can time the constraint matching, each transformer,
+ * the checksum transformers together and the processing of a parse result. A processor must then
+ * only be used by one thread at a time.
+ *
+ * Traced calls record a {@link TraceEvents#TRANSFORM} flight recorder event, naming the transformers
+ * that changed a value.
+ *
  * @author Netherlands Forensic Institute.
  */
 public final class Processor {
 
     private final List<ConditionalTransformer> _transformers;
 
+    private MetricsRegistry _metrics;
+    private LatencyRecorder[] _transformerTimes;
+    private LatencyRecorder _constraintTime;
+    private LatencyRecorder _checksumTime;
+    private LatencyRecorder _serializeTime;
+    // state of the current timed call, holding the time spent on matching constraints
+    private boolean _timing;
+    private long _constraintNanos;
+    // the values changed so far, and the transformers that changed one in the last traced call
+    private int _transformed;
+    private final StringBuilder _applied = new StringBuilder();
+    // the token taken as present by the constraints in the current call
+    private Token _implied;
+
     public Processor() {
         _transformers = new ArrayList<>();
     }
 
+    /**
+     * Record the time of the stages of timed calls in a metrics registry.
+     *
+     * Each transformer gets a recorder named {@link MetricsRegistry#STAGE_TRANSFORMER} followed by
+     * its position and its field name, so processors with the same transformers share their recorders.
+     * Transformers recording metrics of their own record them in the registry as well.
+     *
+     * @param metrics the registry to record in
+     * @return this
+     */
+    public Processor setMetrics(final MetricsRegistry metrics) {
+        _metrics = Util.argNotNull("metrics", metrics);
+        _constraintTime = metrics.recorder(MetricsRegistry.STAGE_CONSTRAINT);
+        _checksumTime = metrics.recorder(MetricsRegistry.STAGE_CHECKSUM);
+        _serializeTime = metrics.recorder(MetricsRegistry.STAGE_SERIALIZE);
+        initTransformerTimes();
+        return this;
+    }
+
+    private void initTransformerTimes() {
+        _transformerTimes = new LatencyRecorder[_transformers.size()];
+        for (int i = 0; i < _transformerTimes.length; i++) {
+            _transformerTimes[i] = _metrics.recorder(MetricsRegistry.STAGE_TRANSFORMER + i + "." + _transformers.get(i).getFieldName());
+            _transformers.get(i).setMetrics(_metrics);
+        }
+    }
+
     /**
      * Adds a new transformer to this processor.
      *
@@ -66,6 +119,9 @@ public final class Processor {
                Util.argNotNull("fieldName", fieldName),
                Util.argNotNull("transformer", transformer));
         _transformers.add(transformModule);
+        if (_metrics != null) {
+            initTransformerTimes();
+        }
         return this;
     }
 
@@ -91,6 +147,119 @@ public final class Processor {
         transformAndProcess(result.environment, parseValueProcessor);
     }
 
+    /**
+     * Same as {@link #transformAndProcess(ParseResult, ParseValueProcessor)}, recording the time of
+     * each stage when timed and a metrics registry was set.
+     *
+     * @param result the result to transform and process
+     * @param parseValueProcessor the processor to use
+     * @param timed true to time this call, typically for a sample of the packets
+     */
+    public void transformAndProcess(final ParseResult result, final ParseValueProcessor parseValueProcessor, final boolean timed) {
+        transformAndProcess(result, parseValueProcessor, timed, false);
+    }
+
+    /**
+     * Same as {@link #transformAndProcess(ParseResult, ParseValueProcessor, boolean)}, recording a
+     * {@link TraceEvents#TRANSFORM} flight recorder event when traced. The transformers that changed
+     * a value in a traced call are returned by {@link #getAppliedTransformers()} afterwards.
+     *
+     * @param result the result to transform and process
+     * @param parseValueProcessor the processor to use
+     * @param timed true to time this call, typically for a sample of the packets
+     * @param traced true to trace this call, typically for a sample of the packets
+     */
+    public void transformAndProcess(final ParseResult result, final ParseValueProcessor parseValueProcessor, final boolean timed, final boolean traced) {
+        transformAndProcess(result, parseValueProcessor, timed, traced, null);
+    }
+
+    /**
+     * Same as {@link #transformAndProcess(ParseResult, ParseValueProcessor, boolean, boolean)}, taking
+     * a token as present in the constraints of the transformers even when it is not in the result.
+     *
+     * This lets transformers apply to data that is known to belong to a token without parsing as
+     * it, such as a TCP segment of a DNS connection holding only part of a message
+     * (see {@link TransformConstraint#isSatisfiedBy(Environment, Token)}).
+     *
+     * @param result the result to transform and process
+     * @param parseValueProcessor the processor to use
+     * @param timed true to time this call, typically for a sample of the packets
+     * @param traced true to trace this call, typically for a sample of the packets
+     * @param implied the token to take as present, or null
+     */
+    public void transformAndProcess(final ParseResult result, final ParseValueProcessor parseValueProcessor, final boolean timed, final boolean traced, final Token implied) {
+        final boolean timing = timed && _metrics != null;
+        if (!timing && !traced) {
+            _implied = implied;
+            try {
+                transformAndProcess(result.environment, parseValueProcessor);
+            }
+            finally {
+                _implied = null;
+            }
+            return;
+        }
+        final TraceEvent event = traced ? TraceEvents.TRANSFORM.begin() : null;
+        _timing = timing;
+        _implied = implied;
+        _constraintNanos = 0;
+        _transformed = 0;
+        if (traced) {
+            _applied.setLength(0);
+        }
+        long checksumNanos = 0;
+        boolean checksummed = false;
+        Environment env = result.environment;
+        try {
+            for (int i = 0; i < _transformers.size(); i++) {
+                final ConditionalTransformer transformer = _transformers.get(i);
+                final int transformed = _transformed;
+                final long start = timing ? System.nanoTime() : 0;
+                env = updateEnv(env, transformer);
+                if (timing) {
+                    final long nanos = System.nanoTime() - start;
+                    _transformerTimes[i].record(nanos);
+                    if (transformer.isChecksum()) {
+                        checksumNanos += nanos;
+                        checksummed = true;
+                    }
+                }
+                if (traced && _transformed != transformed) {
+                    _applied.append(_applied.length() == 0 ? "" : ",").append(transformer.getFieldName());
+                }
+            }
+        }
+        finally {
+            _timing = false;
+            _implied = null;
+        }
+        if (timing) {
+            _constraintTime.record(_constraintNanos);
+            if (checksummed) {
+                _checksumTime.record(checksumNanos);
+            }
+        }
+        final long start = timing ? System.nanoTime() : 0;
+        process(parseValueProcessor, env.order);
+        if (timing) {
+            _serializeTime.recordSince(start);
+        }
+        if (event != null) {
+            event.set(TraceEvents.TRANSFORM_TRANSFORMERS, _applied.toString())
+                 .set(TraceEvents.TRANSFORM_VALUES, _transformed)
+                 .commit();
+        }
+    }
+
+    /**
+     * Returns the field names of the transformers that changed a value in the last traced call.
+     *
+     * @return the field names in the order of the transformers, separated by commas
+     */
+    public String getAppliedTransformers() {
+        return _applied.toString();
+    }
+
     /**
      * Processes all parsed values in ParseResult using the provided ParseValue processor.
      *
@@ -155,11 +324,17 @@ public final class Processor {
         Environment currentEnv = environment;
         ParseValue newValue = value;
         if (transformer.isApplicableFor(value)) {
+            final long start = _timing ? System.nanoTime() : 0;
             final ParseGraph subGraph = findSubGraph(environment, value, transformer.getTransformerContext());
             final Environment transformerEnvironment = new Environment(subGraph, environment.input, environment.offset);
-            if (transformer.isSatisfiedBy(transformerEnvironment)) {
+            final boolean satisfied = transformer.isSatisfiedBy(transformerEnvironment, _implied);
+            if (_timing) {
+                _constraintNanos += System.nanoTime() - start;
+            }
+            if (satisfied) {
                 newValue = transformer.transform(newValue, transformerEnvironment);
                 currentEnv = ValueUpdater.updateEnv(currentEnv, newValue);
+                _transformed++;
             }
         }
         return currentEnv;
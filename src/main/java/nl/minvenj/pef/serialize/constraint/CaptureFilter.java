@@ -0,0 +1,124 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.serialize.constraint;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import nl.minvenj.pef.metal.packet.application.DNS;
+import nl.minvenj.pef.metal.packet.internet.ICMP;
+import nl.minvenj.pef.metal.packet.internet.ICMPv6;
+import nl.minvenj.pef.metal.packet.internet.IPv4;
+import nl.minvenj.pef.metal.packet.internet.IPv6;
+import nl.minvenj.pef.metal.packet.transport.TCP;
+import nl.minvenj.pef.metal.packet.transport.UDP;
+
+/**
+ * Derives a BPF capture filter from transformer constraints, so packets that can not satisfy any of
+ * the constraints are dropped by the kernel instead of being parsed.
+ *
+ * DNS messages are recognized by their structure, not by their port, so selecting them by port is
+ * an approximation: DNS on other ports, or tunneled in IP in IP, is not selected.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class CaptureFilter {
+
+    /** The ports of DNS and of the protocols using the DNS message format: mDNS, LLMNR and NetBIOS name service. */
+    public static final int[] DNS_PORTS = { 53, 5353, 5355, 137 };
+
+    private CaptureFilter() {
+    }
+
+    /**
+     * Returns a BPF expression selecting the packets that may satisfy one of the constraints,
+     * including packets with a VLAN tag.
+     *
+     * @param constraints the constraints of the transformers
+     * @param ports the ports DNS messages are expected on
+     * @return the filter expression, or null when the constraints do not limit the packets to DNS
+     */
+    public static String forConstraints(final Collection<TransformConstraint> constraints, final int... ports) {
+        final Set<String> clauses = new LinkedHashSet<>();
+        for (final TransformConstraint constraint : constraints) {
+            final String clause = clause(constraint, ports);
+            if (clause == null) {
+                return null;
+            }
+            clauses.add(clause);
+        }
+        if (clauses.isEmpty()) {
+            return null;
+        }
+        final String selection = join(clauses, " or ");
+        // the vlan keyword moves the offsets of the rest of the expression past the tag
+        return selection + " or (vlan and (" + selection + "))";
+    }
+
+    private static String clause(final TransformConstraint constraint, final int[] ports) {
+        if (constraint.hasExpression() || !constraint.requires(DNS.FORMAT)) {
+            return null;
+        }
+        final Set<String> terms = new LinkedHashSet<>();
+        if (constraint.requires(IPv4.FORMAT)) {
+            terms.add("ip");
+        }
+        if (constraint.requires(IPv6.FORMAT)) {
+            terms.add("ip6");
+        }
+        if (constraint.requires(IPv4.FRAGMENT)) {
+            // the ports are only in the first fragment
+            terms.add("(ip[6:2] & 0x3fff != 0)");
+        }
+        else if (constraint.requires(IPv6.FRAGMENT)) {
+            terms.add("(ip6 protochain 44)");
+        }
+        else if (constraint.requires(ICMP.FORMAT)) {
+            // the DNS message is part of the quoted packet, which a filter can not look into
+            terms.add("icmp");
+        }
+        else if (constraint.requires(ICMPv6.FORMAT)) {
+            terms.add("icmp6");
+        }
+        else {
+            if (constraint.requires(UDP.FORMAT)) {
+                terms.add("udp");
+            }
+            if (constraint.requires(TCP.FORMAT)) {
+                terms.add("tcp");
+            }
+            final Set<String> portTerms = new LinkedHashSet<>();
+            for (final int port : ports) {
+                portTerms.add("port " + port);
+            }
+            terms.add("(" + join(portTerms, " or ") + ")");
+        }
+        return "(" + join(terms, " and ") + ")";
+    }
+
+    private static String join(final Set<String> values, final String separator) {
+        final StringBuilder builder = new StringBuilder();
+        for (final Iterator<String> iterator = values.iterator(); iterator.hasNext();) {
+            builder.append(iterator.next());
+            if (iterator.hasNext()) {
+                builder.append(separator);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -21,8 +21,10 @@ import java.util.Map;
 
 import nl.minvenj.pef.metal.packet.application.DNS;
 import nl.minvenj.pef.metal.packet.internet.ICMP;
+import nl.minvenj.pef.metal.packet.internet.ICMPv6;
 import nl.minvenj.pef.metal.packet.internet.IPv4;
 import nl.minvenj.pef.metal.packet.internet.IPv6;
+import nl.minvenj.pef.metal.packet.transport.TCP;
 import nl.minvenj.pef.metal.packet.transport.UDP;
 
 /**
@@ -44,9 +46,24 @@ public final class Constraints {
     /** IPv6, UDP and DNS. */
     public static final TransformConstraint IPV6_UDP_DNS = new TransformConstraint(IPv6.FORMAT, UDP.FORMAT, DNS.FORMAT);
 
+    /** IPv4, TCP and DNS. */
+    public static final TransformConstraint IPV4_TCP_DNS = new TransformConstraint(IPv4.FORMAT, TCP.FORMAT, DNS.FORMAT);
+
+    /** IPv6, TCP and DNS. */
+    public static final TransformConstraint IPV6_TCP_DNS = new TransformConstraint(IPv6.FORMAT, TCP.FORMAT, DNS.FORMAT);
+
+    /** A fragment of an IPv4 datagram carrying DNS. */
+    public static final TransformConstraint IPV4_FRAGMENT_DNS = new TransformConstraint(IPv4.FORMAT, IPv4.FRAGMENT, DNS.FORMAT);
+
+    /** A fragment of an IPv6 packet carrying DNS. */
+    public static final TransformConstraint IPV6_FRAGMENT_DNS = new TransformConstraint(IPv6.FORMAT, IPv6.FRAGMENT, DNS.FORMAT);
+
     /** ICMP and DNS. */
     public static final TransformConstraint ICMP_DNS = new TransformConstraint(ICMP.FORMAT, DNS.FORMAT);
 
+    /** ICMPv6 and DNS. */
+    public static final TransformConstraint ICMPV6_DNS = new TransformConstraint(ICMPv6.FORMAT, DNS.FORMAT);
+
     /** Create a map for these constraints to enable selection. */
     public static final Map<String, TransformConstraint> CONSTRAINT_MAP;
     static {
@@ -55,7 +72,12 @@ public final class Constraints {
         initConstraintMap.put("IPV6_DNS", IPV6_DNS);
         initConstraintMap.put("IPV4_UDP_DNS", IPV4_UDP_DNS);
         initConstraintMap.put("IPV6_UDP_DNS", IPV6_UDP_DNS);
+        initConstraintMap.put("IPV4_TCP_DNS", IPV4_TCP_DNS);
+        initConstraintMap.put("IPV6_TCP_DNS", IPV6_TCP_DNS);
+        initConstraintMap.put("IPV4_FRAGMENT_DNS", IPV4_FRAGMENT_DNS);
+        initConstraintMap.put("IPV6_FRAGMENT_DNS", IPV6_FRAGMENT_DNS);
         initConstraintMap.put("ICMP_DNS", ICMP_DNS);
+        initConstraintMap.put("ICMPV6_DNS", ICMPV6_DNS);
         CONSTRAINT_MAP = Collections.unmodifiableMap(initConstraintMap);
     }
 
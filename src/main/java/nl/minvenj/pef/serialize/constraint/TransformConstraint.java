@@ -15,6 +15,8 @@
  */
 package nl.minvenj.pef.serialize.constraint;
 
+import java.util.Arrays;
+
 import io.parsingdata.metal.data.Environment;
 import io.parsingdata.metal.encoding.Encoding;
 import io.parsingdata.metal.expression.Expression;
@@ -75,6 +77,55 @@ public class TransformConstraint {
         return isSatisfiedBy(_tokens, environment) && isSatisfiedBy(_expression, environment);
     }
 
+    /**
+     * Check if the given environment satisfies this constraint, taking a token as present even when
+     * it is not in the environment.
+     *
+     * This is used when it is known from elsewhere that the data belongs to a token, such as a TCP
+     * segment holding part of a DNS message.
+     *
+     * @param environment an environment to check the constraint on
+     * @param implied the token to take as present, or null
+     * @return true if the constraint is satisfied by the given environment and the implied token
+     */
+    public boolean isSatisfiedBy(final Environment environment, final Token implied) {
+        if (implied == null || !requires(implied)) {
+            return isSatisfiedBy(environment);
+        }
+        final Token[] tokens = new Token[_tokens.length];
+        int count = 0;
+        for (final Token token : _tokens) {
+            if (token != implied) {
+                tokens[count++] = token;
+            }
+        }
+        return isSatisfiedBy(Arrays.copyOf(tokens, count), environment) && isSatisfiedBy(_expression, environment);
+    }
+
+    /**
+     * Returns whether this constraint demands a token to be present in the context.
+     *
+     * @param token the token to look for
+     * @return true if the token is part of the context of this constraint
+     */
+    public boolean requires(final Token token) {
+        for (final Token required : _tokens) {
+            if (required == token) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether this constraint also demands an expression to be true.
+     *
+     * @return true if this constraint has an expression
+     */
+    public boolean hasExpression() {
+        return _expression != null;
+    }
+
     private boolean isSatisfiedBy(final Token[] definitions, final Environment environment) {
         return GraphUtil.containsDefinitions(environment.order, definitions);
     }
@@ -28,15 +28,27 @@ import io.parsingdata.metal.data.ParseValue;
 public final class CopyTokenSerializer implements ParseValueProcessor {
 
     private final byte[] _bytes;
+    private final int _offset;
 
     public CopyTokenSerializer(final int length) {
-        _bytes = new byte[length];
+        this(new byte[length], 0);
+    }
+
+    /**
+     * Create a serializer copying the values into an existing array, e.g. to serialize a frame in place.
+     *
+     * @param bytes the array to copy the values into
+     * @param offset the offset in the array that corresponds to value offset 0
+     */
+    public CopyTokenSerializer(final byte[] bytes, final int offset) {
+        _bytes = bytes;
+        _offset = offset;
     }
 
     @Override
     public void process(final ParseValue value) {
         final byte[] bytes = value.getValue();
-        System.arraycopy(bytes, 0, _bytes, (int) value.getOffset(), bytes.length);
+        System.arraycopy(bytes, 0, _bytes, _offset + (int) value.getOffset(), bytes.length);
     }
 
     public byte[] outputData() {
@@ -25,7 +25,7 @@ import nl.minvenj.pef.util.Util;
  * Used to extract ICMP header and payload bytes.
  *
  * Collects and returns a byte array containing the combined bytes of
- * the values starting from the "icmptype" offset.
+ * the values starting from the offset of the first "icmptype".
  *
  * @author Netherlands Forensic Institute.
  */
@@ -36,14 +36,12 @@ public class ICMPHeaderPayloadSerializer implements ParseValueProcessor {
 
     @Override
     public void process(final ParseValue value) {
-        // ICMP starts at icmptype, so when we encounter it we save the offset
-        if (_icmpOffset != -1 && value.matches("icmptype")) {
+        // ICMP starts at the first icmptype, a later one belongs to a quoted packet
+        if (value.matches("icmptype") && (_icmpOffset == -1 || value.getOffset() < _icmpOffset)) {
             _icmpOffset = value.getOffset();
         }
-        // only data on or after icmptype offset should be collected
-        if (value.getOffset() >= _icmpOffset) {
-            _data.put(value.getOffset(), value.getValue());
-        }
+        // the values are not necessarily processed in order of offset, so all are collected
+        _data.put(value.getOffset(), value.getValue());
     }
 
     public byte[] outputData() {
@@ -18,7 +18,10 @@ package nl.minvenj.pef.serialize.transform;
 import io.parsingdata.metal.data.Environment;
 import io.parsingdata.metal.data.ParseValue;
 import io.parsingdata.metal.token.Token;
+import nl.minvenj.pef.metrics.Instrumented;
+import nl.minvenj.pef.metrics.MetricsRegistry;
 import nl.minvenj.pef.serialize.constraint.TransformConstraint;
+import nl.minvenj.pef.serialize.transform.checksum.ChecksumCalculator;
 
 /**
  * A transformer module.
@@ -60,6 +63,18 @@ public final class ConditionalTransformer {
         return _constraint.isSatisfiedBy(environment);
     }
 
+    /**
+     * Check if an environment satisfies this conditional transformer, taking a token as present.
+     *
+     * @param environment the environment to check the constraint on
+     * @param implied the token to take as present, or null
+     * @return true if the constraint is satisfied by the environment and the implied token
+     * @see TransformConstraint#isSatisfiedBy(Environment, Token)
+     */
+    public boolean isSatisfiedBy(final Environment environment, final Token implied) {
+        return _constraint.isSatisfiedBy(environment, implied);
+    }
+
     /**
      * Check if this transformer applies to the ParseValue provided.
      *
@@ -99,4 +114,33 @@ public final class ConditionalTransformer {
     public Token[] getTransformerContext() {
         return _transformer.context();
     }
+
+    /**
+     * Get the name of the field this transformer applies to.
+     *
+     * @return the field name, or "*" for all fields
+     */
+    public String getFieldName() {
+        return _fieldName;
+    }
+
+    /**
+     * Check if this transformer recalculates a checksum.
+     *
+     * @return true if the transformer is a {@link ChecksumCalculator}
+     */
+    public boolean isChecksum() {
+        return _transformer instanceof ChecksumCalculator;
+    }
+
+    /**
+     * Let the transformer record its metrics in a registry, when it is {@link Instrumented}.
+     *
+     * @param metrics the registry to record in
+     */
+    public void setMetrics(final MetricsRegistry metrics) {
+        if (_transformer instanceof Instrumented) {
+            ((Instrumented) _transformer).setMetrics(metrics);
+        }
+    }
 }
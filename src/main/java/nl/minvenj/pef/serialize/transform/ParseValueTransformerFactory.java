@@ -22,6 +22,7 @@ import nl.minvenj.pef.serialize.transform.checksum.IPv4ChecksumCalculator;
 import nl.minvenj.pef.serialize.transform.checksum.IPv4ICMPChecksumCalculator;
 import nl.minvenj.pef.serialize.transform.checksum.IPv4TCPChecksumCalculator;
 import nl.minvenj.pef.serialize.transform.checksum.IPv4UDPChecksumCalculator;
+import nl.minvenj.pef.serialize.transform.checksum.IPv6ICMPChecksumCalculator;
 import nl.minvenj.pef.serialize.transform.checksum.IPv6TCPChecksumCalculator;
 import nl.minvenj.pef.serialize.transform.checksum.IPv6UDPChecksumCalculator;
 import nl.minvenj.pef.serialize.transform.pseudonymize.IPv4AddressPseudonymizer;
@@ -49,7 +50,8 @@ public class ParseValueTransformerFactory {
         IPV4_UDP_CHECKSUM,
         IPV4_TCP_CHECKSUM,
         IPV6_TCP_CHECKSUM,
-        IPV6_UDP_CHECKSUM
+        IPV6_UDP_CHECKSUM,
+        IPV6_ICMP_CHECKSUM
     }
 
     /**
@@ -77,6 +79,8 @@ public class ParseValueTransformerFactory {
                 return new IPv6TCPChecksumCalculator();
             case IPV6_UDP_CHECKSUM:
                 return new IPv6UDPChecksumCalculator();
+            case IPV6_ICMP_CHECKSUM:
+                return new IPv6ICMPChecksumCalculator();
             default:
                 throw new InvalidKeyException("Transformer " + transformerId.name() + "not implemented.");
         }
@@ -108,6 +112,8 @@ public class ParseValueTransformerFactory {
                 return (parameters.size() == 0);
             case IPV6_UDP_CHECKSUM:
                 return (parameters.size() == 0);
+            case IPV6_ICMP_CHECKSUM:
+                return (parameters.size() == 0);
             default:
                 message.append("Transformer " + transformerId.name() + "not implemented.");
                 return false;
@@ -25,7 +25,6 @@ import io.parsingdata.metal.token.Token;
 import nl.minvenj.pef.metal.packet.internet.IPv4;
 import nl.minvenj.pef.serialize.Processor;
 import nl.minvenj.pef.serialize.process.IPv4HeaderSerializer;
-import nl.minvenj.pef.serialize.transform.ParseValueTransformer;
 import nl.minvenj.pef.util.ChecksumCalc;
 
 /**
@@ -42,7 +41,7 @@ import nl.minvenj.pef.util.ChecksumCalc;
  *       160+ |                      Options (optional max 32) + Data
  * @author Netherlands Forensic Institute.
  */
-public class IPv4ChecksumCalculator implements ParseValueTransformer {
+public class IPv4ChecksumCalculator implements ChecksumCalculator {
 
     @Override
     public Token[] context() {
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.serialize.transform.checksum;
+
+import static nl.minvenj.pef.util.Util.tokens;
+
+import io.parsingdata.metal.data.Environment;
+import io.parsingdata.metal.data.ParseGraph;
+import io.parsingdata.metal.data.ParseValue;
+import io.parsingdata.metal.token.Token;
+import nl.minvenj.pef.metal.packet.internet.IPv4;
+import nl.minvenj.pef.metal.packet.internet.Protocol;
+import nl.minvenj.pef.serialize.transform.ParseValueTransformer;
+
+/**
+ * Used to update the UDP checksum in the first fragment of an IPv4 datagram, when the addresses
+ * are pseudonymized.
+ *
+ * The checksum covers the data of all fragments, so it can not be calculated from one fragment.
+ * As only the addresses in the pseudo header change, the checksum is updated incrementally, see
+ * {@link IncrementalChecksum}. The transformer is applied to the fragment data, before the addresses
+ * are pseudonymized.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public class IPv4FragmentUDPChecksumCalculator implements ChecksumCalculator {
+
+    private static final int CHECKSUM_OFFSET = 6;
+
+    private final ParseValueTransformer _addressPseudonymizer;
+
+    /**
+     * Create a new checksum calculator.
+     *
+     * @param addressPseudonymizer the transformer pseudonymizing the addresses of the fragments
+     */
+    public IPv4FragmentUDPChecksumCalculator(final ParseValueTransformer addressPseudonymizer) {
+        _addressPseudonymizer = addressPseudonymizer;
+    }
+
+    @Override
+    public Token[] context() {
+        return tokens(IPv4.FORMAT);
+    }
+
+    @Override
+    public ParseValue transform(final ParseValue value, final Environment environment) {
+        final ParseGraph values = environment.order;
+        final byte[] data = value.getValue().clone();
+        if ((values.get("flfr").asNumeric().intValue() & 0x1FFF) != 0 || values.get("protocol").asNumeric().intValue() != Protocol.UDP || data.length < CHECKSUM_OFFSET + 2) {
+            return value;
+        }
+        final int checksum = IncrementalChecksum.uint16(data, CHECKSUM_OFFSET);
+        if (checksum == 0) {
+            // no checksum was calculated by the sender
+            return value;
+        }
+        final ParseValue source = values.get("ipsource");
+        final ParseValue destination = values.get("ipdestination");
+        int updated = IncrementalChecksum.update(checksum, source.getValue(), _addressPseudonymizer.transform(source, environment).getValue());
+        updated = IncrementalChecksum.update(updated, destination.getValue(), _addressPseudonymizer.transform(destination, environment).getValue());
+        // a calculated checksum of 0 is sent as all ones
+        final int result = updated == 0 ? 0xFFFF : updated;
+        data[CHECKSUM_OFFSET] = (byte) (result >> 8);
+        data[CHECKSUM_OFFSET + 1] = (byte) result;
+        return new ParseValue(value.name, value.getDefinition(), value.getOffset(), data, value.enc);
+    }
+}
@@ -26,7 +26,6 @@ import nl.minvenj.pef.metal.packet.internet.ICMP;
 import nl.minvenj.pef.metal.packet.internet.IPv4;
 import nl.minvenj.pef.serialize.Processor;
 import nl.minvenj.pef.serialize.process.ICMPHeaderPayloadSerializer;
-import nl.minvenj.pef.serialize.transform.ParseValueTransformer;
 import nl.minvenj.pef.util.ChecksumCalc;
 
 /**
@@ -39,7 +38,7 @@ import nl.minvenj.pef.util.ChecksumCalc;
  *
  * @author Netherlands Forensic Institute.
  */
-public class IPv4ICMPChecksumCalculator implements ParseValueTransformer {
+public class IPv4ICMPChecksumCalculator implements ChecksumCalculator {
 
     @Override
     public Token[] context() {
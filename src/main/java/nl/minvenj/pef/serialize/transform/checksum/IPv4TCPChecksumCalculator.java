@@ -28,7 +28,6 @@ import io.parsingdata.metal.token.Token;
 import nl.minvenj.pef.metal.packet.internet.IPv4;
 import nl.minvenj.pef.serialize.Processor;
 import nl.minvenj.pef.serialize.process.TCPHeaderPayloadSerializer;
-import nl.minvenj.pef.serialize.transform.ParseValueTransformer;
 import nl.minvenj.pef.util.ChecksumCalc;
 import nl.minvenj.pef.util.Util;
 
@@ -51,7 +50,7 @@ import nl.minvenj.pef.util.Util;
  *       256+ | Options (optional) + Data
  * @author Netherlands Forensic Institute.
  */
-public class IPv4TCPChecksumCalculator implements ParseValueTransformer {
+public class IPv4TCPChecksumCalculator implements ChecksumCalculator {
 
     @Override
     public Token[] context() {
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.serialize.transform.checksum;
+
+import static nl.minvenj.pef.util.Util.tokens;
+
+import java.util.Arrays;
+
+import io.parsingdata.metal.data.Environment;
+import io.parsingdata.metal.data.ParseGraph;
+import io.parsingdata.metal.data.ParseValue;
+import io.parsingdata.metal.data.ParseValueList;
+import io.parsingdata.metal.data.selection.ByName;
+import io.parsingdata.metal.token.Token;
+import nl.minvenj.pef.metal.packet.internet.IPv6;
+import nl.minvenj.pef.metal.packet.internet.Protocol;
+import nl.minvenj.pef.serialize.Processor;
+import nl.minvenj.pef.serialize.process.ICMPHeaderPayloadSerializer;
+import nl.minvenj.pef.util.ChecksumCalc;
+import nl.minvenj.pef.util.Util;
+
+/**
+ * Used to calculate an IPv6 ICMP checksum.
+ *
+ * The checksum is calculated over a pseudo header and the ICMPv6 message.
+ *
+ * bit offset | Parameters
+ * ========================================================================
+ *         0  |           Source IPv6 address (16 bytes)
+ *       128  |           Destination IPv6 address (16 bytes)
+ *       256  |            ICMPv6 message length (4 bytes)
+ *       288  |        Zeroes (3 bytes)            | Next Header (1 byte)
+ *       320  | Type | Code | Checksum (2 bytes)
+ *       352+ |          Rest of header and data
+ *
+ * The addresses are those of the packet carrying the message, not of the packet quoted in it.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public class IPv6ICMPChecksumCalculator implements ChecksumCalculator {
+
+    @Override
+    public Token[] context() {
+        return tokens(IPv6.FORMAT);
+    }
+
+    @Override
+    public ParseValue transform(final ParseValue value, final Environment environment) {
+        final ParseGraph values = environment.order;
+        final byte[] icmpMessage = getICMPHeaderPayload(environment);
+        // Zero the 2 checksum bytes that are inside the header. The offset is 2.
+        Arrays.fill(icmpMessage, 2, 4, (byte) 0);
+        final byte[] length = {(byte) (icmpMessage.length >>> 24), (byte) (icmpMessage.length >>> 16), (byte) (icmpMessage.length >>> 8), (byte) icmpMessage.length};
+        final byte[] nextHeader = {0, 0, 0, (byte) Protocol.ICMPV6};
+        final byte[] mergedBytes = Util.concatBytes(first(values, "sourceaddress").getValue(), first(values, "destinationaddress").getValue(), length, nextHeader, icmpMessage);
+        final byte[] icmpChecksumBytes = ChecksumCalc.calculateInternetChecksum(mergedBytes);
+        return new ParseValue(value.name, value.getDefinition(), value.getOffset(), icmpChecksumBytes, value.enc);
+    }
+
+    private byte[] getICMPHeaderPayload(final Environment environment) {
+        final ICMPHeaderPayloadSerializer icmpHeaderPayloadSerializer = new ICMPHeaderPayloadSerializer();
+        new Processor().process(environment, icmpHeaderPayloadSerializer);
+        return icmpHeaderPayloadSerializer.outputData();
+    }
+
+    // the value with the lowest offset, as the quoted packet has the same fields
+    private static ParseValue first(final ParseGraph graph, final String name) {
+        ParseValue first = null;
+        for (ParseValueList values = ByName.getAllValues(graph, name); !values.isEmpty(); values = values.tail) {
+            if (first == null || values.head.getOffset() < first.getOffset()) {
+                first = values.head;
+            }
+        }
+        return first;
+    }
+}
@@ -27,7 +27,6 @@ import io.parsingdata.metal.token.Token;
 import nl.minvenj.pef.metal.packet.internet.IPv6;
 import nl.minvenj.pef.serialize.Processor;
 import nl.minvenj.pef.serialize.process.TCPHeaderPayloadSerializer;
-import nl.minvenj.pef.serialize.transform.ParseValueTransformer;
 import nl.minvenj.pef.util.ChecksumCalc;
 import nl.minvenj.pef.util.Util;
 
@@ -52,7 +51,7 @@ import nl.minvenj.pef.util.Util;
  *
  * @author Netherlands Forensic Institute.
  */
-public class IPv6TCPChecksumCalculator implements ParseValueTransformer {
+public class IPv6TCPChecksumCalculator implements ChecksumCalculator {
 
     @Override
     public Token[] context() {
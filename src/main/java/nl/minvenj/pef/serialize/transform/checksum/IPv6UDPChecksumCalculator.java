@@ -24,7 +24,6 @@ import io.parsingdata.metal.token.Token;
 import nl.minvenj.pef.metal.packet.internet.IPv6;
 import nl.minvenj.pef.serialize.Processor;
 import nl.minvenj.pef.serialize.process.UDPPayloadSerializer;
-import nl.minvenj.pef.serialize.transform.ParseValueTransformer;
 import nl.minvenj.pef.util.ChecksumCalc;
 import nl.minvenj.pef.util.Util;
 
@@ -45,7 +44,7 @@ import nl.minvenj.pef.util.Util;
  *
  * @author Netherlands Forensic Institute.
  */
-public class IPv6UDPChecksumCalculator implements ParseValueTransformer {
+public class IPv6UDPChecksumCalculator implements ChecksumCalculator {
 
     @Override
     public Token[] context() {
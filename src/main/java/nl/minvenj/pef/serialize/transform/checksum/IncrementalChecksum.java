@@ -0,0 +1,53 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.serialize.transform.checksum;
+
+/**
+ * Updates an internet checksum when some of the data it covers changes, without the rest of the data.
+ *
+ * The update is done as in RFC 1624: HC' = ~(~HC + ~m + m'), with m the original and m' the new data.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+final class IncrementalChecksum {
+
+    private IncrementalChecksum() {
+    }
+
+    /**
+     * Update a checksum for a changed field of an even length.
+     *
+     * @param checksum the checksum
+     * @param original the original field
+     * @param updated the changed field
+     * @return the updated checksum, which is 0 when the sum is all ones
+     */
+    static int update(final int checksum, final byte[] original, final byte[] updated) {
+        long sum = ~checksum & 0xFFFF;
+        for (int i = 0; i < original.length; i += 2) {
+            sum += ~uint16(original, i) & 0xFFFF;
+            sum += uint16(updated, i);
+        }
+        while (sum > 0xFFFF) {
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        }
+        return (int) ~sum & 0xFFFF;
+    }
+
+    static int uint16(final byte[] data, final int position) {
+        return (data[position] & 0xFF) << 8 | data[position + 1] & 0xFF;
+    }
+}
@@ -23,6 +23,8 @@ import io.parsingdata.metal.data.Environment;
 import io.parsingdata.metal.data.ParseValue;
 import io.parsingdata.metal.token.Token;
 import nl.minvenj.pef.metal.packet.internet.IPv6;
+import nl.minvenj.pef.metrics.Instrumented;
+import nl.minvenj.pef.metrics.MetricsRegistry;
 import nl.minvenj.pef.pseudo.IPPseudonymizer;
 import nl.minvenj.pef.serialize.transform.ParseValueTransformer;
 
@@ -31,7 +33,7 @@ import nl.minvenj.pef.serialize.transform.ParseValueTransformer;
  *
  * @author Netherlands Forensic Institute.
  */
-public class IPv6AddressPseudonymizer implements ParseValueTransformer {
+public class IPv6AddressPseudonymizer implements ParseValueTransformer, Instrumented {
 
     private final IPPseudonymizer _pseudonymizer;
 
@@ -48,4 +50,9 @@ public class IPv6AddressPseudonymizer implements ParseValueTransformer {
     public ParseValue transform(final ParseValue value, final Environment environment) {
         return new ParseValue(value.name, value.getDefinition(), value.getOffset(), _pseudonymizer.pseudonymize(value.getValue()), value.enc);
     }
+
+    @Override
+    public void setMetrics(final MetricsRegistry metrics) {
+        _pseudonymizer.setMetrics(metrics);
+    }
 }
@@ -0,0 +1,280 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.stream;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Logger;
+
+import nl.minvenj.pef.capture.AfPacketCapture;
+import nl.minvenj.pef.capture.AfPacketSettings;
+import nl.minvenj.pef.capture.AfPacketSocket;
+import nl.minvenj.pef.capture.PipelineFrameHandler;
+import nl.minvenj.pef.metrics.MetricsRegistry;
+import nl.minvenj.pef.output.CaptureWriterSettings;
+import nl.minvenj.pef.output.RotatingCaptureWriter;
+import nl.minvenj.pef.pipeline.CaptureWriterSink;
+import nl.minvenj.pef.pipeline.PacketDispatcher;
+import nl.minvenj.pef.pipeline.PacketPipeline;
+import nl.minvenj.pef.pipeline.PacketProcessor;
+import nl.minvenj.pef.pipeline.PacketSink;
+import nl.minvenj.pef.pipeline.PipelineStatistics;
+import nl.minvenj.pef.pipeline.PseudonymizingProcessor;
+import nl.minvenj.pef.pipeline.TimingSink;
+import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.ring.WaitStrategy;
+
+/**
+ * A live sniffer based on Linux AF_PACKET sockets with a memory mapped TPACKET_V3 ring, as an
+ * alternative to libpcap.
+ *
+ * With more than one socket the sockets join a fanout group, so the kernel divides the packets of
+ * the device over them, keeping the packets of a flow on one socket. Every socket has its own
+ * capture thread, pipeline and output files.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public class AfPacketSniffer {
+    private static final Logger logger = Logger.getLogger(LiveCapture.class.getName());
+    private final String _device;
+    private final int _sockets;
+    private final AfPacketSettings _socketSettings;
+    private long _maxBytes = -1;
+    private boolean _continuous;
+    private CaptureWriterSettings _outputSettings = new CaptureWriterSettings();
+    private MetricsRegistry _metrics;
+
+    /**
+     * Creates a sniffer.
+     *
+     * @param device the name of the device to capture from
+     * @param sockets the number of sockets in the fanout group, 1 to not use fanout
+     * @param socketSettings the ring size of the sockets
+     */
+    public AfPacketSniffer(final String device, final int sockets, final AfPacketSettings socketSettings) {
+        _device = device;
+        _sockets = sockets;
+        _socketSettings = socketSettings;
+    }
+
+    /**
+     * Stop capturing after the given amount of megabytes, per socket.
+     *
+     * @param maxMBytes the amount of data in MB
+     */
+    public void setFileSize(final long maxMBytes) {
+        _maxBytes = maxMBytes * 1000;
+    }
+
+    /**
+     * Keep capturing until the JVM shuts down, instead of stopping after the file size.
+     *
+     * @param continuous true to capture until stopped
+     */
+    public void setContinuous(final boolean continuous) {
+        _continuous = continuous;
+    }
+
+    /**
+     * Set the format, buffering and rotation of the output files.
+     *
+     * @param outputSettings the settings of the capture writer
+     */
+    public void setOutputSettings(final CaptureWriterSettings outputSettings) {
+        _outputSettings = outputSettings;
+    }
+
+    /**
+     * Record the time taken to write the output of the pipelines, and their statistics, in a metrics registry.
+     *
+     * @param metrics the registry to record in, or null to not record metrics
+     */
+    public void setMetrics(final MetricsRegistry metrics) {
+        _metrics = metrics;
+    }
+
+    private PacketSink timed(final PacketSink sink) {
+        return _metrics == null ? sink : new TimingSink(sink, _metrics);
+    }
+
+    /**
+     * Capture and pseudonymize packets until the file size is reached or, when continuous, until the JVM shuts down.
+     *
+     * @param timed true to log the time taken
+     * @param destination the file to write the pseudonymized packets to, with more than one socket
+     *                    the files are named after it with the socket number added
+     * @param pseudonymizers the pseudonymizers, one per worker thread, divided evenly over the sockets
+     * @param ringSize the number of packets that can be buffered in each pipeline
+     * @param dispatcher the dispatcher selecting the worker for each packet
+     * @param waitStrategy the strategy of the pipeline threads for waiting on each other
+     */
+    public void handleWithPipeline(boolean timed, String destination, List<FramePseudonymizer> pseudonymizers, int ringSize, PacketDispatcher dispatcher, WaitStrategy waitStrategy) {
+        long startTime = System.currentTimeMillis();
+        if (_sockets > 1) {
+            // a group id per process, so several instances can capture the same device
+            _socketSettings.fanout(ManagementFactory.getRuntimeMXBean().getName().hashCode() & 0xFFFF, _socketSettings.getFanoutMode());
+        }
+        final int workers = Math.max(1, pseudonymizers.size() / _sockets);
+        final List<SocketCapture> captures = new ArrayList<>();
+        try {
+            for (int i = 0; i < _sockets; i++) {
+                final List<PacketProcessor> processors = new ArrayList<>();
+                for (final FramePseudonymizer pseudonymizer : pseudonymizers.subList(i * workers, Math.min(pseudonymizers.size(), (i + 1) * workers))) {
+                    processors.add(new PseudonymizingProcessor(pseudonymizer));
+                }
+                captures.add(new SocketCapture(i, new AfPacketSocket(_device, _socketSettings), processors, socketDestination(Paths.get(destination), i), ringSize, dispatcher, waitStrategy));
+            }
+        }
+        catch (IOException e) {
+            logger.severe("Error while opening device " + _device + " for capture: " + e.getMessage());
+            for (final SocketCapture capture : captures) {
+                capture.close();
+            }
+            return;
+        }
+
+        if (_metrics != null) {
+            final List<PipelineStatistics> statistics = new ArrayList<>();
+            for (final SocketCapture capture : captures) {
+                statistics.add(capture._pipeline.getStatistics());
+            }
+            PipelineStatistics.register(_metrics, statistics);
+        }
+
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final Thread shutdownHook = _continuous ? stopOnShutdown(captures, stopped) : null;
+        final List<Thread> threads = new ArrayList<>();
+        for (final SocketCapture capture : captures) {
+            final Thread thread = new Thread(capture, "pef-capture-" + capture._index);
+            threads.add(thread);
+            thread.start();
+        }
+        try {
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+            if (timed) {
+                long stopTime = System.currentTimeMillis();
+                logger.info("Stopped after " + ((stopTime - startTime) / 1000.0) + " seconds.");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.severe("Interrupted while capturing.");
+        }
+        finally {
+            stopped.countDown();
+            if (shutdownHook != null) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                }
+                catch (IllegalStateException e) {
+                    // the JVM is already shutting down, the hook itself stopped the capture
+                }
+            }
+        }
+    }
+
+    private Path socketDestination(final Path destination, final int index) {
+        if (_sockets == 1) {
+            return destination;
+        }
+        final String name = destination.getFileName().toString();
+        final int dot = name.lastIndexOf('.');
+        return destination.resolveSibling(dot > 0 ? name.substring(0, dot) + "_s" + index + name.substring(dot) : name + "_s" + index);
+    }
+
+    private static Thread stopOnShutdown(final List<SocketCapture> captures, final CountDownLatch stopped) {
+        final Thread hook = new Thread() {
+            @Override
+            public void run() {
+                logger.info("Stopping the capture.");
+                for (final SocketCapture capture : captures) {
+                    capture._capture.stop();
+                }
+                try {
+                    stopped.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(hook);
+        return hook;
+    }
+
+    private final class SocketCapture implements Runnable {
+
+        private final int _index;
+        private final AfPacketSocket _socket;
+        private final AfPacketCapture _capture;
+        private final PacketPipeline _pipeline;
+
+        SocketCapture(final int index, final AfPacketSocket socket, final List<PacketProcessor> processors, final Path destination, final int ringSize, final PacketDispatcher dispatcher, final WaitStrategy waitStrategy) throws IOException {
+            _index = index;
+            _socket = socket;
+            _capture = new AfPacketCapture(socket);
+            try {
+                // the frames of an AF_PACKET socket on an ethernet device, or the loopback device, are ethernet frames
+                _pipeline = new PacketPipeline(ringSize, PcapSniffer.SNAPLEN, processors, dispatcher, waitStrategy,
+                                               timed(new CaptureWriterSink(new RotatingCaptureWriter(destination, 1, PcapSniffer.SNAPLEN, _outputSettings))));
+            }
+            catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                _capture.run(new PipelineFrameHandler(_pipeline, _capture, _socket, _continuous ? -1 : _maxBytes));
+            }
+            catch (IOException e) {
+                logger.severe("Error while capturing on socket " + _index + ": " + e.getMessage());
+            }
+            finally {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                _socket.updateStatistics();
+                _pipeline.getStatistics().setCaptureStatistics(_socket.getPackets(), _socket.getDrops(), 0);
+            }
+            catch (IOException e) {
+                logger.warning("Could not read the statistics of socket " + _index + ": " + e.getMessage());
+            }
+            try {
+                _pipeline.close();
+                logger.info("Pipeline statistics of socket " + _index + ": " + _pipeline.getStatistics());
+            }
+            catch (IOException e) {
+                logger.severe("Error while closing the output: " + e.getMessage());
+            }
+            finally {
+                _socket.close();
+            }
+        }
+    }
+}
@@ -50,7 +50,7 @@ public class JNetPcapPacketModifier {
      * @param checksumList the list of checksums to be recalculated
      * @param dnsOnly boolean if only DNS packets need to be pseudonymized.
      */
-    JNetPcapPacketModifier(final Map<JProtocol, IPPseudonymizer> pseudonymizerMap, final List<Integer> checksumList, final boolean dnsOnly) {
+    public JNetPcapPacketModifier(final Map<JProtocol, IPPseudonymizer> pseudonymizerMap, final List<Integer> checksumList, final boolean dnsOnly) {
         _pseudonymizerMap = pseudonymizerMap;
         _checksumList = checksumList;
        DNS_ONLY = dnsOnly;
@@ -19,8 +19,10 @@ import static nl.minvenj.pef.serialize.transform.ParseValueTransformerFactory.Tr
 import static nl.minvenj.pef.serialize.transform.ParseValueTransformerFactory.getParseValueTransformer;
 import static nl.minvenj.pef.serialize.transform.ParseValueTransformerFactory.testParseValueTransformerConfiguration;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.LinkOption;
@@ -31,11 +33,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
+import javax.management.JMException;
+
 import org.apache.commons.configuration2.HierarchicalConfiguration;
 import org.apache.commons.configuration2.XMLConfiguration;
 import org.apache.commons.configuration2.builder.FileBasedConfigurationBuilder;
@@ -44,11 +49,33 @@ import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.commons.configuration2.ex.ConversionException;
 import org.apache.commons.configuration2.tree.ImmutableNode;
 
+import nl.minvenj.pef.capture.AfPacketSettings;
+import nl.minvenj.pef.capture.AfPacketSocket;
 import nl.minvenj.pef.exception.PEFException;
+import nl.minvenj.pef.metrics.MetricsMBean;
+import nl.minvenj.pef.metrics.MetricsRegistry;
+import nl.minvenj.pef.metrics.MetricsReporter;
+import nl.minvenj.pef.metrics.PrometheusEndpoint;
+import nl.minvenj.pef.output.CaptureFormat;
+import nl.minvenj.pef.output.CaptureWriterSettings;
+import nl.minvenj.pef.output.FsyncPolicy;
+import nl.minvenj.pef.pipeline.FlowDispatcher;
+import nl.minvenj.pef.pipeline.PacketDispatcher;
+import nl.minvenj.pef.pipeline.RoundRobinDispatcher;
 import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.pseudo.dump.DumpFilePseudonymizer;
+import nl.minvenj.pef.pseudo.dump.WatchFolderPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.CompressedCapturePseudonymizer;
 import nl.minvenj.pef.pseudo.dump.cap.pcap.SingleThreadedPCAPPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcapng.SingleThreadedPCAPNGPseudonymizer;
+import nl.minvenj.pef.ring.BusySpinWaitStrategy;
+import nl.minvenj.pef.ring.ParkingWaitStrategy;
+import nl.minvenj.pef.ring.WaitStrategy;
+import nl.minvenj.pef.ring.YieldingWaitStrategy;
 import nl.minvenj.pef.serialize.Processor;
+import nl.minvenj.pef.serialize.constraint.CaptureFilter;
 import nl.minvenj.pef.serialize.constraint.Constraints;
+import nl.minvenj.pef.serialize.constraint.TransformConstraint;
 import nl.minvenj.pef.serialize.transform.ParseValueTransformerFactory;
 import nl.minvenj.pef.serialize.transform.checksum.IPv4ChecksumCalculator;
 import nl.minvenj.pef.serialize.transform.checksum.IPv4UDPChecksumCalculator;
@@ -58,11 +85,16 @@ import nl.minvenj.pef.util.AlgorithmParameter;
 /**
  * LiveCapture class
  * With this class the tool to start a packet sniffer can be initialized.
+ * When a watch_directory is configured, the tool instead runs as a service that pseudonymizes
+ * the capture files that appear in that directory.
  *
  * @author Netherlands Forensic Institute.
  */
 public class LiveCapture {
+    private static final String DEFAULT_WATCH_PATTERN = "*.{pcap,pcapng,pcap.gz,pcapng.gz,pcap.zst,pcapng.zst,pcap.lz4,pcapng.lz4}";
+    private static final int DEFAULT_RING_SIZE = 1024;
     private static FileHandler logFileHandler = null;
+    private static MetricsRegistry metrics = null;
     static private final Logger logger = Logger.getLogger("");
 
     /**
@@ -117,7 +149,18 @@ public class LiveCapture {
             //First all normal fields. The library field is optional, default to metal.
             final boolean live = config.getBoolean("live");
             final String inputFile = config.getString("input");
-            if (!live) {
+            final String watchDirectory = config.getString("watch_directory");
+            if (watchDirectory != null) {
+                if (!Files.isDirectory(Paths.get(watchDirectory))) {
+                    logger.severe("The watch directory " + watchDirectory + " is not a directory.");
+                    return false;
+                }
+                if (config.getLong("watch_stable_time", 2000) < 0 || config.getInt("watch_workers", 1) < 1) {
+                    logger.severe("The watch_stable_time must be positive and watch_workers must be at least 1.");
+                    return false;
+                }
+            }
+            else if (!live) {
                 if (inputFile == null) {
                     throw new NoSuchElementException("For offline use, the parameter 'input' file needs to be specified");
                 }
@@ -135,6 +178,54 @@ public class LiveCapture {
             config.getBoolean("remove_unknown_protocols");
             config.getBoolean("checksum_reset");
             config.getBoolean("timer", false);
+            config.getBoolean("continuous", false);
+            config.getBoolean("metrics", false);
+            if (config.getLong("metrics_interval", 60) < 1) {
+                logger.severe("The metrics_interval must be at least 1 second.");
+                return false;
+            }
+            if (config.getString("metrics_port") != null && (!config.getBoolean("metrics", false) || config.getInt("metrics_port") < 0 || config.getInt("metrics_port") > 65535)) {
+                logger.severe("The metrics_port requires metrics to be true and must be in the range [0, 65535].");
+                return false;
+            }
+            if (config.getInt("workers", 1) < 1 || config.getInt("ring_size", DEFAULT_RING_SIZE) < 1) {
+                logger.severe("The number of workers and the ring size must be at least 1.");
+                return false;
+            }
+            if (getDispatcher(config) == null) {
+                logger.severe("The dispatch parameter must be flow or round_robin.");
+                return false;
+            }
+            if (getWaitStrategy(config) == null) {
+                logger.severe("The wait_strategy parameter must be park, yield or busy_spin.");
+                return false;
+            }
+            final String captureSource = config.getString("capture_source", "pcap");
+            if (!captureSource.equals("pcap") && !captureSource.equals("af_packet")) {
+                logger.severe("The capture_source parameter must be pcap or af_packet.");
+                return false;
+            }
+            if (live && captureSource.equals("af_packet")) {
+                if (config.getString("input", "").isEmpty()) {
+                    logger.severe("The af_packet capture source requires the device to be set as input.");
+                    return false;
+                }
+                if (!AfPacketSocket.isAvailable()) {
+                    logger.severe("The af_packet capture source requires the native pefafpacket library on the java.library.path.");
+                    return false;
+                }
+                if (config.getInt("fanout", 1) < 1) {
+                    logger.severe("The number of fanout sockets must be at least 1.");
+                    return false;
+                }
+                if (config.getString("capture_filter") != null) {
+                    logger.warning("The capture_filter is not supported by the af_packet capture source and is ignored.");
+                }
+            }
+            if (getOutputSettings(config) == null) {
+                logger.severe("The output_format must be pcap or pcapng, fsync must be never, flush or close, and rotate_size, rotate_time and keep_files must not be negative.");
+                return false;
+            }
             final String outputDir = config.getString("output_directory");
             // The file size does not need to be specified. Therefore a default is provided.
             final long fileSize = config.getLong("file_size", 120);
@@ -214,7 +305,43 @@ public class LiveCapture {
                     .addTransformer(Constraints.IPV4_UDP_DNS, "headerchecksum", new IPv4ChecksumCalculator())
                     .addTransformer(Constraints.ICMP_DNS, "icmpchecksum", new IPv6UDPChecksumCalculator());
         }
-        return new FramePseudonymizer(processor);
+        return new FramePseudonymizer(processor, metrics);
+    }
+
+    /**
+     * Create the metrics registry when metrics is set, register it with JMX and start reporting it
+     * every metrics_interval seconds to the log and, when metrics_csv is set, to that CSV file in the
+     * output directory. When metrics_port is set the metrics are also served for Prometheus on
+     * metrics_address, localhost by default.
+     *
+     * @param config the configuration to read the parameters from
+     * @return the reporter and endpoint to close when done, empty when no metrics are recorded
+     * @throws IOException when the CSV file can not be opened or the port can not be listened on
+     */
+    private static List<Closeable> startMetrics(final XMLConfiguration config) throws IOException {
+        final List<Closeable> outputs = new ArrayList<>();
+        if (!config.getBoolean("metrics", false)) {
+            return outputs;
+        }
+        metrics = new MetricsRegistry();
+        try {
+            MetricsMBean.register(metrics, MetricsMBean.DEFAULT_NAME);
+        }
+        catch (JMException e) {
+            logger.warning("The metrics could not be registered with JMX: " + e.getMessage());
+        }
+        final String csvFile = config.getString("metrics_csv");
+        final MetricsReporter reporter = csvFile == null ? new MetricsReporter(metrics)
+                                                         : new MetricsReporter(metrics, Paths.get(config.getString("output_directory"), csvFile).toFile());
+        reporter.start(config.getLong("metrics_interval", 60), TimeUnit.SECONDS);
+        outputs.add(reporter);
+        logger.info("Metrics are recorded for one in " + metrics.getSampleInterval() + " packets and reported every " + config.getLong("metrics_interval", 60) + " seconds.");
+        if (config.getString("metrics_port") != null) {
+            final PrometheusEndpoint endpoint = new PrometheusEndpoint(metrics, new InetSocketAddress(config.getString("metrics_address", "localhost"), config.getInt("metrics_port")));
+            outputs.add(0, endpoint);
+            logger.info("Metrics are served on http://" + config.getString("metrics_address", "localhost") + ":" + endpoint.getAddress().getPort() + PrometheusEndpoint.PATH);
+        }
+        return outputs;
     }
 
     private static void runPEF (XMLConfiguration config) {
@@ -227,7 +354,17 @@ public class LiveCapture {
         final String destination = Paths.get(config.getString("output_directory")).toAbsolutePath().toString() + File.separator +  config.getString("output_file");
         final String input = config.getString("input", "");
 
+        List<Closeable> metricsOutputs = new ArrayList<>();
         try {
+            metricsOutputs = startMetrics(config);
+            if (config.getString("watch_directory") != null) {
+                runWatchFolder(config);
+                return;
+            }
+            if (live && config.getString("capture_source", "pcap").equals("af_packet")) {
+                runAfPacket(config, destination, timer);
+                return;
+            }
             final FramePseudonymizer pseudonymizer = initMetalPseudonymizerWith(config);
             if (packetsInputLibrary.equals("metal")) {
                 assert(!live); // This configuration option does not exists and should have been checked before!
@@ -243,8 +380,31 @@ public class LiveCapture {
                 if (live && (config.get(long.class, "file_size")!= null) ) {
                     sniffer.setFileSize(config.getLong("file_size"));
                 }
+                if (live) {
+                    sniffer.setContinuous(config.getBoolean("continuous", false));
+                    sniffer.setOutputSettings(getLiveOutputSettings(config));
+                    sniffer.setFilter(getCaptureFilter(config));
+                    if (config.getString("passthrough_file") != null) {
+                        sniffer.setPassthrough(Paths.get(config.getString("output_directory"), config.getString("passthrough_file")).toAbsolutePath().toString());
+                    }
+                }
+                else {
+                    sniffer.setOutputSettings(getOutputSettings(config));
+                }
                 logger.info("Output will be stored in "+ destination);
-                sniffer.handleWithMetal(live, timer, destination, pseudonymizer);
+                if (config.getString("workers") != null) {
+                    // Pseudonymize on multiple cores, the capture thread only copies the packets.
+                    final List<FramePseudonymizer> pseudonymizers = new ArrayList<>();
+                    pseudonymizers.add(pseudonymizer);
+                    for (int i = 1; i < config.getInt("workers"); i++) {
+                        pseudonymizers.add(initMetalPseudonymizerWith(config));
+                    }
+                    sniffer.setMetrics(metrics);
+                    sniffer.handleWithPipeline(live, timer, destination, pseudonymizers, config.getInt("ring_size", DEFAULT_RING_SIZE), getDispatcher(config), getWaitStrategy(config));
+                }
+                else {
+                    sniffer.handleWithMetal(live, timer, destination, pseudonymizer);
+                }
             }
             else {
                 logger.info(packetsInputLibrary + " as input library is not supported.");
@@ -262,6 +422,189 @@ public class LiveCapture {
         catch (ClassNotFoundException e) {
             throw new PEFException("The class type could not be found for the parameter: "+ e.getMessage());
         }
+        finally {
+            for (Closeable output : metricsOutputs) {
+                try {
+                    output.close();
+                }
+                catch (IOException e) {
+                    logger.warning("The metrics could not be written: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void runWatchFolder(final XMLConfiguration config) throws IOException, InvalidKeyException, ClassNotFoundException {
+        final File inputDirectory = new File(config.getString("watch_directory"));
+        final File outputDirectory = new File(config.getString("output_directory"));
+        final File journal = new File(config.getString("watch_journal", new File(outputDirectory, ".pef_journal").getPath()));
+        final int workers = config.getInt("watch_workers", Runtime.getRuntime().availableProcessors());
+
+        // Every worker gets its own pseudonymizers, as these are not thread safe.
+        final List<List<DumpFilePseudonymizer>> pseudonymizerSets = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            pseudonymizerSets.add(Arrays.<DumpFilePseudonymizer>asList(new CompressedCapturePseudonymizer(initMetalPseudonymizerWith(config)),
+                                                                       new SingleThreadedPCAPPseudonymizer(initMetalPseudonymizerWith(config)),
+                                                                       new SingleThreadedPCAPNGPseudonymizer(initMetalPseudonymizerWith(config))));
+        }
+        final WatchFolderPseudonymizer watcher = new WatchFolderPseudonymizer(inputDirectory, outputDirectory, pseudonymizerSets, journal,
+                                                                              config.getString("watch_pattern", DEFAULT_WATCH_PATTERN),
+                                                                              config.getLong("watch_stable_time", 2000));
+        final Thread watchThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                // Finish the files in progress before the JVM exits.
+                watcher.stop();
+                try {
+                    watchThread.join();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        logger.info("Output of the watch directory will be stored in " + outputDirectory.getAbsolutePath());
+        watcher.run();
+    }
+
+    private static void runAfPacket(final XMLConfiguration config, final String destination, final boolean timer) throws InvalidKeyException, ClassNotFoundException {
+        final int sockets = config.getInt("fanout", 1);
+        final int workers = config.getInt("workers", 1);
+        final AfPacketSniffer sniffer = new AfPacketSniffer(config.getString("input"), sockets, new AfPacketSettings());
+        if (config.get(long.class, "file_size") != null) {
+            sniffer.setFileSize(config.getLong("file_size"));
+        }
+        sniffer.setContinuous(config.getBoolean("continuous", false));
+        sniffer.setOutputSettings(getLiveOutputSettings(config));
+        sniffer.setMetrics(metrics);
+        // Every socket gets its own pipeline, with its own pseudonymizers.
+        final List<FramePseudonymizer> pseudonymizers = new ArrayList<>();
+        for (int i = 0; i < sockets * workers; i++) {
+            pseudonymizers.add(initMetalPseudonymizerWith(config));
+        }
+        logger.info("Capturing with " + sockets + " AF_PACKET socket(s), output will be stored in " + destination);
+        sniffer.handleWithPipeline(timer, destination, pseudonymizers, config.getInt("ring_size", DEFAULT_RING_SIZE), getDispatcher(config), getWaitStrategy(config));
+    }
+
+    /**
+     * Returns the capture filter configured with capture_filter: auto derives the filter from the
+     * constraints of the configured fields, any other value is used as BPF expression.
+     *
+     * @param config the configuration to read the parameters from
+     * @return the filter expression, or null to capture all packets
+     */
+    private static String getCaptureFilter(final XMLConfiguration config) {
+        final String filter = config.getString("capture_filter", "");
+        if (!filter.equals("auto")) {
+            return filter.isEmpty() ? null : filter;
+        }
+        final List<TransformConstraint> constraints = new ArrayList<>();
+        for (HierarchicalConfiguration<ImmutableNode> field : config.configurationsAt("fields.field")) {
+            constraints.add(Constraints.CONSTRAINT_MAP.get(field.getString("constraint")));
+        }
+        final String derived = CaptureFilter.forConstraints(constraints, CaptureFilter.DNS_PORTS);
+        if (derived == null) {
+            logger.warning("No capture filter can be derived from the constraints of the fields, all packets are captured.");
+        }
+        return derived;
+    }
+
+    /**
+     * Returns the settings of the capture writer for a live capture. A continuous capture is not
+     * stopped after the file size, so without other limits the file size then limits the output files.
+     *
+     * @param config the configuration to read the parameters from
+     * @return the output settings
+     */
+    private static CaptureWriterSettings getLiveOutputSettings(final XMLConfiguration config) {
+        final CaptureWriterSettings settings = getOutputSettings(config);
+        if (config.getBoolean("continuous", false) && !settings.isRotating()) {
+            settings.rotateSize(config.getLong("file_size", 120) * 1000 * 1000);
+        }
+        return settings;
+    }
+
+    /**
+     * Returns the settings of the capture writer, or null when a parameter has an unknown value.
+     *
+     * @param config the configuration to read the parameters from
+     * @return the output settings
+     */
+    private static CaptureWriterSettings getOutputSettings(final XMLConfiguration config) {
+        final CaptureWriterSettings settings = new CaptureWriterSettings();
+        final String format = config.getString("output_format", "pcap");
+        if (format.equals("pcap")) {
+            settings.format(CaptureFormat.PCAP);
+        }
+        else if (format.equals("pcapng")) {
+            settings.format(CaptureFormat.PCAPNG);
+        }
+        else {
+            return null;
+        }
+        final String fsync = config.getString("fsync", "close");
+        if (fsync.equals("never")) {
+            settings.fsync(FsyncPolicy.NEVER);
+        }
+        else if (fsync.equals("flush")) {
+            settings.fsync(FsyncPolicy.ON_FLUSH);
+        }
+        else if (!fsync.equals("close")) {
+            return null;
+        }
+        final long rotateSize = config.getLong("rotate_size", 0);
+        final long rotateTime = config.getLong("rotate_time", 0);
+        final int keepFiles = config.getInt("keep_files", 0);
+        if (rotateSize < 0 || rotateTime < 0 || keepFiles < 0) {
+            return null;
+        }
+        return settings.flushInterval(config.getLong("flush_interval", CaptureWriterSettings.DEFAULT_FLUSH_INTERVAL))
+                       .rotateSize(rotateSize * 1000 * 1000)
+                       .rotateTime(rotateTime * 1000)
+                       .keepFiles(keepFiles);
+    }
+
+    /**
+     * Returns the wait strategy configured with the wait_strategy parameter, or null when it is unknown.
+     *
+     * By default waiting threads park, which uses little CPU; yield and busy_spin lower the latency
+     * at the cost of keeping cores busy.
+     *
+     * @param config the configuration to read the parameter from
+     * @return the wait strategy to use for the packet pipeline
+     */
+    private static WaitStrategy getWaitStrategy(final XMLConfiguration config) {
+        final String waitStrategy = config.getString("wait_strategy", "park");
+        if (waitStrategy.equals("park")) {
+            return new ParkingWaitStrategy();
+        }
+        if (waitStrategy.equals("yield")) {
+            return new YieldingWaitStrategy();
+        }
+        if (waitStrategy.equals("busy_spin")) {
+            return new BusySpinWaitStrategy();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the dispatcher configured with the dispatch parameter, or null when it is unknown.
+     *
+     * By default all packets of a flow are handled by the same worker.
+     *
+     * @param config the configuration to read the parameter from
+     * @return the dispatcher to use for the packet pipeline
+     */
+    private static PacketDispatcher getDispatcher(final XMLConfiguration config) {
+        final String dispatch = config.getString("dispatch", "flow");
+        if (dispatch.equals("flow")) {
+            return new FlowDispatcher();
+        }
+        if (dispatch.equals("round_robin")) {
+            return new RoundRobinDispatcher();
+        }
+        return null;
     }
 
     /**
@@ -17,22 +17,31 @@ package nl.minvenj.pef.stream;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.logging.Logger;
 
 import org.jnetpcap.Pcap;
-import org.jnetpcap.PcapDumper;
+import org.jnetpcap.PcapHeader;
 import org.jnetpcap.packet.PcapPacket;
 
+import nl.minvenj.pef.output.CaptureWriterSettings;
+import nl.minvenj.pef.output.RotatingCaptureWriter;
 import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.util.BufferPool;
+
 /**
  * Opens a dump file and modifies the packets after which they are stored in the file.
  *
+ * Each packet is copied once into a pooled buffer, pseudonymized in place and written from that
+ * buffer by a capture writer, without going through libpcap. No buffers are allocated per packet.
+ *
  * @author Netherlands Forensic Institute.
  */
 public final class PEFPseudonymizeDumper implements PseudoPacketHandler {
     private final static Logger logger = Logger.getLogger(LiveCapture.class.getName());
-    private final PcapDumper _pseudoDumper;
+    private final RotatingCaptureWriter _writer;
     private final FramePseudonymizer _pseudonymizer;
+    private final BufferPool _bufferPool = new BufferPool(PcapSniffer.SNAPLEN, 1);
 
     /**
      *  Constructor for a pseudonymization packet handler using the metal library and storing the packets in a dump file.
@@ -40,9 +49,20 @@ public final class PEFPseudonymizeDumper implements PseudoPacketHandler {
      * @param pcap the interface with the pcap (libpcap) library
      * @param destination the file to store the pack
      * @param pseudonymizer the pseudonymization settings
+     * @throws IOException when the dump file could not be created
      */
-    public PEFPseudonymizeDumper(final Pcap pcap, final String destination, final FramePseudonymizer pseudonymizer) {
-        _pseudoDumper = pcap.dumpOpen(destination);
+    public PEFPseudonymizeDumper(final Pcap pcap, final String destination, final FramePseudonymizer pseudonymizer) throws IOException {
+        this(new RotatingCaptureWriter(Paths.get(destination), pcap.datalink(), PcapSniffer.SNAPLEN, new CaptureWriterSettings()), pseudonymizer);
+    }
+
+    /**
+     * Constructor for a pseudonymization packet handler using the metal library and storing the packets with a capture writer.
+     *
+     * @param writer the writer to store the packets with, closed when this handler is closed
+     * @param pseudonymizer the pseudonymization settings
+     */
+    public PEFPseudonymizeDumper(final RotatingCaptureWriter writer, final FramePseudonymizer pseudonymizer) {
+        _writer = writer;
         _pseudonymizer = pseudonymizer;
     }
 
@@ -54,17 +74,21 @@ public final class PEFPseudonymizeDumper implements PseudoPacketHandler {
     @Override
     public void handle(PcapPacket packet) {
         //Copy the data.
-        byte[] packetData = packet.getByteArray(0, packet.size());
+        final ByteBuffer buffer = _bufferPool.acquire(packet.size());
         try {
+            packet.transferTo(buffer);
             // If parsing fails the packet is not pseudonymized. This should logged at a lower level TODO PEF-77.
             // Packet should be discarded because pseudonymization is not guaranteed otherwise.
-            final byte[] pseudopacketData  = _pseudonymizer.pseudonymize(packetData);
-            PcapPacket copyPacket = new PcapPacket(packet.getCaptureHeader(), ByteBuffer.wrap(pseudopacketData));
-            _pseudoDumper.dump(copyPacket);
+            _pseudonymizer.pseudonymize(buffer.array(), 0, packet.size());
+            final PcapHeader header = packet.getCaptureHeader();
+            _writer.write(header.seconds(), header.nanos(), header.wirelen(), buffer.array(), 0, packet.size());
         }
         catch (final IOException e) {
             logger.severe(e.getMessage());
         }
+        finally {
+            _bufferPool.release(buffer);
+        }
     }
 
     /**
@@ -72,6 +96,11 @@ public final class PEFPseudonymizeDumper implements PseudoPacketHandler {
      */
     @Override
     public void close() {
-        _pseudoDumper.close();
+        try {
+            _writer.close();
+        }
+        catch (final IOException e) {
+            logger.severe("Error while closing the dump file: " + e.getMessage());
+        }
     }
 }
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapHeader;
+import org.jnetpcap.packet.PcapPacket;
+import org.jnetpcap.packet.PcapPacketHandler;
+
+import nl.minvenj.pef.output.RotatingCaptureWriter;
+
+/**
+ * Captures the packets not selected by the capture filter on a separate handle and thread, and
+ * writes them to their own output without pseudonymizing them.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+final class PassthroughCapture implements Runnable, PcapPacketHandler<RotatingCaptureWriter> {
+    private static final Logger logger = Logger.getLogger(LiveCapture.class.getName());
+
+    private final Pcap _pcap;
+    private final RotatingCaptureWriter _writer;
+    private final ByteBuffer _buffer = ByteBuffer.allocate(PcapSniffer.SNAPLEN);
+    private final Thread _thread = new Thread(this, "pef-passthrough");
+
+    /**
+     * Create a new passthrough capture.
+     *
+     * @param pcap the pcap handle, filtered on the packets to pass through
+     * @param writer the output of the packets
+     */
+    PassthroughCapture(final Pcap pcap, final RotatingCaptureWriter writer) {
+        _pcap = pcap;
+        _writer = writer;
+    }
+
+    /**
+     * Start capturing on a new thread.
+     */
+    void start() {
+        _thread.start();
+    }
+
+    @Override
+    public void run() {
+        _pcap.loop(Pcap.LOOP_INFINITE, this, _writer);
+    }
+
+    @Override
+    public void nextPacket(final PcapPacket packet, final RotatingCaptureWriter writer) {
+        try {
+            final PcapHeader header = packet.getCaptureHeader();
+            _buffer.clear();
+            packet.transferTo(_buffer);
+            writer.write(header.seconds(), header.nanos(), header.wirelen(), _buffer.array(), 0, _buffer.position());
+        }
+        catch (final IOException e) {
+            logger.severe("Stopping the passthrough capture: " + e.getMessage());
+            _pcap.breakloop();
+        }
+    }
+
+    /**
+     * Stop capturing, wait for the capture thread and close the output.
+     */
+    void stop() {
+        _pcap.breakloop();
+        try {
+            _thread.join();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            try {
+                _writer.close();
+            }
+            catch (final IOException e) {
+                logger.severe("Error while closing the passthrough output: " + e.getMessage());
+            }
+            _pcap.close();
+        }
+    }
+}
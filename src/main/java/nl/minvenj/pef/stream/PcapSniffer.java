@@ -18,16 +18,32 @@ package nl.minvenj.pef.stream;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadMXBean;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Logger;
 
 import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapBpfProgram;
 import org.jnetpcap.PcapIf;
 import org.jnetpcap.packet.PcapPacket;
 import org.jnetpcap.packet.PcapPacketHandler;
 
+import nl.minvenj.pef.metrics.MetricsRegistry;
+import nl.minvenj.pef.output.CaptureWriterSettings;
+import nl.minvenj.pef.output.RotatingCaptureWriter;
+import nl.minvenj.pef.pipeline.CaptureWriterSink;
+import nl.minvenj.pef.pipeline.PacketDispatcher;
+import nl.minvenj.pef.pipeline.PacketPipeline;
+import nl.minvenj.pef.pipeline.PacketProcessor;
+import nl.minvenj.pef.pipeline.PacketSink;
+import nl.minvenj.pef.pipeline.PipelineStatistics;
+import nl.minvenj.pef.pipeline.PseudonymizingProcessor;
+import nl.minvenj.pef.pipeline.TimingSink;
 import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.ring.WaitStrategy;
 
 /**
  * A Pcap sniffer based on the JNetPcap library. Opens a live stream and constructs
@@ -37,8 +53,16 @@ import nl.minvenj.pef.pseudo.FramePseudonymizer;
  */
 public class PcapSniffer {
     private static final Logger logger = Logger.getLogger(LiveCapture.class.getName());
+    static final int SNAPLEN = 64 * 1024;
+    // the netmask is only used by filters on broadcast addresses
+    private static final int PCAP_NETMASK_UNKNOWN = 0xFFFFFFFF;
     private final String _input;
     private long _maxBytes = 120000;
+    private boolean _continuous;
+    private String _filter;
+    private String _passthrough;
+    private CaptureWriterSettings _outputSettings = new CaptureWriterSettings();
+    private MetricsRegistry _metrics;
 
     /**
      * Creates a PcapSniffer. Initializes the input and ensures there is max number of bytes
@@ -55,6 +79,58 @@ public class PcapSniffer {
         _maxBytes = maxMBytes * 1000;
     }
 
+    /**
+     * Keep capturing live until the JVM shuts down, instead of stopping after the file size. The
+     * output should then rotate, see {@link #setOutputSettings(CaptureWriterSettings)}.
+     *
+     * @param continuous true to capture until stopped
+     */
+    public void setContinuous(final boolean continuous) {
+        _continuous = continuous;
+    }
+
+    /**
+     * Set the BPF filter selecting the live packets to pseudonymize, so the kernel drops the other
+     * packets before they reach the JVM.
+     *
+     * @param filter the filter expression, or null to capture all packets
+     */
+    public void setFilter(final String filter) {
+        _filter = filter;
+    }
+
+    /**
+     * Write the live packets that the filter does not select to a separate output, untouched. These
+     * packets are captured on a second pcap handle, with the inverse of the filter.
+     *
+     * @param passthrough the file to write the packets to, or null to drop them
+     */
+    public void setPassthrough(final String passthrough) {
+        _passthrough = passthrough;
+    }
+
+    /**
+     * Set the format, buffering and rotation of the output files.
+     *
+     * @param outputSettings the settings of the capture writer
+     */
+    public void setOutputSettings(final CaptureWriterSettings outputSettings) {
+        _outputSettings = outputSettings;
+    }
+
+    /**
+     * Record the time taken to write the output of the pipeline, and its statistics, in a metrics registry.
+     *
+     * @param metrics the registry to record in, or null to not record metrics
+     */
+    public void setMetrics(final MetricsRegistry metrics) {
+        _metrics = metrics;
+    }
+
+    private PacketSink timed(final PacketSink sink) {
+        return _metrics == null ? sink : new TimingSink(sink, _metrics);
+    }
+
     public void handleWithMetal(boolean live, boolean timed, String destination, FramePseudonymizer pseudonymizer)
     {
         long startTime  = System.currentTimeMillis();
@@ -62,8 +138,8 @@ public class PcapSniffer {
         final PcapPacketHandler<PseudoPacketHandler> handler;
         try {
             if (live) {
-                pcap = getLivePcapStream(_input);
-                handler =  getByteLimitedHandler(pcap, _maxBytes);
+                pcap = getLivePcapStream(_input, _filter);
+                handler = _continuous ? getSimpleHandler() : getByteLimitedHandler(pcap, _maxBytes);
             }
             else {
                 pcap = getOfflinePcap(_input);
@@ -75,8 +151,31 @@ public class PcapSniffer {
                     ioexc.getMessage());
             return;
         }
-        PseudoPacketHandler dumpObject = new PEFPseudonymizeDumper(pcap, destination, pseudonymizer);
+        final PseudoPacketHandler dumpObject;
+        try {
+            dumpObject = new PEFPseudonymizeDumper(new RotatingCaptureWriter(Paths.get(destination), pcap.datalink(), SNAPLEN, _outputSettings), pseudonymizer);
+        }
+        catch (IOException e) {
+            logger.severe("Error while creating the output: " + e.getMessage());
+            pcap.close();
+            return;
+        }
+        final PassthroughCapture passthrough;
+        try {
+            passthrough = live ? openPassthrough() : null;
+        }
+        catch (IOException e) {
+            logger.severe("Error while opening the passthrough capture: " + e.getMessage());
+            dumpObject.close();
+            pcap.close();
+            return;
+        }
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final Thread shutdownHook = live && _continuous ? stopOnShutdown(pcap, stopped) : null;
         try {
+            if (passthrough != null) {
+                passthrough.start();
+            }
             pcap.loop(Pcap.LOOP_INFINITE, handler, dumpObject);
             if (timed) {
                 // A timer for performance tests.
@@ -88,12 +187,146 @@ public class PcapSniffer {
             logger.severe("Error in capturing loop" + e.getMessage());
         }
         finally {
+            if (passthrough != null) {
+                passthrough.stop();
+            }
             dumpObject.close();
             pcap.close();
+            stopped.countDown();
+            removeShutdownHook(shutdownHook);
         }
     }
 
-    private static final Pcap getLivePcapStream(final String inputDevice) throws IOException {
+    /**
+     * Capture and pseudonymize packets using a pipeline, so pseudonymization runs on multiple cores
+     * and the capture thread only copies packets.
+     *
+     * @param live true to capture from a device, false to read the input file
+     * @param timed true to log the time taken
+     * @param destination the PCAP file to write the pseudonymized packets to
+     * @param pseudonymizers the pseudonymizers, one per worker thread
+     * @param ringSize the number of packets that can be buffered in the pipeline
+     * @param dispatcher the dispatcher selecting the worker for each packet
+     * @param waitStrategy the strategy of the pipeline threads for waiting on each other
+     */
+    public void handleWithPipeline(boolean live, boolean timed, String destination, List<FramePseudonymizer> pseudonymizers, int ringSize, PacketDispatcher dispatcher, WaitStrategy waitStrategy) {
+        long startTime = System.currentTimeMillis();
+        final Pcap pcap;
+        try {
+            pcap = live ? getLivePcapStream(_input, _filter) : getOfflinePcap(_input);
+        }
+        catch (IOException ioexc) {
+            logger.severe("Error while opening device for capture: " +
+                    ioexc.getMessage());
+            return;
+        }
+        final List<PacketProcessor> processors = new ArrayList<>();
+        for (final FramePseudonymizer pseudonymizer : pseudonymizers) {
+            processors.add(new PseudonymizingProcessor(pseudonymizer));
+        }
+        PacketPipeline pipeline = null;
+        PassthroughCapture passthrough = null;
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final Thread shutdownHook = live && _continuous ? stopOnShutdown(pcap, stopped) : null;
+        try {
+            pipeline = new PacketPipeline(ringSize, SNAPLEN, processors, dispatcher, waitStrategy, timed(new CaptureWriterSink(new RotatingCaptureWriter(Paths.get(destination), pcap.datalink(), SNAPLEN, _outputSettings))));
+            if (_metrics != null) {
+                PipelineStatistics.register(_metrics, Collections.singletonList(pipeline.getStatistics()));
+            }
+            passthrough = live ? openPassthrough() : null;
+            if (passthrough != null) {
+                passthrough.start();
+            }
+            final PipelinePacketHandler handler = new PipelinePacketHandler(pcap, live && !_continuous ? _maxBytes : -1);
+            pcap.loop(Pcap.LOOP_INFINITE, handler, pipeline);
+            handler.updateStatistics(pipeline);
+            pipeline.close();
+            logger.info("Pipeline statistics: " + pipeline.getStatistics());
+            if (timed) {
+                long stopTime = System.currentTimeMillis();
+                logger.info("Stopped after " + ((stopTime - startTime) / 1000.0) + " seconds.");
+            }
+        }
+        catch (IOException e) {
+            logger.severe("Error while writing the output: " + e.getMessage());
+        }
+        finally {
+            if (passthrough != null) {
+                passthrough.stop();
+            }
+            if (pipeline != null) {
+                try {
+                    pipeline.close();
+                }
+                catch (IOException e) {
+                    logger.severe("Error while closing the output: " + e.getMessage());
+                }
+            }
+            pcap.close();
+            stopped.countDown();
+            removeShutdownHook(shutdownHook);
+        }
+    }
+
+    /**
+     * Register a shutdown hook that stops the capture loop and waits until the output is closed,
+     * so a continuous capture ends with complete files when the JVM is stopped.
+     *
+     * @param pcap the pcap handle running the capture loop
+     * @param stopped counted down when the capture has stopped and the output is closed
+     * @return the registered hook
+     */
+    private static Thread stopOnShutdown(final Pcap pcap, final CountDownLatch stopped) {
+        final Thread hook = new Thread() {
+            @Override
+            public void run() {
+                logger.info("Stopping the capture.");
+                pcap.breakloop();
+                try {
+                    stopped.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(hook);
+        return hook;
+    }
+
+    private static void removeShutdownHook(final Thread hook) {
+        if (hook == null) {
+            return;
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        }
+        catch (IllegalStateException e) {
+            // the JVM is already shutting down, the hook itself stopped the capture
+        }
+    }
+
+    /**
+     * Open the capture of the packets not selected by the filter, when a passthrough output is set.
+     *
+     * @return the passthrough capture, or null when there is nothing to pass through
+     * @throws IOException when the device could not be opened or the output could not be created
+     */
+    private PassthroughCapture openPassthrough() throws IOException {
+        if (_passthrough == null || _filter == null) {
+            return null;
+        }
+        final Pcap pcap = getLivePcapStream(_input, "not (" + _filter + ")");
+        try {
+            return new PassthroughCapture(pcap, new RotatingCaptureWriter(Paths.get(_passthrough), pcap.datalink(), SNAPLEN, _outputSettings));
+        }
+        catch (IOException e) {
+            pcap.close();
+            throw e;
+        }
+    }
+
+    private static final Pcap getLivePcapStream(final String inputDevice, final String filter) throws IOException {
 
         final PcapIf device = getNetworkDevice(inputDevice, false);
         if (device == null) {
@@ -101,7 +334,7 @@ public class PcapSniffer {
         }
 
         // Configuration constants.
-        final int snaplen = 64 * 1024;           // Set buffer large enough for complete packets, no truncation
+        final int snaplen = SNAPLEN;             // Set buffer large enough for complete packets, no truncation
         final int flags = Pcap.MODE_PROMISCUOUS; // Capture all packets that are found.
         final int timeout = 10 * 1000;           // 10 seconds in millis
         // Buffer for c-type errors.
@@ -112,6 +345,16 @@ public class PcapSniffer {
         if (pcap == null) {
             throw new IOException(errbuf.toString());
         }
+        if (filter != null) {
+            // Let the kernel drop the packets that are not pseudonymized.
+            final PcapBpfProgram program = new PcapBpfProgram();
+            if (pcap.compile(program, filter, 1, PCAP_NETMASK_UNKNOWN) != Pcap.OK || pcap.setFilter(program) != Pcap.OK) {
+                final String error = pcap.getErr();
+                pcap.close();
+                throw new IOException("Invalid capture filter '" + filter + "': " + error);
+            }
+            logger.info("Capture filter on " + device.getName() + ": " + filter);
+        }
         return pcap;
     }
 
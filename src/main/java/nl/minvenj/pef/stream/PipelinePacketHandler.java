@@ -0,0 +1,99 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.stream;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapHeader;
+import org.jnetpcap.PcapStat;
+import org.jnetpcap.packet.PcapPacket;
+import org.jnetpcap.packet.PcapPacketHandler;
+
+import nl.minvenj.pef.pipeline.PacketPipeline;
+import nl.minvenj.pef.pipeline.PacketSlot;
+
+/**
+ * Capture callback that only copies each packet into a slot of a packet pipeline.
+ *
+ * All other work is done by the threads of the pipeline, so the libpcap loop returns to the
+ * kernel ring as fast as possible. The libpcap statistics are sampled about once a second and
+ * stored in the pipeline statistics.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+final class PipelinePacketHandler implements PcapPacketHandler<PacketPipeline> {
+    private static final Logger logger = Logger.getLogger(LiveCapture.class.getName());
+    private static final long STATISTICS_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final Pcap _pcap;
+    private final long _maxBytes;
+    private final PcapStat _pcapStat = new PcapStat();
+    private long _bytes;
+    private long _lastStatistics = System.nanoTime();
+
+    /**
+     * Create a new handler.
+     *
+     * @param pcap the pcap handle the packets are captured with
+     * @param maxBytes the amount of bytes after which the loop is stopped, or a negative value to never stop
+     */
+    PipelinePacketHandler(final Pcap pcap, final long maxBytes) {
+        _pcap = pcap;
+        _maxBytes = maxBytes;
+    }
+
+    @Override
+    public void nextPacket(final PcapPacket packet, final PacketPipeline pipeline) {
+        try {
+            final PcapHeader header = packet.getCaptureHeader();
+            final PacketSlot slot = pipeline.claim();
+            slot.ensureCapacity(packet.size());
+            packet.transferTo(slot.getBuffer());
+            slot.setFrameLength(packet.size());
+            slot.setCaptureInfo(header.seconds(), header.nanos(), header.wirelen());
+            pipeline.publish(slot);
+        }
+        catch (final IOException e) {
+            logger.severe("Stopping the capture: " + e.getMessage());
+            _pcap.breakloop();
+            return;
+        }
+
+        _bytes += packet.size();
+        if (_maxBytes >= 0 && _bytes >= _maxBytes) {
+            _pcap.breakloop();
+        }
+        final long now = System.nanoTime();
+        if (now - _lastStatistics >= STATISTICS_INTERVAL) {
+            _lastStatistics = now;
+            updateStatistics(pipeline);
+        }
+    }
+
+    /**
+     * Copy the current libpcap statistics into the pipeline statistics.
+     *
+     * @param pipeline the pipeline to update the statistics of
+     */
+    void updateStatistics(final PacketPipeline pipeline) {
+        if (_pcap.stats(_pcapStat) == Pcap.OK) {
+            pipeline.getStatistics().setCaptureStatistics(_pcapStat.getRecv(), _pcapStat.getDrop(), _pcapStat.getIfDrop());
+        }
+    }
+}
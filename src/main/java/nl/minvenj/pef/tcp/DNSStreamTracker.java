@@ -0,0 +1,277 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.tcp;
+
+import java.io.IOException;
+
+import nl.minvenj.pef.metal.packet.application.DNS;
+import nl.minvenj.pef.metal.stream.ArrayByteStream;
+import nl.minvenj.pef.util.Util;
+
+/**
+ * Recognizes the TCP connections carrying DNS, so every segment of them can be pseudonymized.
+ *
+ * A single segment often holds only part of a DNS message (large answers, zone transfers, or a
+ * length prefix sent on its own), so it does not parse as {@link DNS#FORMAT}. This tracker follows
+ * the reassembled streams of all connections instead: each DNS message over TCP starts with the
+ * 2-byte dnslength of the format, which gives the start of the next message. A connection is
+ * recognized as DNS when a message start holds a valid length and {@link DNS#HEADER}, or when one of
+ * its ports is a DNS port. The latter also covers the segments before the first message, such as
+ * the handshake.
+ *
+ * A connection stays recognized until it is removed or opened again; when the message starts are
+ * lost in a direction (because of a gap or a message start that is not valid), its segments are still
+ * taken as DNS. A connection whose first message start is not valid is not DNS, unless its port is.
+ *
+ * A tracker must only be used by one thread at a time, and must see all frames in capture order.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class DNSStreamTracker implements TCPStreamListener {
+
+    /** The port of DNS over TCP. */
+    public static final int DNS_PORT = 53;
+
+    private static final int LENGTH_SIZE = 2;
+    private static final int HEADER_SIZE = 12;
+    private static final int START_SIZE = LENGTH_SIZE + HEADER_SIZE;
+    // a root name with a type and class, and a compressed name with a type, class, ttl and data length
+    private static final int MIN_QUESTION_SIZE = 5;
+    private static final int MIN_RECORD_SIZE = 12;
+
+    private static final byte UNKNOWN = 0;
+    private static final byte DNS_FLOW = 1;
+    private static final byte OTHER_FLOW = 2;
+
+    private final boolean[] _ports = new boolean[65536];
+    private final TCPReassembler _reassembler;
+
+    // per flow
+    private final byte[] _flows;
+
+    // per direction of a flow: the bytes of the current message still to come, the start of the next message
+    private final int[] _remaining;
+    private final byte[] _collected;
+    private final byte[] _starts;
+    private final boolean[] _lost;
+
+    private long _dnsFlows;
+    private long _messages;
+    private long _lostStreams;
+
+    /**
+     * Create a new tracker with the default limits of {@link TCPReassembler}, recognizing port {@value #DNS_PORT}.
+     */
+    public DNSStreamTracker() {
+        this(TCPReassembler.DEFAULT_MAX_FLOWS, TCPReassembler.DEFAULT_BUFFER_SIZE, TCPReassembler.DEFAULT_IDLE_TIMEOUT, DNS_PORT);
+    }
+
+    /**
+     * Create a new tracker.
+     *
+     * @param maxFlows the maximum number of connections tracked
+     * @param bufferSize the amount of direct memory for segments arriving out of order, in bytes
+     * @param idleTimeout the number of frames after which a connection that was not seen is removed
+     * @param ports the ports of connections that are DNS regardless of their contents
+     */
+    public DNSStreamTracker(final int maxFlows, final long bufferSize, final long idleTimeout, final int... ports) {
+        for (final int port : ports) {
+            if (port < 0 || port > 65535) {
+                throw new IllegalArgumentException("port must be in range [0, 65535]: " + port);
+            }
+            _ports[port] = true;
+        }
+        _flows = new byte[maxFlows];
+        _remaining = new int[maxFlows * 2];
+        _collected = new byte[maxFlows * 2];
+        _starts = new byte[maxFlows * 2 * START_SIZE];
+        _lost = new boolean[maxFlows * 2];
+        _reassembler = new TCPReassembler(this, maxFlows, bufferSize, idleTimeout);
+    }
+
+    /**
+     * Track an ethernet frame and return whether it is a segment of a DNS connection.
+     *
+     * @param data the array holding the frame
+     * @param offset the offset of the frame in the array
+     * @param length the length of the frame
+     * @return true when the frame is a TCP segment of a connection carrying DNS
+     */
+    public boolean isDNSSegment(final byte[] data, final int offset, final int length) {
+        final int stream = _reassembler.process(data, offset, length);
+        if (stream == TCPReassembler.NONE) {
+            return false;
+        }
+        final int flow = stream >>> 1;
+        if (_flows[flow] == UNKNOWN && isDNSPort()) {
+            recognize(flow);
+        }
+        return _flows[flow] == DNS_FLOW;
+    }
+
+    @Override
+    public void opened(final int flow) {
+        _flows[flow] = UNKNOWN;
+        for (int stream = flow << 1; stream <= (flow << 1 | 1); stream++) {
+            _remaining[stream] = 0;
+            _collected[stream] = 0;
+            _lost[stream] = false;
+        }
+    }
+
+    @Override
+    public void data(final int flow, final int direction, final byte[] data, final int offset, final int length) {
+        final int stream = flow << 1 | direction;
+        if (_flows[flow] == OTHER_FLOW || _lost[stream]) {
+            return;
+        }
+        final int end = offset + length;
+        int position = offset;
+        while (position < end) {
+            if (_remaining[stream] > 0) {
+                final int skipped = Math.min(_remaining[stream], end - position);
+                _remaining[stream] -= skipped;
+                position += skipped;
+                continue;
+            }
+            // collect the length and header of the next message, which can be split over segments
+            final int collected = _collected[stream];
+            final int size = Math.min(START_SIZE - collected, end - position);
+            System.arraycopy(data, position, _starts, stream * START_SIZE + collected, size);
+            position += size;
+            if (collected + size < START_SIZE) {
+                _collected[stream] = (byte) (collected + size);
+                return;
+            }
+            _collected[stream] = 0;
+            if (!isMessageStart(stream * START_SIZE)) {
+                lose(flow, stream);
+                return;
+            }
+            _messages++;
+            recognize(flow);
+            _remaining[stream] = uint16(_starts, stream * START_SIZE) - HEADER_SIZE;
+        }
+    }
+
+    @Override
+    public void gap(final int flow, final int direction) {
+        final int stream = flow << 1 | direction;
+        if (!_lost[stream]) {
+            _lost[stream] = true;
+            _lostStreams++;
+        }
+    }
+
+    @Override
+    public void removed(final int flow) {
+        // the state of the flow is reset when it is used again
+    }
+
+    /**
+     * Returns the reassembler following the connections, for its statistics.
+     *
+     * @return the reassembler
+     */
+    public TCPReassembler getReassembler() {
+        return _reassembler;
+    }
+
+    /**
+     * Returns the number of connections recognized as DNS.
+     *
+     * @return the number of DNS connections
+     */
+    public long getDNSFlows() {
+        return _dnsFlows;
+    }
+
+    /**
+     * Returns the number of DNS message starts found in the streams.
+     *
+     * @return the number of messages
+     */
+    public long getMessages() {
+        return _messages;
+    }
+
+    /**
+     * Returns the number of directions of connections in which the message starts were lost.
+     *
+     * @return the number of lost streams
+     */
+    public long getLostStreams() {
+        return _lostStreams;
+    }
+
+    /**
+     * Returns whether bytes can be the header of a DNS message.
+     *
+     * The header format accepts almost anything, so besides parsing it the opcode, the reserved bit
+     * and whether the records counted in the header fit in the message are checked.
+     *
+     * @param data the array holding the header, of at least 12 bytes
+     * @param offset the offset of the header in the array
+     * @param length the length of the message
+     * @return true when the bytes are a plausible header of a message of the given length
+     */
+    public static boolean isMessageHeader(final byte[] data, final int offset, final int length) {
+        final int opcode = (data[offset + 2] & 0x78) >> 3;
+        if (opcode == 3 || opcode > 6 || (data[offset + 3] & 0x40) != 0) {
+            return false;
+        }
+        final long records = (long) uint16(data, offset + 6) + uint16(data, offset + 8) + uint16(data, offset + 10);
+        if (length < HEADER_SIZE + uint16(data, offset + 4) * MIN_QUESTION_SIZE + records * MIN_RECORD_SIZE) {
+            return false;
+        }
+        try {
+            return Util.parse(new ArrayByteStream(data, offset, HEADER_SIZE), 0L, DNS.HEADER).succeeded;
+        }
+        catch (final IOException e) {
+            // reading from an array does not fail
+            return false;
+        }
+    }
+
+    private void recognize(final int flow) {
+        if (_flows[flow] != DNS_FLOW) {
+            _flows[flow] = DNS_FLOW;
+            _dnsFlows++;
+        }
+    }
+
+    private void lose(final int flow, final int stream) {
+        if (_flows[flow] == UNKNOWN && !isDNSPort()) {
+            _flows[flow] = OTHER_FLOW;
+            return;
+        }
+        recognize(flow);
+        gap(flow, stream & 1);
+    }
+
+    // the ports of the segment being processed, which is the one delivering the data
+    private boolean isDNSPort() {
+        return _ports[_reassembler.getSourcePort()] || _ports[_reassembler.getDestinationPort()];
+    }
+
+    private boolean isMessageStart(final int start) {
+        return isMessageHeader(_starts, start + LENGTH_SIZE, uint16(_starts, start));
+    }
+
+    private static int uint16(final byte[] data, final int position) {
+        return (data[position] & 0xFF) << 8 | data[position + 1] & 0xFF;
+    }
+}
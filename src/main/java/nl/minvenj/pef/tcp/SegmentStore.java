@@ -0,0 +1,211 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.tcp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Off-heap storage of TCP segments that arrived out of order.
+ *
+ * The storage is a fixed amount of direct memory, divided into blocks. A segment occupies a chain
+ * of blocks; its first block also holds the sequence number, the length and a link to a next
+ * segment, so the segments waiting in a stream form a list without any objects on the heap.
+ * Storing fails when not enough blocks are free, which bounds the memory used for buffering.
+ *
+ * A store must only be used by one thread at a time.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class SegmentStore {
+
+    /** Handle of no segment. */
+    public static final int NONE = -1;
+
+    /** Size of a block in bytes, including its header. */
+    public static final int BLOCK_SIZE = 2048;
+
+    // header: next block, next segment, sequence number, length
+    private static final int NEXT_BLOCK = 0;
+    private static final int NEXT_SEGMENT = 4;
+    private static final int SEQUENCE = 8;
+    private static final int LENGTH = 12;
+    private static final int HEADER_SIZE = 16;
+    private static final int DATA_SIZE = BLOCK_SIZE - HEADER_SIZE;
+    // a direct buffer can not exceed 2 GB, so larger stores consist of multiple chunks
+    private static final int CHUNK_SHIFT = 30 - 11;
+    private static final int CHUNK_BLOCKS = 1 << CHUNK_SHIFT;
+
+    private final ByteBuffer[] _chunks;
+    private final int[] _free;
+    private int _freeCount;
+
+    /**
+     * Create a new store.
+     *
+     * @param capacity the amount of direct memory to allocate in bytes, rounded down to whole blocks
+     */
+    public SegmentStore(final long capacity) {
+        if (capacity < BLOCK_SIZE || capacity / BLOCK_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("capacity must be in range [" + BLOCK_SIZE + ", " + (long) Integer.MAX_VALUE * BLOCK_SIZE + "]: " + capacity);
+        }
+        final int blocks = (int) (capacity / BLOCK_SIZE);
+        _chunks = new ByteBuffer[(blocks + CHUNK_BLOCKS - 1) >>> CHUNK_SHIFT];
+        for (int i = 0; i < _chunks.length; i++) {
+            _chunks[i] = ByteBuffer.allocateDirect(Math.min(CHUNK_BLOCKS, blocks - i * CHUNK_BLOCKS) * BLOCK_SIZE);
+        }
+        _free = new int[blocks];
+        // hand out the lowest blocks first
+        for (int i = 0; i < blocks; i++) {
+            _free[i] = blocks - 1 - i;
+        }
+        _freeCount = blocks;
+    }
+
+    /**
+     * Store a segment.
+     *
+     * @param sequence the sequence number of the first byte of the segment
+     * @param data the array holding the data of the segment
+     * @param offset the offset of the data in the array
+     * @param length the length of the data
+     * @return the handle of the stored segment, or {@link #NONE} when not enough memory is free
+     */
+    public int store(final int sequence, final byte[] data, final int offset, final int length) {
+        final int blocks = Math.max(1, (length + DATA_SIZE - 1) / DATA_SIZE);
+        if (blocks > _freeCount) {
+            return NONE;
+        }
+        final int segment = _free[--_freeCount];
+        putInt(segment, NEXT_SEGMENT, NONE);
+        putInt(segment, SEQUENCE, sequence);
+        putInt(segment, LENGTH, length);
+        int block = segment;
+        int position = 0;
+        while (true) {
+            final int size = Math.min(DATA_SIZE, length - position);
+            final ByteBuffer chunk = chunk(block);
+            chunk.position(position(block) + HEADER_SIZE);
+            chunk.put(data, offset + position, size);
+            position += size;
+            if (position == length) {
+                putInt(block, NEXT_BLOCK, NONE);
+                return segment;
+            }
+            final int next = _free[--_freeCount];
+            putInt(block, NEXT_BLOCK, next);
+            block = next;
+        }
+    }
+
+    /**
+     * Copy the data of a segment into an array.
+     *
+     * @param segment the handle of the segment
+     * @param target the array to copy into, which must be large enough to hold the segment
+     * @param offset the offset in the array to copy to
+     * @return the length of the segment
+     */
+    public int read(final int segment, final byte[] target, final int offset) {
+        final int length = getLength(segment);
+        int block = segment;
+        int position = 0;
+        while (position < length) {
+            final int size = Math.min(DATA_SIZE, length - position);
+            final ByteBuffer chunk = chunk(block);
+            chunk.position(position(block) + HEADER_SIZE);
+            chunk.get(target, offset + position, size);
+            position += size;
+            block = getInt(block, NEXT_BLOCK);
+        }
+        return length;
+    }
+
+    /**
+     * Release the blocks of a segment. The segment linked to it is not released.
+     *
+     * @param segment the handle of the segment
+     */
+    public void free(final int segment) {
+        int block = segment;
+        while (block != NONE) {
+            final int next = getInt(block, NEXT_BLOCK);
+            _free[_freeCount++] = block;
+            block = next;
+        }
+    }
+
+    public int getSequence(final int segment) {
+        return getInt(segment, SEQUENCE);
+    }
+
+    public int getLength(final int segment) {
+        return getInt(segment, LENGTH);
+    }
+
+    /**
+     * Returns the segment linked to a segment.
+     *
+     * @param segment the handle of the segment
+     * @return the handle of the next segment, or {@link #NONE}
+     */
+    public int getNext(final int segment) {
+        return getInt(segment, NEXT_SEGMENT);
+    }
+
+    /**
+     * Link a segment to a segment, to form a list.
+     *
+     * @param segment the handle of the segment
+     * @param next the handle of the next segment, or {@link #NONE}
+     */
+    public void setNext(final int segment, final int next) {
+        putInt(segment, NEXT_SEGMENT, next);
+    }
+
+    /**
+     * Returns the capacity of the store.
+     *
+     * @return the capacity in bytes
+     */
+    public long getCapacity() {
+        return (long) _free.length * BLOCK_SIZE;
+    }
+
+    /**
+     * Returns the memory in use by stored segments.
+     *
+     * @return the amount of memory in use in bytes
+     */
+    public long getUsed() {
+        return (long) (_free.length - _freeCount) * BLOCK_SIZE;
+    }
+
+    private ByteBuffer chunk(final int block) {
+        return _chunks[block >>> CHUNK_SHIFT];
+    }
+
+    private static int position(final int block) {
+        return (block & (CHUNK_BLOCKS - 1)) * BLOCK_SIZE;
+    }
+
+    private int getInt(final int block, final int field) {
+        return chunk(block).getInt(position(block) + field);
+    }
+
+    private void putInt(final int block, final int field, final int value) {
+        chunk(block).putInt(position(block) + field, value);
+    }
+}
@@ -0,0 +1,564 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.tcp;
+
+import java.nio.ByteBuffer;
+
+import nl.minvenj.pef.metal.packet.internet.ExtensionHeaderChain;
+
+/**
+ * Reassembles the byte streams of TCP connections from ethernet frames, with bounded memory.
+ *
+ * Connections are tracked by their 5-tuple in a flow table of a fixed size, in which both directions
+ * of a connection share a flow. The table consists of primitive arrays and direct memory, so tracking
+ * millions of connections creates no objects per connection. Each direction delivers its bytes to a
+ * {@link TCPStreamListener} in sequence order: segments arriving early wait in a {@link SegmentStore}
+ * until the bytes before them arrive, retransmitted bytes are delivered once.
+ *
+ * Memory is bounded in three ways:
+ * <ul>
+ *     <li>a connection that was not seen for the idle timeout is removed; the timeout is measured
+ *     in frames, as frames are not necessarily processed at the speed they were captured</li>
+ *     <li>when the table is full, the connection that was not seen for the longest time is removed</li>
+ *     <li>when the segment store is full, the waiting segments of a direction are delivered, reporting
+ *     the missing bytes before them as a gap</li>
+ * </ul>
+ * Closing a connection does not remove it, so segments following the close are still recognized
+ * as part of it. A SYN with a new sequence number opens the connection again.
+ *
+ * Fragmented IP packets are not reassembled, their segments are ignored. A reassembler must only be
+ * used by one thread at a time.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class TCPReassembler {
+
+    /** Returned when a frame is not a TCP segment. */
+    public static final int NONE = -1;
+
+    /** Default maximum number of connections tracked. */
+    public static final int DEFAULT_MAX_FLOWS = 65536;
+
+    /** Default amount of direct memory for segments arriving out of order, in bytes. */
+    public static final long DEFAULT_BUFFER_SIZE = 16L * 1024 * 1024;
+
+    /** Default number of frames after which a connection that was not seen is removed. */
+    public static final long DEFAULT_IDLE_TIMEOUT = 1L << 22;
+
+    /** Maximum number of connections a reassembler can track. */
+    public static final int MAX_FLOWS = 1 << 24;
+
+    /** Segments further ahead in the stream than this are taken as a gap instead of waiting for the bytes before them. */
+    public static final int MAX_WINDOW = 1 << 20;
+
+    private static final int ETHERNET_HEADER_LENGTH = 14;
+    private static final int TCP_HEADER_LENGTH = 20;
+    private static final int MAX_SEGMENT_LENGTH = 65535;
+    private static final int SYN = 0x02;
+    private static final int ACK = 0x10;
+    // key: address length, the lower endpoint's address, the higher endpoint's address, their ports
+    private static final int KEY_SIZE = 40;
+    private static final int KEY_ADDRESS_A = 4;
+    private static final int KEY_ADDRESS_B = 20;
+    private static final int KEY_PORT_A = 36;
+    private static final int KEY_PORT_B = 38;
+    private static final int EXPIRATIONS_PER_FRAME = 2;
+
+    private final TCPStreamListener _listener;
+    private final long _idleTimeout;
+    private final SegmentStore _store;
+
+    // open addressing hash table holding flow + 1, or 0 for an empty slot
+    private final int[] _table;
+    private final int _mask;
+
+    // per flow
+    private final ByteBuffer _keys;
+    private final int[] _hashes;
+    private final long[] _lastSeen;
+    private final int[] _older;
+    private final int[] _newer;
+    private final int[] _free;
+    private int _freeCount;
+    private int _oldest = NONE;
+    private int _newest = NONE;
+
+    // per direction of a flow, indexed by flow * 2 + direction
+    private final int[] _nextSequence;
+    private final boolean[] _synchronized;
+    private final int[] _waiting;
+
+    private final byte[] _key = new byte[KEY_SIZE];
+    private final ByteBuffer _keyBuffer = ByteBuffer.wrap(_key);
+    private final byte[] _segment = new byte[MAX_SEGMENT_LENGTH];
+    private long _clock;
+    private int _sourcePort;
+    private int _destinationPort;
+
+    private long _evicted;
+    private long _expired;
+    private long _gaps;
+
+    /**
+     * Create a new reassembler with the default limits.
+     *
+     * @param listener the listener to deliver the streams to
+     */
+    public TCPReassembler(final TCPStreamListener listener) {
+        this(listener, DEFAULT_MAX_FLOWS, DEFAULT_BUFFER_SIZE, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Create a new reassembler.
+     *
+     * @param listener the listener to deliver the streams to
+     * @param maxFlows the maximum number of connections tracked
+     * @param bufferSize the amount of direct memory for segments arriving out of order, in bytes
+     * @param idleTimeout the number of frames after which a connection that was not seen is removed
+     */
+    public TCPReassembler(final TCPStreamListener listener, final int maxFlows, final long bufferSize, final long idleTimeout) {
+        if (maxFlows < 1 || maxFlows > MAX_FLOWS) {
+            throw new IllegalArgumentException("maxFlows must be in range [1, " + MAX_FLOWS + "]: " + maxFlows);
+        }
+        if (idleTimeout < 1) {
+            throw new IllegalArgumentException("idleTimeout must be positive: " + idleTimeout);
+        }
+        _listener = listener;
+        _idleTimeout = idleTimeout;
+        _store = new SegmentStore(bufferSize);
+        // at most half of the slots are in use
+        _table = new int[Integer.highestOneBit(maxFlows) << 2];
+        _mask = _table.length - 1;
+        _keys = ByteBuffer.allocateDirect(maxFlows * KEY_SIZE);
+        _hashes = new int[maxFlows];
+        _lastSeen = new long[maxFlows];
+        _older = new int[maxFlows];
+        _newer = new int[maxFlows];
+        _free = new int[maxFlows];
+        for (int i = 0; i < maxFlows; i++) {
+            _free[i] = maxFlows - 1 - i;
+        }
+        _freeCount = maxFlows;
+        _nextSequence = new int[maxFlows * 2];
+        _synchronized = new boolean[maxFlows * 2];
+        _waiting = new int[maxFlows * 2];
+    }
+
+    /**
+     * Process an ethernet frame, delivering the bytes of its segment when it is a TCP segment.
+     *
+     * @param data the array holding the frame
+     * @param offset the offset of the frame in the array
+     * @param length the length of the frame
+     * @return the flow of the segment times 2 plus its direction, or {@link #NONE} when the frame is not a TCP segment
+     */
+    public int process(final byte[] data, final int offset, final int length) {
+        _clock++;
+        expire();
+        final int end = Math.min(data.length, offset + length);
+        if (end - offset < ETHERNET_HEADER_LENGTH) {
+            return NONE;
+        }
+        int position = offset + 12;
+        int etherType = uint16(data, position);
+        position += 2;
+        // 802.1Q and 802.1ad tags
+        while ((etherType == 0x8100 || etherType == 0x88A8 || etherType == 0x9100) && position + 4 <= end) {
+            etherType = uint16(data, position + 2);
+            position += 4;
+        }
+        final int addressLength;
+        final int addresses;
+        int segment;
+        final int segmentEnd;
+        if (etherType == 0x0800 && position + 20 <= end) {
+            if ((data[position] & 0xF0) != 0x40 || (uint16(data, position + 6) & 0x3FFF) != 0 || data[position + 9] != 6) {
+                return NONE;
+            }
+            addressLength = 4;
+            addresses = position + 12;
+            segment = position + (data[position] & 0x0F) * 4;
+            segmentEnd = position + uint16(data, position + 2);
+        }
+        else if (etherType == 0x86DD && position + 40 <= end) {
+            addressLength = 16;
+            addresses = position + 8;
+            segmentEnd = position + 40 + uint16(data, position + 4);
+            final long walk = ExtensionHeaderChain.walk(data, position, end);
+            if (ExtensionHeaderChain.isFragment(walk) || ExtensionHeaderChain.protocol(walk) != 6) {
+                return NONE;
+            }
+            segment = ExtensionHeaderChain.offset(walk);
+        }
+        else {
+            return NONE;
+        }
+        if (segment + TCP_HEADER_LENGTH > end) {
+            return NONE;
+        }
+        _sourcePort = uint16(data, segment);
+        _destinationPort = uint16(data, segment + 2);
+        final int sequence = int32(data, segment + 4);
+        final int flags = data[segment + 13] & 0xFF;
+        final int payload = segment + ((data[segment + 12] & 0xF0) >> 2);
+
+        final int direction = key(data, addresses, addressLength);
+        final int flow = flow();
+        final int stream = flow << 1 | direction;
+        if ((flags & SYN) != 0) {
+            // a SYN opening the connection again, after the first one
+            if ((flags & ACK) == 0 && _synchronized[stream] && _nextSequence[stream] != sequence + 1) {
+                reset(flow);
+                _listener.opened(flow);
+            }
+            if (!_synchronized[stream]) {
+                _nextSequence[stream] = sequence + 1;
+                _synchronized[stream] = true;
+            }
+        }
+        final int payloadSequence = (flags & SYN) != 0 ? sequence + 1 : sequence;
+        if (!_synchronized[stream]) {
+            // the connection was already open before it was seen
+            _nextSequence[stream] = payloadSequence;
+            _synchronized[stream] = true;
+        }
+        final int captured = Math.min(segmentEnd, end) - payload;
+        if (captured > 0) {
+            receive(stream, payloadSequence, data, payload, captured);
+        }
+        if (segmentEnd > end && segmentEnd > payload && _nextSequence[stream] == payloadSequence + Math.max(captured, 0)) {
+            // the end of the segment was not captured
+            skip(stream, payloadSequence + segmentEnd - payload);
+        }
+        return stream;
+    }
+
+    /**
+     * Returns the source port of the last TCP segment processed.
+     *
+     * @return the source port
+     */
+    public int getSourcePort() {
+        return _sourcePort;
+    }
+
+    /**
+     * Returns the destination port of the last TCP segment processed.
+     *
+     * @return the destination port
+     */
+    public int getDestinationPort() {
+        return _destinationPort;
+    }
+
+    /**
+     * Returns the maximum number of connections tracked, which is also the number of flows.
+     *
+     * @return the maximum number of connections
+     */
+    public int getMaxFlows() {
+        return _hashes.length;
+    }
+
+    /**
+     * Returns the number of connections tracked.
+     *
+     * @return the number of connections
+     */
+    public int getFlows() {
+        return _hashes.length - _freeCount;
+    }
+
+    /**
+     * Returns the number of connections removed because the table was full.
+     *
+     * @return the number of evicted connections
+     */
+    public long getEvictedFlows() {
+        return _evicted;
+    }
+
+    /**
+     * Returns the number of connections removed because they were idle.
+     *
+     * @return the number of expired connections
+     */
+    public long getExpiredFlows() {
+        return _expired;
+    }
+
+    /**
+     * Returns the number of gaps reported, because bytes were not captured or the segment store was full.
+     *
+     * @return the number of gaps
+     */
+    public long getGaps() {
+        return _gaps;
+    }
+
+    /**
+     * Returns the direct memory in use by segments waiting for the bytes before them.
+     *
+     * @return the amount of memory in bytes
+     */
+    public long getBufferedBytes() {
+        return _store.getUsed();
+    }
+
+    private void receive(final int stream, final int sequence, final byte[] data, final int offset, final int length) {
+        final int ahead = sequence - _nextSequence[stream];
+        if (ahead > MAX_WINDOW) {
+            skip(stream, sequence);
+        }
+        else if (ahead > 0) {
+            wait(stream, sequence, data, offset, length);
+            return;
+        }
+        deliver(stream, sequence, data, offset, length);
+        deliverWaiting(stream);
+    }
+
+    private void deliver(final int stream, final int sequence, final byte[] data, final int offset, final int length) {
+        final int overlap = _nextSequence[stream] - sequence;
+        if (overlap < 0 || overlap >= length) {
+            // a retransmission of bytes that were delivered
+            return;
+        }
+        _nextSequence[stream] = sequence + length;
+        _listener.data(stream >>> 1, stream & 1, data, offset + overlap, length - overlap);
+    }
+
+    // keeps the waiting segments ordered by sequence number
+    private void wait(final int stream, final int sequence, final byte[] data, final int offset, final int length) {
+        int segment = _store.store(sequence, data, offset, length);
+        if (segment == SegmentStore.NONE) {
+            flush(stream);
+            skip(stream, sequence);
+            deliver(stream, sequence, data, offset, length);
+            return;
+        }
+        final int next = _nextSequence[stream];
+        int previous = SegmentStore.NONE;
+        int current = _waiting[stream];
+        while (current != SegmentStore.NONE && _store.getSequence(current) - next <= sequence - next) {
+            previous = current;
+            current = _store.getNext(current);
+        }
+        _store.setNext(segment, current);
+        if (previous == SegmentStore.NONE) {
+            _waiting[stream] = segment;
+        }
+        else {
+            _store.setNext(previous, segment);
+        }
+    }
+
+    private void deliverWaiting(final int stream) {
+        int segment = _waiting[stream];
+        while (segment != SegmentStore.NONE && _store.getSequence(segment) - _nextSequence[stream] <= 0) {
+            final int length = _store.read(segment, _segment, 0);
+            deliver(stream, _store.getSequence(segment), _segment, 0, length);
+            final int next = _store.getNext(segment);
+            _store.free(segment);
+            segment = next;
+        }
+        _waiting[stream] = segment;
+    }
+
+    // delivers all waiting segments, reporting the bytes missing before them as gaps
+    private void flush(final int stream) {
+        while (_waiting[stream] != SegmentStore.NONE) {
+            skip(stream, _store.getSequence(_waiting[stream]));
+            deliverWaiting(stream);
+        }
+    }
+
+    private void skip(final int stream, final int sequence) {
+        if (sequence - _nextSequence[stream] > 0) {
+            _nextSequence[stream] = sequence;
+            _gaps++;
+            _listener.gap(stream >>> 1, stream & 1);
+        }
+    }
+
+    private void expire() {
+        for (int i = 0; i < EXPIRATIONS_PER_FRAME && _oldest != NONE && _clock - _lastSeen[_oldest] > _idleTimeout; i++) {
+            remove(_oldest);
+            _expired++;
+        }
+    }
+
+    // writes the key of the connection and returns the direction of the segment
+    private int key(final byte[] data, final int addresses, final int addressLength) {
+        int order = 0;
+        for (int i = 0; i < addressLength && order == 0; i++) {
+            order = (data[addresses + i] & 0xFF) - (data[addresses + addressLength + i] & 0xFF);
+        }
+        if (order == 0) {
+            order = _sourcePort - _destinationPort;
+        }
+        final int direction = order <= 0 ? 0 : 1;
+        final int a = addresses + direction * addressLength;
+        final int b = addresses + (1 - direction) * addressLength;
+        _keyBuffer.putLong(0, 0).putLong(8, 0).putLong(16, 0).putLong(24, 0).putLong(32, 0);
+        _key[0] = (byte) addressLength;
+        System.arraycopy(data, a, _key, KEY_ADDRESS_A, addressLength);
+        System.arraycopy(data, b, _key, KEY_ADDRESS_B, addressLength);
+        _keyBuffer.putShort(KEY_PORT_A, (short) (direction == 0 ? _sourcePort : _destinationPort));
+        _keyBuffer.putShort(KEY_PORT_B, (short) (direction == 0 ? _destinationPort : _sourcePort));
+        return direction;
+    }
+
+    // looks up the flow of the key, adding it when it is not in the table
+    private int flow() {
+        final int hash = hash();
+        int slot = hash & _mask;
+        while (_table[slot] != 0) {
+            final int flow = _table[slot] - 1;
+            if (_hashes[flow] == hash && keyEquals(flow)) {
+                touch(flow);
+                return flow;
+            }
+            slot = (slot + 1) & _mask;
+        }
+        if (_freeCount == 0) {
+            remove(_oldest);
+            _evicted++;
+            // removing moves entries, so the free slot has to be found again
+            slot = hash & _mask;
+            while (_table[slot] != 0) {
+                slot = (slot + 1) & _mask;
+            }
+        }
+        final int flow = _free[--_freeCount];
+        _table[slot] = flow + 1;
+        _hashes[flow] = hash;
+        for (int i = 0; i < KEY_SIZE; i += 8) {
+            _keys.putLong(flow * KEY_SIZE + i, _keyBuffer.getLong(i));
+        }
+        _synchronized[flow << 1] = false;
+        _synchronized[flow << 1 | 1] = false;
+        _waiting[flow << 1] = SegmentStore.NONE;
+        _waiting[flow << 1 | 1] = SegmentStore.NONE;
+        _older[flow] = _newest;
+        _newer[flow] = NONE;
+        if (_newest != NONE) {
+            _newer[_newest] = flow;
+        }
+        else {
+            _oldest = flow;
+        }
+        _newest = flow;
+        _lastSeen[flow] = _clock;
+        _listener.opened(flow);
+        return flow;
+    }
+
+    private boolean keyEquals(final int flow) {
+        for (int i = 0; i < KEY_SIZE; i += 8) {
+            if (_keys.getLong(flow * KEY_SIZE + i) != _keyBuffer.getLong(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // makes the flow the most recently seen one
+    private void touch(final int flow) {
+        _lastSeen[flow] = _clock;
+        if (flow == _newest) {
+            return;
+        }
+        unlink(flow);
+        _older[flow] = _newest;
+        _newer[flow] = NONE;
+        _newer[_newest] = flow;
+        _newest = flow;
+    }
+
+    private void unlink(final int flow) {
+        if (_older[flow] != NONE) {
+            _newer[_older[flow]] = _newer[flow];
+        }
+        else {
+            _oldest = _newer[flow];
+        }
+        if (_newer[flow] != NONE) {
+            _older[_newer[flow]] = _older[flow];
+        }
+        else {
+            _newest = _older[flow];
+        }
+    }
+
+    private void reset(final int flow) {
+        for (int stream = flow << 1; stream <= (flow << 1 | 1); stream++) {
+            int segment = _waiting[stream];
+            while (segment != SegmentStore.NONE) {
+                final int next = _store.getNext(segment);
+                _store.free(segment);
+                segment = next;
+            }
+            _waiting[stream] = SegmentStore.NONE;
+            _synchronized[stream] = false;
+        }
+    }
+
+    private void remove(final int flow) {
+        reset(flow);
+        unlink(flow);
+        // backward shift deletion, keeping every entry reachable from its hash slot
+        int slot = _hashes[flow] & _mask;
+        while (_table[slot] != flow + 1) {
+            slot = (slot + 1) & _mask;
+        }
+        int next = (slot + 1) & _mask;
+        while (_table[next] != 0) {
+            final int home = _hashes[_table[next] - 1] & _mask;
+            // an entry can only move back when its home slot is not between the free slot and itself
+            if (slot <= next ? slot >= home || home > next : slot >= home && home > next) {
+                _table[slot] = _table[next];
+                slot = next;
+            }
+            next = (next + 1) & _mask;
+        }
+        _table[slot] = 0;
+        _free[_freeCount++] = flow;
+        _listener.removed(flow);
+    }
+
+    private int hash() {
+        int hash = 0;
+        for (int i = 0; i < KEY_SIZE; i += 4) {
+            hash = hash * 0x9E3779B1 + _keyBuffer.getInt(i);
+        }
+        // the finalization step of MurmurHash3
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static int uint16(final byte[] data, final int position) {
+        return (data[position] & 0xFF) << 8 | data[position + 1] & 0xFF;
+    }
+
+    private static int int32(final byte[] data, final int position) {
+        return (data[position] & 0xFF) << 24 | (data[position + 1] & 0xFF) << 16 | (data[position + 2] & 0xFF) << 8 | data[position + 3] & 0xFF;
+    }
+}
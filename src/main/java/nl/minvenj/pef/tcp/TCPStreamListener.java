@@ -0,0 +1,63 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.tcp;
+
+/**
+ * Receives the reassembled byte streams of the TCP connections tracked by a {@link TCPReassembler}.
+ *
+ * Connections are identified by their flow, an index in the flow table of the reassembler that is
+ * reused after the connection was removed. The two directions of a connection are numbered 0 and 1.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public interface TCPStreamListener {
+
+    /**
+     * Called when a connection is added to the flow table, or when it is opened again.
+     *
+     * @param flow the flow of the connection
+     */
+    void opened(int flow);
+
+    /**
+     * Called with the next bytes of a direction of a connection, in sequence order.
+     *
+     * The data is only valid during the call.
+     *
+     * @param flow the flow of the connection
+     * @param direction the direction, 0 or 1
+     * @param data the array holding the bytes
+     * @param offset the offset of the bytes in the array
+     * @param length the number of bytes
+     */
+    void data(int flow, int direction, byte[] data, int offset, int length);
+
+    /**
+     * Called when bytes of a direction of a connection are lost, after which the data continues
+     * at a later position in the stream.
+     *
+     * @param flow the flow of the connection
+     * @param direction the direction, 0 or 1
+     */
+    void gap(int flow, int direction);
+
+    /**
+     * Called when a connection is removed from the flow table.
+     *
+     * @param flow the flow of the connection
+     */
+    void removed(int flow);
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.trace;
+
+import nl.minvenj.pef.metal.packet.internet.ExtensionHeaderChain;
+import nl.minvenj.pef.metal.packet.internet.ExtensionHeaderTypes;
+
+/**
+ * Describes the protocols of an ethernet frame as a path, such as ethernet/vlan/ipv4/udp/dns.
+ *
+ * Like {@link nl.minvenj.pef.pipeline.FlowHash} this reads the frame bytes directly and does not
+ * validate the frame, so it also describes frames that fail to parse. It is meant for sampled
+ * trace events, not for deciding how to pseudonymize a frame.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class ProtocolPath {
+
+    private static final int ETHERNET_HEADER_LENGTH = 14;
+    private static final int DNS_PORT = 53;
+
+    private ProtocolPath() {
+    }
+
+    /**
+     * Returns the protocol path of an ethernet frame.
+     *
+     * @param data the array holding the frame
+     * @param offset the offset of the frame in the array
+     * @param length the length of the frame
+     * @return the protocols of the frame separated by slashes, as far as they could be read
+     */
+    public static String of(final byte[] data, final int offset, final int length) {
+        final int end = Math.min(data.length, offset + length);
+        if (end - offset < ETHERNET_HEADER_LENGTH) {
+            return "truncated";
+        }
+        final StringBuilder path = new StringBuilder("ethernet");
+        int position = offset + 12;
+        int etherType = uint16(data, position);
+        position += 2;
+        while ((etherType == 0x8100 || etherType == 0x88A8 || etherType == 0x9100) && position + 4 <= end) {
+            path.append("/vlan");
+            etherType = uint16(data, position + 2);
+            position += 4;
+        }
+        int protocol;
+        int header;
+        boolean fragment = false;
+        if (etherType == 0x0800 && position + 20 <= end) {
+            path.append("/ipv4");
+            protocol = data[position + 9] & 0xFF;
+            header = position + (data[position] & 0x0F) * 4;
+            fragment = (uint16(data, position + 6) & 0x1FFF) != 0;
+        }
+        else if (etherType == 0x86DD && position + 40 <= end) {
+            path.append("/ipv6");
+            protocol = data[position + 6] & 0xFF;
+            header = position + 40;
+            while (ExtensionHeaderChain.isChained(protocol) && header + 8 <= end && !fragment) {
+                final int type = protocol;
+                protocol = data[header] & 0xFF;
+                path.append('/').append(extensionHeaderName(type));
+                fragment = type == ExtensionHeaderTypes.FRAGMENT.value() && (uint16(data, header + 2) & 0xFFF8) != 0;
+                header += ExtensionHeaderChain.length(data, header, type);
+            }
+        }
+        else {
+            return path.append("/0x").append(Integer.toHexString(etherType)).toString();
+        }
+        path.append('/').append(protocolName(protocol));
+        // only the first fragment holds the ports
+        if ((protocol == 6 || protocol == 17) && !fragment && header + 4 <= end
+            && (uint16(data, header) == DNS_PORT || uint16(data, header + 2) == DNS_PORT)) {
+            path.append("/dns");
+        }
+        return path.toString();
+    }
+
+    private static String protocolName(final int protocol) {
+        switch (protocol) {
+            case 1:
+                return "icmp";
+            case 6:
+                return "tcp";
+            case 17:
+                return "udp";
+            case 58:
+                return "icmpv6";
+            case 132:
+                return "sctp";
+            default:
+                return Integer.toString(protocol);
+        }
+    }
+
+    private static String extensionHeaderName(final int type) {
+        switch (type) {
+            case 0:
+                return "hopbyhop";
+            case 43:
+                return "routing";
+            case 44:
+                return "fragment";
+            case 51:
+                return "ah";
+            case 60:
+                return "destination";
+            case 135:
+                return "mobility";
+            case 139:
+                return "hip";
+            case 140:
+                return "shim6";
+            default:
+                return Integer.toString(type);
+        }
+    }
+
+    private static int uint16(final byte[] data, final int position) {
+        return (data[position] & 0xFF) << 8 | data[position + 1] & 0xFF;
+    }
+}
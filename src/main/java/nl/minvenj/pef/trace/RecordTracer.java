@@ -0,0 +1,64 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.trace;
+
+import nl.minvenj.pef.trace.TraceEventType.TraceEvent;
+
+/**
+ * Records {@link TraceEvents#RECORD} events for a sample of the records read by a dump pseudonymizer.
+ *
+ * A tracer belongs to a single loop over the records of a file, so it is not thread safe.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class RecordTracer {
+
+    private final String _format;
+    private long _records;
+    private TraceEvent _event;
+
+    /**
+     * Create a new tracer.
+     *
+     * @param format the format of the dump file, e.g. pcap
+     */
+    public RecordTracer(final String format) {
+        _format = format;
+    }
+
+    /**
+     * Start the event of the next record, when it is sampled.
+     */
+    public void begin() {
+        _event = TraceEvents.RECORD.isSampled(_records++) ? TraceEvents.RECORD.begin() : null;
+    }
+
+    /**
+     * Record the event started by the last call to {@link #begin()}, if any.
+     *
+     * @param offset the offset of the record in the input
+     * @param length the length of the record in bytes
+     */
+    public void end(final long offset, final long length) {
+        if (_event != null) {
+            _event.set(TraceEvents.RECORD_FORMAT, _format)
+                  .set(TraceEvents.RECORD_OFFSET, offset)
+                  .set(TraceEvents.RECORD_LENGTH, (int) length)
+                  .commit();
+            _event = null;
+        }
+    }
+}
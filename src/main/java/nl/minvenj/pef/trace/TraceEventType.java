@@ -0,0 +1,329 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.trace;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Java Flight Recorder event type, defined while running.
+ *
+ * PEF is built for Java 7, so its events can not extend {@code jdk.jfr.Event}. Instead, the event
+ * types are defined through reflection with {@code jdk.jfr.EventFactory}, when the JVM has the flight
+ * recorder API (JDK 8u272 and later). On other JVMs an event type is unavailable and never enabled.
+ *
+ * Event types are disabled by default, so they cost nothing until a recording enables them, e.g. with
+ * the settings in {@code pef.jfc}. An enabled event type is still only recorded for a sample of the
+ * calls, see {@link #isSampled(long)}.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class TraceEventType {
+
+    private static final Logger LOGGER = Logger.getLogger(TraceEventType.class.getName());
+    private static final String CATEGORY = "PEF";
+
+    private final String _name;
+    private final int _sampleMask;
+    // jdk.jfr.EventFactory and jdk.jfr.EventType, or null when the flight recorder is unavailable
+    private final Object _factory;
+    private final Object _eventType;
+
+    private TraceEventType(final String name, final int sampleInterval, final Object factory) {
+        _name = name;
+        _sampleMask = sampleInterval - 1;
+        _factory = factory;
+        _eventType = factory == null ? null : Jfr.invoke(Jfr.GET_EVENT_TYPE, factory);
+    }
+
+    /**
+     * Define and register an event type with the flight recorder.
+     *
+     * @param name the name of the event type, e.g. nl.minvenj.pef.Frame
+     * @param label the human readable name of the event type
+     * @param description the description of the event type
+     * @param sampleInterval the number of calls per recorded call when enabled, a power of two
+     * @param fields the fields of the events, their values are set by index in this order
+     * @return the event type, which is unavailable when the flight recorder API is missing
+     */
+    public static TraceEventType define(final String name, final String label, final String description, final int sampleInterval, final Field... fields) {
+        if (sampleInterval < 1 || Integer.bitCount(sampleInterval) != 1) {
+            throw new IllegalArgumentException("sample interval must be a power of two: " + sampleInterval);
+        }
+        return new TraceEventType(name, sampleInterval, Jfr.define(name, label, description, fields));
+    }
+
+    /**
+     * Returns a field of an event type.
+     *
+     * @param name the name of the field
+     * @param label the human readable name of the field
+     * @param type the type of the field: a primitive type or String
+     * @return the field
+     */
+    public static Field field(final String name, final String label, final Class<?> type) {
+        return new Field(name, label, type);
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * Returns whether the flight recorder API is available to record this event type.
+     *
+     * @return true when events of this type can be recorded
+     */
+    public boolean isAvailable() {
+        return _eventType != null;
+    }
+
+    /**
+     * Returns whether a running recording has enabled this event type.
+     *
+     * @return true when events of this type are recorded
+     */
+    public boolean isEnabled() {
+        return _eventType != null && Boolean.TRUE.equals(Jfr.invoke(Jfr.IS_ENABLED, _eventType));
+    }
+
+    /**
+     * Returns whether a call should be recorded: when the event type is enabled, one in
+     * every sample interval calls is.
+     *
+     * The counting is left to the caller, so this is cheap when the call is not sampled.
+     *
+     * @param count the number of calls before this one
+     * @return true when the call should be recorded
+     */
+    public boolean isSampled(final long count) {
+        return (count & _sampleMask) == 0 && isEnabled();
+    }
+
+    /**
+     * Create an event of this type and start its timing.
+     *
+     * @return the started event, which does nothing when the flight recorder is unavailable
+     */
+    public TraceEvent begin() {
+        final Object event = _factory == null ? null : Jfr.invoke(Jfr.NEW_EVENT, _factory);
+        if (event != null) {
+            Jfr.invoke(Jfr.BEGIN, event);
+        }
+        return new TraceEvent(event);
+    }
+
+    @Override
+    public String toString() {
+        return _name;
+    }
+
+    /**
+     * A field of an event type.
+     */
+    public static final class Field {
+
+        private final String _name;
+        private final String _label;
+        private final Class<?> _type;
+
+        private Field(final String name, final String label, final Class<?> type) {
+            _name = name;
+            _label = label;
+            _type = type;
+        }
+    }
+
+    /**
+     * An event of a type, holding its field values until it is committed.
+     */
+    public static final class TraceEvent {
+
+        private final Object _event;
+
+        private TraceEvent(final Object event) {
+            _event = event;
+        }
+
+        /**
+         * Set the value of a field.
+         *
+         * @param index the position of the field in the definition of the event type
+         * @param value the value, of the type of the field
+         * @return this
+         */
+        public TraceEvent set(final int index, final Object value) {
+            if (_event != null) {
+                Jfr.invoke(Jfr.SET, _event, index, value);
+            }
+            return this;
+        }
+
+        /**
+         * End the timing of the event and write it to the recordings.
+         */
+        public void commit() {
+            if (_event != null) {
+                Jfr.invoke(Jfr.COMMIT, _event);
+            }
+        }
+    }
+
+    /**
+     * The reflective access to the flight recorder API. All methods are null when it is unavailable.
+     */
+    private static final class Jfr {
+
+        static final Method CREATE;
+        static final Method REGISTER;
+        static final Method GET_EVENT_TYPE;
+        static final Method NEW_EVENT;
+        static final Method IS_ENABLED;
+        static final Method BEGIN;
+        static final Method SET;
+        static final Method COMMIT;
+        static final Constructor<?> ANNOTATION_ELEMENT;
+        static final Constructor<?> VALUE_DESCRIPTOR;
+        static final Class<? extends Annotation> NAME;
+        static final Class<? extends Annotation> LABEL;
+        static final Class<? extends Annotation> DESCRIPTION;
+        static final Class<? extends Annotation> CATEGORY_ANNOTATION;
+        static final Class<? extends Annotation> ENABLED;
+        static final Class<? extends Annotation> STACK_TRACE;
+
+        static {
+            Method create = null;
+            Method register = null;
+            Method getEventType = null;
+            Method newEvent = null;
+            Method isEnabled = null;
+            Method begin = null;
+            Method set = null;
+            Method commit = null;
+            Constructor<?> annotationElement = null;
+            Constructor<?> valueDescriptor = null;
+            Class<? extends Annotation> name = null;
+            Class<? extends Annotation> label = null;
+            Class<? extends Annotation> description = null;
+            Class<? extends Annotation> category = null;
+            Class<? extends Annotation> enabled = null;
+            Class<? extends Annotation> stackTrace = null;
+            try {
+                final Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+                final Class<?> event = Class.forName("jdk.jfr.Event");
+                create = factory.getMethod("create", List.class, List.class);
+                register = factory.getMethod("register");
+                getEventType = factory.getMethod("getEventType");
+                newEvent = factory.getMethod("newEvent");
+                isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+                begin = event.getMethod("begin");
+                set = event.getMethod("set", int.class, Object.class);
+                commit = event.getMethod("commit");
+                annotationElement = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+                valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+                name = annotation("jdk.jfr.Name");
+                label = annotation("jdk.jfr.Label");
+                description = annotation("jdk.jfr.Description");
+                category = annotation("jdk.jfr.Category");
+                enabled = annotation("jdk.jfr.Enabled");
+                stackTrace = annotation("jdk.jfr.StackTrace");
+            }
+            catch (final ReflectiveOperationException | LinkageError e) {
+                LOGGER.log(Level.FINE, "Flight recorder events are unavailable.", e);
+                create = null;
+            }
+            CREATE = create;
+            REGISTER = register;
+            GET_EVENT_TYPE = getEventType;
+            NEW_EVENT = newEvent;
+            IS_ENABLED = isEnabled;
+            BEGIN = begin;
+            SET = set;
+            COMMIT = commit;
+            ANNOTATION_ELEMENT = annotationElement;
+            VALUE_DESCRIPTOR = valueDescriptor;
+            NAME = name;
+            LABEL = label;
+            DESCRIPTION = description;
+            CATEGORY_ANNOTATION = category;
+            ENABLED = enabled;
+            STACK_TRACE = stackTrace;
+        }
+
+        private Jfr() {
+        }
+
+        /**
+         * Define and register an event type.
+         *
+         * @return the jdk.jfr.EventFactory of the event type, or null when the flight recorder is unavailable
+         */
+        static Object define(final String name, final String label, final String description, final Field... fields) {
+            if (CREATE == null) {
+                return null;
+            }
+            try {
+                final List<Object> annotations = new ArrayList<>();
+                annotations.add(ANNOTATION_ELEMENT.newInstance(NAME, name));
+                annotations.add(ANNOTATION_ELEMENT.newInstance(LABEL, label));
+                annotations.add(ANNOTATION_ELEMENT.newInstance(DESCRIPTION, description));
+                annotations.add(ANNOTATION_ELEMENT.newInstance(CATEGORY_ANNOTATION, new String[] { CATEGORY }));
+                annotations.add(ANNOTATION_ELEMENT.newInstance(ENABLED, false));
+                annotations.add(ANNOTATION_ELEMENT.newInstance(STACK_TRACE, false));
+
+                final List<Object> values = new ArrayList<>();
+                for (final Field field : fields) {
+                    values.add(VALUE_DESCRIPTOR.newInstance(field._type, field._name, Collections.singletonList(ANNOTATION_ELEMENT.newInstance(LABEL, field._label))));
+                }
+                final Object factory = CREATE.invoke(null, annotations, values);
+                REGISTER.invoke(factory);
+                return factory;
+            }
+            catch (final ReflectiveOperationException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not define flight recorder event " + name + ".", e);
+                return null;
+            }
+        }
+
+        /**
+         * Invoke a method of the flight recorder API. Tracing must never break the pseudonymization,
+         * so a failure is only logged.
+         *
+         * @return the result of the method, or null when it failed
+         */
+        static Object invoke(final Method method, final Object target, final Object... arguments) {
+            try {
+                return method.invoke(target, arguments);
+            }
+            catch (final IllegalAccessException | InvocationTargetException | RuntimeException e) {
+                LOGGER.log(Level.FINE, "Flight recorder call " + method.getName() + " failed.", e);
+                return null;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Class<? extends Annotation> annotation(final String name) throws ClassNotFoundException {
+            return (Class<? extends Annotation>) Class.forName(name);
+        }
+    }
+}
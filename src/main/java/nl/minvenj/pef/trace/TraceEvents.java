@@ -0,0 +1,111 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.trace;
+
+import static nl.minvenj.pef.trace.TraceEventType.define;
+import static nl.minvenj.pef.trace.TraceEventType.field;
+
+/**
+ * The flight recorder events of PEF, tracing single packets through the pseudonymization.
+ *
+ * The events are disabled by default. Start a recording with the settings in {@code pef.jfc} to
+ * enable them, e.g. {@code jcmd <pid> JFR.start settings=pef.jfc}. The events are then recorded for
+ * one in {@link #getSampleInterval()} calls, which is 64 unless the system property
+ * {@value #SAMPLE_INTERVAL_PROPERTY} sets another power of two.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class TraceEvents {
+
+    /** The system property holding the number of calls per recorded call. */
+    public static final String SAMPLE_INTERVAL_PROPERTY = "pef.trace.sample_interval";
+    /** The default number of calls per recorded call. */
+    public static final int DEFAULT_SAMPLE_INTERVAL = 64;
+
+    private static final int SAMPLE_INTERVAL = sampleInterval(Integer.getInteger(SAMPLE_INTERVAL_PROPERTY, DEFAULT_SAMPLE_INTERVAL));
+
+    /** The pseudonymization of an ethernet frame, from parsing to serializing. */
+    public static final TraceEventType FRAME = define("nl.minvenj.pef.Frame", "Frame Pseudonymization",
+        "The pseudonymization of an ethernet frame", SAMPLE_INTERVAL,
+        field("frameSize", "Frame Size", int.class),
+        field("protocols", "Protocol Path", String.class),
+        field("transformers", "Transformers Applied", String.class),
+        field("outcome", "Outcome", String.class));
+    /** The field of {@link #FRAME} holding the length of the frame in bytes. */
+    public static final int FRAME_SIZE = 0;
+    /** The field of {@link #FRAME} holding the protocols of the frame, e.g. ethernet/ipv4/udp/dns. */
+    public static final int FRAME_PROTOCOLS = 1;
+    /** The field of {@link #FRAME} holding the fields changed by the transformers, separated by commas. */
+    public static final int FRAME_TRANSFORMERS = 2;
+    /** The field of {@link #FRAME} holding the outcome: pseudonymized, unparsed or non_ethernet. */
+    public static final int FRAME_OUTCOME = 3;
+
+    /** The transformation and serialization of a parsed frame. */
+    public static final TraceEventType TRANSFORM = define("nl.minvenj.pef.Transform", "Transform",
+        "The transformation and serialization of a parsed frame", SAMPLE_INTERVAL,
+        field("transformers", "Transformers Applied", String.class),
+        field("values", "Values Transformed", int.class));
+    /** The field of {@link #TRANSFORM} holding the fields changed by the transformers, separated by commas. */
+    public static final int TRANSFORM_TRANSFORMERS = 0;
+    /** The field of {@link #TRANSFORM} holding the number of values changed. */
+    public static final int TRANSFORM_VALUES = 1;
+
+    /** The pseudonymization of an IP address. */
+    public static final TraceEventType ADDRESS = define("nl.minvenj.pef.Address", "Address Pseudonymization",
+        "The pseudonymization of an IP address", SAMPLE_INTERVAL,
+        field("bits", "Address Bits", int.class),
+        field("mask", "Mask", int.class),
+        field("cached", "Cached", boolean.class));
+    /** The field of {@link #ADDRESS} holding the size of the address in bits. */
+    public static final int ADDRESS_BITS = 0;
+    /** The field of {@link #ADDRESS} holding the number of bits left unchanged. */
+    public static final int ADDRESS_MASK = 1;
+    /** The field of {@link #ADDRESS} holding whether the address was found in the cache. */
+    public static final int ADDRESS_CACHED = 2;
+
+    /** The reading, pseudonymization and writing of a record or block of a dump file. */
+    public static final TraceEventType RECORD = define("nl.minvenj.pef.Record", "Dump Record",
+        "The pseudonymization of a record or block of a dump file", SAMPLE_INTERVAL,
+        field("format", "Format", String.class),
+        field("offset", "Input Offset", long.class),
+        field("length", "Length", int.class));
+    /** The field of {@link #RECORD} holding the format of the dump file, pcap or pcapng. */
+    public static final int RECORD_FORMAT = 0;
+    /** The field of {@link #RECORD} holding the offset of the record in the input. */
+    public static final int RECORD_OFFSET = 1;
+    /** The field of {@link #RECORD} holding the length of the record in bytes. */
+    public static final int RECORD_LENGTH = 2;
+
+    private TraceEvents() {
+    }
+
+    /**
+     * Returns the number of calls per recorded call of enabled events.
+     *
+     * @return the sample interval
+     */
+    public static int getSampleInterval() {
+        return SAMPLE_INTERVAL;
+    }
+
+    private static int sampleInterval(final int interval) {
+        if (interval < 1) {
+            return DEFAULT_SAMPLE_INTERVAL;
+        }
+        // round up to a power of two
+        return Integer.bitCount(interval) == 1 ? interval : Integer.highestOneBit(interval) << 1;
+    }
+}
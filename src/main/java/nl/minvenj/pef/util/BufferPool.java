@@ -0,0 +1,92 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of reusable heap byte buffers of a fixed size, e.g. the snap length of a capture.
+ *
+ * The buffers are backed by an array, so their contents can be pseudonymized in place. A request
+ * for a buffer larger than the pool size is served with a new buffer that is not pooled.
+ *
+ * This class is not thread safe; use one pool per thread.
+ *
+ * @author Netherlands Forensic Institute.
+ */
+public final class BufferPool {
+
+    private final int _bufferSize;
+    private final ByteBuffer[] _free;
+    private int _freeCount;
+    private long _allocations;
+
+    /**
+     * Create a new pool, allocating all buffers up front.
+     *
+     * @param bufferSize the size of the buffers in bytes
+     * @param capacity the maximum number of buffers kept in the pool
+     */
+    public BufferPool(final int bufferSize, final int capacity) {
+        _bufferSize = bufferSize;
+        _free = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            _free[i] = ByteBuffer.allocate(bufferSize);
+        }
+        _freeCount = capacity;
+    }
+
+    /**
+     * Take a buffer from the pool, or allocate one when the pool is empty or the size is too large.
+     *
+     * @param size the number of bytes the buffer must hold
+     * @return a cleared buffer, with its limit set to size
+     */
+    public ByteBuffer acquire(final int size) {
+        final ByteBuffer buffer;
+        if (size <= _bufferSize && _freeCount > 0) {
+            buffer = _free[--_freeCount];
+            _free[_freeCount] = null;
+        }
+        else {
+            _allocations++;
+            buffer = ByteBuffer.allocate(Math.max(size, _bufferSize));
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. Buffers of another size, or that do not fit, are left to the garbage collector.
+     *
+     * @param buffer the buffer that is no longer used
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer.capacity() == _bufferSize && _freeCount < _free.length) {
+            _free[_freeCount++] = buffer;
+        }
+    }
+
+    /**
+     * Returns the number of buffers that had to be allocated because the pool could not serve a request.
+     *
+     * @return the number of allocations after creating the pool
+     */
+    public long getAllocations() {
+        return _allocations;
+    }
+}
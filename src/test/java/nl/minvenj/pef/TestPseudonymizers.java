@@ -0,0 +1,45 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef;
+
+import java.io.IOException;
+import java.security.InvalidKeyException;
+
+import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.pseudo.cli.FramePseudonymizerBuilder;
+
+public final class TestPseudonymizers {
+
+    public static final String KEY = "30313233343536373839414243444546";
+
+    private TestPseudonymizers() {
+    }
+
+    /**
+     * Return a pseudonymizer of IPv4 (/16) and IPv6 (/64) addresses, recalculating the IPv4, UDP and ICMP checksums.
+     *
+     * @return the frame pseudonymizer
+     */
+    public static FramePseudonymizer pseudonymizer() throws IOException, InvalidKeyException {
+        return new FramePseudonymizerBuilder()
+            .pseudoIPv4(KEY, 16)
+            .pseudoIPv6(KEY, 64)
+            .calcIPv4Checksum()
+            .calcUDPChecksum()
+            .calcICMPChecksum()
+            .build();
+    }
+}
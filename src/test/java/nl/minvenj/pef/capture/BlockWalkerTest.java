@@ -0,0 +1,133 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.capture;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BlockWalkerTest {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    @Test
+    public void walkFramesOfBlock() throws IOException {
+        final ByteBuffer ring = ByteBuffer.allocateDirect(BLOCK_SIZE * 2).order(ByteOrder.nativeOrder());
+        block(ring, BLOCK_SIZE, new int[] { 60, 1514, 1 });
+        final List<byte[]> frames = new ArrayList<>();
+        final List<Long> times = new ArrayList<>();
+
+        final int count = new BlockWalker(ring).walk(BLOCK_SIZE, BLOCK_SIZE, new FrameHandler() {
+            @Override
+            public void frame(final ByteBuffer frame, final long seconds, final int nanos, final int wireLength) {
+                final byte[] data = new byte[frame.remaining()];
+                frame.get(data);
+                frames.add(data);
+                times.add(seconds * 1000000000L + nanos);
+                assertThat(wireLength, is(equalTo(data.length + 4)));
+            }
+        });
+
+        assertThat(count, is(equalTo(3)));
+        assertThat(frames.get(0), is(equalTo(frame(0, 60))));
+        assertThat(frames.get(1), is(equalTo(frame(1, 1514))));
+        assertThat(frames.get(2), is(equalTo(frame(2, 1))));
+        assertThat(times.get(2), is(equalTo(3000000000L + 2000)));
+    }
+
+    @Test
+    public void passFramesWithoutCopying() throws IOException {
+        final ByteBuffer ring = ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.nativeOrder());
+        final int data = block(ring, 0, new int[] { 60 })[0];
+
+        new BlockWalker(ring).walk(0, BLOCK_SIZE, new FrameHandler() {
+            @Override
+            public void frame(final ByteBuffer frame, final long seconds, final int nanos, final int wireLength) {
+                frame.put(frame.position(), (byte) 0x55);
+            }
+        });
+
+        assertThat(ring.get(data), is(equalTo((byte) 0x55)));
+    }
+
+    @Test
+    public void rejectFrameOutsideBlock() {
+        final ByteBuffer ring = ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.nativeOrder());
+        final int[] data = block(ring, 0, new int[] { 60, 60 });
+        // let the second frame claim more data than the block holds
+        ring.putInt(data[1] - (BlockWalker.FRAME_HEADER_LENGTH + 2) + BlockWalker.FRAME_SNAP_LENGTH, BLOCK_SIZE);
+        try {
+            new BlockWalker(ring).walk(0, BLOCK_SIZE, new FrameHandler() {
+                @Override
+                public void frame(final ByteBuffer frame, final long seconds, final int nanos, final int wireLength) {
+                }
+            });
+            fail("expected the corrupt block to be rejected");
+        }
+        catch (final IOException e) {
+            assertThat(e.getMessage().contains("frame 1"), is(true));
+        }
+    }
+
+    /**
+     * Write a block as the kernel does: a descriptor followed by frames, each aligned to 16 bytes.
+     *
+     * @return the offsets of the frame data in the ring
+     */
+    private static int[] block(final ByteBuffer ring, final int offset, final int[] lengths) {
+        final int[] data = new int[lengths.length];
+        int frame = offset + BlockWalker.BLOCK_HEADER_LENGTH;
+        ring.putInt(offset + BlockWalker.BLOCK_STATUS, 1);
+        ring.putInt(offset + BlockWalker.BLOCK_PACKET_COUNT, lengths.length);
+        ring.putInt(offset + BlockWalker.BLOCK_FIRST_PACKET, BlockWalker.BLOCK_HEADER_LENGTH);
+        for (int i = 0; i < lengths.length; i++) {
+            // the kernel puts the frame at a MAC offset that aligns the network header
+            final int mac = BlockWalker.FRAME_HEADER_LENGTH + 2;
+            final int next = (mac + lengths[i] + 15) & ~15;
+            ring.putInt(frame + BlockWalker.FRAME_NEXT_OFFSET, i == lengths.length - 1 ? 0 : next);
+            ring.putInt(frame + BlockWalker.FRAME_SECONDS, i + 1);
+            ring.putInt(frame + BlockWalker.FRAME_NANOS, i * 1000);
+            ring.putInt(frame + BlockWalker.FRAME_SNAP_LENGTH, lengths[i]);
+            ring.putInt(frame + BlockWalker.FRAME_LENGTH, lengths[i] + 4);
+            ring.putShort(frame + BlockWalker.FRAME_MAC, (short) mac);
+            data[i] = frame + mac;
+            final byte[] bytes = frame(i, lengths[i]);
+            for (int j = 0; j < bytes.length; j++) {
+                ring.put(frame + mac + j, bytes[j]);
+            }
+            frame += next;
+        }
+        ring.putInt(offset + BlockWalker.BLOCK_LENGTH, frame - offset);
+        return data;
+    }
+
+    private static byte[] frame(final int index, final int length) {
+        final byte[] frame = new byte[length];
+        for (int i = 0; i < length; i++) {
+            frame[i] = (byte) (index * 31 + i);
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.compare;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.minvenj.pef.Settings;
+import nl.minvenj.pef.compare.CaptureFrames.FrameHandler;
+import nl.minvenj.pef.generate.CaptureGenerator;
+
+public class EngineComparisonTest {
+
+    private static final String KEY = "30313233343536373839414243444546";
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    @Test
+    public void inPlaceMatchesMetalOnTestCaptures() throws IOException, InvalidKeyException {
+        final EngineComparison comparison = new EngineComparison(engines(), Collections.<String>emptySet());
+        final File[] captures = new File(Settings.getTestBasePath(), "pcaps").listFiles();
+        for (final File capture : captures) {
+            if (capture.getName().endsWith(".pcap")) {
+                read(capture, comparison);
+            }
+        }
+
+        assertThat(comparison.getPackets(), is(equalTo(76L)));
+        assertThat(comparison.report(), comparison.getDivergentPackets(1), is(equalTo(0L)));
+    }
+
+    @Test
+    public void inPlaceMatchesMetalOnGeneratedCapture() throws IOException, InvalidKeyException {
+        final File capture = _tempFolder.newFile("generated.pcap");
+        new CaptureGenerator().packets(2000).seed(47).generate(capture);
+        final EngineComparison comparison = new EngineComparison(engines(), Collections.<String>emptySet());
+        read(capture, comparison);
+
+        assertThat(comparison.getPackets(), is(equalTo(2000L)));
+        assertThat(comparison.report(), comparison.getDivergentPackets(1), is(equalTo(0L)));
+        assertThat(comparison.getPacketsPerSecond(0), is(greaterThan(0.0)));
+        assertThat(comparison.getPacketsPerSecond(1), is(greaterThan(0.0)));
+    }
+
+    @Test
+    public void reportDivergentFieldsUnlessIgnored() throws IOException, InvalidKeyException {
+        final byte[] frame = firstFrame(new File(Settings.getTestBasePath(), "pcaps/1udpdns.pcap"));
+        final Engine metal = engines().get(0);
+        final List<Engine> engines = Arrays.asList(metal, new CorruptingEngine(metal, 14 + 10, 14 + 20 + 6));
+
+        final EngineComparison comparison = new EngineComparison(engines, Collections.<String>emptySet());
+        assertThat(comparison.compare(frame), is(false));
+        assertThat(comparison.getDivergentPackets(1), is(equalTo(1L)));
+        assertThat(comparison.getDivergentFields(1).keySet(), is(equalTo((Set<String>) new TreeSet<>(Arrays.asList("ipv4.checksum", "udp.checksum")))));
+        assertThat(comparison.report().contains("packet 0: [ipv4.checksum, udp.checksum]"), is(true));
+
+        final EngineComparison ignoring = new EngineComparison(engines, new HashSet<>(Arrays.asList("ipv4.checksum", "udp.checksum")));
+        assertThat(ignoring.compare(frame), is(true));
+        assertThat(ignoring.getDivergentPackets(1), is(equalTo(0L)));
+    }
+
+    @Test
+    public void nameFieldsOfFrames() throws IOException {
+        final byte[] ipv4 = firstFrame(new File(Settings.getTestBasePath(), "pcaps/1udpdns.pcap"));
+        assertThat(FrameFields.nameAt(ipv4, 3), is(equalTo("ethernet.destination")));
+        assertThat(FrameFields.nameAt(ipv4, 12), is(equalTo("ethernet.type")));
+        assertThat(FrameFields.nameAt(ipv4, 14 + 12), is(equalTo("ipv4.source")));
+        assertThat(FrameFields.nameAt(ipv4, 14 + 19), is(equalTo("ipv4.destination")));
+        assertThat(FrameFields.nameAt(ipv4, 14 + 20 + 7), is(equalTo("udp.checksum")));
+        assertThat(FrameFields.nameAt(ipv4, 14 + 20 + 8), is(equalTo("udp.payload")));
+
+        final byte[] ipv6 = firstFrame(new File(Settings.getTestBasePath(), "pcaps/1ipv6udpmdns.pcap"));
+        assertThat(FrameFields.nameAt(ipv6, 14 + 8), is(equalTo("ipv6.source")));
+        assertThat(FrameFields.nameAt(ipv6, 14 + 39), is(equalTo("ipv6.destination")));
+        assertThat(FrameFields.nameAt(ipv6, 14 + 40 + 6), is(equalTo("udp.checksum")));
+    }
+
+    private static List<Engine> engines() throws IOException, InvalidKeyException {
+        return CompareTool.engines(Arrays.asList(Engines.METAL, Engines.IN_PLACE), KEY, 16, 64);
+    }
+
+    private static void read(final File capture, final EngineComparison comparison) throws IOException {
+        CaptureFrames.read(capture, new FrameHandler() {
+            @Override
+            public void frame(final byte[] frame) throws IOException {
+                comparison.compare(frame);
+            }
+        });
+    }
+
+    private static byte[] firstFrame(final File capture) throws IOException {
+        final byte[][] first = new byte[1][];
+        CaptureFrames.read(capture, new FrameHandler() {
+            @Override
+            public void frame(final byte[] frame) {
+                if (first[0] == null) {
+                    first[0] = frame;
+                }
+            }
+        });
+        return first[0];
+    }
+
+    private static class CorruptingEngine implements Engine {
+
+        private final Engine _engine;
+        private final int[] _offsets;
+
+        CorruptingEngine(final Engine engine, final int... offsets) {
+            _engine = engine;
+            _offsets = offsets;
+        }
+
+        @Override
+        public String getName() {
+            return "corrupting";
+        }
+
+        @Override
+        public byte[] pseudonymize(final byte[] frame) throws IOException {
+            final byte[] output = _engine.pseudonymize(frame);
+            for (final int offset : _offsets) {
+                output[offset] ^= 0x01;
+            }
+            return output;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.compress;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CompressionTest {
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    @Test
+    public void hashKnownVectors() {
+        assertThat(XXHash32.hash(new byte[0], 0, 0), is(equalTo(0x02CC5D05)));
+        assertThat(XXHash32.hash(ascii("a"), 0, 1), is(equalTo(0x550D7456)));
+        assertThat(XXHash32.hash(ascii("abc"), 0, 3), is(equalTo(0x32D153FF)));
+
+        // incremental updates give the same result as hashing at once
+        final byte[] data = data(1000, 7);
+        final XXHash32 hash = new XXHash32();
+        for (int offset = 0; offset < data.length; offset += 13) {
+            hash.update(data, offset, Math.min(13, data.length - offset));
+        }
+        assertThat(hash.getValue(), is(equalTo(XXHash32.hash(data, 0, data.length))));
+    }
+
+    @Test
+    public void writeStandardLz4FrameHeader() throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new Lz4FrameOutputStream(output).close();
+
+        // the header written by lz4 for independent blocks of 64 KiB and a content checksum
+        assertThat(Arrays.copyOf(output.toByteArray(), 7), is(equalTo(bytes(0x04, 0x22, 0x4D, 0x18, 0x64, 0x40, 0xA7))));
+    }
+
+    @Test
+    public void decompressLz4BlockWithOverlappingMatch() throws IOException {
+        // linked blocks without checksums, one block: literals "abc", a match of 9 at offset 3, literal "X"
+        final byte[] frame = bytes(0x04, 0x22, 0x4D, 0x18, 0x40, 0x40, 0x00,
+                                   0x08, 0x00, 0x00, 0x00, 0x35, 'a', 'b', 'c', 0x03, 0x00, 0x10, 'X',
+                                   0x00, 0x00, 0x00, 0x00);
+        frame[6] = (byte) (XXHash32.hash(frame, 4, 2) >> 8);
+
+        assertThat(readAll(new Lz4FrameInputStream(new ByteArrayInputStream(frame))), is(equalTo(ascii("abcabcabcabcX"))));
+    }
+
+    @Test
+    public void roundTripLz4() throws IOException {
+        for (final int length : new int[] { 0, 1, 12, 13, 100, 65536, 65537, 300000 }) {
+            final byte[] compressible = data(length, 16);
+            final byte[] compressed = compress(Compression.LZ4, compressible);
+            assertThat(readAll(new Lz4FrameInputStream(new ByteArrayInputStream(compressed))), is(equalTo(compressible)));
+            if (length > 100) {
+                assertThat(compressed.length, is(lessThan(length / 2)));
+            }
+
+            final byte[] random = new byte[length];
+            new Random(length).nextBytes(random);
+            assertThat(readAll(new Lz4FrameInputStream(new ByteArrayInputStream(compress(Compression.LZ4, random)))), is(equalTo(random)));
+        }
+    }
+
+    @Test
+    public void rejectCorruptLz4Content() throws IOException {
+        final byte[] compressed = compress(Compression.LZ4, data(1000, 16));
+        compressed[compressed.length - 1] ^= 1;
+        try {
+            readAll(new Lz4FrameInputStream(new ByteArrayInputStream(compressed)));
+            fail("expected the content checksum to fail");
+        }
+        catch (final IOException e) {
+            assertThat(e.getMessage(), is(equalTo("invalid LZ4 content checksum")));
+        }
+    }
+
+    @Test
+    public void readFilesInEveryFormat() throws IOException {
+        final byte[] data = data(500000, 64);
+        for (final Compression compression : Compression.values()) {
+            final File file = _tempFolder.newFile("capture.pcap" + compression.getExtension());
+            try (final OutputStream output = Compression.openOutput(file)) {
+                output.write(data);
+            }
+            assertThat(Compression.detect(file), is(equalTo(compression)));
+            try (final InputStream input = Compression.openInput(file)) {
+                assertThat(compression.name(), readAll(input), is(equalTo(data)));
+            }
+        }
+    }
+
+    @Test
+    public void readConcatenatedMembersAndFrames() throws IOException {
+        final byte[] first = data(70000, 16);
+        final byte[] second = data(1000, 3);
+        final byte[] expected = new byte[first.length + second.length];
+        System.arraycopy(first, 0, expected, 0, first.length);
+        System.arraycopy(second, 0, expected, first.length, second.length);
+
+        for (final Compression compression : new Compression[] { Compression.GZIP, Compression.ZSTD, Compression.LZ4 }) {
+            final File file = _tempFolder.newFile("concatenated" + compression.getExtension());
+            try (final OutputStream output = new FileOutputStream(file)) {
+                output.write(compress(compression, first));
+                output.write(compress(compression, second));
+            }
+            try (final InputStream input = Compression.openInput(file)) {
+                assertThat(compression.name(), readAll(input), is(equalTo(expected)));
+            }
+        }
+    }
+
+    @Test
+    public void reportErrorsOfReadAheadThread() throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (final OutputStream output = new GZIPOutputStream(compressed)) {
+            output.write(data(100000, 16));
+        }
+        final byte[] truncated = Arrays.copyOf(compressed.toByteArray(), compressed.size() / 2);
+        try (final InputStream input = new ReadAheadInputStream(Compression.GZIP.decompress(new ByteArrayInputStream(truncated)), "test", 2, 1024)) {
+            readAll(input);
+            fail("expected the truncated input to fail");
+        }
+        catch (final IOException e) {
+            assertThat(e.getMessage(), is(equalTo("Unexpected end of ZLIB input stream")));
+        }
+    }
+
+    @Test
+    public void chooseCompressionByExtension() {
+        assertThat(Compression.forFileName("a.pcap"), is(equalTo(Compression.NONE)));
+        assertThat(Compression.forFileName("a.pcap.gz"), is(equalTo(Compression.GZIP)));
+        assertThat(Compression.forFileName("a.PCAPNG.ZST"), is(equalTo(Compression.ZSTD)));
+        assertThat(Compression.forFileName("a.pcapng.lz4"), is(equalTo(Compression.LZ4)));
+    }
+
+    private static byte[] compress(final Compression compression, final byte[] data) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (final OutputStream compressing = compression.compress(output)) {
+            compressing.write(data);
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] readAll(final InputStream input) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        for (int count = input.read(buffer); count >= 0; count = input.read(buffer)) {
+            output.write(buffer, 0, count);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Returns data of random bytes from an alphabet of the given size, mixed with copies of earlier parts.
+     */
+    private static byte[] data(final int length, final int alphabet) {
+        final Random random = new Random(alphabet);
+        final byte[] data = new byte[length];
+        int position = 0;
+        while (position < length) {
+            if (position >= 1024 && random.nextInt(8) > 0) {
+                final int count = Math.min(length - position, 4 + random.nextInt(60));
+                System.arraycopy(data, position - 1 - random.nextInt(1024), data, position, count);
+                position += count;
+            }
+            else {
+                data[position++] = (byte) random.nextInt(alphabet);
+            }
+        }
+        return data;
+    }
+
+    private static byte[] ascii(final String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] bytes(final int... values) {
+        final byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+}
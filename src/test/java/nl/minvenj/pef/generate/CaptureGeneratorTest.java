@@ -0,0 +1,149 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.generate;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import static nl.minvenj.pef.TestPseudonymizers.pseudonymizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.parsingdata.metal.data.ParseResult;
+import nl.minvenj.pef.generate.CaptureGenerator.Format;
+import nl.minvenj.pef.generate.CaptureGenerator.Traffic;
+import nl.minvenj.pef.metal.dump.PCAPNG;
+import nl.minvenj.pef.metal.stream.FileByteStream;
+import nl.minvenj.pef.pipeline.FlowHash;
+import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.pseudo.cli.FramePseudonymizerBuilder;
+import nl.minvenj.pef.pseudo.dump.cap.pcap.SingleThreadedPCAPPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcapng.MultiThreadedPCAPNGPseudonymizer;
+import nl.minvenj.pef.util.Util;
+
+public class CaptureGeneratorTest {
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    @Test
+    public void generateFramesThatAllParse() throws IOException, InvalidKeyException {
+        final File capture = _tempFolder.newFile();
+        assertThat(new CaptureGenerator().packets(2000).sizes(60, 1514).generate(capture), is(equalTo(2000L)));
+
+        final List<byte[]> frames = readPCAP(capture);
+        assertThat(frames.size(), is(equalTo(2000)));
+        final FramePseudonymizer pseudonymizer = pseudonymizer();
+        for (final byte[] frame : frames) {
+            assertThat(frame.length, is(lessThanOrEqualTo(1514)));
+            assertThat(pseudonymizer.pseudonymize(frame.clone(), 0, frame.length), is(true));
+        }
+    }
+
+    @Test
+    public void generateCorrectChecksums() throws IOException {
+        final File capture = _tempFolder.newFile();
+        final File output = _tempFolder.newFile();
+        new CaptureGenerator().packets(1000).ipv6Percentage(50).generate(capture);
+
+        // only recalculating the checksums must leave the capture unchanged
+        final FramePseudonymizer checksums = new FramePseudonymizerBuilder().calcIPv4Checksum().calcUDPChecksum().build();
+        new SingleThreadedPCAPPseudonymizer(checksums).pseudonymize(capture, output);
+        assertThat(Files.readAllBytes(output.toPath()), is(equalTo(Files.readAllBytes(capture.toPath()))));
+    }
+
+    @Test
+    public void generateBigEndianPCAPNG() throws IOException, InvalidKeyException {
+        final File capture = _tempFolder.newFile();
+        final File output = _tempFolder.newFile();
+        new CaptureGenerator().format(Format.PCAPNG).byteOrder(ByteOrder.BIG_ENDIAN).packets(500).generate(capture);
+
+        try (final FileByteStream input = new FileByteStream(capture)) {
+            final ParseResult result = Util.parse(input, 0, PCAPNG.FORMAT);
+            assertThat(result.succeeded, is(true));
+            assertThat(result.environment.offset, is(equalTo(capture.length())));
+        }
+        final MultiThreadedPCAPNGPseudonymizer pseudonymizer = new MultiThreadedPCAPNGPseudonymizer(Arrays.asList(pseudonymizer(), pseudonymizer()));
+        assertThat(pseudonymizer.supportsFile(capture), is(true));
+        pseudonymizer.pseudonymize(capture, output);
+        assertThat(output.length(), is(equalTo(capture.length())));
+        assertThat(Files.readAllBytes(output.toPath()), is(not(equalTo(Files.readAllBytes(capture.toPath())))));
+    }
+
+    @Test
+    public void generateSameCaptureForSameSeed() throws IOException {
+        assertThat(generate(new CaptureGenerator().seed(7)), is(equalTo(generate(new CaptureGenerator().seed(7)))));
+        assertThat(generate(new CaptureGenerator().seed(7)), is(not(equalTo(generate(new CaptureGenerator().seed(8))))));
+    }
+
+    @Test
+    public void followMixAndAddressSettings() throws IOException {
+        final CaptureGenerator generator = new CaptureGenerator().packets(1000).addresses(3).sizes(200, 200).ipv6Percentage(0);
+        for (final Traffic traffic : Traffic.values()) {
+            generator.weight(traffic, traffic == Traffic.OTHER_UDP ? 1 : 0);
+        }
+        final File capture = _tempFolder.newFile();
+        generator.generate(capture);
+
+        final List<Integer> clients = new ArrayList<>();
+        for (final byte[] frame : readPCAP(capture)) {
+            assertThat(frame.length, is(equalTo(200)));
+            final long ports = FlowHash.ports(frame, 0, frame.length);
+            assertThat((ports & 0xFFFF) == 443 || ports >>> 16 == 443, is(true));
+            // the clients are in 10.0.0.0/8, at the source or the destination address
+            final ByteBuffer buffer = ByteBuffer.wrap(frame);
+            final int client = frame[26] == 10 ? buffer.getInt(26) : buffer.getInt(30);
+            if (!clients.contains(client)) {
+                clients.add(client);
+            }
+        }
+        assertThat(clients.size(), is(equalTo(3)));
+    }
+
+    private static byte[] generate(final CaptureGenerator generator) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        generator.packets(100).generate(output);
+        return output.toByteArray();
+    }
+
+    private static List<byte[]> readPCAP(final File file) throws IOException {
+        final ByteBuffer input = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        final List<byte[]> frames = new ArrayList<>();
+        int offset = 24;
+        while (offset < input.limit()) {
+            final int length = input.getInt(offset + 8);
+            frames.add(Arrays.copyOfRange(input.array(), offset + 16, offset + 16 + length));
+            offset += 16 + length;
+        }
+        return frames;
+    }
+}
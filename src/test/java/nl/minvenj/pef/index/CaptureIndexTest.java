@@ -0,0 +1,175 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.index;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import static nl.minvenj.pef.TestPseudonymizers.pseudonymizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.minvenj.pef.Settings;
+import nl.minvenj.pef.pseudo.dump.cap.pcap.MultiThreadedPCAPPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcap.SingleThreadedPCAPPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcapng.MultiThreadedPCAPNGPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcapng.SingleThreadedPCAPNGPseudonymizer;
+
+public class CaptureIndexTest {
+
+    private final String _basePath = Settings.getTestBasePath();
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    @Test
+    public void indexEveryPCAPRecord() throws IOException, InvalidKeyException {
+        final File capture = copy("pcaps", "56packets.pcap");
+        final SingleThreadedPCAPPseudonymizer pseudonymizer = new SingleThreadedPCAPPseudonymizer(pseudonymizer());
+        pseudonymizer.setWriteIndex(true);
+        pseudonymizer.pseudonymize(capture, _tempFolder.newFile());
+
+        final ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(capture.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        try (final CaptureIndex index = CaptureIndex.open(CaptureIndex.sidecar(capture))) {
+            assertThat(index.isComplete(), is(true));
+            assertThat(index.isCurrent(capture), is(true));
+            assertThat(index.getFormat(), is(equalTo(CaptureIndex.FORMAT_PCAP)));
+            assertThat(index.size(), is(equalTo(56L)));
+            long offset = 24;
+            for (long entry = 0; entry < index.size(); entry++) {
+                assertThat(index.getOffset(entry), is(equalTo(offset)));
+                assertThat(index.getLength(entry), is(equalTo(16 + data.getInt((int) offset + 8))));
+                assertThat(index.getFrameLength(entry), is(equalTo(data.getInt((int) offset + 8))));
+                final long timestamp = (data.getInt((int) offset) & 0xFFFFFFFFL) * 1000000000L + data.getInt((int) offset + 4) * 1000L;
+                assertThat(index.getTimestamp(entry), is(equalTo(timestamp)));
+                assertThat(index.isPacket(entry), is(true));
+                offset += index.getLength(entry);
+            }
+            assertThat(index.getEndOffset(), is(equalTo(capture.length())));
+        }
+    }
+
+    @Test
+    public void markDnsRecords() throws IOException, InvalidKeyException {
+        for (final String name : new String[] { "1udpdns.pcap", "1tcpdns.pcap", "1udpmdns.pcap", "1udpssdp.pcap" }) {
+            final File capture = copy("pcaps", name);
+            final SingleThreadedPCAPPseudonymizer pseudonymizer = new SingleThreadedPCAPPseudonymizer(pseudonymizer());
+            pseudonymizer.setWriteIndex(true);
+            pseudonymizer.pseudonymize(capture, _tempFolder.newFile());
+            try (final CaptureIndex index = CaptureIndex.open(CaptureIndex.sidecar(capture))) {
+                assertThat(name, index.isDns(0), is(!name.equals("1udpssdp.pcap")));
+            }
+        }
+    }
+
+    @Test
+    public void writeSameIndexWithMultipleThreads() throws IOException, InvalidKeyException {
+        final File capture = copy("pcaps", "56packets.pcap");
+        final SingleThreadedPCAPPseudonymizer single = new SingleThreadedPCAPPseudonymizer(pseudonymizer());
+        single.setWriteIndex(true);
+        single.pseudonymize(capture, _tempFolder.newFile());
+        final byte[] expected = Files.readAllBytes(CaptureIndex.sidecar(capture).toPath());
+
+        final MultiThreadedPCAPPseudonymizer multi = new MultiThreadedPCAPPseudonymizer(Arrays.asList(pseudonymizer(), pseudonymizer()));
+        multi.setWriteIndex(true);
+        multi.pseudonymize(capture, _tempFolder.newFile());
+        assertThat(Files.readAllBytes(CaptureIndex.sidecar(capture).toPath()), is(equalTo(expected)));
+
+        final File pcapng = copy("pcapngs", "many_interfaces.pcapng");
+        final SingleThreadedPCAPNGPseudonymizer singleNg = new SingleThreadedPCAPNGPseudonymizer(pseudonymizer());
+        singleNg.setWriteIndex(true);
+        singleNg.pseudonymize(pcapng, _tempFolder.newFile());
+        final byte[] expectedNg = Files.readAllBytes(CaptureIndex.sidecar(pcapng).toPath());
+
+        final MultiThreadedPCAPNGPseudonymizer multiNg = new MultiThreadedPCAPNGPseudonymizer(Collections.singletonList(pseudonymizer()));
+        multiNg.setWriteIndex(true);
+        multiNg.pseudonymize(pcapng, _tempFolder.newFile());
+        assertThat(Files.readAllBytes(CaptureIndex.sidecar(pcapng).toPath()), is(equalTo(expectedNg)));
+    }
+
+    @Test
+    public void indexEveryPCAPNGBlock() throws IOException, InvalidKeyException {
+        final File capture = copy("pcapngs", "many_interfaces.pcapng");
+        final SingleThreadedPCAPNGPseudonymizer pseudonymizer = new SingleThreadedPCAPNGPseudonymizer(pseudonymizer());
+        pseudonymizer.setWriteIndex(true);
+        pseudonymizer.pseudonymize(capture, _tempFolder.newFile());
+
+        try (final CaptureIndex index = CaptureIndex.open(CaptureIndex.sidecar(capture))) {
+            assertThat(index.getFormat(), is(equalTo(CaptureIndex.FORMAT_PCAPNG)));
+            assertThat(index.getOffset(0), is(equalTo(0L)));
+            // the section header block
+            assertThat(index.isPacket(0), is(false));
+            assertThat(index.getTimestamp(0), is(equalTo(-1L)));
+            int packets = 0;
+            for (long entry = 1; entry < index.size(); entry++) {
+                assertThat(index.getOffset(entry), is(equalTo(index.getOffset(entry - 1) + index.getLength(entry - 1))));
+                if (index.isPacket(entry)) {
+                    packets++;
+                    assertThat(index.getTimestamp(entry), is(greaterThan(0L)));
+                }
+            }
+            assertThat(packets, is(greaterThan(0)));
+            assertThat(index.getEndOffset(), is(equalTo(capture.length())));
+        }
+    }
+
+    @Test
+    public void findAndSplitRecords() throws IOException, InvalidKeyException {
+        final File capture = copy("pcaps", "56packets.pcap");
+        final SingleThreadedPCAPPseudonymizer pseudonymizer = new SingleThreadedPCAPPseudonymizer(pseudonymizer());
+        pseudonymizer.setWriteIndex(true);
+        pseudonymizer.pseudonymize(capture, _tempFolder.newFile());
+
+        try (final CaptureIndex index = CaptureIndex.open(CaptureIndex.sidecar(capture))) {
+            assertThat(index.find(0), is(equalTo(0L)));
+            assertThat(index.find(index.getOffset(10)), is(equalTo(10L)));
+            assertThat(index.find(index.getOffset(10) + 1), is(equalTo(11L)));
+            assertThat(index.find(capture.length()), is(equalTo(56L)));
+
+            final long[] parts = index.split(4);
+            assertThat(parts.length, is(equalTo(5)));
+            assertThat(parts[0], is(equalTo(0L)));
+            assertThat(parts[4], is(equalTo(56L)));
+            for (int i = 1; i < parts.length; i++) {
+                assertThat(parts[i], is(greaterThan(parts[i - 1])));
+            }
+        }
+
+        assertThat(capture.setLastModified(capture.lastModified() - 10000), is(true));
+        try (final CaptureIndex index = CaptureIndex.open(CaptureIndex.sidecar(capture))) {
+            assertThat(index.isCurrent(capture), is(false));
+        }
+    }
+
+    private File copy(final String directory, final String name) throws IOException {
+        final File file = new File(_tempFolder.getRoot(), name);
+        Files.copy(new File(_basePath + "/" + directory, name).toPath(), file.toPath());
+        return file;
+    }
+}
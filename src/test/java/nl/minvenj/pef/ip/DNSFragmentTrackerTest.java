@@ -0,0 +1,408 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.ip;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import static nl.minvenj.pef.ip.FragmentReassemblerTest.fragments;
+import static nl.minvenj.pef.ip.FragmentReassemblerTest.frame;
+import static nl.minvenj.pef.ip.FragmentReassemblerTest.ipv6Fragments;
+import static nl.minvenj.pef.ip.FragmentReassemblerTest.ipv6Packet;
+import static nl.minvenj.pef.ip.FragmentReassemblerTest.packet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import nl.minvenj.pef.metrics.MetricsRegistry;
+import nl.minvenj.pef.pipeline.PacketPipeline;
+import nl.minvenj.pef.pipeline.PacketSink;
+import nl.minvenj.pef.pipeline.PacketSlot;
+import nl.minvenj.pef.pipeline.PseudonymizingProcessor;
+import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.pseudo.cli.FramePseudonymizerBuilder;
+import nl.minvenj.pef.pseudo.dump.cap.OrderedRecordWriter;
+import nl.minvenj.pef.tcp.SegmentStore;
+
+public class DNSFragmentTrackerTest {
+
+    private static final String KEY = "30313233343536373839414243444546";
+    private static final int TCP = 6;
+    private static final int UDP = 17;
+
+    @Test
+    public void recognizeFragmentsOfDNSResponse() {
+        final DNSFragmentTracker tracker = tracker();
+        final List<String> decisions = listen(tracker);
+        final List<byte[]> fragments = fragments(packet(1, 2, 7, UDP, datagram(100, 100)), 1480);
+
+        final int datagram = track(tracker, fragments.get(0));
+        assertThat(datagram, is(greaterThanOrEqualTo(0)));
+        assertThat(track(tracker, fragments.get(1)), is(equalTo(DNSFragmentTracker.DNS)));
+        // a retransmitted fragment of the reassembled datagram
+        assertThat(track(tracker, fragments.get(0)), is(equalTo(DNSFragmentTracker.DNS)));
+        assertThat(decisions, is(equalTo(Arrays.asList(datagram + ":true"))));
+        assertThat(tracker.getDNSDatagrams(), is(equalTo(1L)));
+        assertThat(tracker.getRevisedDecisions(), is(equalTo(0L)));
+        assertThat(tracker.getUndecidedFragments(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void decideFragmentsSeenBeforeTheFirstOnReassembly() {
+        final DNSFragmentTracker tracker = tracker();
+        final List<String> decisions = listen(tracker);
+        final List<byte[]> fragments = fragments(packet(1, 2, 7, UDP, datagram(200, 200)), 1480);
+
+        final int datagram = track(tracker, fragments.get(2));
+        assertThat(track(tracker, fragments.get(1)), is(equalTo(datagram)));
+        assertThat(decisions.isEmpty(), is(true));
+        assertThat(track(tracker, fragments.get(0)), is(equalTo(DNSFragmentTracker.DNS)));
+        assertThat(decisions, is(equalTo(Arrays.asList(datagram + ":true"))));
+        assertThat(tracker.getUndecidedFragments(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void decideOnReassembledDatagram() {
+        final DNSFragmentTracker tracker = tracker();
+        final List<String> decisions = listen(tracker);
+        // the header counts more answers than the message holds, so only the first fragment looks like DNS
+        final List<byte[]> fragments = fragments(packet(1, 2, 7, UDP, datagram(100, 95)), 1480);
+
+        final int datagram = track(tracker, fragments.get(0));
+        assertThat(track(tracker, fragments.get(1)), is(equalTo(DNSFragmentTracker.OTHER)));
+        assertThat(decisions, is(equalTo(Arrays.asList(datagram + ":false"))));
+        assertThat(tracker.getDNSDatagrams(), is(equalTo(0L)));
+        assertThat(tracker.getRevisedDecisions(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void reviseEarlyDecision() {
+        final DNSFragmentTracker tracker = tracker();
+        final List<String> decisions = listen(tracker);
+        final List<byte[]> fragments = fragments(packet(1, 2, 7, UDP, datagram(100, 95)), 1480);
+
+        final int datagram = track(tracker, fragments.get(0));
+        tracker.decide(datagram);
+        assertThat(decisions, is(equalTo(Arrays.asList(datagram + ":true"))));
+        assertThat(tracker.getUndecidedFragments(), is(equalTo(1L)));
+        assertThat(track(tracker, fragments.get(1)), is(equalTo(DNSFragmentTracker.OTHER)));
+        assertThat(tracker.getRevisedDecisions(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void ignoreOtherDatagrams() {
+        final DNSFragmentTracker tracker = tracker();
+        final List<String> decisions = listen(tracker);
+        final byte[] other = datagram(100, 100);
+        Arrays.fill(other, 8, 20, (byte) 0xFF);
+        final List<byte[]> fragments = fragments(packet(1, 2, 7, UDP, other), 1480);
+        final List<byte[]> tcpFragments = fragments(packet(1, 2, 8, TCP, datagram(100, 100)), 1480);
+
+        final int datagram = track(tracker, fragments.get(0));
+        assertThat(track(tracker, fragments.get(1)), is(equalTo(DNSFragmentTracker.OTHER)));
+        assertThat(track(tracker, frame(packet(1, 2, 9, UDP, datagram(1, 1)))), is(equalTo(DNSFragmentTracker.OTHER)));
+        // the first fragment shows that the datagram does not carry UDP
+        assertThat(track(tracker, tcpFragments.get(0)), is(equalTo(DNSFragmentTracker.OTHER)));
+        assertThat(track(tracker, tcpFragments.get(1)), is(equalTo(DNSFragmentTracker.OTHER)));
+        assertThat(decisions.get(0), is(equalTo(datagram + ":false")));
+        assertThat(decisions.size(), is(equalTo(2)));
+        assertThat(tracker.getReassembler().getReassembled(), is(equalTo(2L)));
+        assertThat(tracker.getUndecidedFragments(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void decideRemovedDatagrams() {
+        final DNSFragmentTracker tracker = new DNSFragmentTracker(16, SegmentStore.BLOCK_SIZE * 16, 4);
+        final MetricsRegistry metrics = new MetricsRegistry();
+        tracker.setMetrics(metrics);
+        final List<String> decisions = listen(tracker);
+        final byte[] other = datagram(100, 100);
+        Arrays.fill(other, 8, 20, (byte) 0xFF);
+
+        // the first fragment of the DNS datagram is missing, the other datagram is missing its last fragment
+        final int dns = track(tracker, fragments(packet(1, 2, 7, UDP, datagram(100, 100)), 1480).get(1));
+        final int nonDNS = track(tracker, fragments(packet(1, 2, 8, UDP, other), 1480).get(0));
+        for (int i = 0; i < 6; i++) {
+            assertThat(track(tracker, frame(packet(1, 2, 9, UDP, datagram(1, 1)))), is(equalTo(DNSFragmentTracker.OTHER)));
+        }
+
+        // without its first fragment, a datagram is taken as DNS
+        assertThat(decisions, is(equalTo(Arrays.asList(dns + ":true", nonDNS + ":false"))));
+        assertThat(tracker.getUndecidedFragments(), is(equalTo(2L)));
+        assertThat(metrics.counter(MetricsRegistry.FRAGMENTS_UNDECIDED).get(), is(equalTo(2L)));
+    }
+
+    @Test
+    public void pseudonymizeAllFragments() throws IOException, InvalidKeyException {
+        final byte[] packet = withChecksum(packet(1, 2, 7, UDP, datagram(100, 100)));
+        final List<byte[]> fragments = fragments(packet, 1480);
+        for (final byte[] fragment : fragments) {
+            setHeaderChecksum(fragment);
+        }
+
+        assertSameFrames(pseudonymize(pseudonymizer(null), fragments), fragments);
+
+        final List<byte[]> frames = pseudonymize(pseudonymizer(tracker()), fragments);
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final byte[] addresses = Arrays.copyOfRange(frames.get(0), 26, 34);
+        for (int i = 0; i < frames.size(); i++) {
+            final byte[] frame = frames.get(i);
+            assertThat(Arrays.copyOfRange(frame, 26, 34), is(not(equalTo(Arrays.copyOfRange(fragments.get(i), 26, 34)))));
+            assertThat(Arrays.copyOfRange(frame, 26, 34), is(equalTo(addresses)));
+            assertThat(checksum(frame, 14, 20), is(equalTo(0xFFFF)));
+            payload.write(frame, 34, frame.length - 34);
+        }
+        assertThat(udpChecksum(addresses, payload.toByteArray()), is(equalTo(0xFFFF)));
+    }
+
+    @Test
+    public void pseudonymizeAllIPv6Fragments() throws IOException, InvalidKeyException {
+        final byte[] packet = ipv6Packet(1, 2, UDP, new byte[0], datagram(100, 100));
+        final int checksum = ~udpChecksum(Arrays.copyOfRange(packet, 8, 40), Arrays.copyOfRange(packet, 40, packet.length)) & 0xFFFF;
+        ByteBuffer.wrap(packet).putShort(46, (short) checksum);
+        final List<byte[]> fragments = ipv6Fragments(packet, 0, 6, 7, 1232);
+        assertThat(fragments.size(), is(equalTo(2)));
+
+        assertSameFrames(pseudonymize(pseudonymizer(null), fragments), fragments);
+
+        final List<byte[]> frames = pseudonymize(pseudonymizer(tracker()), fragments);
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final byte[] addresses = Arrays.copyOfRange(frames.get(0), 22, 54);
+        for (int i = 0; i < frames.size(); i++) {
+            final byte[] frame = frames.get(i);
+            assertThat(Arrays.copyOfRange(frame, 22, 54), is(not(equalTo(Arrays.copyOfRange(fragments.get(i), 22, 54)))));
+            assertThat(Arrays.copyOfRange(frame, 22, 54), is(equalTo(addresses)));
+            payload.write(frame, 62, frame.length - 62);
+        }
+        assertThat(udpChecksum(addresses, payload.toByteArray()), is(equalTo(0xFFFF)));
+    }
+
+    @Test
+    public void pseudonymizeFragmentsSeenBeforeTheFirst() throws IOException, InvalidKeyException {
+        final List<byte[]> fragments = new ArrayList<>(fragments(packet(1, 2, 7, UDP, datagram(200, 200)), 1480));
+        Collections.reverse(fragments);
+
+        final List<byte[]> frames = pseudonymize(pseudonymizer(tracker()), fragments);
+        for (int i = 0; i < frames.size(); i++) {
+            assertThat(Arrays.copyOfRange(frames.get(i), 26, 34), is(not(equalTo(Arrays.copyOfRange(fragments.get(i), 26, 34)))));
+            assertThat(Arrays.copyOfRange(frames.get(i), 26, 34), is(equalTo(Arrays.copyOfRange(frames.get(0), 26, 34))));
+        }
+    }
+
+    @Test
+    public void writeHeldFramesInCaptureOrder() throws IOException, InvalidKeyException {
+        final List<byte[]> fragments = fragments(packet(1, 2, 7, UDP, datagram(100, 100)), 1480);
+        final byte[] other = frame(packet(3, 4, 8, TCP, new byte[20]));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final OrderedRecordWriter writer = new OrderedRecordWriter(pseudonymizer(tracker()), output);
+
+        writer.write(fragments.get(1).clone(), 0, fragments.get(1).length, 0, fragments.get(1).length);
+        writer.write(other.clone(), 0, other.length, 0, other.length);
+        assertThat(writer.isHolding(), is(true));
+        assertThat(output.size(), is(equalTo(0)));
+        writer.write(fragments.get(0).clone(), 0, fragments.get(0).length, 0, fragments.get(0).length);
+        assertThat(writer.isHolding(), is(false));
+
+        final List<byte[]> frames = split(output.toByteArray(), Arrays.asList(fragments.get(1), other, fragments.get(0)));
+        assertThat(Arrays.copyOfRange(frames.get(0), 26, 34), is(not(equalTo(Arrays.copyOfRange(fragments.get(1), 26, 34)))));
+        assertThat(Arrays.copyOfRange(frames.get(0), 26, 34), is(equalTo(Arrays.copyOfRange(frames.get(2), 26, 34))));
+        assertThat(frames.get(1), is(equalTo(other)));
+    }
+
+    @Test
+    public void releaseHeldFramesBeyondTheLimit() throws IOException, InvalidKeyException {
+        final FramePseudonymizer pseudonymizer = pseudonymizer(tracker());
+        final byte[] fragment = fragments(packet(1, 2, 7, UDP, datagram(100, 100)), 1480).get(1);
+        final byte[] other = frame(packet(3, 4, 8, TCP, new byte[1400]));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final OrderedRecordWriter writer = new OrderedRecordWriter(pseudonymizer, output);
+
+        writer.write(fragment.clone(), 0, fragment.length, 0, fragment.length);
+        long written = fragment.length;
+        while (written <= pseudonymizer.getHoldLimit()) {
+            assertThat(writer.isHolding(), is(true));
+            writer.write(other.clone(), 0, other.length, 0, other.length);
+            written += other.length;
+        }
+
+        // the fragment is released as DNS, as the first fragment of its datagram was not seen
+        assertThat(writer.isHolding(), is(false));
+        assertThat(pseudonymizer.getHeldFrames(), is(equalTo(0)));
+        assertThat(output.size(), is(equalTo((int) written)));
+        final byte[] frame = Arrays.copyOf(output.toByteArray(), fragment.length);
+        assertThat(Arrays.copyOfRange(frame, 26, 34), is(not(equalTo(Arrays.copyOfRange(fragment, 26, 34)))));
+    }
+
+    @Test
+    public void holdFragmentsInPipeline() throws IOException, InvalidKeyException {
+        final List<byte[]> fragments = fragments(packet(1, 2, 7, UDP, datagram(100, 100)), 1480);
+        final byte[] other = frame(packet(3, 4, 8, TCP, new byte[20]));
+        final List<byte[]> input = Arrays.asList(fragments.get(1), other, fragments.get(0), fragments.get(1), other);
+        final List<byte[]> written = new ArrayList<>();
+        final PacketSink sink = new PacketSink() {
+            @Override
+            public void write(final PacketSlot slot) {
+                written.add(Arrays.copyOfRange(slot.getData(), slot.getFrameOffset(), slot.getFrameOffset() + slot.getFrameLength()));
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        try (final PacketPipeline pipeline = new PacketPipeline(4, 1514, Arrays.asList(new PseudonymizingProcessor(pseudonymizer(tracker()))), sink)) {
+            for (final byte[] frame : input) {
+                final PacketSlot slot = pipeline.claim();
+                System.arraycopy(frame, 0, slot.ensureCapacity(frame.length), 0, frame.length);
+                slot.setFrameLength(frame.length);
+                pipeline.publish(slot);
+            }
+        }
+
+        assertSameFrames(written, pseudonymize(pseudonymizer(tracker()), input));
+        assertThat(Arrays.copyOfRange(written.get(0), 26, 34), is(not(equalTo(Arrays.copyOfRange(fragments.get(1), 26, 34)))));
+        assertThat(written.get(1), is(equalTo(other)));
+    }
+
+    @Test
+    public void pseudonymizeUnfragmentedDNSOnce() throws IOException, InvalidKeyException {
+        final byte[] frame = frame(withChecksum(packet(1, 2, 8, UDP, datagram(2, 2))));
+        final byte[] expected = frame.clone();
+        pseudonymizer(null).pseudonymize(expected, 0, expected.length);
+        final byte[] actual = frame.clone();
+        pseudonymizer(tracker()).pseudonymize(actual, 0, actual.length);
+
+        assertThat(actual, is(not(equalTo(frame))));
+        assertThat(actual, is(equalTo(expected)));
+    }
+
+    private static DNSFragmentTracker tracker() {
+        return new DNSFragmentTracker(16, SegmentStore.BLOCK_SIZE * 16, 1000);
+    }
+
+    private static FramePseudonymizer pseudonymizer(final DNSFragmentTracker tracker) throws IOException, InvalidKeyException {
+        final FramePseudonymizerBuilder builder = new FramePseudonymizerBuilder()
+            .pseudoIPv4(KEY, 16)
+            .pseudoIPv6(KEY, 64)
+            .calcIPv4Checksum()
+            .calcUDPChecksum();
+        return tracker == null ? builder.build() : builder.dnsInFragments(tracker).build();
+    }
+
+    private static int track(final DNSFragmentTracker tracker, final byte[] frame) {
+        return tracker.track(frame, 0, frame.length);
+    }
+
+    private static List<String> listen(final DNSFragmentTracker tracker) {
+        final List<String> decisions = new ArrayList<>();
+        tracker.setDecisionListener(new DecisionListener() {
+            @Override
+            public void decided(final int datagram, final boolean dns) {
+                decisions.add(datagram + ":" + dns);
+            }
+        });
+        return decisions;
+    }
+
+    // pseudonymizes the frames like the dump file writers, holding them back until they are decided
+    private static List<byte[]> pseudonymize(final FramePseudonymizer pseudonymizer, final List<byte[]> frames) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final OrderedRecordWriter writer = new OrderedRecordWriter(pseudonymizer, output);
+        for (final byte[] frame : frames) {
+            writer.write(frame.clone(), 0, frame.length, 0, frame.length);
+        }
+        writer.finish();
+        return split(output.toByteArray(), frames);
+    }
+
+    private static List<byte[]> split(final byte[] output, final List<byte[]> frames) {
+        assertThat(output.length, is(equalTo(totalLength(frames))));
+        final List<byte[]> result = new ArrayList<>();
+        int offset = 0;
+        for (final byte[] frame : frames) {
+            result.add(Arrays.copyOfRange(output, offset, offset + frame.length));
+            offset += frame.length;
+        }
+        return result;
+    }
+
+    private static void assertSameFrames(final List<byte[]> actual, final List<byte[]> expected) {
+        assertThat(actual.size(), is(equalTo(expected.size())));
+        for (int i = 0; i < actual.size(); i++) {
+            assertThat(actual.get(i), is(equalTo(expected.get(i))));
+        }
+    }
+
+    private static int totalLength(final List<byte[]> frames) {
+        int length = 0;
+        for (final byte[] frame : frames) {
+            length += frame.length;
+        }
+        return length;
+    }
+
+    // a UDP datagram from port 53 with a response holding a number of answers, with a zero checksum
+    private static byte[] datagram(final int counted, final int answers) {
+        final ByteBuffer message = ByteBuffer.allocate(8 + 12 + 17 + answers * 16);
+        message.putShort((short) 53).putShort((short) 40000).putShort((short) message.capacity()).putShort((short) 0);
+        message.putShort((short) 0x1234).putShort((short) 0x8180).putShort((short) 1).putShort((short) counted).putInt(0);
+        message.put((byte) 7).put("example".getBytes()).put((byte) 3).put("com".getBytes()).put((byte) 0);
+        message.putShort((short) 1).putShort((short) 1);
+        for (int i = 0; i < answers; i++) {
+            message.putShort((short) 0xC00C).putShort((short) 1).putShort((short) 1).putInt(300).putShort((short) 4).putInt(0x0A000000 + i);
+        }
+        return message.array();
+    }
+
+    private static byte[] withChecksum(final byte[] packet) {
+        final int checksum = ~udpChecksum(Arrays.copyOfRange(packet, 12, 20), Arrays.copyOfRange(packet, 20, packet.length)) & 0xFFFF;
+        ByteBuffer.wrap(packet).putShort(26, (short) checksum);
+        return packet;
+    }
+
+    private static void setHeaderChecksum(final byte[] frame) {
+        ByteBuffer.wrap(frame).putShort(24, (short) (~checksum(frame, 14, 20) & 0xFFFF));
+    }
+
+    // the checksum over the pseudo header and the datagram, which sums the same for IPv4 and IPv6 addresses
+    private static int udpChecksum(final byte[] addresses, final byte[] datagram) {
+        final ByteBuffer data = ByteBuffer.allocate(addresses.length + 4 + datagram.length);
+        data.put(addresses).put((byte) 0).put((byte) UDP).putShort((short) datagram.length).put(datagram);
+        return checksum(data.array(), 0, data.capacity());
+    }
+
+    private static int checksum(final byte[] data, final int offset, final int length) {
+        long sum = 0;
+        for (int i = 0; i < length; i += 2) {
+            sum += (data[offset + i] & 0xFF) << 8 | (i + 1 < length ? data[offset + i + 1] & 0xFF : 0);
+        }
+        while (sum > 0xFFFF) {
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        }
+        return (int) sum;
+    }
+}
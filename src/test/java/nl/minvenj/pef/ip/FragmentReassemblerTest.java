@@ -0,0 +1,327 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.ip;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import nl.minvenj.pef.tcp.SegmentStore;
+
+public class FragmentReassemblerTest {
+
+    private static final int UDP = 17;
+    private static final int IPV6_HEADER_LENGTH = 40;
+
+    @Test
+    public void reassembleFragmentsInAnyOrder() {
+        final RecordingListener listener = new RecordingListener();
+        final FragmentReassembler reassembler = new FragmentReassembler(listener);
+        final byte[] packet = packet(1, 2, 7, UDP, payload(3000));
+        final List<byte[]> fragments = fragments(packet, 1000);
+        assertThat(fragments.size(), is(equalTo(3)));
+
+        final int datagram = process(reassembler, fragments.get(2));
+        assertThat(datagram, is(equalTo(0)));
+        assertThat(process(reassembler, fragments.get(0)), is(equalTo(datagram)));
+        assertThat(reassembler.getProtocol(), is(equalTo(UDP)));
+        assertThat(reassembler.getFragmentOffset(), is(equalTo(0)));
+        assertThat(listener._datagrams.size(), is(equalTo(0)));
+        assertThat(process(reassembler, fragments.get(1)), is(equalTo(datagram)));
+
+        assertThat(listener._datagrams.size(), is(equalTo(1)));
+        assertThat(listener._datagrams.get(0), is(equalTo(packet)));
+        assertThat(reassembler.getReassembled(), is(equalTo(1L)));
+        assertThat(reassembler.getBufferedBytes(), is(equalTo(0L)));
+
+        // the datagram stays known, without being reassembled again
+        assertThat(process(reassembler, fragments.get(1)), is(equalTo(datagram)));
+        assertThat(listener._datagrams.size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void reassembleOverlappingFragments() {
+        final RecordingListener listener = new RecordingListener();
+        final FragmentReassembler reassembler = new FragmentReassembler(listener);
+        final byte[] packet = packet(1, 2, 7, UDP, payload(2000));
+        final List<byte[]> small = fragments(packet, 800);
+        final List<byte[]> large = fragments(packet, 1600);
+
+        process(reassembler, small.get(0));
+        process(reassembler, large.get(1));
+        assertThat(listener._datagrams.size(), is(equalTo(0)));
+        process(reassembler, small.get(1));
+        assertThat(listener._datagrams.size(), is(equalTo(1)));
+        assertThat(listener._datagrams.get(0), is(equalTo(packet)));
+    }
+
+    @Test
+    public void separateDatagrams() {
+        final RecordingListener listener = new RecordingListener();
+        final FragmentReassembler reassembler = new FragmentReassembler(listener);
+        final List<byte[]> first = fragments(packet(1, 2, 7, UDP, payload(1500)), 1000);
+        final List<byte[]> otherId = fragments(packet(1, 2, 8, UDP, payload(1500)), 1000);
+        final List<byte[]> otherDirection = fragments(packet(2, 1, 7, UDP, payload(1500)), 1000);
+
+        assertThat(process(reassembler, first.get(0)), is(equalTo(0)));
+        assertThat(process(reassembler, otherId.get(0)), is(equalTo(1)));
+        assertThat(process(reassembler, otherDirection.get(0)), is(equalTo(2)));
+        assertThat(process(reassembler, first.get(1)), is(equalTo(0)));
+        assertThat(listener._datagrams.size(), is(equalTo(1)));
+        assertThat(reassembler.getDatagrams(), is(equalTo(3)));
+    }
+
+    @Test
+    public void ignoreFramesOtherThanFragments() {
+        final FragmentReassembler reassembler = new FragmentReassembler(new RecordingListener());
+        assertThat(process(reassembler, frame(packet(1, 2, 7, UDP, payload(100)))), is(equalTo(FragmentReassembler.NONE)));
+        assertThat(process(reassembler, new byte[10]), is(equalTo(FragmentReassembler.NONE)));
+        assertThat(reassembler.getDatagrams(), is(equalTo(0)));
+    }
+
+    @Test
+    public void evictLeastRecentlySeenDatagram() {
+        final RecordingListener listener = new RecordingListener();
+        final FragmentReassembler reassembler = new FragmentReassembler(listener, 2, SegmentStore.BLOCK_SIZE * 8, 1000);
+        final List<byte[]> first = fragments(packet(1, 2, 1, UDP, payload(1500)), 1000);
+        final List<byte[]> second = fragments(packet(1, 2, 2, UDP, payload(1500)), 1000);
+        final List<byte[]> third = fragments(packet(1, 2, 3, UDP, payload(1500)), 1000);
+
+        process(reassembler, first.get(0));
+        process(reassembler, second.get(0));
+        process(reassembler, first.get(0));
+        process(reassembler, third.get(0));
+        assertThat(reassembler.getEvicted(), is(equalTo(1L)));
+        assertThat(listener._removed, is(equalTo(Arrays.asList(1))));
+
+        process(reassembler, first.get(1));
+        process(reassembler, second.get(1));
+        assertThat(listener._datagrams.size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void evictWhenStoreIsFull() {
+        final RecordingListener listener = new RecordingListener();
+        // the first fragments take two blocks each, the last fragments one
+        final FragmentReassembler reassembler = new FragmentReassembler(listener, 16, SegmentStore.BLOCK_SIZE * 3, 1000);
+        final List<byte[]> first = fragments(packet(1, 2, 1, UDP, payload(2500)), 2400);
+        final List<byte[]> second = fragments(packet(1, 2, 2, UDP, payload(2500)), 2400);
+
+        process(reassembler, first.get(0));
+        process(reassembler, second.get(0));
+        assertThat(reassembler.getEvicted(), is(equalTo(1L)));
+        process(reassembler, second.get(1));
+        assertThat(listener._datagrams.size(), is(equalTo(1)));
+        assertThat(reassembler.getBufferedBytes(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void expireDatagramsNotSeen() {
+        final RecordingListener listener = new RecordingListener();
+        final FragmentReassembler reassembler = new FragmentReassembler(listener, 16, SegmentStore.BLOCK_SIZE * 8, 10);
+        final List<byte[]> fragments = fragments(packet(1, 2, 1, UDP, payload(1500)), 1000);
+
+        process(reassembler, fragments.get(0));
+        for (int i = 0; i < 20; i++) {
+            process(reassembler, new byte[60]);
+        }
+        assertThat(reassembler.getExpired(), is(equalTo(1L)));
+        assertThat(reassembler.getBufferedBytes(), is(equalTo(0L)));
+        process(reassembler, fragments.get(1));
+        assertThat(listener._datagrams.size(), is(equalTo(0)));
+    }
+
+    @Test
+    public void dropFragmentsNotCaptured() {
+        final RecordingListener listener = new RecordingListener();
+        final FragmentReassembler reassembler = new FragmentReassembler(listener);
+        final List<byte[]> fragments = fragments(packet(1, 2, 1, UDP, payload(1500)), 1000);
+
+        process(reassembler, Arrays.copyOf(fragments.get(0), 100));
+        process(reassembler, fragments.get(1));
+        assertThat(reassembler.getDropped(), is(equalTo(1L)));
+        assertThat(listener._datagrams.size(), is(equalTo(0)));
+        process(reassembler, fragments.get(0));
+        assertThat(listener._datagrams.size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void reassembleIPv6FragmentsAfterUnfragmentableHeaders() {
+        final RecordingListener listener = new RecordingListener();
+        final FragmentReassembler reassembler = new FragmentReassembler(listener);
+        // a hop-by-hop options header before the UDP payload
+        final byte[] hopByHop = new byte[] { UDP, 0, 0, 0, 0, 0, 0, 0 };
+        final byte[] packet = ipv6Packet(1, 2, 0, hopByHop, payload(3200));
+        final List<byte[]> fragments = ipv6Fragments(packet, hopByHop.length, IPV6_HEADER_LENGTH, 7, 1000);
+        assertThat(fragments.size(), is(equalTo(4)));
+
+        final int datagram = process(reassembler, fragments.get(3));
+        assertThat(process(reassembler, fragments.get(1)), is(equalTo(datagram)));
+        assertThat(process(reassembler, fragments.get(0)), is(equalTo(datagram)));
+        assertThat(reassembler.getProtocol(), is(equalTo(UDP)));
+        assertThat(listener._datagrams.size(), is(equalTo(0)));
+        assertThat(process(reassembler, fragments.get(2)), is(equalTo(datagram)));
+
+        assertThat(listener._datagrams.size(), is(equalTo(1)));
+        assertThat(listener._datagrams.get(0), is(equalTo(packet)));
+        assertThat(reassembler.getBufferedBytes(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void separateIPv4AndIPv6Datagrams() {
+        final RecordingListener listener = new RecordingListener();
+        final FragmentReassembler reassembler = new FragmentReassembler(listener);
+        final List<byte[]> ipv4 = fragments(packet(1, 2, 7, UDP, payload(1500)), 1000);
+        final byte[] packet = ipv6Packet(1, 2, UDP, new byte[0], payload(1500));
+        final List<byte[]> ipv6 = ipv6Fragments(packet, 0, 6, 7, 1000);
+
+        final int first = process(reassembler, ipv4.get(0));
+        final int second = process(reassembler, ipv6.get(0));
+        assertThat(second, is(not(equalTo(first))));
+        assertThat(process(reassembler, ipv6.get(1)), is(equalTo(second)));
+        assertThat(listener._datagrams.size(), is(equalTo(1)));
+        assertThat(listener._datagrams.get(0), is(equalTo(packet)));
+    }
+
+    @Test
+    public void ignoreAtomicIPv6Fragments() {
+        final RecordingListener listener = new RecordingListener();
+        final FragmentReassembler reassembler = new FragmentReassembler(listener);
+        final byte[] packet = ipv6Packet(1, 2, UDP, new byte[0], payload(500));
+        final List<byte[]> fragments = ipv6Fragments(packet, 0, 6, 7, 1000);
+        assertThat(fragments.size(), is(equalTo(1)));
+
+        assertThat(process(reassembler, fragments.get(0)), is(equalTo(-1)));
+        assertThat(process(reassembler, frame(packet, 0x86DD)), is(equalTo(-1)));
+        assertThat(reassembler.getBufferedBytes(), is(equalTo(0L)));
+    }
+
+    private static int process(final FragmentReassembler reassembler, final byte[] frame) {
+        return reassembler.process(frame, 0, frame.length);
+    }
+
+    private static byte[] payload(final int length) {
+        final byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (i * 7);
+        }
+        return payload;
+    }
+
+    /**
+     * Returns an IPv4 packet without options from 10.0.0.source to 10.0.0.destination, with a zero checksum.
+     */
+    static byte[] packet(final int source, final int destination, final int identification, final int protocol, final byte[] payload) {
+        final ByteBuffer packet = ByteBuffer.allocate(20 + payload.length);
+        packet.put((byte) 0x45).put((byte) 0).putShort((short) (20 + payload.length)).putShort((short) identification).putShort((short) 0);
+        packet.put((byte) 64).put((byte) protocol).putShort((short) 0);
+        packet.put(new byte[] { 10, 0, 0, (byte) source }).put(new byte[] { 10, 0, 0, (byte) destination });
+        packet.put(payload);
+        return packet.array();
+    }
+
+    /**
+     * Returns the ethernet frames holding the fragments of an IPv4 packet without options, with zero checksums.
+     */
+    static List<byte[]> fragments(final byte[] packet, final int fragmentSize) {
+        final List<byte[]> fragments = new ArrayList<>();
+        for (int offset = 20; offset < packet.length; offset += fragmentSize) {
+            final int length = Math.min(fragmentSize, packet.length - offset);
+            final byte[] fragment = new byte[20 + length];
+            System.arraycopy(packet, 0, fragment, 0, 20);
+            System.arraycopy(packet, offset, fragment, 20, length);
+            final int flags = (offset + length < packet.length ? 0x2000 : 0) | (offset - 20) / 8;
+            ByteBuffer.wrap(fragment).putShort(2, (short) fragment.length).putShort(6, (short) flags);
+            fragments.add(frame(fragment));
+        }
+        return fragments;
+    }
+
+    /**
+     * Returns an ethernet frame holding an IPv4 packet.
+     */
+    static byte[] frame(final byte[] packet) {
+        return frame(packet, 0x0800);
+    }
+
+    /**
+     * Returns an IPv6 packet from fd00::source to fd00::destination, with unfragmentable extension headers.
+     */
+    static byte[] ipv6Packet(final int source, final int destination, final int nextHeader, final byte[] headers, final byte[] payload) {
+        final ByteBuffer packet = ByteBuffer.allocate(IPV6_HEADER_LENGTH + headers.length + payload.length);
+        packet.putInt(0x60000000).putShort((short) (headers.length + payload.length)).put((byte) nextHeader).put((byte) 64);
+        packet.putLong(0xFD00000000000000L).putLong(source).putLong(0xFD00000000000000L).putLong(destination);
+        packet.put(headers).put(payload);
+        return packet.array();
+    }
+
+    /**
+     * Returns the ethernet frames holding the fragments of an IPv6 packet, inserting a fragment header after the
+     * unfragmentable headers. The next header field is the offset of the field in the packet naming the payload.
+     */
+    static List<byte[]> ipv6Fragments(final byte[] packet, final int unfragmentable, final int nextHeaderField, final int identification, final int fragmentSize) {
+        final List<byte[]> fragments = new ArrayList<>();
+        final int start = IPV6_HEADER_LENGTH + unfragmentable;
+        for (int offset = start; offset < packet.length; offset += fragmentSize) {
+            final int length = Math.min(fragmentSize, packet.length - offset);
+            final ByteBuffer fragment = ByteBuffer.allocate(start + 8 + length);
+            fragment.put(packet, 0, start);
+            final int flags = (offset - start) | (offset + length < packet.length ? 1 : 0);
+            fragment.put(packet[nextHeaderField]).put((byte) 0).putShort((short) flags).putInt(identification);
+            fragment.put(packet, offset, length);
+            fragment.putShort(4, (short) (fragment.capacity() - IPV6_HEADER_LENGTH)).put(nextHeaderField, (byte) 44);
+            fragments.add(frame(fragment.array(), 0x86DD));
+        }
+        return fragments;
+    }
+
+    /**
+     * Returns an ethernet frame holding an IP packet.
+     */
+    static byte[] frame(final byte[] packet, final int etherType) {
+        final ByteBuffer frame = ByteBuffer.allocate(14 + packet.length);
+        frame.put(new byte[12]).putShort((short) etherType).put(packet);
+        return frame.array();
+    }
+
+    private static class RecordingListener implements DatagramListener {
+
+        private final List<byte[]> _datagrams = new ArrayList<>();
+        private final List<Integer> _removed = new ArrayList<>();
+
+        @Override
+        public void opened(final int datagram) {
+        }
+
+        @Override
+        public void reassembled(final int datagram, final byte[] data, final int offset, final int length) {
+            _datagrams.add(Arrays.copyOfRange(data, offset, offset + length));
+        }
+
+        @Override
+        public void removed(final int datagram) {
+            _removed.add(datagram);
+        }
+    }
+}
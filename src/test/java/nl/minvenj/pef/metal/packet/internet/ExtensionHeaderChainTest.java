@@ -0,0 +1,90 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.metal.packet.internet;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ExtensionHeaderChainTest {
+
+    private static final int UDP = 17;
+
+    @Test
+    public void walkAllExtensionHeaders() {
+        final ByteBuffer headers = ByteBuffer.allocate(8 + 16 + 8 + 8 + 8 + 12);
+        headers.put(header(43, 0)).put(header(135, 1)).put(header(139, 0)).put(header(140, 0)).put(header(51, 0));
+        headers.put((byte) UDP).put((byte) 1).put(new byte[10]);
+        final byte[] packet = packet(0, headers.array());
+
+        final long walk = ExtensionHeaderChain.walk(packet, 0, packet.length);
+        assertThat(ExtensionHeaderChain.protocol(walk), is(equalTo(UDP)));
+        assertThat(ExtensionHeaderChain.offset(walk), is(equalTo(packet.length)));
+        assertThat(ExtensionHeaderChain.isFragment(walk), is(false));
+    }
+
+    @Test
+    public void stopAtEncapsulatingSecurityPayload() {
+        final byte[] packet = packet(60, ByteBuffer.allocate(24).put(header(50, 0)).put(header(UDP, 0)).array());
+
+        final long walk = ExtensionHeaderChain.walk(packet, 0, packet.length);
+        assertThat(ExtensionHeaderChain.protocol(walk), is(equalTo(50)));
+        assertThat(ExtensionHeaderChain.offset(walk), is(equalTo(48)));
+    }
+
+    @Test
+    public void stopAfterFragmentHeaderOfLaterFragment() {
+        final byte[] first = packet(44, new byte[] { 60, 0, 0, 1, 0, 0, 0, 7, UDP, 0, 0, 0, 0, 0, 0, 0 });
+        final byte[] later = packet(44, new byte[] { 60, 0, 0, 8, 0, 0, 0, 7, UDP, 0, 0, 0, 0, 0, 0, 0 });
+
+        final long firstWalk = ExtensionHeaderChain.walk(first, 0, first.length);
+        assertThat(ExtensionHeaderChain.protocol(firstWalk), is(equalTo(UDP)));
+        assertThat(ExtensionHeaderChain.isFragment(firstWalk), is(true));
+        assertThat(ExtensionHeaderChain.isLaterFragment(firstWalk), is(false));
+        final long laterWalk = ExtensionHeaderChain.walk(later, 0, later.length);
+        assertThat(ExtensionHeaderChain.protocol(laterWalk), is(equalTo(60)));
+        assertThat(ExtensionHeaderChain.offset(laterWalk), is(equalTo(48)));
+        assertThat(ExtensionHeaderChain.isLaterFragment(laterWalk), is(true));
+    }
+
+    @Test
+    public void stopAtEndOfTruncatedPacket() {
+        final byte[] packet = packet(0, header(60, 0));
+
+        final long walk = ExtensionHeaderChain.walk(packet, 0, packet.length);
+        assertThat(ExtensionHeaderChain.protocol(walk), is(equalTo(60)));
+        assertThat(ExtensionHeaderChain.offset(walk), is(equalTo(packet.length)));
+    }
+
+    // an IPv6 header followed by the given bytes
+    private static byte[] packet(final int nextHeader, final byte[] headers) {
+        final ByteBuffer packet = ByteBuffer.allocate(40 + headers.length);
+        packet.putInt(0x60000000).putShort((short) headers.length).put((byte) nextHeader).put((byte) 64);
+        return packet.put(new byte[32]).put(headers).array();
+    }
+
+    // an options header of (length + 1) * 8 bytes
+    private static byte[] header(final int nextHeader, final int length) {
+        final byte[] header = new byte[(length + 1) * 8];
+        header[0] = (byte) nextHeader;
+        header[1] = (byte) length;
+        return header;
+    }
+}
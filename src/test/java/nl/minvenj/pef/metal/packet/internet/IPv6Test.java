@@ -0,0 +1,165 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.metal.packet.internet;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import io.parsingdata.metal.data.ParseGraph;
+import io.parsingdata.metal.data.ParseResult;
+import nl.minvenj.pef.serialize.constraint.Constraints;
+import nl.minvenj.pef.util.Util;
+
+public class IPv6Test {
+
+    private static final int HOP_BY_HOP = 0;
+    private static final int ROUTING = 43;
+    private static final int FRAGMENT = 44;
+    private static final int ESP = 50;
+    private static final int AUTHENTICATION = 51;
+    private static final int DESTINATION_OPTIONS = 60;
+    private static final int UDP = 17;
+
+    @Test
+    public void parseExtensionHeaderChain() throws IOException {
+        final ByteBuffer headers = ByteBuffer.allocate(8 + 16 + 12 + 8);
+        headers.put(option(ROUTING, 0));
+        headers.put(option(AUTHENTICATION, 1));
+        headers.put((byte) DESTINATION_OPTIONS).put((byte) 1).put(new byte[10]);
+        headers.put(option(UDP, 0));
+        final ParseResult result = parse(packet(HOP_BY_HOP, headers.array(), udp(dns())));
+
+        assertThat(result.succeeded, is(true));
+        assertThat(Constraints.IPV6_UDP_DNS.isSatisfiedBy(result.environment), is(true));
+        final ParseGraph values = result.environment.order;
+        assertThat(values.get("nextheader").asNumeric().intValue(), is(equalTo(UDP)));
+        assertThat(values.get("ahdata").getValue().length, is(equalTo(10)));
+        assertThat(values.get("hdrextdata").getValue().length, is(equalTo(6)));
+    }
+
+    @Test
+    public void parseLongExtensionHeaderChain() throws IOException {
+        final int count = 500;
+        final ByteBuffer headers = ByteBuffer.allocate(count * 8);
+        for (int i = 1; i < count; i++) {
+            headers.put(option(DESTINATION_OPTIONS, 0));
+        }
+        headers.put(option(UDP, 0));
+        final ParseResult result = parse(packet(DESTINATION_OPTIONS, headers.array(), udp(dns())));
+
+        assertThat(result.succeeded, is(true));
+        assertThat(Constraints.IPV6_UDP_DNS.isSatisfiedBy(result.environment), is(true));
+        assertThat(result.environment.order.get("nextheader").asNumeric().intValue(), is(equalTo(UDP)));
+    }
+
+    @Test
+    public void stopExtensionHeaderChainAtESP() throws IOException {
+        final byte[] encrypted = new byte[40];
+        // looks like an extension header, but is encrypted
+        encrypted[8] = (byte) UDP;
+        final ParseResult result = parse(packet(HOP_BY_HOP, option(ESP, 0), encrypted));
+
+        assertThat(result.succeeded, is(true));
+        final ParseGraph values = result.environment.order;
+        assertThat(values.get("nextheader").asNumeric().intValue(), is(equalTo(ESP)));
+        assertThat(values.get("espdata").getValue().length, is(equalTo(32)));
+        assertThat(values.get("sourceport"), is(nullValue()));
+    }
+
+    @Test
+    public void parseFragmentsWithoutTheirData() throws IOException {
+        final byte[] datagram = udp(dns());
+        final ParseResult first = parse(packet(FRAGMENT, fragmentHeader(UDP, 0, true), datagram));
+        final ParseResult last = parse(packet(FRAGMENT, fragmentHeader(UDP, 8, false), datagram));
+
+        for (final ParseResult result : new ParseResult[] { first, last }) {
+            assertThat(result.succeeded, is(true));
+            assertThat(Constraints.IPV6_UDP_DNS.isSatisfiedBy(result.environment), is(false));
+            assertThat(result.environment.order.get("fragmentdata").getValue().length, is(equalTo(datagram.length)));
+            assertThat(result.environment.order.get("fragmentidentification").asNumeric().intValue(), is(equalTo(7)));
+        }
+    }
+
+    @Test
+    public void parseAtomicFragment() throws IOException {
+        final ParseResult result = parse(packet(FRAGMENT, fragmentHeader(UDP, 0, false), udp(dns())));
+
+        assertThat(result.succeeded, is(true));
+        assertThat(Constraints.IPV6_UDP_DNS.isSatisfiedBy(result.environment), is(true));
+        assertThat(result.environment.order.get("fragmentdata"), is(nullValue()));
+    }
+
+    @Test
+    public void parsePacketQuotedInICMPv6() throws IOException {
+        final byte[] quoted = packet(UDP, new byte[0], udp(dns()));
+        final ByteBuffer message = ByteBuffer.allocate(8 + quoted.length);
+        // destination unreachable, port unreachable
+        message.put((byte) 1).put((byte) 4).putShort((short) 0).putInt(0).put(quoted);
+        final ParseResult result = parse(packet(Protocol.ICMPV6, new byte[0], message.array()));
+
+        assertThat(result.succeeded, is(true));
+        assertThat(Constraints.ICMPV6_DNS.isSatisfiedBy(result.environment), is(true));
+        assertThat(Constraints.IPV6_UDP_DNS.isSatisfiedBy(result.environment), is(true));
+    }
+
+    private static ParseResult parse(final byte[] packet) throws IOException {
+        final ParseResult result = Util.parse(packet, IPv6.FORMAT);
+        assertThat(result.environment.offset, is(equalTo(result.succeeded ? (long) packet.length : 0L)));
+        return result;
+    }
+
+    // an IPv6 packet with extension headers
+    private static byte[] packet(final int nextHeader, final byte[] headers, final byte[] payload) {
+        final ByteBuffer packet = ByteBuffer.allocate(40 + headers.length + payload.length);
+        packet.putInt(0x60000000).putShort((short) (headers.length + payload.length)).put((byte) nextHeader).put((byte) 64);
+        packet.putLong(0xFD00000000000000L).putLong(1).putLong(0xFD00000000000000L).putLong(2);
+        packet.put(headers).put(payload);
+        return packet.array();
+    }
+
+    // an options header of (length + 1) * 8 bytes
+    private static byte[] option(final int nextHeader, final int length) {
+        final byte[] header = new byte[(length + 1) * 8];
+        header[0] = (byte) nextHeader;
+        header[1] = (byte) length;
+        return header;
+    }
+
+    private static byte[] fragmentHeader(final int nextHeader, final int offset, final boolean more) {
+        return ByteBuffer.allocate(8).put((byte) nextHeader).put((byte) 0).putShort((short) (offset | (more ? 1 : 0))).putInt(7).array();
+    }
+
+    // a UDP datagram from port 53, with a zero checksum
+    private static byte[] udp(final byte[] message) {
+        return ByteBuffer.allocate(8 + message.length).putShort((short) 53).putShort((short) 40000).putShort((short) (8 + message.length)).putShort((short) 0).put(message).array();
+    }
+
+    // a query for example.com
+    private static byte[] dns() {
+        final ByteBuffer message = ByteBuffer.allocate(12 + 17);
+        message.putShort((short) 0x1234).putShort((short) 0x0100).putShort((short) 1).putShort((short) 0).putInt(0);
+        message.put((byte) 7).put("example".getBytes()).put((byte) 3).put("com".getBytes()).put((byte) 0);
+        message.putShort((short) 1).putShort((short) 1);
+        return message.array();
+    }
+}
@@ -78,4 +78,14 @@ public class ArrayByteStreamTest {
 
         assertThat(bytesRead, is(equalTo(0)));
     }
+
+    @Test
+    public void testRange() throws IOException {
+        final ArrayByteStream byteStream = new ArrayByteStream(new byte[]{1, 2, 3, 4}, 1, 2);
+        final byte[] readBytes = new byte[2];
+
+        assertThat(byteStream.read(0, readBytes), is(equalTo(2)));
+        assertThat(readBytes, is(equalTo(new byte[]{2, 3})));
+        assertThat(byteStream.read(1, readBytes), is(equalTo(0)));
+    }
 }
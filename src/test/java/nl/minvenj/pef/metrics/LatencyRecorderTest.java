@@ -0,0 +1,101 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.metrics;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyRecorderTest {
+
+    @Test
+    public void reportPercentilesWithinBucketPrecision() {
+        final LatencyRecorder recorder = new LatencyRecorder();
+        for (int i = 1; i <= 100000; i++) {
+            recorder.record(i * 10L);
+        }
+        assertThat(recorder.getCount(), is(equalTo(100000L)));
+        assertThat(recorder.getMax(), is(equalTo(1000000L)));
+        assertThat(recorder.getMean(), is(equalTo(500005.0)));
+        assertWithin(recorder.getValueAtPercentile(50), 500000);
+        assertWithin(recorder.getValueAtPercentile(99), 990000);
+        assertWithin(recorder.getValueAtPercentile(99.9), 999000);
+        assertThat(recorder.getValueAtPercentile(100), is(equalTo(1000000L)));
+        assertThat(recorder.getValueAtPercentile(0), is(equalTo(10L)));
+    }
+
+    @Test
+    public void coverAllValuesWithContiguousBuckets() {
+        assertThat(LatencyRecorder.index(0), is(equalTo(0)));
+        assertThat(LatencyRecorder.index(31), is(equalTo(31)));
+        assertThat(LatencyRecorder.index(32), is(equalTo(32)));
+        assertThat(LatencyRecorder.index(Long.MAX_VALUE), is(equalTo((64 - 5) * 32 - 1)));
+        final Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            final long value = random.nextLong() >>> 1 + random.nextInt(63);
+            final int index = LatencyRecorder.index(value);
+            assertThat(LatencyRecorder.highestValue(index), is(greaterThanOrEqualTo(value)));
+            assertThat(index == 0 || LatencyRecorder.highestValue(index - 1) < value, is(true));
+        }
+    }
+
+    @Test
+    public void reportNothingWhenEmpty() {
+        final LatencyRecorder recorder = new LatencyRecorder();
+        assertThat(recorder.getValueAtPercentile(99), is(equalTo(0L)));
+        assertThat(recorder.getMean(), is(equalTo(0.0)));
+    }
+
+    @Test
+    public void countFromManyThreads() throws InterruptedException {
+        final Counter counter = new Counter();
+        final LatencyRecorder recorder = new LatencyRecorder();
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        counter.increment();
+                        recorder.record(j);
+                    }
+                }
+            });
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(counter.get(), is(equalTo(400000L)));
+        assertThat(recorder.getCount(), is(equalTo(400000L)));
+        assertThat(recorder.getMax(), is(equalTo(99999L)));
+    }
+
+    private static void assertWithin(final long actual, final long expected) {
+        assertThat(actual, is(greaterThanOrEqualTo(expected)));
+        assertThat(actual, is(lessThanOrEqualTo(expected + expected / 32)));
+    }
+}
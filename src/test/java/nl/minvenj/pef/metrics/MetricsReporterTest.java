@@ -0,0 +1,77 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.metrics;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MetricsReporterTest {
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    @Test
+    public void appendRowPerMetricToCsv() throws IOException {
+        final MetricsRegistry registry = new MetricsRegistry();
+        registry.counter(MetricsRegistry.PACKETS_PSEUDONYMIZED).add(42);
+        registry.recorder(MetricsRegistry.STAGE_PARSE).record(1000);
+        final File csv = new File(_tempFolder.getRoot(), "metrics.csv");
+
+        new MetricsReporter(registry, csv).close();
+        registry.counter(MetricsRegistry.PACKETS_UNPARSED).increment();
+        new MetricsReporter(registry, csv).close();
+
+        final List<String> lines = Files.readAllLines(csv.toPath(), StandardCharsets.US_ASCII);
+        assertThat(lines.size(), is(equalTo(6)));
+        assertThat(lines.get(0), is(equalTo("time,metric,count,mean,p50,p99,p999,max")));
+        assertThat(lines.get(1).substring(lines.get(1).indexOf(',')), is(equalTo(",packets.pseudonymized,42,,,,,")));
+        assertThat(lines.get(2).substring(lines.get(2).indexOf(',')), is(equalTo(",stage.parse,1,1000.0,1000,1000,1000,1000")));
+        assertThat(lines.get(4).substring(lines.get(4).indexOf(',')), is(equalTo(",packets.unparsed,1,,,,,")));
+    }
+
+    @Test
+    public void exposeMetricsWithJmx() throws JMException {
+        final MetricsRegistry registry = new MetricsRegistry();
+        registry.counter(MetricsRegistry.PACKETS_NON_ETHERNET).add(3);
+        final ObjectName name = MetricsMBean.register(registry, "nl.minvenj.pef:type=Metrics,name=test");
+        try {
+            registry.recorder(MetricsRegistry.STAGE_WRITE).record(200);
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertThat(server.getAttribute(name, MetricsRegistry.PACKETS_NON_ETHERNET), is(equalTo((Object) 3L)));
+            assertThat(server.getAttribute(name, MetricsRegistry.STAGE_WRITE + ".p99"), is(equalTo((Object) 200L)));
+            assertThat(server.getMBeanInfo(name).getAttributes().length, is(equalTo(7)));
+        }
+        finally {
+            MetricsMBean.unregister(name);
+        }
+    }
+}
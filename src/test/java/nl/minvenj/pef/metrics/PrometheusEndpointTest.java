@@ -0,0 +1,82 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.metrics;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class PrometheusEndpointTest {
+
+    @Test
+    public void formatMetricsInTextFormat() {
+        final MetricsRegistry registry = new MetricsRegistry(16);
+        registry.counter(MetricsRegistry.PACKETS_PSEUDONYMIZED).add(7);
+        registry.gauge("pipeline.in_flight", new Gauge() {
+            @Override
+            public long getValue() {
+                return 3;
+            }
+        });
+        final LatencyRecorder recorder = registry.recorder(MetricsRegistry.STAGE_PARSE);
+        recorder.record(1500);
+        recorder.record(30000);
+        recorder.record(2000000000L);
+
+        final String text = PrometheusEndpoint.format(registry);
+        assertThat(text, containsString("# TYPE pef_packets_pseudonymized_total counter\npef_packets_pseudonymized_total 7\n"));
+        assertThat(text, containsString("# TYPE pef_pipeline_in_flight gauge\npef_pipeline_in_flight 3\n"));
+        assertThat(text, containsString("# TYPE pef_stage_parse_seconds histogram\n"));
+        assertThat(text, containsString("pef_stage_parse_seconds_bucket{le=\"0.000001\"} 0\n"));
+        assertThat(text, containsString("pef_stage_parse_seconds_bucket{le=\"0.0000025\"} 1\n"));
+        assertThat(text, containsString("pef_stage_parse_seconds_bucket{le=\"0.00005\"} 2\n"));
+        assertThat(text, containsString("pef_stage_parse_seconds_bucket{le=\"1\"} 2\n"));
+        assertThat(text, containsString("pef_stage_parse_seconds_bucket{le=\"+Inf\"} 3\n"));
+        assertThat(text, containsString("pef_stage_parse_seconds_sum 2.0000315\npef_stage_parse_seconds_count 3\n"));
+        assertThat(text, containsString("pef_metrics_sample_interval 16\n"));
+        assertThat(text, containsString("# TYPE pef_gc_time_seconds_total counter\n"));
+    }
+
+    @Test
+    public void serveMetricsOverHttp() throws IOException {
+        final MetricsRegistry registry = new MetricsRegistry();
+        registry.counter(MetricsRegistry.FFX_CACHE_HITS).add(12);
+        try (final PrometheusEndpoint endpoint = new PrometheusEndpoint(registry, new InetSocketAddress("localhost", 0))) {
+            final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + endpoint.getAddress().getPort() + PrometheusEndpoint.PATH).openConnection();
+            assertThat(connection.getResponseCode(), is(equalTo(200)));
+            assertThat(connection.getContentType(), containsString("version=0.0.4"));
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (final InputStream input = connection.getInputStream()) {
+                final byte[] buffer = new byte[4096];
+                for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+                    body.write(buffer, 0, read);
+                }
+            }
+            assertThat(new String(body.toByteArray(), StandardCharsets.UTF_8), containsString("\npef_ffx_cache_hits_total 12\n"));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.output;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AsyncFileOutputStreamTest {
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    @Test
+    public void writeAllDataInOrder() throws IOException {
+        final File file = _tempFolder.newFile();
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final Random random = new Random(1);
+        // small buffers, so the writes span and fill many of them
+        try (final OutputStream output = new AsyncFileOutputStream(file, 2, 4096)) {
+            for (int i = 0; i < 2000; i++) {
+                final byte[] data = new byte[random.nextInt(i % 100 == 0 ? 20000 : 100)];
+                random.nextBytes(data);
+                output.write(data);
+                expected.write(data);
+                output.write(i);
+                expected.write(i);
+            }
+        }
+
+        assertThat(Files.readAllBytes(file.toPath()), is(equalTo(expected.toByteArray())));
+    }
+
+    @Test
+    public void writeBufferedDataOnFlush() throws IOException {
+        final File file = _tempFolder.newFile();
+        try (final OutputStream output = new AsyncFileOutputStream(file, 3, 4096)) {
+            output.write(new byte[] { 1, 2, 3 });
+            output.flush();
+            assertThat(Files.readAllBytes(file.toPath()), is(equalTo(new byte[] { 1, 2, 3 })));
+
+            output.write(new byte[10000]);
+            output.flush();
+            assertThat(file.length(), is(equalTo(10003L)));
+        }
+    }
+
+    @Test
+    public void reportWriteFailure() throws IOException {
+        final File full = new File("/dev/full");
+        assumeTrue(full.exists());
+        final OutputStream output = new AsyncFileOutputStream(full, 2, 4096);
+        try {
+            for (int i = 0; i < 100; i++) {
+                output.write(new byte[4096]);
+            }
+            fail("expected writing to a full device to fail");
+        }
+        catch (final IOException e) {
+            assertThat(e.getMessage().startsWith("writing the output failed"), is(true));
+        }
+        try {
+            output.close();
+            fail("expected the failure on close");
+        }
+        catch (final IOException e) {
+            assertThat(e.getMessage().startsWith("writing the output failed"), is(true));
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.output;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import static nl.minvenj.pef.TestPseudonymizers.pseudonymizer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.minvenj.pef.Settings;
+import nl.minvenj.pef.pseudo.dump.cap.pcap.MultiThreadedPCAPPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcap.PCAPPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcap.SingleThreadedPCAPPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcapng.MultiThreadedPCAPNGPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcapng.PCAPNGPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcapng.SingleThreadedPCAPNGPseudonymizer;
+
+public class CheckpointingOutputStreamTest {
+
+    private static final String FINGERPRINT = "test";
+    // the offset of the 12th enhanced packet block of many_interfaces.pcapng
+    private static final long PCAPNG_OFFSET = 5044;
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    @Test
+    public void resumeSingleThreadedPCAP() throws IOException, InvalidKeyException {
+        final SingleThreadedPCAPPseudonymizer pseudonymizer = new SingleThreadedPCAPPseudonymizer(pseudonymizer());
+        final File inFile = new File(Settings.getTestBasePath(), "pcaps/56packets.pcap");
+        checkResume(pseudonymizer, new SingleThreadedPCAPPseudonymizer(pseudonymizer()), inFile, pcapRecordOffset(inFile, 20));
+    }
+
+    @Test
+    public void resumeMultiThreadedPCAP() throws IOException, InvalidKeyException {
+        final SingleThreadedPCAPPseudonymizer pseudonymizer = new SingleThreadedPCAPPseudonymizer(pseudonymizer());
+        final MultiThreadedPCAPPseudonymizer resuming = new MultiThreadedPCAPPseudonymizer(Arrays.asList(pseudonymizer(), pseudonymizer(), pseudonymizer()));
+        final File inFile = new File(Settings.getTestBasePath(), "pcaps/56packets.pcap");
+        checkResume(pseudonymizer, resuming, inFile, pcapRecordOffset(inFile, 20));
+    }
+
+    @Test
+    public void resumeSingleThreadedPCAPNG() throws IOException, InvalidKeyException {
+        final SingleThreadedPCAPNGPseudonymizer pseudonymizer = new SingleThreadedPCAPNGPseudonymizer(pseudonymizer());
+        checkResume(pseudonymizer, new SingleThreadedPCAPNGPseudonymizer(pseudonymizer()), new File(Settings.getTestBasePath(), "pcapngs/many_interfaces.pcapng"), PCAPNG_OFFSET);
+    }
+
+    @Test
+    public void resumeMultiThreadedPCAPNG() throws IOException, InvalidKeyException {
+        final SingleThreadedPCAPNGPseudonymizer pseudonymizer = new SingleThreadedPCAPNGPseudonymizer(pseudonymizer());
+        final MultiThreadedPCAPNGPseudonymizer resuming = new MultiThreadedPCAPNGPseudonymizer(Arrays.asList(pseudonymizer(), pseudonymizer()));
+        checkResume(pseudonymizer, resuming, new File(Settings.getTestBasePath(), "pcapngs/many_interfaces.pcapng"), PCAPNG_OFFSET);
+    }
+
+    @Test
+    public void writeCheckpointsWhileWritingAndRemoveWhenFinished() throws IOException, InvalidKeyException {
+        final File inFile = new File(Settings.getTestBasePath(), "pcaps/56packets.pcap");
+        final File expected = _tempFolder.newFile();
+        final File actual = _tempFolder.newFile();
+        new SingleThreadedPCAPPseudonymizer(pseudonymizer()).pseudonymize(inFile, expected);
+
+        final CheckpointingOutputStream output = new CheckpointingOutputStream(actual, inFile, new CheckpointSettings(FINGERPRINT).interval(1));
+        assertThat(output.getResumed(), is(nullValue()));
+        output.write(new byte[100]);
+        output.commit(100, 0);
+        final Checkpoint checkpoint = Checkpoint.read(Checkpoint.fileFor(actual));
+        assertThat(checkpoint.getInputOffset(), is(equalTo(100L)));
+        assertThat(checkpoint.getOutputLength(), is(equalTo(100L)));
+        assertThat(checkpoint.getInputLength(), is(equalTo(inFile.length())));
+        assertThat(checkpoint.getFingerprint(), is(equalTo(FINGERPRINT)));
+        output.finish();
+        assertThat(Checkpoint.fileFor(actual).exists(), is(false));
+
+        final SingleThreadedPCAPPseudonymizer pseudonymizer = new SingleThreadedPCAPPseudonymizer(pseudonymizer());
+        pseudonymizer.setCheckpointSettings(new CheckpointSettings(FINGERPRINT).interval(1));
+        pseudonymizer.pseudonymize(inFile, actual);
+        assertThat(Files.readAllBytes(actual.toPath()), is(equalTo(Files.readAllBytes(expected.toPath()))));
+        assertThat(Checkpoint.fileFor(actual).exists(), is(false));
+    }
+
+    @Test
+    public void refuseToResumeWithOtherConfiguration() throws IOException {
+        final File inFile = new File(Settings.getTestBasePath(), "pcaps/56packets.pcap");
+        final File outFile = _tempFolder.newFile();
+        interrupt(inFile, outFile, new byte[1000], 1000);
+        try {
+            new CheckpointingOutputStream(outFile, inFile, new CheckpointSettings("other").resume(true));
+            fail("expected the checkpoint to be refused");
+        }
+        catch (final IOException e) {
+            assertThat(e.getMessage(), containsString("another configuration"));
+        }
+    }
+
+    @Test
+    public void refuseToResumeChangedOutput() throws IOException {
+        final File inFile = new File(Settings.getTestBasePath(), "pcaps/56packets.pcap");
+        final File outFile = _tempFolder.newFile();
+        interrupt(inFile, outFile, new byte[1000], 1000);
+        try (final FileOutputStream output = new FileOutputStream(outFile)) {
+            output.write(new byte[999]);
+            output.write(1);
+        }
+        try {
+            new CheckpointingOutputStream(outFile, inFile, new CheckpointSettings(FINGERPRINT).resume(true));
+            fail("expected the checkpoint to be refused");
+        }
+        catch (final IOException e) {
+            assertThat(e.getMessage(), containsString("differs"));
+        }
+    }
+
+    private void checkResume(final Object complete, final Object resuming, final File inFile, final long offset) throws IOException {
+        final File expected = _tempFolder.newFile();
+        final File actual = _tempFolder.newFile();
+        pseudonymize(complete, inFile, expected, null);
+
+        // the pseudonymized records are as long as the originals, so the output at an input offset is as long as the offset
+        interrupt(inFile, actual, Arrays.copyOf(Files.readAllBytes(expected.toPath()), (int) offset), offset);
+        pseudonymize(resuming, inFile, actual, new CheckpointSettings(FINGERPRINT).resume(true));
+
+        assertThat(Files.readAllBytes(actual.toPath()), is(equalTo(Files.readAllBytes(expected.toPath()))));
+        assertThat(Checkpoint.fileFor(actual).exists(), is(false));
+    }
+
+    // leaves an output and checkpoint as a run that was killed after the checkpoint at an input offset
+    private static void interrupt(final File inFile, final File outFile, final byte[] committed, final long inputOffset) throws IOException {
+        final CheckpointingOutputStream output = new CheckpointingOutputStream(outFile, inFile, new CheckpointSettings(FINGERPRINT).interval(1));
+        output.write(committed);
+        output.commit(inputOffset, 0);
+        output.write(new byte[] { 1, 2, 3, 4, 5 });
+        output.close();
+    }
+
+    private static void pseudonymize(final Object pseudonymizer, final File inFile, final File outFile, final CheckpointSettings settings) throws IOException {
+        if (pseudonymizer instanceof PCAPPseudonymizer) {
+            ((PCAPPseudonymizer) pseudonymizer).setCheckpointSettings(settings);
+            ((PCAPPseudonymizer) pseudonymizer).pseudonymize(inFile, outFile);
+        }
+        else {
+            ((PCAPNGPseudonymizer) pseudonymizer).setCheckpointSettings(settings);
+            ((PCAPNGPseudonymizer) pseudonymizer).pseudonymize(inFile, outFile);
+        }
+    }
+
+    private static long pcapRecordOffset(final File inFile, final int record) throws IOException {
+        final ByteBuffer input = ByteBuffer.wrap(Files.readAllBytes(inFile.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        int offset = 24;
+        for (int i = 0; i < record; i++) {
+            offset += 16 + input.getInt(offset + 8);
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.output;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.parsingdata.metal.data.ParseResult;
+import nl.minvenj.pef.Settings;
+import nl.minvenj.pef.metal.dump.PCAPNG;
+import nl.minvenj.pef.metal.stream.FileByteStream;
+import nl.minvenj.pef.util.Util;
+
+public class RotatingCaptureWriterTest {
+
+    private static final File INPUT = new File(Settings.getTestBasePath(), "pcaps/56packets.pcap");
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    @Test
+    public void writeSamePCAPAsInput() throws IOException {
+        final Path output = _tempFolder.getRoot().toPath().resolve("out.pcap");
+        // a small buffer makes the larger records take the gathering write
+        copy(output, new CaptureWriterSettings().bufferSize(256));
+
+        assertThat(Files.readAllBytes(output), is(equalTo(Files.readAllBytes(INPUT.toPath()))));
+    }
+
+    @Test
+    public void writeParsablePCAPNG() throws IOException {
+        final Path output = _tempFolder.getRoot().toPath().resolve("out.pcapng");
+        copy(output, new CaptureWriterSettings().format(CaptureFormat.PCAPNG).fsync(FsyncPolicy.ON_FLUSH).flushInterval(0));
+
+        final ByteBuffer input = input();
+        try (final FileByteStream stream = new FileByteStream(output.toFile())) {
+            ParseResult result = Util.parse(stream, 0, PCAPNG.SECTION_HEADER_CHO);
+            assertThat(result.succeeded, is(true));
+            result = Util.parse(stream, result.environment.offset, PCAPNG.BLOCK, PCAPNG.LITTLE_ENDIAN);
+            assertThat(result.environment.order.get("type").asNumeric().intValue(), is(equalTo(1)));
+            int packets = 0;
+            while (true) {
+                result = Util.parse(stream, result.environment.offset, PCAPNG.BLOCK, PCAPNG.LITTLE_ENDIAN);
+                if (!result.succeeded) {
+                    break;
+                }
+                input.position(input.position() + 8);
+                final byte[] frame = new byte[input.getInt()];
+                input.getInt();
+                input.get(frame);
+                assertThat(result.environment.order.get("packetdata").getValue(), is(equalTo(frame)));
+                packets++;
+            }
+            assertThat(packets, is(equalTo(56)));
+            assertThat(result.environment.offset, is(equalTo(Files.size(output))));
+        }
+    }
+
+    @Test
+    public void rotateBySize() throws IOException {
+        final Path output = _tempFolder.getRoot().toPath().resolve("out.pcap");
+        final RotatingCaptureWriter writer = copy(output, new CaptureWriterSettings().rotateSize(2000));
+
+        assertThat(writer.getFiles().size(), is(greaterThan(2)));
+        assertThat(writer.getFiles().get(0).getFileName().toString(), is(equalTo("out_00000.pcap")));
+        assertThat(Files.exists(output), is(false));
+        for (final Path file : writer.getFiles()) {
+            assertThat(Files.size(file), is(lessThanOrEqualTo(2000L)));
+        }
+        assertThat(records(writer), is(equalTo(Arrays.copyOfRange(Files.readAllBytes(INPUT.toPath()), 24, (int) INPUT.length()))));
+    }
+
+    @Test
+    public void rotateByCaptureTime() throws IOException {
+        final Path output = _tempFolder.getRoot().toPath().resolve("out.pcap");
+        final RotatingCaptureWriter writer = copy(output, new CaptureWriterSettings().rotateTime(1));
+
+        // every file spans less than the time limit
+        assertThat(writer.getFiles().size(), is(greaterThan(1)));
+        for (final Path file : writer.getFiles()) {
+            final ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+            records.position(24);
+            long first = -1;
+            long last = 0;
+            while (records.hasRemaining()) {
+                last = (records.getInt() & 0xFFFFFFFFL) * 1000000L + records.getInt();
+                if (first < 0) {
+                    first = last;
+                }
+                final int length = records.getInt();
+                records.position(records.position() + 4 + length);
+            }
+            assertThat(last - first, is(lessThan(1000L)));
+        }
+        assertThat(records(writer), is(equalTo(Arrays.copyOfRange(Files.readAllBytes(INPUT.toPath()), 24, (int) INPUT.length()))));
+    }
+
+    @Test
+    public void keepOnlyNewestFiles() throws IOException {
+        final Path output = _tempFolder.getRoot().toPath().resolve("out.pcap");
+        final RotatingCaptureWriter all = copy(output, new CaptureWriterSettings().rotateSize(2000));
+        final Path kept = _tempFolder.newFolder().toPath().resolve("out.pcap");
+        final RotatingCaptureWriter writer = copy(kept, new CaptureWriterSettings().rotateSize(2000).keepFiles(3));
+
+        assertThat(writer.getFiles().size(), is(equalTo(3)));
+        assertThat(kept.getParent().toFile().list().length, is(equalTo(3)));
+        final int count = all.getFiles().size();
+        for (int i = 0; i < 3; i++) {
+            final Path file = writer.getFiles().get(i);
+            assertThat(file.getFileName(), is(equalTo(all.getFiles().get(count - 3 + i).getFileName())));
+            // the rotated files are complete once the writer is closed
+            assertThat(Files.readAllBytes(file), is(equalTo(Files.readAllBytes(all.getFiles().get(count - 3 + i)))));
+        }
+    }
+
+    @Test
+    public void nameRotatedFiles() {
+        assertThat(RotatingCaptureWriter.rotatedPath(Paths.get("dir", "capture.pcap"), 12), is(equalTo(Paths.get("dir", "capture_00012.pcap"))));
+        assertThat(RotatingCaptureWriter.rotatedPath(Paths.get("capture"), 0), is(equalTo(Paths.get("capture_00000"))));
+    }
+
+    private static RotatingCaptureWriter copy(final Path output, final CaptureWriterSettings settings) throws IOException {
+        final ByteBuffer input = input();
+        try (final RotatingCaptureWriter writer = new RotatingCaptureWriter(output, 1, 65535, settings)) {
+            while (input.hasRemaining()) {
+                final long seconds = input.getInt() & 0xFFFFFFFFL;
+                final int micros = input.getInt();
+                final int length = input.getInt();
+                final int wireLength = input.getInt();
+                writer.write(seconds, micros * 1000, wireLength, input.array(), input.position(), length);
+                input.position(input.position() + length);
+            }
+            return writer;
+        }
+    }
+
+    private static ByteBuffer input() throws IOException {
+        final ByteBuffer input = ByteBuffer.wrap(Files.readAllBytes(INPUT.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        input.position(24);
+        return input;
+    }
+
+    private static byte[] records(final RotatingCaptureWriter writer) throws IOException {
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (final Path file : writer.getFiles()) {
+            final byte[] bytes = Files.readAllBytes(file);
+            records.write(bytes, 24, bytes.length - 24);
+        }
+        return records.toByteArray();
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pipeline;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class FlowHashTest {
+
+    private static final byte[] CLIENT = {10, 0, 0, 1};
+    private static final byte[] SERVER = {10, 0, 0, 2};
+
+    @Test
+    public void hashBothDirectionsOfAFlowTheSame() {
+        assertThat(hash(ipv4(CLIENT, SERVER, 17, 5353, 53, 0)), is(equalTo(hash(ipv4(SERVER, CLIENT, 17, 53, 5353, 0)))));
+        assertThat(hash(ipv6(6, 40000, 443, false)), is(equalTo(hash(reverseIPv6(ipv6(6, 40000, 443, false))))));
+    }
+
+    @Test
+    public void hashDifferentPortsDifferently() {
+        assertThat(hash(ipv4(CLIENT, SERVER, 6, 40000, 80, 0)), is(not(equalTo(hash(ipv4(CLIENT, SERVER, 6, 40001, 80, 0))))));
+    }
+
+    @Test
+    public void hashFragmentsOfADatagramTheSame() {
+        final int first = hash(ipv4(CLIENT, SERVER, 17, 5353, 53, 0x2000));
+        final int last = hash(ipv4(CLIENT, SERVER, 17, 0x1234, 0x5678, 0x00B9));
+        assertThat(first, is(equalTo(last)));
+        assertThat(hash(ipv6(17, 5353, 53, true)), is(equalTo(hash(ipv6(17, 1, 2, true)))));
+    }
+
+    @Test
+    public void skipVLANTags() {
+        final byte[] frame = ipv4(CLIENT, SERVER, 17, 5353, 53, 0);
+        final byte[] tagged = new byte[frame.length + 4];
+        System.arraycopy(frame, 0, tagged, 0, 12);
+        tagged[12] = (byte) 0x81;
+        tagged[15] = 42;
+        System.arraycopy(frame, 12, tagged, 16, frame.length - 12);
+        assertThat(hash(tagged), is(equalTo(hash(frame))));
+    }
+
+    @Test
+    public void hashTruncatedFrames() {
+        assertThat(FlowHash.hash(new byte[4], 0, 4), is(equalTo(0)));
+        // without the ports only the addresses and protocol are hashed, like a fragment
+        final byte[] frame = ipv4(CLIENT, SERVER, 6, 40000, 80, 0);
+        assertThat(FlowHash.hash(frame, 0, 34), is(equalTo(hash(ipv4(CLIENT, SERVER, 6, 1, 2, 0x2000)))));
+    }
+
+    @Test
+    public void returnPortsOfFirstFragmentOnly() {
+        assertThat(FlowHash.ports(ipv4(CLIENT, SERVER, 17, 5353, 53, 0), 0, 42), is(equalTo(5353L << 16 | 53)));
+        assertThat(FlowHash.ports(ipv4(CLIENT, SERVER, 17, 5353, 53, 0x2000), 0, 42), is(equalTo(5353L << 16 | 53)));
+        assertThat(FlowHash.ports(ipv4(CLIENT, SERVER, 17, 5353, 53, 0x00B9), 0, 42), is(equalTo(-1L)));
+        assertThat(FlowHash.ports(ipv4(CLIENT, SERVER, 1, 5353, 53, 0), 0, 42), is(equalTo(-1L)));
+        assertThat(FlowHash.ports(ipv4(CLIENT, SERVER, 17, 5353, 53, 0), 0, 34), is(equalTo(-1L)));
+        final byte[] frame = ipv6(6, 40000, 443, false);
+        assertThat(FlowHash.ports(frame, 0, frame.length), is(equalTo(40000L << 16 | 443)));
+    }
+
+    @Test
+    public void returnPortsBehindAnyExtensionHeader() {
+        final byte[] frame = ipv6(6, 40000, 443, false);
+        // replace the fixed header's next header by a host identity protocol header
+        final byte[] hip = new byte[frame.length + 8];
+        System.arraycopy(frame, 0, hip, 0, 54);
+        System.arraycopy(frame, 54, hip, 62, frame.length - 54);
+        hip[20] = (byte) 139;
+        hip[54] = 6;
+        assertThat(FlowHash.ports(hip, 0, hip.length), is(equalTo(40000L << 16 | 443)));
+        assertThat(hash(hip), is(equalTo(hash(frame))));
+    }
+
+    private static int hash(final byte[] frame) {
+        return FlowHash.hash(frame, 0, frame.length);
+    }
+
+    private static byte[] ipv4(final byte[] source, final byte[] destination, final int protocol, final int sourcePort, final int destinationPort, final int fragment) {
+        final ByteBuffer frame = ByteBuffer.allocate(14 + 20 + 8);
+        frame.position(12);
+        frame.putShort((short) 0x0800);
+        frame.put((byte) 0x45).put((byte) 0).putShort((short) 28).putInt(0);
+        frame.putShort(6 + 14, (short) fragment);
+        frame.position(14 + 8);
+        frame.put((byte) 64).put((byte) protocol).putShort((short) 0).put(source).put(destination);
+        frame.putShort((short) sourcePort).putShort((short) destinationPort);
+        return frame.array();
+    }
+
+    private static byte[] ipv6(final int protocol, final int sourcePort, final int destinationPort, final boolean fragment) {
+        final ByteBuffer frame = ByteBuffer.allocate(14 + 40 + 8 + 8);
+        frame.position(12);
+        frame.putShort((short) 0x86DD);
+        frame.putInt(0x60000000).putShort((short) 16).put((byte) (fragment ? 44 : protocol)).put((byte) 64);
+        for (int i = 0; i < 32; i++) {
+            frame.put((byte) (i < 16 ? 1 : i));
+        }
+        if (fragment) {
+            frame.put((byte) protocol).put((byte) 0).putShort((short) 0).putInt(7);
+        }
+        frame.putShort((short) sourcePort).putShort((short) destinationPort);
+        return frame.array();
+    }
+
+    private static byte[] reverseIPv6(final byte[] frame) {
+        final byte[] result = frame.clone();
+        System.arraycopy(frame, 22, result, 38, 16);
+        System.arraycopy(frame, 38, result, 22, 16);
+        System.arraycopy(frame, 54, result, 56, 2);
+        System.arraycopy(frame, 56, result, 54, 2);
+        return result;
+    }
+}
@@ -0,0 +1,320 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pipeline;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import static nl.minvenj.pef.TestPseudonymizers.pseudonymizer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.minvenj.pef.Settings;
+import nl.minvenj.pef.pseudo.dump.cap.pcap.SingleThreadedPCAPPseudonymizer;
+
+public class PacketPipelineTest {
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    @Test
+    public void keepOrderAcrossWorkers() throws IOException {
+        final int packets = 10000;
+        final CollectingSink sink = new CollectingSink();
+        final List<PacketProcessor> processors = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            processors.add(new InvertingProcessor(-1));
+        }
+
+        final PacketPipeline pipeline = new PacketPipeline(8, 16, processors, sink);
+        try {
+            for (int i = 0; i < packets; i++) {
+                publish(pipeline, i);
+            }
+        }
+        finally {
+            pipeline.close();
+        }
+
+        assertThat(pipeline.getStatistics().getPublished(), is(equalTo((long) packets)));
+        assertThat(pipeline.getStatistics().getWritten(), is(equalTo((long) packets)));
+
+        assertThat(sink._packets.size(), is(equalTo(packets)));
+        for (int i = 0; i < packets; i++) {
+            assertThat(sink._packets.get(i), is(equalTo(inverted(packet(i)))));
+        }
+    }
+
+    @Test
+    public void keepFlowsOnOneWorkerAndOrderAcrossWorkers() throws IOException {
+        final int packets = 5000;
+        final CollectingSink sink = new CollectingSink();
+        final PacketDispatcher dispatcher = new PacketDispatcher() {
+            @Override
+            public int select(final PacketSlot slot, final int workers) {
+                // the first byte identifies the flow, and flow 0 is much larger than the others
+                final int flow = slot.getData()[slot.getFrameOffset()] % 7 < 4 ? 0 : slot.getData()[slot.getFrameOffset()];
+                return (flow & 0xFF) % workers;
+            }
+        };
+        final List<RecordingProcessor> processors = Arrays.asList(new RecordingProcessor(), new RecordingProcessor(), new RecordingProcessor());
+
+        try (final PacketPipeline pipeline = new PacketPipeline(8, 16, processors, dispatcher, sink)) {
+            for (int i = 0; i < packets; i++) {
+                publish(pipeline, i);
+            }
+        }
+
+        assertThat(sink._packets.size(), is(equalTo(packets)));
+        for (int i = 0; i < packets; i++) {
+            assertThat(sink._packets.get(i), is(equalTo(inverted(packet(i)))));
+        }
+        int processed = 0;
+        for (int worker = 0; worker < processors.size(); worker++) {
+            for (final byte flow : processors.get(worker)._flows) {
+                final int expected = flow % 7 < 4 ? 0 : (flow & 0xFF) % processors.size();
+                assertThat(worker, is(equalTo(expected)));
+                processed++;
+            }
+        }
+        assertThat(processed, is(equalTo(packets)));
+    }
+
+    @Test
+    public void releaseHeldPacketsWhenAllSlotsAreInUse() throws IOException {
+        final int packets = 1000;
+        final CollectingSink sink = new CollectingSink();
+        final List<HoldingProcessor> processors = Arrays.asList(new HoldingProcessor(), new HoldingProcessor());
+
+        // the held packets are only released when the ring is full behind them, and the last one when closing
+        try (final PacketPipeline pipeline = new PacketPipeline(8, 16, processors, sink)) {
+            for (int i = 0; i < packets; i++) {
+                publish(pipeline, i);
+            }
+        }
+
+        assertThat(sink._packets.size(), is(equalTo(packets)));
+        for (int i = 0; i < packets; i++) {
+            assertThat(sink._packets.get(i), is(equalTo(inverted(packet(i)))));
+        }
+        assertThat(processors.get(0)._held.isEmpty(), is(true));
+    }
+
+    @Test
+    public void dropPacketsThatFailToProcess() throws IOException {
+        final CollectingSink sink = new CollectingSink();
+        final PacketPipeline pipeline = new PacketPipeline(4, 16, Arrays.asList(new InvertingProcessor(3), new InvertingProcessor(3)), sink);
+        for (int i = 0; i < 6; i++) {
+            publish(pipeline, i);
+        }
+        pipeline.close();
+
+        assertThat(sink._packets.size(), is(equalTo(5)));
+        assertThat(sink._packets.get(3), is(equalTo(inverted(packet(4)))));
+        assertThat(pipeline.getStatistics().getFailures(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void dropPacketsThatFailWithAnError() throws IOException {
+        final CollectingSink sink = new CollectingSink();
+        final PacketProcessor processor = new PacketProcessor() {
+            @Override
+            public void process(final PacketSlot slot) {
+                if (slot.getSequence() == 2) {
+                    throw new StackOverflowError();
+                }
+            }
+        };
+        final PacketPipeline pipeline = new PacketPipeline(4, 16, Arrays.asList(processor), sink);
+        for (int i = 0; i < 6; i++) {
+            publish(pipeline, i);
+        }
+        pipeline.close();
+
+        assertThat(sink._packets.size(), is(equalTo(5)));
+        assertThat(sink._packets.get(2), is(equalTo(packet(3))));
+        assertThat(pipeline.getStatistics().getFailures(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void reportSinkFailureToProducer() throws IOException {
+        final CollectingSink sink = new CollectingSink();
+        sink._failAfter = 10;
+        final PacketPipeline pipeline = new PacketPipeline(4, 16, Arrays.asList(new InvertingProcessor(-1)), sink);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                publish(pipeline, i);
+            }
+            fail("expected the sink failure to reach the producer");
+        }
+        catch (final IOException e) {
+            assertThat(e.getMessage().contains("sink full"), is(true));
+        }
+        try {
+            pipeline.close();
+            fail("expected the sink failure on close");
+        }
+        catch (final IOException e) {
+            assertThat(sink._closed, is(true));
+        }
+        assertThat(pipeline.getStatistics().getStalls(), is(greaterThan(0L)));
+    }
+
+    @Test
+    public void writeSameOutputAsSingleThreadedPseudonymizer() throws IOException, InvalidKeyException {
+        final File inFile = new File(Settings.getTestBasePath(), "pcaps/56packets.pcap");
+        final File expected = _tempFolder.newFile();
+        final File actual = _tempFolder.newFile();
+        new SingleThreadedPCAPPseudonymizer(pseudonymizer()).pseudonymize(inFile, expected);
+
+        final List<PacketProcessor> processors = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            processors.add(new PseudonymizingProcessor(pseudonymizer()));
+        }
+        try (final PacketPipeline pipeline = new PacketPipeline(16, 1514, processors, new PCAPSink(new FileOutputStream(actual), 1, 65535))) {
+            final ByteBuffer input = ByteBuffer.wrap(Files.readAllBytes(inFile.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+            input.position(24);
+            while (input.hasRemaining()) {
+                final long seconds = input.getInt() & 0xFFFFFFFFL;
+                final int micros = input.getInt();
+                final int length = input.getInt();
+                final int wireLength = input.getInt();
+                final PacketSlot slot = pipeline.claim();
+                input.get(slot.ensureCapacity(length), 0, length);
+                slot.setFrameLength(length);
+                slot.setCaptureInfo(seconds, micros * 1000, wireLength);
+                pipeline.publish(slot);
+            }
+        }
+
+        assertThat(Files.readAllBytes(actual.toPath()), is(equalTo(Files.readAllBytes(expected.toPath()))));
+    }
+
+    private static void publish(final PacketPipeline pipeline, final int index) throws IOException {
+        final PacketSlot slot = pipeline.claim();
+        final byte[] packet = packet(index);
+        System.arraycopy(packet, 0, slot.ensureCapacity(packet.length), 0, packet.length);
+        slot.setFrameLength(packet.length);
+        pipeline.publish(slot);
+    }
+
+    private static byte[] packet(final int index) {
+        final byte[] packet = new byte[1 + index % 20];
+        for (int i = 0; i < packet.length; i++) {
+            packet[i] = (byte) (index + i);
+        }
+        return packet;
+    }
+
+    private static byte[] inverted(final byte[] packet) {
+        final byte[] result = packet.clone();
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) ~result[i];
+        }
+        return result;
+    }
+
+    private static class InvertingProcessor implements PacketProcessor {
+
+        private final long _failOn;
+
+        InvertingProcessor(final long failOn) {
+            _failOn = failOn;
+        }
+
+        @Override
+        public void process(final PacketSlot slot) throws IOException {
+            if (slot.getSequence() == _failOn) {
+                throw new IOException("cannot process");
+            }
+            final byte[] data = slot.getData();
+            for (int i = slot.getFrameOffset(); i < slot.getFrameOffset() + slot.getFrameLength(); i++) {
+                data[i] = (byte) ~data[i];
+            }
+        }
+    }
+
+    private static class RecordingProcessor implements PacketProcessor {
+
+        private final List<Byte> _flows = new ArrayList<>();
+        private final InvertingProcessor _inverter = new InvertingProcessor(-1);
+
+        @Override
+        public void process(final PacketSlot slot) throws IOException {
+            _flows.add(slot.getData()[slot.getFrameOffset()]);
+            _inverter.process(slot);
+        }
+    }
+
+    private static class HoldingProcessor implements HoldingPacketProcessor {
+
+        private final List<PacketSlot> _held = new ArrayList<>();
+        private final InvertingProcessor _inverter = new InvertingProcessor(-1);
+
+        @Override
+        public void process(final PacketSlot slot) throws IOException {
+            _inverter.process(slot);
+            if (slot.getSequence() % 10 == 0) {
+                slot.hold();
+                _held.add(slot);
+            }
+        }
+
+        @Override
+        public void releaseHeld() {
+            for (final PacketSlot slot : _held) {
+                slot.release(false);
+            }
+            _held.clear();
+        }
+    }
+
+    private static class CollectingSink implements PacketSink {
+
+        private final List<byte[]> _packets = new ArrayList<>();
+        private int _failAfter = Integer.MAX_VALUE;
+        private boolean _closed;
+
+        @Override
+        public void write(final PacketSlot slot) throws IOException {
+            if (_packets.size() == _failAfter) {
+                throw new IOException("sink full");
+            }
+            _packets.add(Arrays.copyOfRange(slot.getData(), slot.getFrameOffset(), slot.getFrameOffset() + slot.getFrameLength()));
+        }
+
+        @Override
+        public void close() {
+            _closed = true;
+        }
+    }
+}
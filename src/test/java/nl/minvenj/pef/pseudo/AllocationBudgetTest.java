@@ -0,0 +1,213 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pseudo;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import static nl.minvenj.pef.TestPseudonymizers.KEY;
+import static nl.minvenj.pef.TestPseudonymizers.pseudonymizer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.minvenj.pef.Settings;
+import nl.minvenj.pef.pseudo.dump.cap.pcap.SingleThreadedPCAPPseudonymizer;
+
+/**
+ * Guards the allocation rate of the hot path against regressions.
+ *
+ * The bytes allocated by the current thread are measured per frame, address and PCAP record over the
+ * test captures, after a warm-up so the JIT has settled. A measurement above its budget in
+ * allocation-budget.properties fails the build. When an increase is intended, raise the budget in
+ * the same change, so the increase is reviewed.
+ */
+public class AllocationBudgetTest {
+
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 20;
+
+    private static com.sun.management.ThreadMXBean _threads;
+    private static Properties _budget;
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        _threads = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(_threads.isThreadAllocatedMemorySupported());
+        _threads.setThreadAllocatedMemoryEnabled(true);
+        _budget = new Properties();
+        try (final InputStream input = new FileInputStream(new File(Settings.getTestBasePath(), "allocation-budget.properties"))) {
+            _budget.load(input);
+        }
+    }
+
+    @Test
+    public void framePseudonymization() throws Exception {
+        final List<byte[]> frames = new ArrayList<>();
+        for (final File capture : captures()) {
+            frames.addAll(readFrames(capture));
+        }
+        final FramePseudonymizer pseudonymizer = pseudonymizer();
+        final byte[] buffer = new byte[65536];
+
+        final Task task = new Task() {
+            @Override
+            public long run() throws IOException {
+                for (final byte[] frame : frames) {
+                    System.arraycopy(frame, 0, buffer, 0, frame.length);
+                    pseudonymizer.pseudonymize(buffer, 0, frame.length);
+                }
+                return frames.size();
+            }
+        };
+        checkBudget("frame", task);
+    }
+
+    @Test
+    public void cachedAddressPseudonymization() throws Exception {
+        final IPPseudonymizer pseudonymizer = IPPseudonymizer.initIPv4Pseudonymizer(KEY, 16);
+        final byte[] address = { 10, 0, 0, 0 };
+
+        final Task task = new Task() {
+            @Override
+            public long run() {
+                // 256 addresses always fit in the cache
+                for (int i = 0; i < 256; i++) {
+                    address[3] = (byte) i;
+                    pseudonymizer.pseudonymize(address);
+                }
+                return 256;
+            }
+        };
+        checkBudget("address.cached", task);
+    }
+
+    @Test
+    public void uncachedAddressPseudonymization() throws Exception {
+        final IPPseudonymizer pseudonymizer = IPPseudonymizer.initIPv6Pseudonymizer(KEY, 64);
+        final byte[] address = new byte[16];
+        final ByteBuffer counter = ByteBuffer.wrap(address);
+
+        final Task task = new Task() {
+            @Override
+            public long run() {
+                // every address is new, so each one is encrypted
+                for (int i = 0; i < 256; i++) {
+                    counter.putLong(8, counter.getLong(8) + 1);
+                    pseudonymizer.pseudonymize(address);
+                }
+                return 256;
+            }
+        };
+        checkBudget("address.uncached", task);
+    }
+
+    @Test
+    public void pcapRecordLoop() throws Exception {
+        final List<File> captures = captures();
+        final SingleThreadedPCAPPseudonymizer pseudonymizer = new SingleThreadedPCAPPseudonymizer(pseudonymizer());
+        final File output = _tempFolder.newFile();
+        long records = 0;
+        for (final File capture : captures) {
+            records += readFrames(capture).size();
+        }
+        final long total = records;
+
+        final Task task = new Task() {
+            @Override
+            public long run() throws IOException {
+                for (final File capture : captures) {
+                    pseudonymizer.pseudonymize(capture, output);
+                }
+                return total;
+            }
+        };
+        checkBudget("pcap.record", task);
+    }
+
+    private void checkBudget(final String name, final Task task) throws Exception {
+        final long budget = Long.parseLong(_budget.getProperty(name));
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            task.run();
+        }
+        final long threadId = Thread.currentThread().getId();
+        long calls = 0;
+        final long start = _threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ROUNDS; i++) {
+            calls += task.run();
+        }
+        final long allocated = (_threads.getThreadAllocatedBytes(threadId) - start) / calls;
+        assertThat(calls, is(greaterThan(0L)));
+        if (allocated > budget) {
+            fail(name + " allocates " + allocated + " bytes per call, over its budget of " + budget
+                 + " bytes; raise the budget in allocation-budget.properties only when the increase is intended");
+        }
+    }
+
+    private static List<File> captures() {
+        final List<File> captures = new ArrayList<>();
+        for (final String name : new String[] { "56packets.pcap", "1udpdns.pcap", "1ipv6udpmdns.pcap", "1udpnbns.pcap", "1tcpdns.pcap" }) {
+            captures.add(new File(Settings.getTestBasePath(), "pcaps/" + name));
+        }
+        return captures;
+    }
+
+    private static List<byte[]> readFrames(final File pcap) throws IOException {
+        final ByteBuffer input = ByteBuffer.wrap(Files.readAllBytes(pcap.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        final List<byte[]> frames = new ArrayList<>();
+        input.position(24);
+        while (input.remaining() >= 16) {
+            input.position(input.position() + 8);
+            final byte[] frame = new byte[input.getInt()];
+            input.getInt();
+            input.get(frame);
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    private interface Task {
+
+        /**
+         * Run the measured code once.
+         *
+         * @return the number of calls made
+         */
+        long run() throws Exception;
+    }
+}
@@ -15,19 +15,30 @@
  */
 package nl.minvenj.pef.pseudo;
 
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
 import static nl.minvenj.pef.util.TestUtil.assertAddressesDiffer;
 import static nl.minvenj.pef.util.TestUtil.assertEq;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.ClassRule;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.contrib.java.lang.system.SystemErrRule;
 import org.junit.rules.TemporaryFolder;
 
 import io.parsingdata.metal.data.ParseGraph;
 import nl.minvenj.pef.Settings;
+import nl.minvenj.pef.compress.Compression;
+import nl.minvenj.pef.pseudo.cli.CLTool;
 import nl.minvenj.pef.util.CLToolTestUtil;
 import nl.minvenj.pef.util.TestUtil;
 
@@ -36,6 +47,9 @@ public class CLToolTest {
     @ClassRule
     public static TemporaryFolder _tempFolder = new TemporaryFolder();
 
+    @Rule
+    public final SystemErrRule _err = new SystemErrRule().enableLog().muteForSuccessfulTests();
+
     private final String _basePath = Settings.getTestBasePath() + "/pcaps";
 
     @Test
@@ -54,4 +68,18 @@ public class CLToolTest {
         assertEq(TestUtil.valueAtDepth(preValues, "udpchecksum", 0), new byte[]{0x7C, 0x15});
         assertEq(TestUtil.valueAtDepth(postValues, "udpchecksum", 0), new byte[]{0x7E, (byte) 0xB5});
     }
+
+    @Test
+    public void rejectIndexWithCompressedFilesInBatchMode() throws IOException {
+        final File inDirectory = _tempFolder.newFolder();
+        final File outDirectory = _tempFolder.newFolder();
+        try (final OutputStream output = Compression.openOutput(new File(inDirectory, "capture.pcap.gz"))) {
+            output.write(Files.readAllBytes(new File(_basePath + "/1udpdns.pcap").toPath()));
+        }
+
+        CLTool.main(new String[] { "-I", inDirectory.getPath(), "-O", outDirectory.getPath(), "-x" });
+
+        assertThat(_err.getLog(), containsString("argument -x/--index not allowed with compressed files in -I/--indir (capture.pcap.gz)"));
+        assertThat(outDirectory.list(), is(emptyArray()));
+    }
 }
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pseudo;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import nl.minvenj.pef.Settings;
+import nl.minvenj.pef.metrics.MetricsRegistry;
+import nl.minvenj.pef.pseudo.cli.FramePseudonymizerBuilder;
+
+public class FramePseudonymizerTest {
+
+    @Test
+    public void pseudonymizeInPlaceLikeACopy() throws IOException, InvalidKeyException {
+        final FramePseudonymizer pseudonymizer = new FramePseudonymizerBuilder()
+            .pseudoIPv4("30313233343536373839414243444546", 16)
+            .calcIPv4Checksum()
+            .calcUDPChecksum()
+            .build();
+        final ByteBuffer input = ByteBuffer.wrap(Files.readAllBytes(new File(Settings.getTestBasePath(), "pcaps/56packets.pcap").toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        input.position(24);
+        int changed = 0;
+        while (input.hasRemaining()) {
+            input.position(input.position() + 8);
+            final int length = input.getInt();
+            input.getInt();
+            final byte[] frame = new byte[length];
+            input.get(frame);
+
+            final byte[] expected = pseudonymizer.pseudonymize(frame);
+            // surround the frame with other data, which must be left alone
+            final byte[] data = new byte[length + 10];
+            Arrays.fill(data, (byte) 0x55);
+            System.arraycopy(frame, 0, data, 7, length);
+            final boolean pseudonymized = pseudonymizer.pseudonymize(data, 7, length);
+
+            assertThat(pseudonymized, is(expected != frame));
+            assertThat(Arrays.copyOfRange(data, 7, 7 + length), is(equalTo(expected)));
+            assertThat(Arrays.copyOfRange(data, 0, 7), is(equalTo(new byte[]{0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55})));
+            assertThat(Arrays.copyOfRange(data, 7 + length, data.length), is(equalTo(new byte[]{0x55, 0x55, 0x55})));
+            if (!Arrays.equals(expected, frame)) {
+                changed++;
+            }
+        }
+        assertThat(changed, is(not(equalTo(0))));
+    }
+
+    @Test
+    public void leaveUnparsableFrameUnchanged() throws IOException, InvalidKeyException {
+        final FramePseudonymizer pseudonymizer = new FramePseudonymizerBuilder().pseudoIPv4("30313233343536373839414243444546", 16).build();
+        final byte[] data = {1, 2, 3, 4, 5};
+        assertThat(pseudonymizer.pseudonymize(data, 1, 3), is(false));
+        assertThat(data, is(equalTo(new byte[]{1, 2, 3, 4, 5})));
+    }
+
+    @Test
+    public void countOutcomesAndTimeStages() throws IOException, InvalidKeyException {
+        final MetricsRegistry metrics = new MetricsRegistry(1);
+        final FramePseudonymizer pseudonymizer = new FramePseudonymizerBuilder()
+            .pseudoIPv4("30313233343536373839414243444546", 16)
+            .calcIPv4Checksum()
+            .calcUDPChecksum()
+            .metrics(metrics)
+            .build();
+        final ByteBuffer input = ByteBuffer.wrap(Files.readAllBytes(new File(Settings.getTestBasePath(), "pcaps/56packets.pcap").toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        input.position(24);
+        int pseudonymized = 0;
+        int frames = 0;
+        while (input.hasRemaining()) {
+            input.position(input.position() + 8);
+            final byte[] frame = new byte[input.getInt()];
+            input.getInt();
+            input.get(frame);
+            if (pseudonymizer.pseudonymize(frame, 0, frame.length)) {
+                pseudonymized++;
+            }
+            frames++;
+        }
+        // an IEEE 802.3 frame, with a length instead of an ethertype, and a frame too short for an ethernet header
+        final byte[] llc = new byte[60];
+        llc[13] = 46;
+        pseudonymizer.pseudonymize(llc, 0, llc.length);
+        pseudonymizer.pseudonymize(new byte[10], 0, 10);
+
+        assertThat(pseudonymized, is(not(equalTo(0))));
+        assertThat(metrics.counter(MetricsRegistry.PACKETS_PSEUDONYMIZED).get(), is(equalTo((long) pseudonymized)));
+        assertThat(metrics.counter(MetricsRegistry.PACKETS_UNPARSED).get(), is(equalTo((long) frames - pseudonymized)));
+        assertThat(metrics.counter(MetricsRegistry.PACKETS_NON_ETHERNET).get(), is(equalTo(2L)));
+        assertThat(metrics.recorder(MetricsRegistry.STAGE_PARSE).getCount(), is(equalTo(frames + 2L)));
+        for (final String stage : Arrays.asList(MetricsRegistry.STAGE_CONSTRAINT, MetricsRegistry.STAGE_CHECKSUM, MetricsRegistry.STAGE_SERIALIZE,
+                                                MetricsRegistry.STAGE_TRANSFORMER + "0.ipsource", MetricsRegistry.STAGE_TRANSFORMER + "2.headerchecksum")) {
+            assertThat(stage, metrics.recorder(stage).getCount(), is(equalTo((long) pseudonymized)));
+        }
+        assertThat(metrics.counter(MetricsRegistry.FFX_CACHE_HITS).get() + metrics.counter(MetricsRegistry.FFX_CACHE_MISSES).get(), is(greaterThan(0L)));
+    }
+}
@@ -121,4 +121,20 @@ public class IPPseudonymizerTest {
             assertThat(newIp[i], is(not(equalTo(ip[i]))));
         }
     }
+
+    @Test
+    public void testCachedResultEqualsEncryptedResult() throws InvalidKeyException {
+        final IPPseudonymizer ipv4Pseudonymizer = IPPseudonymizer.initIPv4Pseudonymizer("7ED73EB6A78E8615EE718B27559E285F", 8);
+        final byte[] ip = new byte[]{0x12, 0x34, 0x56, 0X78};
+
+        final byte[] first = ipv4Pseudonymizer.pseudonymize(ip.clone());
+        first[3]++;
+        final byte[] second = ipv4Pseudonymizer.pseudonymize(ip.clone());
+        first[3]--;
+
+        assertThat(second, is(equalTo(first)));
+        assertThat(IPPseudonymizer.initIPv4Pseudonymizer("7ED73EB6A78E8615EE718B27559E285F", 8).pseudonymize(ip), is(equalTo(first)));
+        assertThat(ipv4Pseudonymizer.getCacheHits(), is(equalTo(1L)));
+        assertThat(ipv4Pseudonymizer.getCacheMisses(), is(equalTo(1L)));
+    }
 }
@@ -69,7 +69,12 @@ public class CLToolParameterTest {
             {"-c ipv4", "outfile is required"},
             {"-i x:y:z:/x-file -o 1.2.3.4/y-file", "cannot find file"},
             {"-i " + basePath + "/pcaps/magiconly.pcap -o " + newFile, "unsupported file format"},
-            {"-i " + basePath + "/pcaps/1dnsidentical.pcap -o " + newFile, ""}
+            {"-i " + basePath + "/pcaps/1dnsidentical.pcap -o " + newFile, ""},
+            {"-i " + basePath + "/pcaps/1dnsidentical.pcap -o " + newFile + ".gz -m 2", "argument -m/--multithread not allowed with compressed files"},
+            {"-i " + basePath + "/pcaps/1dnsidentical.pcap -o " + newFile + ".zst -x", "argument -x/--index not allowed with compressed files"},
+            {"-i " + basePath + "/pcaps/1dnsidentical.pcap -o " + newFile + ".lz4 --checkpoint 1", "argument --checkpoint not allowed with compressed files"},
+            {"-i " + basePath + "/pcaps/1dnsidentical.pcap -o " + newFile + ".gz --resume", "argument --resume not allowed with compressed files"},
+            {"-i - -o " + newFile + " -x", "argument -x/--index not allowed with standard input or output"}
         };
     }
 
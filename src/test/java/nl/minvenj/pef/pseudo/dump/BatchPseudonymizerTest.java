@@ -0,0 +1,224 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pseudo.dump;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import static nl.minvenj.pef.util.CLToolTestUtil.runWithCommand;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.minvenj.pef.Settings;
+import nl.minvenj.pef.output.Checkpoint;
+import nl.minvenj.pef.output.CheckpointSettings;
+import nl.minvenj.pef.output.CheckpointingOutputStream;
+import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.pseudo.cli.CLTool;
+import nl.minvenj.pef.pseudo.cli.FramePseudonymizerBuilder;
+import nl.minvenj.pef.pseudo.dump.cap.pcap.SingleThreadedPCAPPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcapng.SingleThreadedPCAPNGPseudonymizer;
+import nl.minvenj.pef.util.CLToolTestUtil;
+
+public class BatchPseudonymizerTest {
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    private static final String FINGERPRINT = "test";
+
+    private final String _testBasePath = Settings.getTestBasePath();
+
+    @Test
+    public void batchOutputEqualsSingleFileOutput() throws IOException {
+        final File inDir = _tempFolder.newFolder("in");
+        final File outDir = _tempFolder.newFolder("out");
+        final File singleDir = _tempFolder.newFolder("single");
+        for (final String name : new String[]{"pcaps/1udpdns.pcap", "pcaps/1tcpdns.pcap", "pcaps/56packets.pcap", "pcapngs/1udpdns.pcapng", "pcapngs/many_interfaces.pcapng"}) {
+            FileUtils.copyFileToDirectory(new File(_testBasePath, name), inDir);
+        }
+        final File summary = new File(_tempFolder.getRoot(), "summary.csv");
+
+        CLTool.main(String.format("-I %s -O %s -s %s -m 3 %s", inDir, outDir, summary, CLToolTestUtil.PEF_COMMAND).split(" "));
+
+        final List<File> inFiles = BatchPseudonymizer.listFiles(inDir, "*");
+        assertThat(inFiles.size(), is(equalTo(5)));
+        for (final File inFile : inFiles) {
+            final File singleFile = new File(singleDir, inFile.getName());
+            runWithCommand(inFile, singleFile, CLToolTestUtil.PEF_COMMAND);
+            assertTrue(inFile.getName(), FileUtils.contentEquals(singleFile, new File(outDir, inFile.getName())));
+        }
+
+        final List<String> lines = Files.readAllLines(summary.toPath(), StandardCharsets.UTF_8);
+        assertThat(lines.size(), is(equalTo(6)));
+        for (final String line : lines.subList(1, lines.size())) {
+            assertThat(line.split(",")[2], is(equalTo("OK")));
+        }
+    }
+
+    @Test
+    public void failingFilesDoNotStopBatch() throws IOException, InvalidKeyException {
+        final File inDir = _tempFolder.newFolder("in");
+        final File outDir = _tempFolder.newFolder("out");
+        FileUtils.copyFileToDirectory(new File(_testBasePath, "pcaps/magiconly.pcap"), inDir);
+        FileUtils.copyFileToDirectory(new File(_testBasePath, "pcaps/1udpdns.pcap"), inDir);
+        FileUtils.copyFileToDirectory(new File(_testBasePath, "2bytes.bin"), inDir);
+
+        final List<File> inFiles = BatchPseudonymizer.listFiles(inDir, "*.pcap");
+        assertThat(inFiles.size(), is(equalTo(2)));
+
+        final List<BatchFileResult> results = new BatchPseudonymizer(pseudonymizerSets(2)).pseudonymize(inFiles, outDir);
+        assertThat(results.get(0).getInFile().getName(), is(equalTo("1udpdns.pcap")));
+        assertThat(results.get(0).getStatus(), is(equalTo(BatchFileResult.Status.OK)));
+        assertThat(results.get(0).getOutSize(), is(equalTo(new File(outDir, "1udpdns.pcap").length())));
+        assertThat(results.get(1).getStatus(), is(equalTo(BatchFileResult.Status.UNSUPPORTED)));
+    }
+
+    @Test
+    public void refuseToOverwriteInput() throws IOException, InvalidKeyException {
+        final File inDir = _tempFolder.newFolder("in");
+        FileUtils.copyFileToDirectory(new File(_testBasePath, "pcaps/1udpdns.pcap"), inDir);
+        final File inFile = new File(inDir, "1udpdns.pcap");
+        final byte[] before = Files.readAllBytes(inFile.toPath());
+
+        final List<BatchFileResult> results = new BatchPseudonymizer(pseudonymizerSets(1)).pseudonymize(BatchPseudonymizer.listFiles(inDir, "*"), inDir);
+
+        assertThat(results.get(0).getStatus(), is(equalTo(BatchFileResult.Status.FAILED)));
+        assertThat(results.get(0).getMessage(), startsWith("output file would overwrite"));
+        assertThat(Files.readAllBytes(inFile.toPath()), is(equalTo(before)));
+    }
+
+    @Test
+    public void resumeFailedFileFromItsCheckpoint() throws IOException, InvalidKeyException {
+        final File inDir = _tempFolder.newFolder("in");
+        final File outDir = _tempFolder.newFolder("out");
+        final File expectedDir = _tempFolder.newFolder("expected");
+        FileUtils.copyFileToDirectory(new File(_testBasePath, "pcaps/56packets.pcap"), inDir);
+        final List<File> inFiles = BatchPseudonymizer.listFiles(inDir, "*");
+        new BatchPseudonymizer(pseudonymizerSets(1)).pseudonymize(inFiles, expectedDir);
+        final byte[] expected = Files.readAllBytes(new File(expectedDir, "56packets.pcap").toPath());
+        final File outFile = new File(outDir, "56packets.pcap");
+
+        final List<DumpFilePseudonymizer> failing = Collections.<DumpFilePseudonymizer>singletonList(new FailingPseudonymizer(expected, 28));
+        final List<BatchFileResult> failed = new BatchPseudonymizer(Collections.singletonList(failing)).pseudonymize(inFiles, outDir);
+        assertThat(failed.get(0).getStatus(), is(equalTo(BatchFileResult.Status.FAILED)));
+        assertTrue(outFile.exists());
+        assertTrue(Checkpoint.fileFor(outFile).exists());
+
+        final List<BatchFileResult> resumed = new BatchPseudonymizer(pseudonymizerSets(1, new CheckpointSettings(FINGERPRINT).resume(true))).pseudonymize(inFiles, outDir);
+        assertThat(resumed.get(0).getStatus(), is(equalTo(BatchFileResult.Status.OK)));
+        assertThat(Files.readAllBytes(outFile.toPath()), is(equalTo(expected)));
+        assertThat(Checkpoint.fileFor(outFile).exists(), is(false));
+    }
+
+    @Test
+    public void removeOutputOfFailedFileWithoutCheckpoint() throws IOException {
+        final File inDir = _tempFolder.newFolder("in");
+        final File outDir = _tempFolder.newFolder("out");
+        FileUtils.copyFileToDirectory(new File(_testBasePath, "pcaps/56packets.pcap"), inDir);
+
+        final List<DumpFilePseudonymizer> failing = Collections.<DumpFilePseudonymizer>singletonList(new FailingPseudonymizer(new byte[0], 0));
+        final List<BatchFileResult> failed = new BatchPseudonymizer(Collections.singletonList(failing)).pseudonymize(BatchPseudonymizer.listFiles(inDir, "*"), outDir);
+
+        assertThat(failed.get(0).getStatus(), is(equalTo(BatchFileResult.Status.FAILED)));
+        assertThat(new File(outDir, "56packets.pcap").exists(), is(false));
+    }
+
+    static List<List<DumpFilePseudonymizer>> pseudonymizerSets(final int amount) throws IOException, InvalidKeyException {
+        return pseudonymizerSets(amount, null);
+    }
+
+    static List<List<DumpFilePseudonymizer>> pseudonymizerSets(final int amount, final CheckpointSettings checkpointSettings) throws IOException, InvalidKeyException {
+        final List<List<DumpFilePseudonymizer>> sets = new ArrayList<>();
+        for (int i = 0; i < amount; i++) {
+            final List<DumpFilePseudonymizer> pseudonymizers = new ArrayList<>();
+            final SingleThreadedPCAPPseudonymizer pcapPseudonymizer = new SingleThreadedPCAPPseudonymizer(pseudonymizer());
+            pcapPseudonymizer.setCheckpointSettings(checkpointSettings);
+            pseudonymizers.add(pcapPseudonymizer);
+            final SingleThreadedPCAPNGPseudonymizer pcapngPseudonymizer = new SingleThreadedPCAPNGPseudonymizer(pseudonymizer());
+            pcapngPseudonymizer.setCheckpointSettings(checkpointSettings);
+            pseudonymizers.add(pcapngPseudonymizer);
+            sets.add(pseudonymizers);
+        }
+        return sets;
+    }
+
+    private static FramePseudonymizer pseudonymizer() throws IOException, InvalidKeyException {
+        return new FramePseudonymizerBuilder()
+            .pseudoIPv4("30313233343536373839414243444546", 16)
+            .calcIPv4Checksum()
+            .calcUDPChecksum()
+            .build();
+    }
+
+    // fails like a run that was interrupted after the checkpoint at a record, given the complete output of the file
+    private static class FailingPseudonymizer implements DumpFilePseudonymizer {
+
+        private final byte[] _expected;
+        private final int _records;
+
+        FailingPseudonymizer(final byte[] expected, final int records) {
+            _expected = expected;
+            _records = records;
+        }
+
+        @Override
+        public boolean supportsFile(final File file) {
+            return true;
+        }
+
+        @Override
+        public File pseudonymize(final File inFile, final File outFile) throws IOException {
+            try (final CheckpointingOutputStream output = new CheckpointingOutputStream(outFile, inFile, new CheckpointSettings(FINGERPRINT).interval(1))) {
+                if (_records > 0) {
+                    // the pseudonymized records are as long as the originals, so the output at an input offset is as long as the offset
+                    final int offset = pcapRecordOffset(inFile, _records);
+                    output.write(Arrays.copyOf(_expected, offset));
+                    output.commit(offset, 0);
+                }
+                output.write(new byte[] { 1, 2, 3, 4, 5 });
+            }
+            throw new IOException("interrupted");
+        }
+
+        private static int pcapRecordOffset(final File inFile, final int record) throws IOException {
+            final ByteBuffer input = ByteBuffer.wrap(Files.readAllBytes(inFile.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+            int offset = 24;
+            for (int i = 0; i < record; i++) {
+                offset += 16 + input.getInt(offset + 8);
+            }
+            return offset;
+        }
+    }
+}
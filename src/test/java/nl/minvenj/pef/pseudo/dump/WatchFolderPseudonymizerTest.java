@@ -0,0 +1,215 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pseudo.dump;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import static nl.minvenj.pef.pseudo.dump.BatchPseudonymizerTest.pseudonymizerSets;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.minvenj.pef.Settings;
+import nl.minvenj.pef.output.Checkpoint;
+import nl.minvenj.pef.output.CheckpointSettings;
+import nl.minvenj.pef.output.CheckpointingOutputStream;
+
+public class WatchFolderPseudonymizerTest {
+
+    private static final long TIMEOUT_MILLIS = 20000;
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    private final String _testBasePath = Settings.getTestBasePath();
+
+    @Test
+    public void processCompleteFilesAndResume() throws Exception {
+        final File inDir = _tempFolder.newFolder("in");
+        final File outDir = _tempFolder.newFolder("out");
+        final File journal = new File(_tempFolder.getRoot(), "journal");
+        final File staleTemp = new File(outDir, ".1udpdns.pcap.pef.tmp");
+        assertTrue(staleTemp.createNewFile());
+        final File staleCheckpoint = Checkpoint.fileFor(new File(outDir, ".56packets.pcap.pef.tmp"));
+        assertTrue(staleCheckpoint.createNewFile());
+
+        final File expectedDir = _tempFolder.newFolder("expected");
+        FileUtils.copyFileToDirectory(new File(_testBasePath, "pcaps/1udpdns.pcap"), expectedDir);
+        FileUtils.copyFileToDirectory(new File(_testBasePath, "pcapngs/1udpdns.pcapng"), expectedDir);
+        new BatchPseudonymizer(pseudonymizerSets(1)).pseudonymize(BatchPseudonymizer.listFiles(expectedDir, "*"), outDir);
+        for (final File file : outDir.listFiles()) {
+            FileUtils.moveFile(file, new File(expectedDir, file.getName() + ".expected"));
+        }
+
+        // present before the service starts
+        FileUtils.copyFileToDirectory(new File(_testBasePath, "pcaps/1udpdns.pcap"), inDir);
+        WatchFolderPseudonymizer watcher = new WatchFolderPseudonymizer(inDir, outDir, pseudonymizerSets(2), journal, "*.{pcap,pcapng}", 200);
+        Thread thread = start(watcher);
+        // arrives while running, marked as complete
+        FileUtils.copyFileToDirectory(new File(_testBasePath, "pcapngs/1udpdns.pcapng"), inDir);
+        assertTrue(new File(inDir, "1udpdns.pcapng" + WatchFolderPseudonymizer.DONE_SUFFIX).createNewFile());
+        // not matching the pattern
+        FileUtils.copyFileToDirectory(new File(_testBasePath, "2bytes.bin"), inDir);
+
+        waitForFinished(watcher, 2);
+        stop(watcher, thread);
+
+        assertFalse(staleTemp.exists());
+        assertFalse(staleCheckpoint.exists());
+        assertThat(Arrays.asList(outDir.list()).size(), is(equalTo(2)));
+        assertTrue(FileUtils.contentEquals(new File(expectedDir, "1udpdns.pcap.expected"), new File(outDir, "1udpdns.pcap")));
+        assertTrue(FileUtils.contentEquals(new File(expectedDir, "1udpdns.pcapng.expected"), new File(outDir, "1udpdns.pcapng")));
+
+        // after a restart, only the new file is processed
+        final File newFile = new File(inDir, "56packets.pcap");
+        FileUtils.copyFile(new File(_testBasePath, "pcaps/56packets.pcap"), newFile);
+        watcher = new WatchFolderPseudonymizer(inDir, outDir, pseudonymizerSets(1), journal, "*.{pcap,pcapng}", 200);
+        thread = start(watcher);
+        waitForFinished(watcher, 1);
+        Thread.sleep(500);
+        stop(watcher, thread);
+
+        assertThat(watcher.getFinishedCount(), is(equalTo(1)));
+        assertTrue(new File(outDir, "56packets.pcap").isFile());
+    }
+
+    @Test
+    public void retryFailedFile() throws Exception {
+        final File inDir = _tempFolder.newFolder("in");
+        final File outDir = _tempFolder.newFolder("out");
+        final File journal = new File(_tempFolder.getRoot(), "journal");
+        FileUtils.copyFileToDirectory(new File(_testBasePath, "pcaps/1udpdns.pcap"), inDir);
+        final FailingPseudonymizer pseudonymizer = new FailingPseudonymizer(1);
+
+        final WatchFolderPseudonymizer watcher = new WatchFolderPseudonymizer(inDir, outDir, sets(pseudonymizer), journal, "*.pcap", 100);
+        final Thread thread = start(watcher);
+        waitForFinished(watcher, 1);
+        stop(watcher, thread);
+
+        assertThat(pseudonymizer._attempts.get(), is(equalTo(2)));
+        assertThat(Arrays.asList(outDir.list()), is(equalTo(Collections.singletonList("1udpdns.pcap"))));
+    }
+
+    @Test
+    public void giveUpOnFileFailingTooOften() throws Exception {
+        final File inDir = _tempFolder.newFolder("in");
+        final File outDir = _tempFolder.newFolder("out");
+        final File journal = new File(_tempFolder.getRoot(), "journal");
+        FileUtils.copyFileToDirectory(new File(_testBasePath, "pcaps/1udpdns.pcap"), inDir);
+        final FailingPseudonymizer pseudonymizer = new FailingPseudonymizer(Integer.MAX_VALUE);
+
+        WatchFolderPseudonymizer watcher = new WatchFolderPseudonymizer(inDir, outDir, sets(pseudonymizer), journal, "*.pcap", 100);
+        Thread thread = start(watcher);
+        waitForFinished(watcher, 1);
+        stop(watcher, thread);
+
+        assertThat(pseudonymizer._attempts.get(), is(equalTo(WatchFolderPseudonymizer.MAX_ATTEMPTS)));
+        // the partial output is removed together with its checkpoint
+        assertThat(outDir.list().length, is(equalTo(0)));
+
+        // after a restart, the file is not tried again
+        watcher = new WatchFolderPseudonymizer(inDir, outDir, sets(pseudonymizer), journal, "*.pcap", 100);
+        thread = start(watcher);
+        Thread.sleep(500);
+        stop(watcher, thread);
+
+        assertThat(pseudonymizer._attempts.get(), is(equalTo(WatchFolderPseudonymizer.MAX_ATTEMPTS)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refuseSameDirectories() throws IOException, InvalidKeyException {
+        final File dir = _tempFolder.newFolder("in");
+        new WatchFolderPseudonymizer(dir, dir, pseudonymizerSets(1), new File(_tempFolder.getRoot(), "journal"), "*", 200);
+    }
+
+    private static Thread start(final WatchFolderPseudonymizer watcher) {
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    watcher.run();
+                }
+                catch (final IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void stop(final WatchFolderPseudonymizer watcher, final Thread thread) throws InterruptedException {
+        watcher.stop();
+        thread.join(TIMEOUT_MILLIS);
+        assertFalse(thread.isAlive());
+    }
+
+    private static void waitForFinished(final WatchFolderPseudonymizer watcher, final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (watcher.getFinishedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(watcher.getFinishedCount(), is(equalTo(count)));
+    }
+
+    private static List<List<DumpFilePseudonymizer>> sets(final DumpFilePseudonymizer pseudonymizer) {
+        return Collections.singletonList(Collections.singletonList(pseudonymizer));
+    }
+
+    // fails a number of times, leaving a partial output with a checkpoint like an interrupted run, then pseudonymizes
+    private static final class FailingPseudonymizer implements DumpFilePseudonymizer {
+
+        private final DumpFilePseudonymizer _pseudonymizer;
+        private final int _failures;
+        private final AtomicInteger _attempts = new AtomicInteger();
+
+        FailingPseudonymizer(final int failures) throws IOException, InvalidKeyException {
+            _pseudonymizer = pseudonymizerSets(1).get(0).get(0);
+            _failures = failures;
+        }
+
+        @Override
+        public boolean supportsFile(final File file) {
+            return true;
+        }
+
+        @Override
+        public File pseudonymize(final File inFile, final File outFile) throws IOException {
+            if (_attempts.incrementAndGet() > _failures) {
+                return _pseudonymizer.pseudonymize(inFile, outFile);
+            }
+            try (final CheckpointingOutputStream output = new CheckpointingOutputStream(outFile, inFile, new CheckpointSettings("test").interval(1))) {
+                output.write(new byte[] { 1, 2, 3, 4, 5 });
+                output.commit(1, 0);
+            }
+            throw new IOException("interrupted");
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pseudo.dump.cap;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import static nl.minvenj.pef.TestPseudonymizers.pseudonymizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.InvalidKeyException;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.minvenj.pef.Settings;
+import nl.minvenj.pef.compress.Compression;
+import nl.minvenj.pef.pseudo.dump.cap.pcap.SingleThreadedPCAPPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcapng.SingleThreadedPCAPNGPseudonymizer;
+
+public class CompressedCapturePseudonymizerTest {
+
+    private final String _basePath = Settings.getTestBasePath();
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    @Test
+    public void pseudonymizeCompressedPCAP() throws IOException, InvalidKeyException {
+        final File inFile = new File(_basePath + "/pcaps", "56packets.pcap");
+        final File expected = new SingleThreadedPCAPPseudonymizer(pseudonymizer()).pseudonymize(inFile, _tempFolder.newFile());
+        final File compressed = gzip(inFile);
+
+        final CompressedCapturePseudonymizer pseudonymizer = new CompressedCapturePseudonymizer(pseudonymizer());
+        assertThat(pseudonymizer.supportsFile(compressed), is(true));
+        assertThat(pseudonymizer.supportsFile(inFile), is(false));
+
+        for (final String name : new String[] { "out.pcap", "out.pcap.gz", "out.pcap.zst", "out.pcap.lz4" }) {
+            final File outFile = pseudonymizer.pseudonymize(compressed, new File(_tempFolder.getRoot(), name));
+            assertThat(Compression.detect(outFile), is(equalTo(Compression.forFileName(name))));
+            assertThat(name, decompress(outFile), is(equalTo(Files.readAllBytes(expected.toPath()))));
+        }
+    }
+
+    @Test
+    public void pseudonymizeCompressedPCAPNG() throws IOException, InvalidKeyException {
+        final File inFile = new File(_basePath + "/pcapngs", "many_interfaces.pcapng");
+        final File expected = new SingleThreadedPCAPNGPseudonymizer(pseudonymizer()).pseudonymize(inFile, _tempFolder.newFile());
+
+        final File outFile = new CompressedCapturePseudonymizer(pseudonymizer()).pseudonymize(gzip(inFile), new File(_tempFolder.getRoot(), "out.pcapng.zst"));
+        assertThat(decompress(outFile), is(equalTo(Files.readAllBytes(expected.toPath()))));
+    }
+
+    private File gzip(final File file) throws IOException {
+        final File compressed = new File(_tempFolder.getRoot(), file.getName() + ".gz");
+        try (final OutputStream output = new GZIPOutputStream(new FileOutputStream(compressed))) {
+            Files.copy(file.toPath(), output);
+        }
+        return compressed;
+    }
+
+    private static byte[] decompress(final File file) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (final InputStream input = Compression.openInput(file)) {
+            final byte[] buffer = new byte[4096];
+            for (int count = input.read(buffer); count >= 0; count = input.read(buffer)) {
+                output.write(buffer, 0, count);
+            }
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.pseudo.dump.cap;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import static nl.minvenj.pef.TestPseudonymizers.pseudonymizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.InvalidKeyException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.minvenj.pef.Settings;
+import nl.minvenj.pef.exception.UnsupportedFileFormatException;
+import nl.minvenj.pef.pseudo.dump.DumpFilePseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcap.SingleThreadedPCAPPseudonymizer;
+import nl.minvenj.pef.pseudo.dump.cap.pcapng.SingleThreadedPCAPNGPseudonymizer;
+
+public class StreamingCapturePseudonymizerTest {
+
+    private final String _basePath = Settings.getTestBasePath();
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    @Test
+    public void writeSameAsPCAPFilePseudonymizer() throws IOException, InvalidKeyException {
+        for (final String name : new String[] { "56packets.pcap", "1dnsidentical.pcap", "1dnsswapped.pcap", "1tcpdns.pcap" }) {
+            assertSameAsFile(new File(_basePath + "/pcaps", name), new SingleThreadedPCAPPseudonymizer(pseudonymizer()));
+        }
+    }
+
+    @Test
+    public void writeSameAsPCAPNGFilePseudonymizer() throws IOException, InvalidKeyException {
+        for (final String name : new String[] { "1udpdns.pcapng", "dhcp_big_endian.pcapng", "dhcp_little_endian.pcapng", "many_interfaces.pcapng" }) {
+            assertSameAsFile(new File(_basePath + "/pcapngs", name), new SingleThreadedPCAPNGPseudonymizer(pseudonymizer()));
+        }
+    }
+
+    @Test
+    public void dropTruncatedRecord() throws IOException, InvalidKeyException {
+        final byte[] input = Files.readAllBytes(new File(_basePath + "/pcaps", "1udpdns.pcap").toPath());
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final long packets = new StreamingCapturePseudonymizer(pseudonymizer()).pseudonymize(new ByteArrayInputStream(input, 0, input.length - 1), output);
+
+        assertThat(packets, is(equalTo(0L)));
+        assertThat(output.size(), is(equalTo(24)));
+    }
+
+    @Test(expected = UnsupportedFileFormatException.class)
+    public void rejectUnknownFormat() throws IOException, InvalidKeyException {
+        final byte[] input = Files.readAllBytes(new File(_basePath + "/pcaps", "magiconly.pcap").toPath());
+        new StreamingCapturePseudonymizer(pseudonymizer()).pseudonymize(new ByteArrayInputStream(input), new ByteArrayOutputStream());
+    }
+
+    private void assertSameAsFile(final File inFile, final DumpFilePseudonymizer filePseudonymizer) throws IOException, InvalidKeyException {
+        final File expected = filePseudonymizer.pseudonymize(inFile, _tempFolder.newFile());
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        // a pipe returns what is available, so deliver the input in small pieces
+        new StreamingCapturePseudonymizer(pseudonymizer()).pseudonymize(new TrickleInputStream(new ByteArrayInputStream(Files.readAllBytes(inFile.toPath()))), output);
+
+        assertThat(inFile.getName(), output.toByteArray(), is(equalTo(Files.readAllBytes(expected.toPath()))));
+    }
+
+    private static class TrickleInputStream extends FilterInputStream {
+
+        TrickleInputStream(final InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            return super.read(buffer, offset, Math.min(length, 7));
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.ring;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+    private static final EntryFactory<long[]> FACTORY = new EntryFactory<long[]>() {
+        @Override
+        public long[] newEntry() {
+            return new long[2];
+        }
+    };
+
+    @Test
+    public void refuseClaimWhenFull() {
+        final RingBuffer<long[]> ring = new SpscRingBuffer<>(3, FACTORY, new BusySpinWaitStrategy());
+        assertThat(ring.getCapacity(), is(equalTo(4)));
+        for (int i = 0; i < 4; i++) {
+            ring.publish(ring.claim());
+        }
+        assertThat(ring.tryClaim(), is(equalTo(RingBuffer.NONE)));
+
+        assertThat(ring.poll(), is(equalTo(0L)));
+        assertThat(ring.tryClaim(), is(equalTo(RingBuffer.NONE)));
+        ring.release(0);
+        assertThat(ring.tryClaim(), is(equalTo(4L)));
+        assertThat(ring.get(4), is(ring.get(0)));
+    }
+
+    @Test
+    public void pollOnlyPublishedEntries() {
+        final RingBuffer<long[]> ring = new MpscRingBuffer<>(4, FACTORY, new BusySpinWaitStrategy());
+        final long first = ring.claim();
+        final long second = ring.claim();
+        ring.publish(second);
+        assertThat(ring.poll(), is(equalTo(RingBuffer.NONE)));
+        ring.publish(first);
+        assertThat(ring.poll(), is(equalTo(first)));
+        assertThat(ring.poll(), is(equalTo(second)));
+        assertThat(ring.poll(), is(equalTo(RingBuffer.NONE)));
+    }
+
+    @Test
+    public void handOverEntriesFromOneProducer() throws InterruptedException {
+        final RingBuffer<long[]> ring = new SpscRingBuffer<>(64, FACTORY, new YieldingWaitStrategy());
+        final Thread producer = startProducers(ring, 1, 1000000)[0];
+
+        for (long expected = 0; expected < 1000000; expected++) {
+            final long sequence = ring.take();
+            assertThat(ring.get(sequence)[1], is(equalTo(expected)));
+            ring.release(sequence);
+        }
+        producer.join();
+        assertThat(ring.poll(), is(equalTo(RingBuffer.NONE)));
+    }
+
+    @Test
+    public void handOverEntriesFromMultipleProducers() throws InterruptedException {
+        final int producers = 4;
+        final int count = 250000;
+        final RingBuffer<long[]> ring = new MpscRingBuffer<>(64, FACTORY, new ParkingWaitStrategy());
+        final Thread[] threads = startProducers(ring, producers, count);
+
+        // the entries of each producer must arrive in the order they were produced
+        final long[] next = new long[producers];
+        for (int i = 0; i < producers * count; i++) {
+            final long sequence = ring.take();
+            final long[] entry = ring.get(sequence);
+            assertThat(entry[1], is(equalTo(next[(int) entry[0]]++)));
+            ring.release(sequence);
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        for (int producer = 0; producer < producers; producer++) {
+            assertThat(next[producer], is(equalTo((long) count)));
+        }
+    }
+
+    private static Thread[] startProducers(final RingBuffer<long[]> ring, final int producers, final int count) {
+        final Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            final int producer = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long value = 0; value < count; value++) {
+                        final long sequence = ring.claim();
+                        final long[] entry = ring.get(sequence);
+                        entry[0] = producer;
+                        entry[1] = value;
+                        ring.publish(sequence);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        return threads;
+    }
+}
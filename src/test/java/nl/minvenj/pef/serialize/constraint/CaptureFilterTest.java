@@ -0,0 +1,62 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.serialize.constraint;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import io.parsingdata.metal.Shorthand;
+import nl.minvenj.pef.metal.packet.application.DNS;
+import nl.minvenj.pef.metal.packet.transport.TCP;
+
+public class CaptureFilterTest {
+
+    @Test
+    public void selectDNSPortsOfConstraint() {
+        assertThat(CaptureFilter.forConstraints(Collections.singletonList(Constraints.IPV4_UDP_DNS), 53, 5353),
+                   is(equalTo("(ip and udp and (port 53 or port 5353)) or (vlan and ((ip and udp and (port 53 or port 5353))))")));
+    }
+
+    @Test
+    public void combineConstraints() {
+        assertThat(CaptureFilter.forConstraints(Arrays.asList(Constraints.IPV4_DNS, Constraints.IPV6_UDP_DNS, Constraints.ICMP_DNS, Constraints.IPV4_DNS), 53),
+                   is(equalTo("(ip and (port 53)) or (ip6 and udp and (port 53)) or (icmp)"
+                              + " or (vlan and ((ip and (port 53)) or (ip6 and udp and (port 53)) or (icmp)))")));
+        assertThat(CaptureFilter.forConstraints(Collections.singletonList(new TransformConstraint(TCP.FORMAT, DNS.FORMAT)), 53),
+                   is(equalTo("(tcp and (port 53)) or (vlan and ((tcp and (port 53))))")));
+    }
+
+    @Test
+    public void selectFragmentsWithoutPorts() {
+        assertThat(CaptureFilter.forConstraints(Arrays.asList(Constraints.IPV4_UDP_DNS, Constraints.IPV4_FRAGMENT_DNS), 53),
+                   is(equalTo("(ip and udp and (port 53)) or (ip and (ip[6:2] & 0x3fff != 0))"
+                              + " or (vlan and ((ip and udp and (port 53)) or (ip and (ip[6:2] & 0x3fff != 0))))")));
+    }
+
+    @Test
+    public void selectAllWhenNotLimitedToDNS() {
+        assertThat(CaptureFilter.forConstraints(Collections.<TransformConstraint>emptyList(), 53), is(nullValue()));
+        assertThat(CaptureFilter.forConstraints(Arrays.asList(Constraints.IPV4_DNS, TransformConstraint.TRUE), 53), is(nullValue()));
+        assertThat(CaptureFilter.forConstraints(Collections.singletonList(new TransformConstraint(Shorthand.expTrue(), DNS.FORMAT)), 53), is(nullValue()));
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.serialize.transform;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import io.parsingdata.metal.data.ParseResult;
+import nl.minvenj.pef.metal.packet.internet.ICMPv6;
+import nl.minvenj.pef.metal.packet.internet.IPv6;
+import nl.minvenj.pef.metal.packet.link.Ethernet2Frame;
+import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.pseudo.cli.FramePseudonymizerBuilder;
+import nl.minvenj.pef.serialize.Processor;
+import nl.minvenj.pef.serialize.constraint.TransformConstraint;
+import nl.minvenj.pef.serialize.process.CopyTokenSerializer;
+import nl.minvenj.pef.serialize.transform.checksum.IPv6ICMPChecksumCalculator;
+import nl.minvenj.pef.util.ChecksumCalc;
+import nl.minvenj.pef.util.Util;
+
+public class IPv6ICMPChecksumCalcTest {
+
+    private static final int FRAME_HEADER_LENGTH = 14;
+    private static final int IPV6_HEADER_LENGTH = 40;
+
+    @Test
+    public void calculateChecksumOverOuterPacket() throws IOException {
+        final byte[] frame = frame();
+        final ParseResult originalResult = Util.parse(frame, Ethernet2Frame.FORMAT);
+
+        final CopyTokenSerializer outSerializer = new CopyTokenSerializer(frame.length);
+        new Processor()
+            .addTransformer(new TransformConstraint(IPv6.FORMAT, ICMPv6.FORMAT), "icmpchecksum", new IPv6ICMPChecksumCalculator())
+            .transformAndProcess(originalResult, outSerializer);
+        final byte[] newBytes = outSerializer.outputData();
+
+        assertThat(Arrays.copyOfRange(newBytes, 56, 58), is(not(equalTo(new byte[2]))));
+        assertThat(isValid(newBytes), is(true));
+    }
+
+    @Test
+    public void recalculateChecksumAfterPseudonymization() throws IOException, InvalidKeyException {
+        final byte[] frame = frame();
+        final FramePseudonymizer pseudonymizer = new FramePseudonymizerBuilder()
+            .pseudoIPv6("30313233343536373839414243444546", 64)
+            .calcICMPChecksum()
+            .build();
+
+        final byte[] newBytes = pseudonymizer.pseudonymize(frame);
+
+        assertThat(Arrays.copyOfRange(newBytes, 22, 54), is(not(equalTo(Arrays.copyOfRange(frame, 22, 54)))));
+        assertThat(isValid(newBytes), is(true));
+    }
+
+    // the sum over the pseudo header and message, including the checksum, must be zero
+    private static boolean isValid(final byte[] frame) {
+        final int start = FRAME_HEADER_LENGTH + IPV6_HEADER_LENGTH;
+        final byte[] message = Arrays.copyOfRange(frame, start, frame.length);
+        final byte[] pseudoHeader = ByteBuffer.allocate(40)
+            .put(frame, FRAME_HEADER_LENGTH + 8, 32)
+            .putInt(message.length)
+            .putInt(58)
+            .array();
+        return Arrays.equals(ChecksumCalc.calculateInternetChecksum(Util.concatBytes(pseudoHeader, message)), new byte[2]);
+    }
+
+    // an ICMPv6 port unreachable, quoting a DNS query sent in the other direction
+    private static byte[] frame() {
+        final byte[] query = {
+            0x12, 0x34, 0x01, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+            0x07, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 0x03, 'c', 'o', 'm', 0x00, 0x00, 0x01, 0x00, 0x01
+        };
+        final ByteBuffer quoted = ByteBuffer.allocate(IPV6_HEADER_LENGTH + 8 + query.length);
+        quoted.putInt(0x60000000).putShort((short) (8 + query.length)).put((byte) 17).put((byte) 64);
+        quoted.putLong(0x20010DB800000000L).putLong(2).putLong(0x20010DB800000000L).putLong(1);
+        quoted.putShort((short) 40000).putShort((short) 53).putShort((short) (8 + query.length)).putShort((short) 0x1F2E).put(query);
+
+        final ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_LENGTH + IPV6_HEADER_LENGTH + 8 + quoted.capacity());
+        frame.put(new byte[12]).putShort((short) 0x86DD);
+        frame.putInt(0x60000000).putShort((short) (8 + quoted.capacity())).put((byte) 58).put((byte) 64);
+        frame.putLong(0x20010DB800000000L).putLong(1).putLong(0x20010DB800000000L).putLong(2);
+        frame.put((byte) 1).put((byte) 4).putShort((short) 0).putInt(0).put(quoted.array());
+        return frame.array();
+    }
+}
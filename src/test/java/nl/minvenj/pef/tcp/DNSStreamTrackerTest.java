@@ -0,0 +1,204 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.tcp;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import static nl.minvenj.pef.tcp.TCPReassemblerTest.frame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import nl.minvenj.pef.Settings;
+import nl.minvenj.pef.compare.CaptureFrames;
+import nl.minvenj.pef.compare.CaptureFrames.FrameHandler;
+import nl.minvenj.pef.pseudo.FramePseudonymizer;
+import nl.minvenj.pef.pseudo.cli.FramePseudonymizerBuilder;
+
+public class DNSStreamTrackerTest {
+
+    private static final String KEY = "30313233343536373839414243444546";
+    private static final int SYN = 0x02;
+    private static final int ACK = 0x10;
+
+    @Test
+    public void recognizeMessagesSplitOverSegments() {
+        final DNSStreamTracker tracker = new DNSStreamTracker(16, SegmentStore.BLOCK_SIZE * 4, 1000);
+        final byte[] stream = concat(message(0x1234), message(0x1235));
+
+        // the length prefix on its own, and a part of the header
+        assertThat(isDNSSegment(tracker, frame(1, 2, 0, ACK, Arrays.copyOfRange(stream, 0, 2))), is(false));
+        assertThat(isDNSSegment(tracker, frame(1, 2, 2, ACK, Arrays.copyOfRange(stream, 2, 12))), is(false));
+        // the rest of the header, and the second message
+        assertThat(isDNSSegment(tracker, frame(1, 2, 12, ACK, Arrays.copyOfRange(stream, 12, stream.length))), is(true));
+        // all segments of the connection after it was recognized, in both directions
+        assertThat(isDNSSegment(tracker, frame(2, 1, 0, ACK, new byte[0])), is(true));
+        assertThat(isDNSSegment(tracker, frame(1, 2, stream.length, ACK, new byte[0])), is(true));
+
+        assertThat(tracker.getMessages(), is(equalTo(2L)));
+        assertThat(tracker.getDNSFlows(), is(equalTo(1L)));
+        assertThat(tracker.getLostStreams(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void recognizeMessagesArrivingOutOfOrder() {
+        final DNSStreamTracker tracker = new DNSStreamTracker(16, SegmentStore.BLOCK_SIZE * 4, 1000);
+        final byte[] stream = concat(message(0x1234), message(0x1235));
+
+        assertThat(isDNSSegment(tracker, frame(1, 2, -1, SYN, new byte[0])), is(false));
+        assertThat(isDNSSegment(tracker, frame(1, 2, 20, ACK, Arrays.copyOfRange(stream, 20, stream.length))), is(false));
+        assertThat(isDNSSegment(tracker, frame(1, 2, 0, ACK, Arrays.copyOfRange(stream, 0, 20))), is(true));
+        assertThat(tracker.getMessages(), is(equalTo(2L)));
+    }
+
+    @Test
+    public void ignoreOtherConnections() {
+        final DNSStreamTracker tracker = new DNSStreamTracker(16, SegmentStore.BLOCK_SIZE * 4, 1000);
+        final byte[] request = "GET / HTTP/1.1\r\nHost: example.com\r\n\r\n".getBytes();
+
+        assertThat(isDNSSegment(tracker, frame(1, 2, 0, ACK, request)), is(false));
+        // data further in the stream is not taken as the start of a message
+        assertThat(isDNSSegment(tracker, frame(1, 2, request.length, ACK, message(0x1234))), is(false));
+        assertThat(isDNSSegment(tracker, frame(2, 1, 0, ACK, new byte[0])), is(false));
+        assertThat(tracker.getDNSFlows(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void recognizeDNSPort() {
+        final DNSStreamTracker tracker = new DNSStreamTracker(16, SegmentStore.BLOCK_SIZE, 1000, 2002);
+        final byte[] request = "not a DNS message".getBytes();
+
+        assertThat(isDNSSegment(tracker, frame(1, 2, 0, ACK, new byte[0])), is(true));
+        assertThat(isDNSSegment(tracker, frame(1, 2, 0, ACK, request)), is(true));
+        assertThat(isDNSSegment(tracker, frame(1, 3, 0, ACK, request)), is(false));
+        assertThat(tracker.getLostStreams(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void pseudonymizeSegmentOfMessage() throws IOException, InvalidKeyException {
+        // the segment holds a DNS message without its length prefix, which was in an earlier segment
+        final byte[] frame = firstFrame("1tcpdnsseg.pcap");
+
+        final byte[] unchanged = frame.clone();
+        assertThat(pseudonymizer(false).pseudonymize(unchanged, 0, unchanged.length), is(true));
+        assertThat(unchanged, is(equalTo(frame)));
+
+        final byte[] pseudonymized = frame.clone();
+        assertThat(pseudonymizer(true).pseudonymize(pseudonymized, 0, pseudonymized.length), is(true));
+        assertThat(Arrays.copyOfRange(pseudonymized, 26, 34), is(not(equalTo(Arrays.copyOfRange(frame, 26, 34)))));
+        assertThat(Arrays.copyOfRange(pseudonymized, 34, frame.length), is(not(equalTo(Arrays.copyOfRange(frame, 34, frame.length)))));
+        assertThat(checksum(pseudonymized, 14, 20), is(equalTo(0xFFFF)));
+        assertThat(tcpChecksum(pseudonymized), is(equalTo(0xFFFF)));
+    }
+
+    @Test
+    public void pseudonymizeAllSegmentsOfConnection() throws IOException, InvalidKeyException {
+        final FramePseudonymizer pseudonymizer = new FramePseudonymizerBuilder()
+            .pseudoIPv4(KEY, 16)
+            .calcIPv4Checksum()
+            .calcTCPChecksum()
+            .dnsOverTCP(new DNSStreamTracker(16, SegmentStore.BLOCK_SIZE * 4, 1000))
+            .build();
+        final byte[] message = message(0x1234);
+
+        final byte[] first = frame(1, 2, 0, ACK, Arrays.copyOfRange(message, 0, 20));
+        final byte[] second = frame(1, 2, 20, ACK, Arrays.copyOfRange(message, 20, message.length));
+        final byte[] reply = frame(2, 1, 0, ACK, new byte[0]);
+        for (final byte[] frame : Arrays.asList(first, second, reply)) {
+            final byte[] original = frame.clone();
+            assertThat(pseudonymizer.pseudonymize(frame, 0, frame.length), is(true));
+            assertThat(Arrays.copyOfRange(frame, 26, 34), is(not(equalTo(Arrays.copyOfRange(original, 26, 34)))));
+            assertThat(checksum(frame, 14, 20), is(equalTo(0xFFFF)));
+            assertThat(tcpChecksum(frame), is(equalTo(0xFFFF)));
+        }
+        // both directions get the same pseudonyms
+        assertThat(Arrays.copyOfRange(reply, 26, 30), is(equalTo(Arrays.copyOfRange(first, 30, 34))));
+        assertThat(Arrays.copyOfRange(second, 26, 34), is(equalTo(Arrays.copyOfRange(first, 26, 34))));
+    }
+
+    private static FramePseudonymizer pseudonymizer(final boolean dnsOverTCP) throws IOException, InvalidKeyException {
+        final FramePseudonymizerBuilder builder = new FramePseudonymizerBuilder()
+            .pseudoIPv4(KEY, 16)
+            .pseudoIPv6(KEY, 64)
+            .calcIPv4Checksum()
+            .calcUDPChecksum()
+            .calcTCPChecksum();
+        return dnsOverTCP ? builder.dnsOverTCP().build() : builder.build();
+    }
+
+    private static boolean isDNSSegment(final DNSStreamTracker tracker, final byte[] frame) {
+        return tracker.isDNSSegment(frame, 0, frame.length);
+    }
+
+    // a query for example.com, with its length prefix
+    private static byte[] message(final int id) {
+        final ByteBuffer message = ByteBuffer.allocate(31);
+        message.putShort((short) 29).putShort((short) id).putShort((short) 0x0100).putShort((short) 1).putShort((short) 0).putInt(0);
+        message.put((byte) 7).put("example".getBytes()).put((byte) 3).put("com".getBytes()).put((byte) 0);
+        message.putShort((short) 1).putShort((short) 1);
+        return message.array();
+    }
+
+    private static byte[] concat(final byte[] first, final byte[] second) {
+        final byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static byte[] firstFrame(final String name) throws IOException {
+        final byte[][] first = new byte[1][];
+        CaptureFrames.read(new File(Settings.getTestBasePath(), "pcaps/" + name), new FrameHandler() {
+            @Override
+            public void frame(final byte[] frame) {
+                if (first[0] == null) {
+                    first[0] = frame;
+                }
+            }
+        });
+        return first[0];
+    }
+
+    // the checksum over the pseudo header and the segment of an IPv4 frame without options
+    private static int tcpChecksum(final byte[] frame) {
+        final int length = ((frame[16] & 0xFF) << 8 | frame[17] & 0xFF) - 20;
+        final byte[] data = new byte[12 + length];
+        System.arraycopy(frame, 26, data, 0, 8);
+        data[9] = 6;
+        data[10] = (byte) (length >> 8);
+        data[11] = (byte) length;
+        System.arraycopy(frame, 34, data, 12, length);
+        return checksum(data, 0, data.length);
+    }
+
+    private static int checksum(final byte[] data, final int offset, final int length) {
+        long sum = 0;
+        for (int i = 0; i < length; i += 2) {
+            sum += (data[offset + i] & 0xFF) << 8 | (i + 1 < length ? data[offset + i + 1] & 0xFF : 0);
+        }
+        while (sum > 0xFFFF) {
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        }
+        return (int) sum;
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.tcp;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TCPReassemblerTest {
+
+    private static final int SYN = 0x02;
+    private static final int ACK = 0x10;
+
+    @Test
+    public void deliverInSequenceOrder() {
+        final RecordingListener listener = new RecordingListener();
+        final TCPReassembler reassembler = new TCPReassembler(listener, 16, 1024 * 1024, 1000);
+        final byte[] stream = bytes(10000);
+
+        assertThat(reassembler.process(frame(1, 2, 1000, SYN, new byte[0]), 0, 54), is(equalTo(0)));
+        // a segment spanning multiple blocks of the store arrives early, one arrives twice
+        process(reassembler, frame(1, 2, 1001 + 4000, ACK, Arrays.copyOfRange(stream, 4000, 10000)));
+        process(reassembler, frame(1, 2, 1001 + 1000, ACK, Arrays.copyOfRange(stream, 1000, 4000)));
+        assertThat(reassembler.getBufferedBytes() > 0, is(true));
+        process(reassembler, frame(1, 2, 1001, ACK, Arrays.copyOfRange(stream, 0, 1500)));
+        process(reassembler, frame(1, 2, 1001, ACK, Arrays.copyOfRange(stream, 0, 1500)));
+
+        assertThat(listener.stream(0), is(equalTo(stream)));
+        assertThat(reassembler.getBufferedBytes(), is(equalTo(0L)));
+        assertThat(reassembler.getGaps(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void shareFlowBetweenDirections() {
+        final RecordingListener listener = new RecordingListener();
+        final TCPReassembler reassembler = new TCPReassembler(listener);
+
+        final int request = reassembler.process(frame(1, 2, 5, ACK, "request".getBytes()), 0, 61);
+        final int response = reassembler.process(frame(2, 1, 9, ACK, "response".getBytes()), 0, 62);
+
+        assertThat(request >>> 1, is(equalTo(response >>> 1)));
+        assertThat(request & 1, is(equalTo(1 - (response & 1))));
+        assertThat(new String(listener.stream(request)), is(equalTo("request")));
+        assertThat(new String(listener.stream(response)), is(equalTo("response")));
+        assertThat(reassembler.getFlows(), is(equalTo(1)));
+        assertThat(reassembler.getSourcePort(), is(equalTo(2002)));
+        assertThat(reassembler.getDestinationPort(), is(equalTo(2001)));
+    }
+
+    @Test
+    public void ignoreFramesOtherThanTCP() {
+        final TCPReassembler reassembler = new TCPReassembler(new RecordingListener());
+        final byte[] udp = frame(1, 2, 0, 0, new byte[0]);
+        udp[23] = 17;
+        final byte[] fragment = frame(1, 2, 0, 0, new byte[0]);
+        fragment[20] = 0x20;
+
+        assertThat(reassembler.process(udp, 0, udp.length), is(equalTo(TCPReassembler.NONE)));
+        assertThat(reassembler.process(fragment, 0, fragment.length), is(equalTo(TCPReassembler.NONE)));
+        assertThat(reassembler.process(udp, 0, 20), is(equalTo(TCPReassembler.NONE)));
+        assertThat(reassembler.getFlows(), is(equalTo(0)));
+    }
+
+    @Test
+    public void evictLeastRecentlySeenFlow() {
+        final RecordingListener listener = new RecordingListener();
+        final TCPReassembler reassembler = new TCPReassembler(listener, 2, SegmentStore.BLOCK_SIZE, 1000);
+        final int first = process(reassembler, frame(1, 2, 0, ACK, new byte[0]));
+        final int second = process(reassembler, frame(3, 4, 0, ACK, new byte[0]));
+        // seeing the first flow again makes the second one the least recently seen
+        process(reassembler, frame(2, 1, 0, ACK, new byte[0]));
+        final int third = process(reassembler, frame(5, 6, 0, ACK, new byte[0]));
+
+        assertThat(listener._removed, contains(second >>> 1));
+        assertThat(third >>> 1, is(equalTo(second >>> 1)));
+        assertThat(reassembler.getEvictedFlows(), is(equalTo(1L)));
+        // the flows that remain are still found
+        assertThat(process(reassembler, frame(1, 2, 0, ACK, new byte[0])), is(equalTo(first)));
+        assertThat(process(reassembler, frame(5, 6, 0, ACK, new byte[0])), is(equalTo(third)));
+        assertThat(reassembler.getFlows(), is(equalTo(2)));
+    }
+
+    @Test
+    public void expireIdleFlows() {
+        final RecordingListener listener = new RecordingListener();
+        final TCPReassembler reassembler = new TCPReassembler(listener, 1000, SegmentStore.BLOCK_SIZE, 3);
+        process(reassembler, frame(1, 2, 0, ACK, new byte[0]));
+        for (int i = 0; i < 4; i++) {
+            process(reassembler, frame(3, 4, 0, ACK, new byte[0]));
+        }
+
+        assertThat(reassembler.getExpiredFlows(), is(equalTo(1L)));
+        assertThat(reassembler.getFlows(), is(equalTo(1)));
+        assertThat(listener._removed.size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void reportGapWhenStoreIsFull() {
+        final RecordingListener listener = new RecordingListener();
+        final TCPReassembler reassembler = new TCPReassembler(listener, 16, SegmentStore.BLOCK_SIZE, 1000);
+        process(reassembler, frame(1, 2, 0, ACK, "a".getBytes()));
+        process(reassembler, frame(1, 2, 2, ACK, "c".getBytes()));
+        // the store holds one segment, so this one can not wait for the missing byte
+        process(reassembler, frame(1, 2, 3, ACK, "d".getBytes()));
+
+        assertThat(new String(listener.stream(0)), is(equalTo("acd")));
+        assertThat(listener._gaps, is(equalTo(1)));
+        assertThat(reassembler.getGaps(), is(equalTo(1L)));
+        assertThat(reassembler.getBufferedBytes(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void reportGapForSegmentsNotCaptured() {
+        final RecordingListener listener = new RecordingListener();
+        final TCPReassembler reassembler = new TCPReassembler(listener);
+        final byte[] truncated = frame(1, 2, 0, ACK, "abcdef".getBytes());
+        reassembler.process(truncated, 0, truncated.length - 3);
+        process(reassembler, frame(1, 2, 6, ACK, "ghi".getBytes()));
+
+        assertThat(new String(listener.stream(0)), is(equalTo("abcghi")));
+        assertThat(listener._gaps, is(equalTo(1)));
+    }
+
+    @Test
+    public void openFlowAgainOnNewSyn() {
+        final RecordingListener listener = new RecordingListener();
+        final TCPReassembler reassembler = new TCPReassembler(listener);
+        process(reassembler, frame(1, 2, 100, SYN, new byte[0]));
+        // a retransmitted SYN
+        process(reassembler, frame(1, 2, 100, SYN, new byte[0]));
+        process(reassembler, frame(1, 2, 101, ACK, "old".getBytes()));
+        assertThat(listener._opened, is(equalTo(1)));
+
+        process(reassembler, frame(1, 2, 5000, SYN, new byte[0]));
+        process(reassembler, frame(1, 2, 5001, ACK, "new".getBytes()));
+        assertThat(listener._opened, is(equalTo(2)));
+        assertThat(new String(listener.stream(0)), is(equalTo("oldnew")));
+    }
+
+    @Test
+    public void followSegmentsBehindAnyExtensionHeader() {
+        final RecordingListener listener = new RecordingListener();
+        final TCPReassembler reassembler = new TCPReassembler(listener, 16, 1024 * 1024, 1000);
+        final byte[] stream = bytes(3000);
+        // mobility and shim6 headers
+        final byte[] headers = new byte[16];
+        headers[0] = (byte) 140;
+        headers[8] = 6;
+
+        assertThat(process(reassembler, ipv6Frame(135, headers, 1000, SYN, new byte[0])), is(equalTo(0)));
+        process(reassembler, ipv6Frame(135, headers, 1001 + 1000, ACK, Arrays.copyOfRange(stream, 1000, 3000)));
+        process(reassembler, ipv6Frame(135, headers, 1001, ACK, Arrays.copyOfRange(stream, 0, 1000)));
+
+        assertThat(listener.stream(0), is(equalTo(stream)));
+        // the payload of an ESP header is encrypted
+        final byte[] esp = headers.clone();
+        esp[8] = 50;
+        assertThat(process(reassembler, ipv6Frame(135, esp, 1001, ACK, new byte[0])), is(equalTo(TCPReassembler.NONE)));
+    }
+
+    private static int process(final TCPReassembler reassembler, final byte[] frame) {
+        return reassembler.process(frame, 0, frame.length);
+    }
+
+    private static byte[] bytes(final int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + i / 256);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns an ethernet frame holding a TCP segment over IPv4, between 10.0.0.source:2000+source and
+     * 10.0.0.destination:2000+destination.
+     */
+    static byte[] frame(final int source, final int destination, final int sequence, final int flags, final byte[] payload) {
+        final ByteBuffer frame = ByteBuffer.allocate(54 + payload.length);
+        frame.put(new byte[12]).putShort((short) 0x0800);
+        frame.put((byte) 0x45).put((byte) 0).putShort((short) (40 + payload.length)).putInt(0).put((byte) 64).put((byte) 6).putShort((short) 0);
+        frame.put(new byte[] { 10, 0, 0, (byte) source }).put(new byte[] { 10, 0, 0, (byte) destination });
+        frame.putShort((short) (2000 + source)).putShort((short) (2000 + destination)).putInt(sequence).putInt(0);
+        frame.put((byte) 0x50).put((byte) flags).putShort((short) 8192).putInt(0);
+        frame.put(payload);
+        return frame.array();
+    }
+
+    /**
+     * Returns an ethernet frame holding a TCP segment over IPv6 behind extension headers, from port 2001 to 2002.
+     */
+    static byte[] ipv6Frame(final int nextHeader, final byte[] headers, final int sequence, final int flags, final byte[] payload) {
+        final ByteBuffer frame = ByteBuffer.allocate(14 + 40 + headers.length + 20 + payload.length);
+        frame.put(new byte[12]).putShort((short) 0x86DD);
+        frame.putInt(0x60000000).putShort((short) (headers.length + 20 + payload.length)).put((byte) nextHeader).put((byte) 64);
+        frame.putLong(0xFD00000000000000L).putLong(1).putLong(0xFD00000000000000L).putLong(2);
+        frame.put(headers);
+        frame.putShort((short) 2001).putShort((short) 2002).putInt(sequence).putInt(0);
+        frame.put((byte) 0x50).put((byte) flags).putShort((short) 8192).putInt(0);
+        frame.put(payload);
+        return frame.array();
+    }
+
+    private static class RecordingListener implements TCPStreamListener {
+
+        private final List<ByteArrayOutputStream> _streams = new ArrayList<>();
+        private final List<Integer> _removed = new ArrayList<>();
+        private int _opened;
+        private int _gaps;
+
+        @Override
+        public void opened(final int flow) {
+            _opened++;
+        }
+
+        @Override
+        public void data(final int flow, final int direction, final byte[] data, final int offset, final int length) {
+            final int stream = flow << 1 | direction;
+            while (_streams.size() <= stream) {
+                _streams.add(new ByteArrayOutputStream());
+            }
+            _streams.get(stream).write(data, offset, length);
+        }
+
+        @Override
+        public void gap(final int flow, final int direction) {
+            _gaps++;
+        }
+
+        @Override
+        public void removed(final int flow) {
+            _removed.add(flow);
+        }
+
+        byte[] stream(final int stream) {
+            return _streams.get(stream).toByteArray();
+        }
+    }
+}
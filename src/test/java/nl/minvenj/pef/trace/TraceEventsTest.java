@@ -0,0 +1,151 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.trace;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import static nl.minvenj.pef.TestPseudonymizers.pseudonymizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.minvenj.pef.Settings;
+import nl.minvenj.pef.pseudo.FramePseudonymizer;
+
+public class TraceEventsTest {
+
+    @Rule
+    public final TemporaryFolder _tempFolder = new TemporaryFolder();
+
+    @Test
+    public void describeProtocolPath() {
+        final byte[] frame = new byte[14 + 4 + 20 + 8];
+        frame[12] = (byte) 0x81;
+        frame[16] = 0x08;
+        frame[18] = 0x45;
+        frame[18 + 9] = 17;
+        frame[38 + 3] = 53;
+
+        assertThat(ProtocolPath.of(frame, 0, frame.length), is(equalTo("ethernet/vlan/ipv4/udp/dns")));
+        assertThat(ProtocolPath.of(frame, 2, frame.length - 2), is(equalTo("ethernet/0x0")));
+        assertThat(ProtocolPath.of(frame, 0, 13), is(equalTo("truncated")));
+    }
+
+    @Test
+    public void disabledWithoutRecording() {
+        assertThat(TraceEvents.FRAME.isEnabled(), is(false));
+        assertThat(TraceEvents.FRAME.isSampled(0), is(false));
+        // an event of a disabled or unavailable type can still be used
+        TraceEvents.RECORD.begin().set(TraceEvents.RECORD_FORMAT, "pcap").commit();
+    }
+
+    @Test
+    public void recordSampledFramesWhenEnabled() throws Exception {
+        assumeTrue(TraceEvents.FRAME.isAvailable());
+        final List<byte[]> frames = readFrames(new File(Settings.getTestBasePath(), "pcaps/56packets.pcap"));
+        // make sure the first sampled frame is a DNS frame
+        frames.add(0, frames.remove(dnsFrame(frames)));
+        final FramePseudonymizer pseudonymizer = pseudonymizer();
+        final int count = 4 * TraceEvents.getSampleInterval() + 1;
+
+        final Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+        final Object recording = recordingClass.getDeclaredConstructor().newInstance();
+        final Path dump = new File(_tempFolder.getRoot(), "trace.jfr").toPath();
+        try {
+            for (final String name : new String[] { TraceEvents.FRAME.getName(), TraceEvents.TRANSFORM.getName() }) {
+                recordingClass.getMethod("enable", String.class).invoke(recording, name);
+            }
+            recordingClass.getMethod("start").invoke(recording);
+            assertThat(TraceEvents.FRAME.isEnabled(), is(true));
+            for (int i = 0; i < count; i++) {
+                pseudonymizer.pseudonymize(frames.get(i % frames.size()));
+            }
+            recordingClass.getMethod("stop").invoke(recording);
+            recordingClass.getMethod("dump", Path.class).invoke(recording, dump);
+        }
+        finally {
+            recordingClass.getMethod("close").invoke(recording);
+        }
+
+        int frameEvents = 0;
+        int transformEvents = 0;
+        int dnsEvents = 0;
+        final List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile").getMethod("readAllEvents", Path.class).invoke(null, dump);
+        for (final Object event : events) {
+            final Object type = event.getClass().getMethod("getEventType").invoke(event);
+            final String name = (String) type.getClass().getMethod("getName").invoke(type);
+            if (name.equals(TraceEvents.FRAME.getName())) {
+                frameEvents++;
+                assertThat((Integer) value(event, "frameSize"), is(greaterThan(0)));
+                assertThat((String) value(event, "protocols"), containsString("ethernet/"));
+                if (value(event, "protocols").equals("ethernet/ipv4/udp/dns")) {
+                    assertThat(value(event, "outcome"), is(equalTo((Object) "pseudonymized")));
+                    assertThat(value(event, "transformers"), is(equalTo((Object) "ipsource,ipdestination,headerchecksum,udpchecksum")));
+                    dnsEvents++;
+                }
+            }
+            else if (name.equals(TraceEvents.TRANSFORM.getName())) {
+                transformEvents++;
+            }
+        }
+        // one in every sample interval frames is traced
+        assertThat(frameEvents, is(equalTo(5)));
+        assertThat(transformEvents, is(greaterThan(0)));
+        assertThat(dnsEvents, is(greaterThan(0)));
+    }
+
+    private static int dnsFrame(final List<byte[]> frames) {
+        for (int i = 0; i < frames.size(); i++) {
+            if (ProtocolPath.of(frames.get(i), 0, frames.get(i).length).equals("ethernet/ipv4/udp/dns")) {
+                return i;
+            }
+        }
+        throw new AssertionError("no DNS frame");
+    }
+
+    private static Object value(final Object event, final String field) throws ReflectiveOperationException {
+        return event.getClass().getMethod("getValue", String.class).invoke(event, field);
+    }
+
+    private static List<byte[]> readFrames(final File pcap) throws IOException {
+        final ByteBuffer input = ByteBuffer.wrap(Files.readAllBytes(pcap.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        final List<byte[]> frames = new ArrayList<>();
+        input.position(24);
+        while (input.hasRemaining()) {
+            input.position(input.position() + 8);
+            final byte[] frame = new byte[input.getInt()];
+            input.getInt();
+            input.get(frame);
+            frames.add(frame);
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2016 National Cyber Security Centre, Netherlands Forensic Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.minvenj.pef.util;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void reuseReleasedBuffers() {
+        final BufferPool pool = new BufferPool(64, 2);
+        final ByteBuffer first = pool.acquire(10);
+        assertThat(first.limit(), is(equalTo(10)));
+        first.put((byte) 1);
+        pool.release(first);
+
+        final ByteBuffer second = pool.acquire(20);
+        assertThat(second, is(sameInstance(first)));
+        assertThat(second.position(), is(equalTo(0)));
+        assertThat(second.limit(), is(equalTo(20)));
+        assertThat(pool.getAllocations(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void allocateWhenEmptyOrTooSmall() {
+        final BufferPool pool = new BufferPool(64, 1);
+        final ByteBuffer pooled = pool.acquire(64);
+        final ByteBuffer extra = pool.acquire(64);
+        final ByteBuffer large = pool.acquire(100);
+        assertThat(extra, is(not(sameInstance(pooled))));
+        assertThat(large.capacity(), is(equalTo(100)));
+        assertThat(pool.getAllocations(), is(equalTo(2L)));
+
+        pool.release(large);
+        pool.release(pooled);
+        pool.release(extra);
+        assertThat(pool.acquire(1), is(sameInstance(pooled)));
+        pool.acquire(1);
+        assertThat(pool.getAllocations(), is(equalTo(3L)));
+    }
+}